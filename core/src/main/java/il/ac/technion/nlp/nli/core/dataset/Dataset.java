@@ -70,6 +70,10 @@ public class Dataset implements Serializable {
         return exampleIdToExampleCategory.safeGet(ex.getId());
     }
 
+    public void setExampleCategory(Example ex, ExampleCategory category) {
+        exampleIdToExampleCategory.put(ex.getId(), category);
+    }
+
 
     public void setDatasetDomains(DatasetDomains datasetDomains) {
         this.datasetDomains = datasetDomains;
@@ -147,16 +151,21 @@ public class Dataset implements Serializable {
      * This modified the examples held by this data structure.
      */
     public void preprocessExamples(){
+        exampleIdToExample.values().forEach(Dataset::preprocessExample);
+    }
 
-        exampleIdToExample.values().forEach(example->{
-            String utterance = example.getInstructionUtterance();
-            utterance = utterance.trim();
+    /**
+     * The preprocessing done by {@link #preprocessExamples()}, for a single example (e.g. one read separately, see
+     * {@link DatasetFileTree}). Modifies 'example'.
+     */
+    public static void preprocessExample(Example example) {
+        String utterance = example.getInstructionUtterance();
+        utterance = utterance.trim();
 
-            // remove tailing dot.
-            utterance = removeTailingDot(utterance);
+        // remove tailing dot.
+        utterance = removeTailingDot(utterance);
 
-            example.setInstructionUtterance(utterance);
-        });
+        example.setInstructionUtterance(utterance);
     }
 
     static String removeTailingDot(String utterance) {
@@ -0,0 +1,159 @@
+package il.ac.technion.nlp.nli.core.dataset;
+
+import com.google.common.base.Verify;
+import ofergivoli.olib.io.TextIO;
+import ofergivoli.olib.io.serialization.xml.XStreamSerialization;
+import il.ac.technion.nlp.nli.core.state.State;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A dataset stored as a file tree (as in dataset/data): a directory per split part ("train" and "test"), containing a
+ * directory per domain (named by the domain id), containing a directory per example (named by the example id) with the
+ * files {@link #INITIAL_STATE_FILE_NAME}, {@link #DESIRED_STATE_FILE_NAME} (XStream serialized {@link State}s) and
+ * {@link #UTTERANCE_FILE_NAME}.
+ *
+ * Unlike reading an entire serialized {@link Dataset}, only the list of example directories is kept in memory. The
+ * files of an example are read when the example is reached (see {@link #streamExamples(ExampleSplit.SplitPart,
+ * boolean)}), and the returned {@link Example} is not referenced by this object, so it can be garbage collected as
+ * soon as the caller is done with it.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class DatasetFileTree {
+
+    public static final String INITIAL_STATE_FILE_NAME = "InitialState.xml";
+    public static final String DESIRED_STATE_FILE_NAME = "DesiredState.xml";
+    public static final String UTTERANCE_FILE_NAME = "Utterance.txt";
+
+    private final Path rootDir;
+    /**
+     * Ordered by split part, then by domain id and then by example id.
+     */
+    private final List<ExampleEntry> entries = new ArrayList<>();
+
+
+    /**
+     * Lists the example directories (without reading their files).
+     * @param rootDir contains the split part directories. Split parts with no directory are considered empty.
+     */
+    public DatasetFileTree(Path rootDir) {
+        this.rootDir = rootDir;
+        for (ExampleSplit.SplitPart splitPart : ExampleSplit.SplitPart.values()) {
+            Path splitPartDir = rootDir.resolve(splitPart.name().toLowerCase());
+            if (!Files.isDirectory(splitPartDir))
+                continue;
+            for (Path domainDir : listSubdirectories(splitPartDir))
+                for (Path exampleDir : listSubdirectories(domainDir))
+                    entries.add(new ExampleEntry(exampleDir.getFileName().toString(),
+                            domainDir.getFileName().toString(), splitPart, exampleDir));
+        }
+    }
+
+    /**
+     * @return sorted by name.
+     */
+    private static List<Path> listSubdirectories(Path dir) {
+        try (Stream<Path> children = Files.list(dir)) {
+            return children
+                    .filter(Files::isDirectory)
+                    .sorted(Comparator.comparing(path -> path.getFileName().toString()))
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Path getRootDir() {
+        return rootDir;
+    }
+
+    /**
+     * @return an unmodifiable list.
+     */
+    public List<ExampleEntry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @param splitPart null means all split parts.
+     */
+    public List<ExampleEntry> getEntries(@Nullable ExampleSplit.SplitPart splitPart) {
+        if (splitPart == null)
+            return getEntries();
+        return entries.stream()
+                .filter(entry -> entry.splitPart == splitPart)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Each example is read (see {@link ExampleEntry#readExample()}) only when the stream reaches it.
+     * @param splitPart null means all split parts.
+     * @param parallel when true, multiple examples are read concurrently (using the common fork-join pool). The stream
+     *                 is ordered (by {@link #getEntries()} order), so e.g. {@link Stream#forEachOrdered} and
+     *                 {@link Stream#collect} keep the order also in this case.
+     */
+    public Stream<Example> streamExamples(@Nullable ExampleSplit.SplitPart splitPart, boolean parallel) {
+        Stream<ExampleEntry> stream = getEntries(splitPart).stream();
+        if (parallel)
+            stream = stream.parallel();
+        return stream.map(ExampleEntry::readExample);
+    }
+
+
+    /**
+     * The location of a single example in the file tree. Holds no state data.
+     */
+    public static class ExampleEntry {
+
+        public final String exampleId;
+        public final String domainId;
+        public final ExampleSplit.SplitPart splitPart;
+        public final Path exampleDir;
+
+        private ExampleEntry(String exampleId, String domainId, ExampleSplit.SplitPart splitPart, Path exampleDir) {
+            this.exampleId = exampleId;
+            this.domainId = domainId;
+            this.splitPart = splitPart;
+            this.exampleDir = exampleDir;
+        }
+
+        /**
+         * Reads the files of the example. Every call reads them again (nothing is cached).
+         * The domain of the returned example is the one of its initial state.
+         */
+        public Example readExample() {
+            State initialState = XStreamSerialization.readObjectFromTrustedXmlFile(false,
+                    exampleDir.resolve(INITIAL_STATE_FILE_NAME));
+            State desiredState = XStreamSerialization.readObjectFromTrustedXmlFile(false,
+                    exampleDir.resolve(DESIRED_STATE_FILE_NAME));
+            Domain domain = initialState.getDomain();
+            Verify.verify(domain.getId().equals(domainId), "example %s is in the directory of another domain",
+                    exampleId);
+            Verify.verify(desiredState.getDomain().equals(domain));
+            return new Example(exampleId, readUtterance(), initialState, desiredState, domain);
+        }
+
+        /**
+         * Reads only the utterance file of the example.
+         */
+        public String readUtterance() {
+            return TextIO.readAllTextFromFileInStandardEncoding(exampleDir.resolve(UTTERANCE_FILE_NAME)).trim();
+        }
+
+        @Override
+        public String toString() {
+            return exampleId;
+        }
+    }
+}
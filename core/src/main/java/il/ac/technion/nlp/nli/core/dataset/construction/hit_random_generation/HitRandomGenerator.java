@@ -82,6 +82,7 @@ public abstract class HitRandomGenerator {
                 // We assume this call must succeed at some point.
                 initialState = new State(domain, generateRandomRootEntityForInitialState(), true);
             }
+            initialState.markEntityGraphAsUnmodifiable(); // method calls are invoked on copies of it.
 
             MethodCall fc = null;
             int tries = 0;
@@ -97,6 +98,7 @@ public abstract class HitRandomGenerator {
                     Log.warn("fc.invokeOnDeepCopyOfState(initialState) returned null during HIT construction");
                     continue;
                 }
+                destinationState.markEntityGraphAsUnmodifiable(); // so comparing fingerprints may avoid walking both.
                 if (destinationState.entityGraphsEqual(initialState)) {
                     Log.trace("Randomly generated a destination state with entity graph identical to the initial state's. Root entity:\n" +
                             EntityGraphReflection.entityGraphToHumanFriendlyString(initialState.getRootEntity(), true) +
@@ -3,19 +3,19 @@ package il.ac.technion.nlp.nli.core.method_call;
 import com.google.common.base.Verify;
 import ofergivoli.olib.io.log.Log;
 import il.ac.technion.nlp.nli.core.EnableNli;
+import il.ac.technion.nlp.nli.core.reflection.EntityGraphSnapshot;
 import il.ac.technion.nlp.nli.core.state.NliEntity;
+import il.ac.technion.nlp.nli.core.state.NliRootEntity;
 import il.ac.technion.nlp.nli.core.state.PrimitiveEntity;
 import il.ac.technion.nlp.nli.core.state.State;
 import il.ac.technion.nlp.nli.core.reflection.GeneralReflection;
-import org.apache.commons.lang3.ClassUtils;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Type;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
 
 /**
  * Represents the interface method + arguments.
@@ -42,6 +42,11 @@ public class MethodCall implements Serializable {
 
     private final String entityIdOfObjectMethodIsInvokeOn;
 
+    /**
+     * See {@link #getInvocationPlan()}.
+     */
+    private transient @Nullable MethodInvocationPlan invocationPlan;
+
     /**
      * @param entityIdOfObjectMethodIsInvokeOn The id (in the state) of the entity on which the interface method to be
      *                                         invoked.
@@ -70,40 +75,32 @@ public class MethodCall implements Serializable {
     MethodCall createValidFunctionCall(MethodId methodId, String entityIdOfObjectMethodIsInvokeOn,
                                        ArrayList<Argument> arguments, State initialState) {
 
-        if (arguments.size() != methodId.getParameterClassNames().size())
+        MethodInvocationPlan plan = MethodInvocationPlan.get(methodId);
+        if (arguments.size() != plan.getParametersNum())
             return null;
 
         // validating type of object to invoke on
         NliEntity objToInvokeOn = initialState.getEntityById(entityIdOfObjectMethodIsInvokeOn);
-        if (!methodId.getDeclaringClassCanonicalName().equals(objToInvokeOn.getClass().getCanonicalName()))
+        if (objToInvokeOn.getClass() != plan.declaringClass)
             return null;
 
-        Method method = methodId.getMethod();
         // For each argument, validating types of all entities in it.
         for (int i=0; i<arguments.size(); i++) {
             Argument arg = arguments.get(i);
-            Type paramType = method.getGenericParameterTypes()[i];
 
-            if (!GeneralReflection.isUserEntityTypeCollection(paramType) //TODO: use a more efficient method.
-                    && arg.size() != 1)
+            if (!plan.collectionParameters[i] && arg.size() != 1)
                 return null; // expected an argument with single value
 
-            Class<?> paramUserType = GeneralReflection.getUserType(paramType);
-
             if (arg instanceof PrimitiveArgument) {
-                PrimitiveArgument primitiveArg = (PrimitiveArgument) arg;
-                if (primitiveArg.getPrimitiveEntities().stream()
-                        .anyMatch(e -> {
-                            Class<?> clazz =  e.getValue() == null  ?  null : e.getValue().getClass();
-                            return !ClassUtils.isAssignable(clazz, paramUserType);
-                        }))
-                    return null;
+                for (PrimitiveEntity e : ((PrimitiveArgument) arg).getPrimitiveEntities()) {
+                    Class<?> clazz =  e.getValue() == null  ?  null : e.getValue().getClass();
+                    if (!plan.isAssignableToParameter(i, clazz))
+                        return null;
+                }
             } else {
-                NonPrimitiveArgument nonPrimitiveArg = (NonPrimitiveArgument) arg;
-                if (nonPrimitiveArg.getNonPrimitiveEntityIds().stream()
-                        .map(initialState::getEntityById)
-                        .anyMatch(e->!ClassUtils.isAssignable(e.getClass(), paramUserType)))
-                    return null;
+                for (String id : ((NonPrimitiveArgument) arg).getNonPrimitiveEntityIds())
+                    if (!plan.isAssignableToParameter(i, initialState.getEntityById(id).getClass()))
+                        return null;
             }
         }
 
@@ -118,52 +115,52 @@ public class MethodCall implements Serializable {
 	 */
 	Object[] getArgumentValues(State state) {
 
-        /**
-         * This list is the result of mapping the elements of 'arguments' to collections containing strictly user entity
-         * values. Primitive entities representing 'null' are ignored (so there are no null values in the returned
-         * collections).
-         * Element of index i in this list is a collection containing user entity values to be sent to the function as
-         * argument i (whether parameter i is a collection or not, if not then the collection contains a single element
-         * that needs to be stripped away).
-         */
-        ArrayList<List<?>> argCollections = arguments.stream().map(arg -> {
-
+        MethodInvocationPlan plan = getInvocationPlan();
+        // element i is the actual value that will be passed as argument i to the function.
+        Object[] argValues = new Object[arguments.size()];
+        for (int i=0; i<argValues.length; i++) {
+            /**
+             * The user entity values of argument i. Primitive entities representing 'null' are ignored (so there are no
+             * null values in this collection).
+             */
+            List<Object> argCollection = new ArrayList<>(arguments.get(i).size());
+            Argument arg = arguments.get(i);
             if (arg instanceof PrimitiveArgument) {
                 /** Collecting the user values from the {@link PrimitiveEntity}s */
-                return ((PrimitiveArgument) arg).primitiveEntities.stream()
-                        .map(PrimitiveEntity::getValue)
-                        .filter(Objects::nonNull)
-                        .collect(Collectors.toList());
+                for (PrimitiveEntity e : ((PrimitiveArgument) arg).primitiveEntities)
+                    if (e.getValue() != null)
+                        argCollection.add(e.getValue());
             } else if (arg instanceof NonPrimitiveArgument) {
                 /** Collecting the {@link NliEntity}s matching the ids */
-                Collection<String> entityIds = ((NonPrimitiveArgument) arg).nonPrimitiveEntityIds;
-                return entityIds.stream()
-                        .map(state::getEntityById)
-                        .collect(Collectors.toList());
+                for (String id : ((NonPrimitiveArgument) arg).nonPrimitiveEntityIds)
+                    argCollection.add(state.getEntityById(id));
             } else
                 throw new Error();
-        }).collect(Collectors.toCollection(ArrayList::new));
 
-
-        // In this list, element i is the actual value that will be passed as argument i to the function.
-        List<Object> argValues = new LinkedList<>();
-        for (int i=0; i<arguments.size(); i++) {
-            List<?> argCollection = argCollections.get(i);
-            if (GeneralReflection.isUserEntityTypeCollection(methodId.getMethod().getGenericParameterTypes()[i])) {
+            if (plan.collectionParameters[i]) {
                 // Keeping the collection as is.
-                argValues.add(argCollection);
+                argValues[i] = argCollection;
             } else  {
                 // Stripping away the (singleton) collection.
                 Verify.verify(argCollection.size() == 1);
                 Object userValue = argCollection.get(0);
                 assert(GeneralReflection.isUserEntityType(userValue.getClass()));
-                argValues.add(userValue);
+                argValues[i] = userValue;
             }
         }
 
-        return argValues.toArray();
+        return argValues;
 	}
 
+    /**
+     * Cached in a transient field, so it's shared by all the invocations of this object.
+     */
+    private MethodInvocationPlan getInvocationPlan() {
+        if (invocationPlan == null)
+            invocationPlan = MethodInvocationPlan.get(methodId);
+        return invocationPlan;
+    }
+
 
 
     /**
@@ -172,16 +169,25 @@ public class MethodCall implements Serializable {
      * @return true iff invocation was successful.
      */
     private boolean invokeOnGivenState(State state) {
+        Verify.verify(!state.isEntityGraphUnmodifiable());
+        if (!invokeWithoutUpdatingState(state))
+            return false;
+        state.updateStateFollowingEntityGraphModifications();
+        return true;
+    }
+
+    /**
+     * Invokes the NLI method on the entity graph of 'state', without calling
+     * {@link State#updateStateFollowingEntityGraphModifications()}.
+     * @return true iff invocation was successful.
+     */
+    private boolean invokeWithoutUpdatingState(State state) {
 
         NliEntity objToInvokeOn = state.getEntityById(entityIdOfObjectMethodIsInvokeOn);
         Verify.verify(objToInvokeOn != null);
+        Object[] argValues = getArgumentValues(state);
         try {
-            Method method = methodId.getMethod();
-            method.setAccessible(true);
-            method.invoke(objToInvokeOn, getArgumentValues(state));
-			state.updateStateFollowingEntityGraphModifications();
-        } catch (IllegalAccessException | IllegalArgumentException e) {
-            throw new RuntimeException(e);
+            getInvocationPlan().invoke(objToInvokeOn, argValues);
         } catch (InvocationTargetException e) {
             Throwable exceptionThrown = e.getCause();
             if (exceptionThrown instanceof InvalidNliMethodInvocation)
@@ -198,19 +204,115 @@ public class MethodCall implements Serializable {
 	/**
      *
      * Invokes this function call on the root entity of a new deep copy of 'state'.
-     * Also calls method.setAccessible(true).
      * @return On success: the new copy of the state after the execution of the SI function with it.
      * null is returned if the invocation failed, meaning that the invoked interface function threw some Throwable. We
      * expect this to happen often during inference. When this happen, assume the state is corrupted.
      */
 	public @Nullable State invokeOnDeepCopyOfState(State state) {
-		State copy = state.deepCopy();
+        State copy;
+        Lock lock = state.getEntityGraphLock().readLock();
+        lock.lock();
+        try {
+            copy = state.deepCopy();
+        } finally {
+            lock.unlock();
+        }
         boolean success = invokeOnGivenState(copy);
         if (!success)
             return null;
 		return copy;
 	}
 
+    /**
+     * Like {@link #invokeOnDeepCopyOfState(State)}, but only the non-primitive entities modified by the invocation
+     * (and the ones referring to them, directly or indirectly) are copied.
+     * Aliasing contract: all other non-primitive entities are shared by 'state' and the returned state, so neither of
+     * them may be modified afterwards (other than by the methods of this class, which restore what they modify). Both
+     * states are marked accordingly (see {@link State#sharesEntitiesWithOtherStates()}; not done when falling back to
+     * {@link #invokeOnDeepCopyOfState(State)}, see below), so
+     * {@link State#updateStateFollowingEntityGraphModifications()} fails on them. A caller that needs to modify the
+     * resulting state should use {@link State#deepCopy()} on it.
+     * The invocation is done in place on the entity graph of 'state', which is restored afterwards (also when the
+     * invocation fails). The write lock of {@link State#getEntityGraphLock()} is held meanwhile, so other threads may
+     * invoke method calls on 'state' concurrently (through the methods of this class). However, states returned by
+     * this method are read without that lock, so they must not be accessed while method calls may be invoked on 'state'
+     * by other threads.
+     * If the entity graph contains values that can't be handled this way (see {@link EntityGraphSnapshot}), this method
+     * falls back to {@link #invokeOnDeepCopyOfState(State)}.
+     * @return On success: the state after the execution. null if the invocation failed.
+     */
+    public @Nullable State invokeOnCopyOnWriteViewOfState(State state) {
+
+        boolean success = false;
+        @Nullable List<NliEntity> modifiedEntities = null;
+        @Nullable IdentityHashMap<Object, Object> originalToCopy = null;
+        Lock lock = state.getEntityGraphLock().writeLock();
+        lock.lock();
+        try {
+            EntityGraphSnapshot snapshot = state.getEntityGraphSnapshot();
+            if (snapshot == null)
+                return invokeOnDeepCopyOfState(state);
+            try {
+                success = invokeWithoutUpdatingState(state);
+                modifiedEntities = snapshot.findModifiedEntities();
+                if (success)
+                    originalToCopy = snapshot.copyModifiedEntitiesAndTheirAncestors(modifiedEntities);
+            } finally {
+                snapshot.restore(modifiedEntities != null ? modifiedEntities : snapshot.findModifiedEntities());
+            }
+            if (success && originalToCopy != null)
+                return state.createSuccessorSharingUnmodifiedEntities(modifiedEntities, originalToCopy);
+        } finally {
+            lock.unlock();
+        }
+
+        if (!success)
+            return null;
+        return invokeOnDeepCopyOfState(state); // the resulting entity graph contains values we can't copy.
+    }
+
+    /**
+     * Invokes the NLI method in place on the entity graph of 'state', applies 'resultInspector' on the root entity of
+     * the resulting entity graph (e.g. for comparing it to an expected state, or fingerprinting it), and then rolls
+     * back the entity graph to the one of the snapshot of 'state' (see {@link State#getEntityGraphSnapshot()}).
+     * Nothing is copied, so this is the cheapest way to check the result of a method call, but the resulting state is
+     * not kept.
+     * 'state' is exactly restored also when the invocation fails or 'resultInspector' throws. The write lock of
+     * {@link State#getEntityGraphLock()} is held meanwhile, so other threads may invoke method calls on 'state'
+     * concurrently (through the methods of this class). While 'resultInspector' runs, the ids, graph KB and
+     * fingerprint of 'state' refer to the initial entity graph, so 'resultInspector' should only use the given root
+     * entity.
+     * If the entity graph contains values that can't be snapshotted, the inspection is done on a deep copy instead.
+     * @param state must not share entities with other states (see {@link State#sharesEntitiesWithOtherStates()}), as
+     *              the in-place modifications would be visible through them.
+     * @param resultInspector must not return null.
+     * @return null if the invocation failed. Otherwise, the value returned by 'resultInspector'.
+     */
+    public @Nullable <T> T invokeInPlaceAndRollBack(State state, Function<NliRootEntity, T> resultInspector) {
+
+        Verify.verify(!state.sharesEntitiesWithOtherStates(),
+                "in-place invocation on a state sharing entities with copy-on-write views");
+        Lock lock = state.getEntityGraphLock().writeLock();
+        lock.lock();
+        try {
+            EntityGraphSnapshot snapshot = state.getEntityGraphSnapshot();
+            if (snapshot != null) {
+                try {
+                    if (!invokeWithoutUpdatingState(state))
+                        return null;
+                    return Verify.verifyNotNull(resultInspector.apply(state.getRootEntity()));
+                } finally {
+                    snapshot.restore(snapshot.findModifiedEntities());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        State resultState = invokeOnDeepCopyOfState(state);
+        return resultState == null ? null : Verify.verifyNotNull(resultInspector.apply(resultState.getRootEntity()));
+    }
+
     public ArrayList<Argument> getArguments() {
         return arguments;
     }
@@ -219,6 +321,10 @@ public class MethodCall implements Serializable {
         return methodId;
     }
 
+    public String getEntityIdOfObjectMethodIsInvokeOn() {
+        return entityIdOfObjectMethodIsInvokeOn;
+    }
+
     /**
      * For arguments with non-primitive values, the comparison is based on ids.
      */
@@ -6,6 +6,7 @@ import ofergivoli.olib.reflection.ReflectionUtils;
 import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -37,12 +38,32 @@ public class MethodId implements Serializable {
 		}
 	}
 
+	/**
+	 * @param parameterClassNames as returned by {@link Class#getName()}.
+	 */
+	public MethodId(String declaringClassCanonicalName, String name, List<String> parameterClassNames) {
+		this.declaringClassCanonicalName = declaringClassCanonicalName;
+		this.name = name;
+		this.parameterClassNames = new ArrayList<>(parameterClassNames);
+	}
+
 	public MethodId(Method method) {
 		this(method.getDeclaringClass(), method.getName(), method.getParameterTypes());
 	}
 
 
+	/**
+	 * The method is resolved once per {@link MethodId} (see {@link MethodInvocationPlan}).
+	 * setAccessible(true) was performed on the returned method.
+	 */
 	public Method getMethod() {
+		return MethodInvocationPlan.get(this).method;
+	}
+
+	/**
+	 * Looks up the method by the class & parameter names.
+	 */
+	Method resolveMethod() {
 		try {
 			Class<?> declaringClass = Class.forName(declaringClassCanonicalName);
 
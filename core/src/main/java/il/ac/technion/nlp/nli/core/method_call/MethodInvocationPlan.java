@@ -0,0 +1,119 @@
+package il.ac.technion.nlp.nli.core.method_call;
+
+import il.ac.technion.nlp.nli.core.reflection.GeneralReflection;
+import org.apache.commons.lang3.ClassUtils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The reflection data needed for validating and invoking {@link MethodCall}s of a single {@link MethodId}.
+ * Created the first time it's requested for a {@link MethodId} (see {@link #get(MethodId)}), and reused from then on
+ * (across states and examples).
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+class MethodInvocationPlan {
+
+    private static final ConcurrentHashMap<MethodId, MethodInvocationPlan> methodIdToPlan = new ConcurrentHashMap<>();
+
+    final Method method;
+    final Class<?> declaringClass;
+    /**
+     * Of type (Object,Object[])Object, where the first argument is the object to invoke the method on, and the second
+     * contains the arguments.
+     */
+    private final MethodHandle handle;
+    /**
+     * Element i is true iff parameter i is a collection of user entity type elements (see
+     * {@link GeneralReflection#isUserEntityTypeCollection(Type)}). Otherwise parameter i is a single user entity.
+     */
+    final boolean[] collectionParameters;
+    /**
+     * Element i is the user entity type of parameter i (see {@link GeneralReflection#getUserType(Type)}).
+     */
+    final Class<?>[] parameterUserTypes;
+    /**
+     * The (erased) parameter types of {@link #method}.
+     */
+    private final Class<?>[] parameterClasses;
+
+
+    private MethodInvocationPlan(MethodId methodId) {
+        method = methodId.resolveMethod();
+        method.setAccessible(true);
+        declaringClass = method.getDeclaringClass();
+        parameterClasses = method.getParameterTypes();
+        Type[] parameterTypes = method.getGenericParameterTypes();
+        collectionParameters = new boolean[parameterTypes.length];
+        parameterUserTypes = new Class<?>[parameterTypes.length];
+        for (int i=0; i<parameterTypes.length; i++) {
+            collectionParameters[i] = GeneralReflection.isUserEntityTypeCollection(parameterTypes[i]);
+            parameterUserTypes[i] = GeneralReflection.getUserType(parameterTypes[i]);
+        }
+        try {
+            handle = MethodHandles.lookup().unreflect(method)
+                    .asType(MethodType.genericMethodType(parameterTypes.length + 1))
+                    .asSpreader(Object[].class, parameterTypes.length);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static MethodInvocationPlan get(MethodId methodId) {
+        return methodIdToPlan.computeIfAbsent(methodId, MethodInvocationPlan::new);
+    }
+
+    int getParametersNum() {
+        return collectionParameters.length;
+    }
+
+    /**
+     * @return true iff a value of 'clazz' can be passed as an element of argument i (null represents the null value).
+     */
+    boolean isAssignableToParameter(int i, Class<?> clazz) {
+        return ClassUtils.isAssignable(clazz, parameterUserTypes[i]);
+    }
+
+    /**
+     * Like {@link Method#invoke(Object, Object...)}: the arguments are checked before the invocation, so that anything
+     * thrown afterwards is known to be thrown by the invoked method.
+     * @param args as returned by {@link MethodCall#getArgumentValues(il.ac.technion.nlp.nli.core.state.State)}.
+     * @throws IllegalArgumentException if 'objToInvokeOn' or 'args' don't match the method.
+     * @throws InvocationTargetException wrapping anything thrown by the invoked method.
+     */
+    void invoke(Object objToInvokeOn, Object[] args) throws InvocationTargetException {
+        verifyArguments(objToInvokeOn, args);
+        try {
+            @SuppressWarnings("unused")
+            Object returnValue = (Object) handle.invokeExact(objToInvokeOn, args);
+        } catch (WrongMethodTypeException e) {
+            throw e; // a bug in the construction of 'handle', not something the invoked method threw.
+        } catch (Throwable t) {
+            throw new InvocationTargetException(t);
+        }
+    }
+
+    /**
+     * Given the checks done here, the adaptations done by 'handle' (casts and spreading) can't fail.
+     */
+    private void verifyArguments(Object objToInvokeOn, Object[] args) {
+        if (!declaringClass.isInstance(objToInvokeOn))
+            throw new IllegalArgumentException("object is not an instance of " + declaringClass.getName());
+        if (args.length != parameterClasses.length)
+            throw new IllegalArgumentException("wrong number of arguments: " + args.length);
+        for (int i=0; i<args.length; i++) {
+            boolean valid = args[i] == null ? !parameterClasses[i].isPrimitive() :
+                    ClassUtils.primitiveToWrapper(parameterClasses[i]).isInstance(args[i]);
+            if (!valid)
+                throw new IllegalArgumentException("argument " + i + " doesn't match parameter type " +
+                        parameterClasses[i].getName());
+        }
+    }
+}
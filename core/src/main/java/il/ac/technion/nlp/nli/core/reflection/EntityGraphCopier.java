@@ -0,0 +1,341 @@
+package il.ac.technion.nlp.nli.core.reflection;
+
+import ofergivoli.olib.reflection.ReflectionUtils;
+import il.ac.technion.nlp.nli.core.state.NliEntity;
+import il.ac.technion.nlp.nli.core.state.NliRootEntity;
+import il.ac.technion.nlp.nli.core.state.PrimitiveEntity;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deep-copies entity graphs without going through Java serialization.
+ *
+ * The copy has the same semantics as cloning the graph via serialization: every non-static non-transient field
+ * declared in a {@link Serializable} class is copied, and the sharing of {@link NliEntity} objects is preserved (an
+ * entity referred to from multiple places is copied once).
+ * Unlike serialization, a copy is created via the no-args constructor of its class (which may be private), so
+ * transient fields get the value assigned by that constructor. Entity classes without such a constructor aren't
+ * supported (see {@link #isSupported(Class)}).
+ * Collections are created via their no-args constructor, except for a {@link SortedSet} with a comparator, which is
+ * created via its constructor taking the comparator (the same comparator object is used by the copy).
+ * Primitive entity values are immutable, so they're shared between the original and the copy.
+ * Copied collections are populated only after the fields of all the copied entities are set, so that hash-based and
+ * sorted collections of entities (whose hash code / order may depend on their fields) are consistent.
+ *
+ * A per-class copier is created the first time an entity of that class is copied, and is reused from then on.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class EntityGraphCopier {
+
+    private static final ConcurrentHashMap<Class<?>, ClassCopier> classToCopier = new ConcurrentHashMap<>();
+
+
+    /**
+     * @return a map from every {@link NliEntity} reachable from 'root' (and every collection referred to by these) to
+     * its copy. The copies refer only to copies (never to the original entities).
+     * null is returned if the graph contains a value this class doesn't know how to copy (see
+     * {@link #isSupported(Class)}), in which case the caller should fall back to serialization.
+     */
+    public static @Nullable IdentityHashMap<Object, Object> deepCopyEntityGraph(NliRootEntity root) {
+
+        IdentityHashMap<Object, Object> originalToCopy = new IdentityHashMap<>();
+        // entities that were already allocated a copy, but whose fields were not yet copied.
+        Deque<NliEntity> pending = new ArrayDeque<>();
+        // collection copies that were not yet populated, in the order they were created.
+        List<CollectionToFill> collectionsToFill = new ArrayList<>();
+        if (allocateCopy(root, originalToCopy, pending) == null)
+            return null;
+
+        while (!pending.isEmpty()) {
+            NliEntity original = pending.remove();
+            if (!getCopier(original.getClass()).copyFields(original, originalToCopy.get(original), originalToCopy,
+                    pending, collectionsToFill))
+                return null;
+        }
+        CollectionToFill.fillAll(collectionsToFill);
+        return originalToCopy;
+    }
+
+    /**
+     * @return true iff objects of 'clazz' can be copied by this class (the values referred to by an object may still
+     * be unsupported).
+     */
+    public static boolean isSupported(Class<?> clazz) {
+        return getCopier(clazz).supported;
+    }
+
+    /**
+     * @return the fields copied for objects of 'clazz' (an {@link NliEntity} class), i.e. the ones serialization writes.
+     * Unmodifiable. setAccessible(true) was performed on all of them.
+     */
+    public static List<Field> getCopiedFields(Class<? extends NliEntity> clazz) {
+        return Collections.unmodifiableList(getCopier(clazz).copiedFields);
+    }
+
+    /**
+     * Creates an object of 'clazz' via its no-args constructor, to have its fields set afterwards.
+     * @throws RuntimeException if 'clazz' is not supported (see {@link #isSupported(Class)}).
+     */
+    public static NliEntity newEntityToBeFilled(Class<? extends NliEntity> clazz) {
+        ClassCopier copier = getCopier(clazz);
+        if (!copier.supported)
+            throw new RuntimeException("Unsupported entity class (no no-args constructor): " + clazz.getName());
+        return (NliEntity) copier.newEntity();
+    }
+
+    /**
+     * @return null if a collection of 'collectionClass' can't be created via a no-args constructor.
+     */
+    public static @Nullable Collection<Object> newEmptyCollection(Class<?> collectionClass) {
+        return getCopier(collectionClass).newEmptyCollection(null);
+    }
+
+    /**
+     * @return true iff {@link #newEmptyCollection(Class)} can create a collection of 'collectionClass'.
+     */
+    public static boolean canCreateEmptyCollection(Class<?> collectionClass) {
+        return getCopier(collectionClass).canCreateEmptyCollection(null);
+    }
+
+    /**
+     * @return an empty collection of the class of 'original' (with the comparator of 'original' in case it's a
+     * {@link SortedSet}). null if it can't be created.
+     */
+    public static @Nullable Collection<Object> newEmptyCollectionLike(Collection<?> original) {
+        return getCopier(original.getClass()).newEmptyCollection(getComparator(original));
+    }
+
+    /**
+     * @return true iff {@link #newEmptyCollectionLike(Collection)} can create a collection for 'original'.
+     */
+    public static boolean canCreateEmptyCollectionLike(Collection<?> original) {
+        return getCopier(original.getClass()).canCreateEmptyCollection(getComparator(original));
+    }
+
+    /**
+     * @return the comparator of 'collection' if it's a {@link SortedSet} with one, and null otherwise.
+     */
+    public static @Nullable Comparator<?> getComparator(Collection<?> collection) {
+        return collection instanceof SortedSet ? ((SortedSet<?>) collection).comparator() : null;
+    }
+
+    static ClassCopier getCopier(Class<?> clazz) {
+        return classToCopier.computeIfAbsent(clazz, ClassCopier::new);
+    }
+
+    /**
+     * @return null if 'original' can't be copied.
+     */
+    private static @Nullable NliEntity allocateCopy(NliEntity original,
+                                                    IdentityHashMap<Object, Object> originalToCopy,
+                                                    Deque<NliEntity> pending) {
+        NliEntity copy = (NliEntity) originalToCopy.get(original);
+        if (copy != null)
+            return copy;
+        ClassCopier copier = getCopier(original.getClass());
+        if (!copier.supported)
+            return null;
+        copy = (NliEntity) copier.newEntity();
+        originalToCopy.put(original, copy);
+        pending.add(original);
+        return copy;
+    }
+
+    /**
+     * @return the value to be used in the copy for a field having the value 'original', or 'original' itself for
+     * immutable values. {@link #UNSUPPORTED} is returned if 'original' can't be copied.
+     * A returned collection is empty, and is populated later via 'collectionsToFill'.
+     */
+    private static @Nullable Object copyValue(@Nullable Object original,
+                                              IdentityHashMap<Object, Object> originalToCopy,
+                                              Deque<NliEntity> pending, List<CollectionToFill> collectionsToFill) {
+        if (original == null)
+            return null;
+        if (original instanceof NliEntity) {
+            NliEntity copy = allocateCopy((NliEntity) original, originalToCopy, pending);
+            return copy == null ? UNSUPPORTED : copy;
+        }
+        if (PrimitiveEntity.isPrimitiveEntityType(original.getClass()))
+            return original;
+        if (original instanceof Collection)
+            return copyCollection((Collection<?>) original, originalToCopy, pending, collectionsToFill);
+        return UNSUPPORTED;
+    }
+
+    private static Object copyCollection(Collection<?> original, IdentityHashMap<Object, Object> originalToCopy,
+                                         Deque<NliEntity> pending, List<CollectionToFill> collectionsToFill) {
+        Object existingCopy = originalToCopy.get(original);
+        if (existingCopy != null)
+            return existingCopy; // the collection is shared by multiple fields, and so is its copy.
+        Collection<Object> copy = newEmptyCollectionLike(original);
+        if (copy == null)
+            return UNSUPPORTED;
+        originalToCopy.put(original, copy);
+        List<Object> elementCopies = new ArrayList<>(original.size());
+        for (Object element : original) {
+            Object elementCopy = copyValue(element, originalToCopy, pending, collectionsToFill);
+            if (elementCopy == UNSUPPORTED)
+                return UNSUPPORTED;
+            elementCopies.add(elementCopy);
+        }
+        collectionsToFill.add(new CollectionToFill(copy, elementCopies));
+        return copy;
+    }
+
+    /**
+     * Returned by {@link #copyValue(Object, IdentityHashMap, Deque, List)} when the value can't be copied.
+     */
+    private static final Object UNSUPPORTED = new Object();
+
+
+    /**
+     * A copied collection, and the copies of the elements of the original (in iteration order) to be added to it once
+     * the entities they refer to are fully copied.
+     */
+    static class CollectionToFill {
+
+        private final Collection<Object> copy;
+        private final List<Object> elementCopies;
+
+        CollectionToFill(Collection<Object> copy, List<Object> elementCopies) {
+            this.copy = copy;
+            this.elementCopies = elementCopies;
+        }
+
+        /**
+         * @param collectionsToFill in the order the collections were created (a collection nested in another one was
+         *                          created after it, so it's populated before it).
+         */
+        static void fillAll(List<CollectionToFill> collectionsToFill) {
+            for (int i = collectionsToFill.size() - 1; i >= 0; i--) {
+                CollectionToFill collectionToFill = collectionsToFill.get(i);
+                collectionToFill.copy.addAll(collectionToFill.elementCopies);
+            }
+        }
+    }
+
+
+    /**
+     * The copying logic for a single class.
+     */
+    static class ClassCopier {
+
+        /**
+         * Used for creating entities and collections. null if the class has no such constructor.
+         */
+        private final @Nullable Constructor<?> noArgsConstructor;
+        /**
+         * Used for creating sorted sets with a comparator. null if the class is not a {@link SortedSet} or has no such
+         * constructor.
+         */
+        private final @Nullable Constructor<?> comparatorConstructor;
+        /**
+         * The fields serialization would have copied.
+         */
+        final List<Field> copiedFields;
+        final boolean supported;
+
+        ClassCopier(Class<?> clazz) {
+            copiedFields = new ArrayList<>();
+            noArgsConstructor = findConstructor(clazz);
+            if (NliEntity.class.isAssignableFrom(clazz)) {
+                comparatorConstructor = null;
+                ReflectionUtils.getAllFieldsOfClass(clazz, false, true).forEach(field -> {
+                    if (!Modifier.isTransient(field.getModifiers())
+                            && Serializable.class.isAssignableFrom(field.getDeclaringClass()))
+                        copiedFields.add(field);
+                });
+            } else {
+                comparatorConstructor = SortedSet.class.isAssignableFrom(clazz) ?
+                        findConstructor(clazz, Comparator.class) : null;
+            }
+            supported = noArgsConstructor != null;
+        }
+
+        private static @Nullable Constructor<?> findConstructor(Class<?> clazz, Class<?>... parameterTypes) {
+            try {
+                Constructor<?> constructor = clazz.getDeclaredConstructor(parameterTypes);
+                constructor.setAccessible(true);
+                return constructor;
+            } catch (NoSuchMethodException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        /**
+         * For entity classes.
+         */
+        Object newEntity() {
+            try {
+                //noinspection ConstantConditions
+                return noArgsConstructor.newInstance();
+            } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * For collection classes.
+         * @param comparator see {@link #getComparator(Collection)}.
+         */
+        boolean canCreateEmptyCollection(@Nullable Comparator<?> comparator) {
+            return (comparator == null ? noArgsConstructor : comparatorConstructor) != null;
+        }
+
+        /**
+         * For collection classes.
+         * @param comparator see {@link #getComparator(Collection)}.
+         * @return null if the collection can't be created.
+         */
+        @Nullable Collection<Object> newEmptyCollection(@Nullable Comparator<?> comparator) {
+            try {
+                if (comparator == null) {
+                    //noinspection unchecked
+                    return noArgsConstructor == null ? null : (Collection<Object>) noArgsConstructor.newInstance();
+                }
+                //noinspection unchecked
+                return comparatorConstructor == null ? null :
+                        (Collection<Object>) comparatorConstructor.newInstance(comparator);
+            } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                return null;
+            }
+        }
+        /**
+         * @return false if some field value can't be copied.
+         */
+        boolean copyFields(Object original, Object copy, IdentityHashMap<Object, Object> originalToCopy,
+                           Deque<NliEntity> pending, List<CollectionToFill> collectionsToFill) {
+            try {
+                for (Field field : copiedFields) {
+                    if (field.getType().isPrimitive()) {
+                        field.set(copy, field.get(original));
+                        continue;
+                    }
+                    Object valueCopy = copyValue(field.get(original), originalToCopy, pending, collectionsToFill);
+                    if (valueCopy == UNSUPPORTED)
+                        return false;
+                    field.set(copy, valueCopy);
+                }
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+            return true;
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package il.ac.technion.nlp.nli.core.reflection;
 
 import com.google.common.base.Verify;
-import ofergivoli.olib.reflection.ReflectionUtils;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import il.ac.technion.nlp.nli.core.reflection.NliEntityClassMetadata.RelationField;
 import il.ac.technion.nlp.nli.core.state.Entity;
 import il.ac.technion.nlp.nli.core.state.NliEntity;
 import il.ac.technion.nlp.nli.core.state.NliRootEntity;
@@ -12,8 +15,9 @@ import org.jetbrains.annotations.Nullable;
 
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
@@ -36,13 +40,34 @@ public class EntityGraphReflection {
     public static List<Pair<Field, Entity>> getEntitiesInOutgoingRelationsFromGivenEntity(NliEntity fromEntity,
                                                                                           boolean deterministicOrder) {
 
-        List<Pair<Field, Entity>> fieldEntityPairs = new LinkedList<>();
+        List<Pair<Field, Entity>> fieldEntityPairs = new ArrayList<>();
+        forEachEntityInOutgoingRelations(fromEntity, deterministicOrder, (field, entity) ->
+                fieldEntityPairs.add(new ImmutablePair<>(field, entity)));
+        return fieldEntityPairs;
+    }
 
-        getRelationFieldsOfNliEntityClass(fromEntity.getClass(),true).forEach(field->
-                getEntitiesInOutgoingRelationFromGivenEntity(fromEntity, deterministicOrder, field).forEach(entity->
-                        fieldEntityPairs.add(new ImmutablePair<>(field, entity))));
+    /**
+     * Same as {@link #getEntitiesInOutgoingRelationsFromGivenEntity(NliEntity, boolean)}, but 'consumer' is called
+     * for each (field,entity) pair rather than creating a list of pairs.
+     */
+    public static void forEachEntityInOutgoingRelations(NliEntity fromEntity, boolean deterministicOrder,
+                                                        BiConsumer<Field, Entity> consumer) {
+        for (RelationField relationField : NliEntityClassMetadata.get(fromEntity.getClass()).getSortedRelationFields())
+            forEachValueInOutgoingRelation(fromEntity, deterministicOrder, relationField, value ->
+                    consumer.accept(relationField.field, createEntityFromUserEntityValue(value)));
+    }
 
-        return fieldEntityPairs;
+    /**
+     * Same as {@link #forEachEntityInOutgoingRelations(NliEntity, boolean, BiConsumer)}, but only for the
+     * non-primitive entities (no {@link PrimitiveEntity} objects are created).
+     */
+    public static void forEachNonPrimitiveEntityInOutgoingRelations(NliEntity fromEntity, boolean deterministicOrder,
+                                                                    BiConsumer<Field, NliEntity> consumer) {
+        for (RelationField relationField : NliEntityClassMetadata.get(fromEntity.getClass()).getSortedRelationFields()) {
+            if (!relationField.primitive)
+                forEachValueInOutgoingRelation(fromEntity, deterministicOrder, relationField, value ->
+                        consumer.accept(relationField.field, (NliEntity) value));
+        }
     }
 
     /**
@@ -59,53 +84,48 @@ public class EntityGraphReflection {
     public static List<Entity> getEntitiesInOutgoingRelationFromGivenEntity(
             NliEntity fromEntity, boolean deterministicOrder, Field relation) {
 
-        List<Entity> result = new LinkedList<>();
-        Object fieldValue;
-        try {
-            fieldValue = relation.get(fromEntity);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        }
+        RelationField relationField = NliEntityClassMetadata.get(fromEntity.getClass()).getRelationField(relation);
+        Verify.verify(relationField != null, "Not a relation field: " + relation);
+        List<Entity> result = new ArrayList<>();
+        forEachValueInOutgoingRelation(fromEntity, deterministicOrder, relationField, value ->
+                result.add(createEntityFromUserEntityValue(value)));
+        return result;
+    }
 
-        if (fieldValue == null)
-            return new LinkedList<>();
+    /**
+     * Calls 'consumer' for each value (a non-primitive entity or a primitive entity value) related to 'fromEntity' by
+     * 'relationField'. See {@link #getEntitiesInOutgoingRelationFromGivenEntity(NliEntity, boolean, Field)}.
+     */
+    private static void forEachValueInOutgoingRelation(NliEntity fromEntity, boolean deterministicOrder,
+                                                       RelationField relationField, Consumer<Object> consumer) {
 
-        Collection<?> entities;
-        if (GeneralReflection.isUserEntityTypeCollection(relation.getGenericType())) {
+        Object fieldValue = relationField.get(fromEntity);
+        if (fieldValue == null)
+            return;
 
-            if (deterministicOrder) {
-                if (List.class.isAssignableFrom(relation.getType())) {
-                    entities = (Collection<?>) fieldValue;
-                } else {
-                    // we need to sort the entities in some deterministic way.
-                    Class<?> entityType = GeneralReflection.getUserTypeOfUserTypeCollection(
-                            relation.getType());
-                    if (!PrimitiveEntity.isPrimitiveEntityType(entityType)) {
-                        throw new RuntimeException("Detected an non-primitive entity collection field which is not a list. Can't order the non-primitive entities in a deterministic way. Field: " + relation);
-                    } else {
-                        // we sort the primitive entities in a deterministic way:
-                        entities = ((Collection<?>) fieldValue).stream()
-                                .map(PrimitiveEntity::new)
-                                .sorted(Comparator.comparing(PrimitiveEntity::getUniqueDeterministicStringDefiningEntity))
-                                .map(PrimitiveEntity::getValue)
-                                .collect(Collectors.toList());
-                    }
-                }
-            } else {
-                // deterministic order is not required.
-                entities = (Collection<?>) fieldValue;
-            }
-        } else { // the field is not a collection
+        if (!relationField.collection) {
             assert GeneralReflection.isUserEntityType(fieldValue.getClass());
-            entities = Collections.singletonList(fieldValue);
+            consumer.accept(fieldValue);
+            return;
+        }
+
+        Collection<?> entities = (Collection<?>) fieldValue;
+        if (deterministicOrder && !relationField.list) {
+            // we need to sort the entities in some deterministic way.
+            if (!relationField.primitive)
+                throw new RuntimeException("Detected an non-primitive entity collection field which is not a list. Can't order the non-primitive entities in a deterministic way. Field: " + relationField.field);
+            // we sort the primitive entities in a deterministic way:
+            entities = entities.stream()
+                    .map(PrimitiveEntity::new)
+                    .sorted(Comparator.comparing(PrimitiveEntity::getUniqueDeterministicStringDefiningEntity))
+                    .map(PrimitiveEntity::getValue)
+                    .collect(Collectors.toList());
         }
 
         entities.forEach(value -> {
             Verify.verify(value != null);
-            result.add(createEntityFromUserEntityValue(value));
+            consumer.accept(value);
         });
-
-        return result;
     }
 
     private static Entity createEntityFromUserEntityValue(Object value) {
@@ -132,11 +152,7 @@ public class EntityGraphReflection {
      */
     public static List<Field> getRelationFieldsOfNliEntityClass(Class<? extends NliEntity> clazz, boolean deterministic)
     {
-        Stream<Field> stream = ReflectionUtils.getAllFieldsOfClass(clazz, false, true).stream()
-                .filter(EntityGraphReflection::isRelationField);
-        if (deterministic)
-            stream = stream.sorted(Comparator.comparing(GeneralReflection::getUniqueDeterministicStringForField));
-        return stream.collect(Collectors.toList());
+        return new ArrayList<>(NliEntityClassMetadata.get(clazz).getRelationFields(deterministic));
     }
 
 
@@ -152,13 +168,12 @@ public class EntityGraphReflection {
     public static List<Pair<Field, PrimitiveEntity>> getPrimitiveEntitiesInOutgoingRelationFromGivenEntity(
             NliEntity fromEntity, boolean deterministicOrder) {
 
-        List <Pair<Field, PrimitiveEntity>> result = new LinkedList<>();
-
-        getEntitiesInOutgoingRelationsFromGivenEntity(fromEntity, deterministicOrder).stream()
-                .filter(fieldEntityPair-> fieldEntityPair.getRight() instanceof PrimitiveEntity)
-                .forEach(fieldEntityPair->result.add(new ImmutablePair<>(
-                        fieldEntityPair.getLeft(),(PrimitiveEntity)fieldEntityPair.getRight())));
-
+        List <Pair<Field, PrimitiveEntity>> result = new ArrayList<>();
+        for (RelationField relationField : NliEntityClassMetadata.get(fromEntity.getClass()).getSortedRelationFields()) {
+            if (relationField.primitive)
+                forEachValueInOutgoingRelation(fromEntity, deterministicOrder, relationField, value ->
+                        result.add(new ImmutablePair<>(relationField.field, new PrimitiveEntity(value))));
+        }
         return result;
     }
 
@@ -174,37 +189,35 @@ public class EntityGraphReflection {
     public static List <Pair<Field, NliEntity>> getNonPrimitiveEntitiesInOutgoingRelationFromGivenEntity(
             NliEntity fromEntity, boolean deterministicOrder) {
 
-        return getEntitiesInOutgoingRelationsFromGivenEntity(fromEntity, deterministicOrder).stream()
-            .filter(fieldEntityPair->fieldEntityPair.getRight() instanceof NliEntity)
-            .map(fieldEntityPair->new ImmutablePair<>(
-                    fieldEntityPair.getLeft(), (NliEntity)fieldEntityPair.getRight()))
-            .collect(Collectors.toList());
+        List<Pair<Field, NliEntity>> result = new ArrayList<>();
+        forEachNonPrimitiveEntityInOutgoingRelations(fromEntity, deterministicOrder, (field, entity) ->
+                result.add(new ImmutablePair<>(field, entity)));
+        return result;
     }
 
     /**
-     * @return all reachable entities (including the root) in depth-first search pre-order.
+     * @return all reachable entities (including the root) in breadth-first search order.
      * @param includeRootEntity
      * @param deterministicOrder see {@link #getEntitiesInOutgoingRelationsFromGivenEntity(NliEntity, boolean)}
      */
     public static List<NliEntity> getNonPrimitiveEntitiesReachableFromRoot(
             NliRootEntity root, boolean includeRootEntity, boolean deterministicOrder) {
 
-        List<NliEntity> result = new LinkedList<>();
-        Queue<NliEntity> pending = new LinkedList<>();
-        // only the keys of this map are used (i.e. used as a map):
-        IdentityHashMap<NliEntity,Object> visitedEntities = new IdentityHashMap<>();
-        pending.add(root);
-        while (!pending.isEmpty()) {
-            NliEntity current = pending.remove();
-            if (visitedEntities.containsKey(current))
-                continue;
-            result.add(current);
-            visitedEntities.put(current, null);
-            EntityGraphReflection.getNonPrimitiveEntitiesInOutgoingRelationFromGivenEntity(current, deterministicOrder)
-                    .forEach(pair->pending.add(pair.getRight()));
+        List<NliEntity> result = new ArrayList<>();
+        Set<NliEntity> visitedEntities = Collections.newSetFromMap(new IdentityHashMap<>());
+        // Each entity is added to 'result' when it's first discovered, so 'result' is also the BFS queue (the entities
+        // from index 'nextToTraverse' are not yet traversed).
+        visitedEntities.add(root);
+        result.add(root);
+        for (int nextToTraverse = 0; nextToTraverse < result.size(); nextToTraverse++) {
+            forEachNonPrimitiveEntityInOutgoingRelations(result.get(nextToTraverse), deterministicOrder,
+                    (field, entity) -> {
+                        if (visitedEntities.add(entity))
+                            result.add(entity);
+                    });
         }
         if (!includeRootEntity)
-            result.remove(root);
+            result.remove(0);
         return result;
     }
 
@@ -251,13 +264,55 @@ public class EntityGraphReflection {
         StringBuilder sb = new StringBuilder();
         getNonPrimitiveEntitiesReachableFromRoot(root, true, deterministic).forEach(e->{
             sb.append(e.getClass().getSimpleName()).append("\t").append(System.identityHashCode(e)).append(":\n");
-            getPrimitiveEntitiesInOutgoingRelationFromGivenEntity(e,deterministic).forEach(fieldEntityPair->
-                    sb.append("\t").append(fieldEntityPair.getLeft().getName()).append(":\t")
-                            .append(fieldEntityPair.getRight()).append("\n"));
+            forEachEntityInOutgoingRelations(e, deterministic, (field, entity) -> {
+                if (entity instanceof PrimitiveEntity)
+                    sb.append("\t").append(field.getName()).append(":\t").append(entity).append("\n");
+            });
         });
         return sb.toString();
     }
 
+    /**
+     * @return a 128-bit fingerprint of the entity graph, such that entity graphs that are equal according to
+     * {@link #entityGraphEquals(NliRootEntity, NliRootEntity)} have the same fingerprint (and different entity graphs
+     * have the same fingerprint with negligible probability). The fingerprint is deterministic (doesn't depend on
+     * identity hash codes), so it's the same across JVM runs.
+     * Non-primitive entities are represented by their index in the traversal order used by
+     * {@link #entityGraphEquals(NliRootEntity, NliRootEntity)}, and the same exception is thrown in case of a
+     * non-primitive entity collection field which is not a list.
+     */
+    public static HashCode computeEntityGraphFingerprint(NliRootEntity root) {
+
+        List<NliEntity> entities = getNonPrimitiveEntitiesReachableFromRoot(root, true, true);
+        IdentityHashMap<NliEntity, Integer> entityToIndex = new IdentityHashMap<>();
+        entities.forEach(entity -> entityToIndex.put(entity, entityToIndex.size()));
+
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putInt(entities.size());
+        for (NliEntity entity : entities) {
+            forEachEntityInOutgoingRelations(entity, true, (field, secondEntity) -> {
+                putString(hasher, GeneralReflection.getUniqueDeterministicStringForField(field));
+                if (secondEntity instanceof NliEntity) {
+                    hasher.putBoolean(true);
+                    hasher.putInt(entityToIndex.get(secondEntity));
+                } else {
+                    hasher.putBoolean(false);
+                    putString(hasher, ((PrimitiveEntity) secondEntity).getUniqueDeterministicStringDefiningEntity());
+                }
+            });
+            hasher.putInt(-1); // marks the end of the relations of 'entity' (can't be confused with a string length).
+        }
+        return hasher.hash();
+    }
+
+    /**
+     * The length is hashed too, so that consecutive strings can't be confused with each other.
+     */
+    private static void putString(Hasher hasher, String s) {
+        hasher.putInt(s.length());
+        hasher.putUnencodedChars(s);
+    }
+
     /**
      * The order of entities in collection fields matter (think of the edges of the graph as being tagged with the
      * index).
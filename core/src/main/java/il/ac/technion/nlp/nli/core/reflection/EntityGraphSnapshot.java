@@ -0,0 +1,447 @@
+package il.ac.technion.nlp.nli.core.reflection;
+
+import com.google.common.collect.Iterables;
+import il.ac.technion.nlp.nli.core.state.NliEntity;
+import il.ac.technion.nlp.nli.core.state.NliRootEntity;
+import il.ac.technion.nlp.nli.core.state.PrimitiveEntity;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A record of the field values of all the {@link NliEntity}s reachable from a root entity (and of the content of the
+ * collections these fields refer to).
+ * It allows detecting which entities were modified since the snapshot was taken, restoring them, and copying only the
+ * modified part of the entity graph.
+ *
+ * This is what allows invoking an NLI method on a copy-on-write view of a state: the method is invoked in place, then
+ * the modified entities and the entities referring to them are copied, and then the modified entities are restored.
+ * All the other entities are shared by the original entity graph and the resulting one.
+ *
+ * The snapshot remains valid as long as every modification of the entity graph is followed by
+ * {@link #restore(Collection)} or by {@link #update(Collection, Collection)}.
+ * Not thread-safe.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class EntityGraphSnapshot {
+
+    /**
+     * Ordered by BFS from the root.
+     */
+    private final List<NliEntity> entities = new ArrayList<>();
+
+    /**
+     * Maps each entity to the values of the fields given by {@link EntityGraphCopier.ClassCopier#copiedFields} (in
+     * the same order).
+     */
+    private final IdentityHashMap<NliEntity, Object[]> entityToFieldValues = new IdentityHashMap<>();
+
+    /**
+     * Maps each collection referred to by a field of an entity to its elements.
+     */
+    private final IdentityHashMap<Collection<?>, Object[]> collectionToElements = new IdentityHashMap<>();
+
+    /**
+     * Maps each collection of {@link #collectionToElements} to the number of fields referring to it.
+     */
+    private final IdentityHashMap<Collection<?>, Integer> collectionToReferencesNum = new IdentityHashMap<>();
+
+    /**
+     * Maps each entity to the entities having a field referring to it (either directly or via a collection).
+     */
+    private final IdentityHashMap<NliEntity, List<NliEntity>> entityToReferringEntities = new IdentityHashMap<>();
+
+
+    private EntityGraphSnapshot() {
+    }
+
+    /**
+     * @return null if the entity graph contains a value that can't be copied by {@link EntityGraphCopier}.
+     */
+    public static @Nullable EntityGraphSnapshot create(NliRootEntity root) {
+
+        EntityGraphSnapshot snapshot = new EntityGraphSnapshot();
+        Deque<NliEntity> pending = new ArrayDeque<>();
+        pending.add(root);
+        snapshot.entityToFieldValues.put(root, null);
+        return snapshot.recordNewEntities(pending, false) ? snapshot : null;
+    }
+
+    /**
+     * Records the entities in 'pending', and the entities seen for the first time while doing so.
+     * @param refreshCollections see {@link #recordValue(NliEntity, Object, Deque, boolean)}.
+     * @return false if some value can't be copied.
+     */
+    private boolean recordNewEntities(Deque<NliEntity> pending, boolean refreshCollections) {
+        while (!pending.isEmpty()) {
+            NliEntity current = pending.remove();
+            if (!EntityGraphCopier.getCopier(current.getClass()).supported)
+                return false;
+            entities.add(current);
+            if (!recordFieldValues(current, pending, refreshCollections))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records the current field values of 'entity', adding to 'pending' entities seen for the first time.
+     * @param refreshCollections see {@link #recordValue(NliEntity, Object, Deque, boolean)}.
+     * @return false if some value can't be copied.
+     */
+    private boolean recordFieldValues(NliEntity entity, Deque<NliEntity> pending, boolean refreshCollections) {
+        List<Field> fields = EntityGraphCopier.getCopier(entity.getClass()).copiedFields;
+        Object[] fieldValues = new Object[fields.size()];
+        for (int i = 0; i < fieldValues.length; i++) {
+            fieldValues[i] = getFieldValue(fields.get(i), entity);
+            if (!recordValue(entity, fieldValues[i], pending, refreshCollections))
+                return false;
+        }
+        entityToFieldValues.put(entity, fieldValues);
+        return true;
+    }
+
+    /**
+     * Updates {@link #collectionToElements}, {@link #collectionToReferencesNum} and
+     * {@link #entityToReferringEntities} according to 'value' being the value of a field of 'referringEntity', and
+     * adds to 'pending' entities seen for the first time.
+     * @param refreshCollections whether the elements of a collection already in {@link #collectionToElements} are
+     *                           recorded again (rather than assumed to be unchanged).
+     * @return false if 'value' can't be copied.
+     */
+    private boolean recordValue(NliEntity referringEntity, @Nullable Object value, Deque<NliEntity> pending,
+                                boolean refreshCollections) {
+        if (value == null || PrimitiveEntity.isPrimitiveEntityType(value.getClass()))
+            return true;
+        if (value instanceof NliEntity) {
+            recordReference(referringEntity, (NliEntity) value, pending);
+            return true;
+        }
+        if (!(value instanceof Collection))
+            return false;
+        Collection<?> collection = (Collection<?>) value;
+        if (!EntityGraphCopier.canCreateEmptyCollectionLike(collection))
+            return false;
+        Object[] elements = collectionToElements.get(collection);
+        if (elements == null || refreshCollections) {
+            elements = collection.toArray();
+            collectionToElements.put(collection, elements);
+        }
+        collectionToReferencesNum.merge(collection, 1, Integer::sum);
+        for (Object element : elements) {
+            if (element instanceof NliEntity)
+                recordReference(referringEntity, (NliEntity) element, pending);
+            else if (element == null || !PrimitiveEntity.isPrimitiveEntityType(element.getClass()))
+                return false;
+        }
+        return true;
+    }
+
+    private void recordReference(NliEntity referringEntity, NliEntity entity, Deque<NliEntity> pending) {
+        if (!entityToFieldValues.containsKey(entity)) {
+            entityToFieldValues.put(entity, null); // marking as seen, the values are set when processed.
+            pending.add(entity);
+        }
+        entityToReferringEntities.computeIfAbsent(entity, e -> new ArrayList<>()).add(referringEntity);
+    }
+
+    /**
+     * The opposite of {@link #recordValue(NliEntity, Object, Deque, boolean)}, for the recorded value of a field of
+     * 'referringEntity' (a collection is forgotten once no recorded field refers to it).
+     */
+    private void forgetValue(NliEntity referringEntity, @Nullable Object value) {
+        if (value instanceof NliEntity) {
+            forgetReference(referringEntity, (NliEntity) value);
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            for (Object element : collectionToElements.get(collection))
+                if (element instanceof NliEntity)
+                    forgetReference(referringEntity, (NliEntity) element);
+            if (collectionToReferencesNum.merge(collection, -1, Integer::sum) == 0) {
+                collectionToReferencesNum.remove(collection);
+                collectionToElements.remove(collection);
+            }
+        }
+    }
+
+    private void forgetReference(NliEntity referringEntity, NliEntity entity) {
+        List<NliEntity> referring = entityToReferringEntities.get(entity);
+        for (int i = 0; i < referring.size(); i++) {
+            if (referring.get(i) == referringEntity) { // entities may override equals().
+                referring.remove(i);
+                break;
+            }
+        }
+        if (referring.isEmpty())
+            entityToReferringEntities.remove(entity);
+    }
+
+    /**
+     * Updates this snapshot to the current entity graph, after modifications that were not restored. Only the
+     * modified entities and the entities that became reachable are traversed.
+     * @param modifiedEntities as returned by {@link #findModifiedEntities()} after the modifications.
+     * @param removedEntities the entities that are no longer reachable from the root (including all such entities of
+     *                        this snapshot).
+     * @return false if the current entity graph contains a value that can't be copied by {@link EntityGraphCopier}
+     * (in which case this snapshot must not be used anymore).
+     */
+    public boolean update(Collection<NliEntity> modifiedEntities, Collection<NliEntity> removedEntities) {
+
+        Set<NliEntity> removedEntitySet = Collections.newSetFromMap(new IdentityHashMap<>());
+        removedEntitySet.addAll(removedEntities);
+        Set<NliEntity> forgotten = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (NliEntity entity : Iterables.concat(modifiedEntities, removedEntities)) {
+            Object[] fieldValues = entityToFieldValues.get(entity);
+            // (a removed entity may have not been in this snapshot)
+            if (fieldValues != null && forgotten.add(entity))
+                for (Object value : fieldValues)
+                    forgetValue(entity, value);
+        }
+        for (NliEntity entity : removedEntitySet) {
+            entityToFieldValues.remove(entity);
+            entityToReferringEntities.remove(entity);
+        }
+        if (!removedEntitySet.isEmpty())
+            entities.removeIf(removedEntitySet::contains);
+
+        Deque<NliEntity> pending = new ArrayDeque<>();
+        for (NliEntity entity : modifiedEntities) {
+            if (!removedEntitySet.contains(entity) && !recordFieldValues(entity, pending, true))
+                return false;
+        }
+        return recordNewEntities(pending, true);
+    }
+
+
+    /**
+     * @return true iff 'entity' was reachable from the root when the snapshot was taken.
+     */
+    public boolean contains(NliEntity entity) {
+        return entityToFieldValues.containsKey(entity);
+    }
+
+    /**
+     * @return the entities 'entity' referred to when the snapshot was taken (either directly or via a collection), in
+     * field order (may contain duplicates).
+     */
+    public List<NliEntity> getReferredEntities(NliEntity entity) {
+        List<NliEntity> result = new ArrayList<>();
+        for (Object value : entityToFieldValues.get(entity)) {
+            if (value instanceof NliEntity) {
+                result.add((NliEntity) value);
+            } else if (value instanceof Collection) {
+                for (Object element : collectionToElements.get(value))
+                    if (element instanceof NliEntity)
+                        result.add((NliEntity) element);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the entities that referred to 'entity' when the snapshot was taken (may contain duplicates).
+     */
+    public List<NliEntity> getReferringEntities(NliEntity entity) {
+        return entityToReferringEntities.getOrDefault(entity, Collections.emptyList());
+    }
+
+
+    /**
+     * @return the entities of the snapshot having a field value (or content of a collection referred to by a field)
+     * different than the one in the snapshot. Ordered by BFS from the root (in the snapshot).
+     */
+    public List<NliEntity> findModifiedEntities() {
+        List<NliEntity> result = new ArrayList<>();
+        for (NliEntity entity : entities) {
+            List<Field> fields = EntityGraphCopier.getCopier(entity.getClass()).copiedFields;
+            Object[] fieldValues = entityToFieldValues.get(entity);
+            for (int i = 0; i < fieldValues.length; i++) {
+                Field field = fields.get(i);
+                Object currentValue = getFieldValue(field, entity);
+                boolean modified = field.getType().isPrimitive() ?
+                        !Objects.equals(currentValue, fieldValues[i]) :
+                        currentValue != fieldValues[i] || isCollectionModified(currentValue);
+                if (modified) {
+                    result.add(entity);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true iff 'value' is a collection of the snapshot which its content was modified.
+     */
+    private boolean isCollectionModified(@Nullable Object value) {
+        if (!(value instanceof Collection))
+            return false;
+        Collection<?> collection = (Collection<?>) value;
+        Object[] elements = collectionToElements.get(collection);
+        if (elements == null)
+            return false;
+        if (elements.length != collection.size())
+            return true;
+        Iterator<?> it = collection.iterator();
+        for (Object element : elements) {
+            if (it.next() != element)
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Copies the entities in 'modifiedEntities' and all the entities that refer to them (directly or indirectly), with
+     * their current field values. In the copies, references to copied entities are replaced by references to the
+     * copies, and collections are replaced by new ones. References to other entities of the snapshot are kept (the
+     * entities are shared).
+     * Entities that are not in the snapshot (i.e. created after it was taken), and that are reachable from the copies,
+     * are not copied, but are modified in place the same way.
+     * @param modifiedEntities as returned by {@link #findModifiedEntities()}.
+     * @return A map from each copied entity (and each copied collection) to its copy. The root entity is copied iff
+     * 'modifiedEntities' is not empty.
+     * null is returned if some of the current field values can't be copied (in which case the new entities may
+     * have been partially modified).
+     */
+    public @Nullable IdentityHashMap<Object, Object> copyModifiedEntitiesAndTheirAncestors(
+            Collection<NliEntity> modifiedEntities) {
+
+        IdentityHashMap<Object, Object> originalToCopy = new IdentityHashMap<>();
+
+        // allocating copies for the modified entities and their ancestors.
+        List<NliEntity> copiedEntities = new ArrayList<>();
+        Deque<NliEntity> pending = new ArrayDeque<>(modifiedEntities);
+        while (!pending.isEmpty()) {
+            NliEntity current = pending.remove();
+            if (originalToCopy.containsKey(current))
+                continue;
+            originalToCopy.put(current, EntityGraphCopier.getCopier(current.getClass()).newEntity());
+            copiedEntities.add(current);
+            pending.addAll(getReferringEntities(current));
+        }
+
+        // setting the fields of the copies (the copied collections are populated once all the fields are set).
+        Set<NliEntity> newEntities = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<NliEntity> pendingNewEntities = new ArrayDeque<>();
+        List<EntityGraphCopier.CollectionToFill> collectionsToFill = new ArrayList<>();
+        try {
+            for (NliEntity original : copiedEntities) {
+                Object copy = originalToCopy.get(original);
+                for (Field field : EntityGraphCopier.getCopier(original.getClass()).copiedFields)
+                    field.set(copy, remapValue(getFieldValue(field, original), originalToCopy, newEntities,
+                            pendingNewEntities, collectionsToFill));
+            }
+            while (!pendingNewEntities.isEmpty()) {
+                NliEntity newEntity = pendingNewEntities.remove();
+                for (Field field : EntityGraphCopier.getCopier(newEntity.getClass()).copiedFields) {
+                    Object value = getFieldValue(field, newEntity);
+                    Object remapped = remapValue(value, originalToCopy, newEntities, pendingNewEntities,
+                            collectionsToFill);
+                    if (remapped != value)
+                        field.set(newEntity, remapped);
+                }
+            }
+            EntityGraphCopier.CollectionToFill.fillAll(collectionsToFill);
+        } catch (UnsupportedValueException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        return originalToCopy;
+    }
+
+    /**
+     * @return the value to be used instead of 'value' in an entity of the new entity graph. A returned collection copy
+     * is empty, and is populated later via 'collectionsToFill'.
+     * @throws UnsupportedValueException if 'value' can't be copied.
+     */
+    private @Nullable Object remapValue(@Nullable Object value, IdentityHashMap<Object, Object> originalToCopy,
+                                        Set<NliEntity> newEntities, Deque<NliEntity> pendingNewEntities,
+                                        List<EntityGraphCopier.CollectionToFill> collectionsToFill) {
+        if (value == null || PrimitiveEntity.isPrimitiveEntityType(value.getClass()))
+            return value;
+        if (value instanceof NliEntity) {
+            Object copy = originalToCopy.get(value);
+            if (copy != null)
+                return copy;
+            NliEntity entity = (NliEntity) value;
+            if (!entityToFieldValues.containsKey(entity) && newEntities.add(entity))
+                pendingNewEntities.add(entity);
+            return entity;
+        }
+        if (value instanceof Collection) {
+            Object existingCopy = originalToCopy.get(value);
+            if (existingCopy != null)
+                return existingCopy;
+            Collection<Object> copy = EntityGraphCopier.newEmptyCollectionLike((Collection<?>) value);
+            if (copy == null)
+                throw new UnsupportedValueException();
+            originalToCopy.put(value, copy);
+            List<Object> elementCopies = new ArrayList<>(((Collection<?>) value).size());
+            for (Object element : (Collection<?>) value)
+                elementCopies.add(remapValue(element, originalToCopy, newEntities, pendingNewEntities,
+                        collectionsToFill));
+            collectionsToFill.add(new EntityGraphCopier.CollectionToFill(copy, elementCopies));
+            return copy;
+        }
+        throw new UnsupportedValueException();
+    }
+
+
+    /**
+     * Sets the field values of 'modifiedEntities' (and the content of the collections they referred to) back to those
+     * in the snapshot. The collections are populated after all the fields are set.
+     * @param modifiedEntities as returned by {@link #findModifiedEntities()}.
+     */
+    public void restore(Collection<NliEntity> modifiedEntities) {
+        // in the order they were found (a collection may be referred to by several entities).
+        Set<Collection<Object>> modifiedCollections = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Collection<Object>> modifiedCollectionsInOrder = new ArrayList<>();
+        try {
+            for (NliEntity entity : modifiedEntities) {
+                List<Field> fields = EntityGraphCopier.getCopier(entity.getClass()).copiedFields;
+                Object[] fieldValues = entityToFieldValues.get(entity);
+                for (int i = 0; i < fieldValues.length; i++) {
+                    fields.get(i).set(entity, fieldValues[i]);
+                    if (isCollectionModified(fieldValues[i])) {
+                        //noinspection unchecked
+                        Collection<Object> collection = (Collection<Object>) fieldValues[i];
+                        collection.clear();
+                        if (modifiedCollections.add(collection))
+                            modifiedCollectionsInOrder.add(collection);
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        for (Collection<Object> collection : modifiedCollectionsInOrder)
+            collection.addAll(Arrays.asList(collectionToElements.get(collection)));
+    }
+
+
+    private static @Nullable Object getFieldValue(Field field, Object obj) {
+        try {
+            return field.get(obj);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class UnsupportedValueException extends RuntimeException {
+        private static final long serialVersionUID = -5378722155380457391L;
+    }
+}
@@ -0,0 +1,134 @@
+package il.ac.technion.nlp.nli.core.reflection;
+
+import ofergivoli.olib.reflection.ReflectionUtils;
+import il.ac.technion.nlp.nli.core.state.NliEntity;
+import il.ac.technion.nlp.nli.core.state.PrimitiveEntity;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * The reflection data needed for traversing the entity graph, for a single {@link NliEntity} class.
+ * Created the first time it's requested for a class (see {@link #get(Class)}), and reused from then on, so that
+ * traversals don't need to look up, sort and set accessible the relation fields of each visited entity.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class NliEntityClassMetadata {
+
+    private static final ConcurrentHashMap<Class<?>, NliEntityClassMetadata> classToMetadata =
+            new ConcurrentHashMap<>();
+
+    /**
+     * In the order returned by {@link ReflectionUtils#getAllFieldsOfClass(Class, boolean, boolean)}.
+     */
+    private final List<Field> relationFields;
+    /**
+     * Sorted by {@link GeneralReflection#getUniqueDeterministicStringForField(Field)}.
+     */
+    private final List<RelationField> sortedRelationFields;
+
+
+    private NliEntityClassMetadata(Class<?> clazz) {
+        relationFields = Collections.unmodifiableList(ReflectionUtils.getAllFieldsOfClass(clazz, false, true).stream()
+                .filter(EntityGraphReflection::isRelationField)
+                .collect(Collectors.toList()));
+        sortedRelationFields = Collections.unmodifiableList(relationFields.stream()
+                .sorted(Comparator.comparing(GeneralReflection::getUniqueDeterministicStringForField))
+                .map(RelationField::new)
+                .collect(Collectors.toList()));
+    }
+
+    public static NliEntityClassMetadata get(Class<? extends NliEntity> clazz) {
+        return classToMetadata.computeIfAbsent(clazz, NliEntityClassMetadata::new);
+    }
+
+    /**
+     * @param sorted when true, the fields are sorted according to some deterministic order.
+     * @return an unmodifiable list. setAccessible(true) was performed on all the fields.
+     */
+    public List<Field> getRelationFields(boolean sorted) {
+        if (!sorted)
+            return relationFields;
+        return sortedRelationFields.stream()
+                .map(relationField -> relationField.field)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return an unmodifiable list, sorted like {@link #getRelationFields(boolean)} with 'sorted' set to true.
+     */
+    public List<RelationField> getSortedRelationFields() {
+        return sortedRelationFields;
+    }
+
+    /**
+     * @return null if 'field' is not a relation field of the class.
+     */
+    public @Nullable RelationField getRelationField(Field field) {
+        for (RelationField relationField : sortedRelationFields)
+            if (relationField.field.equals(field))
+                return relationField;
+        return null;
+    }
+
+
+    /**
+     * A relation field with a precompiled getter.
+     */
+    public static class RelationField {
+
+        public final Field field;
+        /**
+         * Of type (Object)Object.
+         */
+        private final MethodHandle getter;
+        /**
+         * true iff the field is a collection of user entity type elements (see
+         * {@link GeneralReflection#isUserEntityTypeCollection(java.lang.reflect.Type)}).
+         */
+        public final boolean collection;
+        /**
+         * true iff the field is a {@link List} (for collection fields only).
+         */
+        public final boolean list;
+        /**
+         * true iff the type of the second entity of the relation is a primitive entity type.
+         */
+        public final boolean primitive;
+
+        private RelationField(Field field) {
+            this.field = field;
+            field.setAccessible(true);
+            try {
+                getter = MethodHandles.lookup().unreflectGetter(field)
+                        .asType(MethodType.methodType(Object.class, Object.class));
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+            collection = GeneralReflection.isUserEntityTypeCollection(field.getGenericType());
+            list = collection && List.class.isAssignableFrom(field.getType());
+            Class<?> secondEntityClass = GeneralReflection.getUserType(field.getGenericType());
+            primitive = secondEntityClass != null && PrimitiveEntity.isPrimitiveEntityType(secondEntityClass);
+        }
+
+        /**
+         * @return the value of this field in 'entity' (boxed, in case of a java-primitive field).
+         */
+        public @Nullable Object get(NliEntity entity) {
+            try {
+                return getter.invokeExact((Object) entity);
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package il.ac.technion.nlp.nli.core.serialization;
+
+import com.google.common.base.Verify;
+import il.ac.technion.nlp.nli.core.dataset.Dataset;
+import il.ac.technion.nlp.nli.core.dataset.Example;
+import il.ac.technion.nlp.nli.core.dataset.ExampleSplit;
+import il.ac.technion.nlp.nli.core.dataset.construction.ExampleCategory;
+import il.ac.technion.nlp.nli.core.dataset.construction.InstructionQueryability;
+import il.ac.technion.nlp.nli.core.method_call.MethodId;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * A single file holding examples (each in the format of {@link NliBinaryFormat}) and an index from example id to the
+ * location of the example in the file.
+ * The file is memory-mapped, and an example is decoded only when requested (see {@link #readExample(String)}), so
+ * the examples don't need to be resident in the heap, and multiple processes reading the same file share the page
+ * cache.
+ *
+ * File layout: magic, version, the offset of the index, the examples, and finally the index (an entry per example,
+ * holding its id, offset, length, split part and category).
+ *
+ * Thread-safe.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class MappedExampleStore implements Closeable {
+
+    private static final int MAGIC = 0x4E4C4953; // "NLIS"
+    /**
+     * Must be incremented when the format changes.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The byte length of the header (magic, version, index offset).
+     */
+    private static final int HEADER_LENGTH = 4 + 4 + 8;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    /**
+     * In the order the examples were written.
+     */
+    private final LinkedHashMap<String, IndexEntry> exampleIdToEntry = new LinkedHashMap<>();
+
+
+    /**
+     * Maps the file and reads its index (the examples themselves are not read).
+     * @throws RuntimeException if the file is not an example store (of a supported version), or is larger than 2GB.
+     */
+    public MappedExampleStore(Path storeFile) {
+        try {
+            channel = FileChannel.open(storeFile, StandardOpenOption.READ);
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new RuntimeException("Example store is too large to be mapped: " + storeFile);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC)
+                throw new RuntimeException("Not an example store: " + storeFile);
+            if (buffer.getInt(4) != VERSION)
+                throw new RuntimeException("Unsupported version of example store: " + buffer.getInt(4));
+            long indexOffset = buffer.getLong(8);
+            if (indexOffset < HEADER_LENGTH || indexOffset > buffer.capacity())
+                throw new RuntimeException("Corrupted example store (bad index offset): " + storeFile);
+            readIndex((int) indexOffset);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return true iff 'file' starts with the header of an example store (of any version).
+     */
+    public static boolean isExampleStore(Path file) {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param indexOffset between {@link #HEADER_LENGTH} and the size of the file.
+     */
+    private void readIndex(int indexOffset) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteBufferInputStream(slice(indexOffset,
+                buffer.capacity() - indexOffset)));
+        int examplesNum = in.readInt();
+        for (int i=0; i<examplesNum; i++) {
+            String exampleId = in.readUTF();
+            long offset = in.readLong();
+            int length = in.readInt();
+            if (offset < HEADER_LENGTH || length < 0 || offset + length > indexOffset)
+                throw new RuntimeException("Corrupted example store (bad location of example " + exampleId + ")");
+            byte splitPartOrdinal = in.readByte();
+            ExampleSplit.SplitPart splitPart = splitPartOrdinal < 0 ? null :
+                    ExampleSplit.SplitPart.values()[splitPartOrdinal];
+            ExampleCategory category = null;
+            if (in.readBoolean()) {
+                String declaringClassCanonicalName = in.readUTF();
+                String name = in.readUTF();
+                int parametersNum = in.readInt();
+                List<String> parameterClassNames = new ArrayList<>(parametersNum);
+                for (int j=0; j<parametersNum; j++)
+                    parameterClassNames.add(in.readUTF());
+                category = new ExampleCategory(new MethodId(declaringClassCanonicalName, name, parameterClassNames),
+                        InstructionQueryability.valueOf(in.readUTF()));
+            }
+            exampleIdToEntry.put(exampleId, new IndexEntry((int) offset, length, splitPart, category));
+        }
+    }
+
+    /**
+     * Writes all the examples of 'dataset', with their split part (in the train/test split of 'dataset') and category.
+     * @param storeFile overwritten if already exists.
+     */
+    public static void write(Dataset dataset, Path storeFile) {
+        ExampleSplit split = dataset.getTrainTestSplit();
+        write(dataset.getExamples(), split::getSplitPart, dataset::getExampleCategory, storeFile);
+    }
+
+    /**
+     * The examples are encoded and written one at a time ('examples' is iterated once).
+     * @param getSplitPart may return null.
+     * @param getCategory may return null.
+     * @param storeFile overwritten if already exists.
+     * @throws RuntimeException if the file would be larger than 2GB (so it couldn't be mapped).
+     */
+    public static void write(Iterable<Example> examples,
+                             Function<Example, ExampleSplit.SplitPart> getSplitPart,
+                             Function<Example, ExampleCategory> getCategory,
+                             Path storeFile) {
+
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        try (FileChannel out = FileChannel.open(storeFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream indexOut = new DataOutputStream(index)) {
+
+            out.position(HEADER_LENGTH);
+            int examplesNum = 0;
+            for (Example example : examples) {
+                examplesNum++;
+                byte[] bytes = NliBinaryFormat.toBytes(example);
+                long offset = out.position();
+                verifyMappable(offset + bytes.length, storeFile);
+                writeFully(out, ByteBuffer.wrap(bytes));
+
+                indexOut.writeUTF(example.getId());
+                indexOut.writeLong(offset);
+                indexOut.writeInt(bytes.length);
+                ExampleSplit.SplitPart splitPart = getSplitPart.apply(example);
+                indexOut.writeByte(splitPart == null ? -1 : splitPart.ordinal());
+                ExampleCategory category = getCategory.apply(example);
+                indexOut.writeBoolean(category != null);
+                if (category != null) {
+                    MethodId methodId = category.nliMethod;
+                    indexOut.writeUTF(methodId.getDeclaringClassCanonicalName());
+                    indexOut.writeUTF(methodId.getName());
+                    indexOut.writeInt(methodId.getParameterClassNames().size());
+                    for (String parameterClassName : methodId.getParameterClassNames())
+                        indexOut.writeUTF(parameterClassName);
+                    indexOut.writeUTF(category.instructionQueryability.name());
+                }
+            }
+
+            long indexOffset = out.position();
+            writeFully(out, (ByteBuffer) ByteBuffer.allocate(4).putInt(examplesNum).flip());
+            indexOut.flush();
+            verifyMappable(indexOffset + 4 + index.size(), storeFile);
+            writeFully(out, ByteBuffer.wrap(index.toByteArray()));
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putInt(VERSION).putLong(indexOffset);
+            header.flip();
+            out.position(0);
+            writeFully(out, header);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void verifyMappable(long fileSize, Path storeFile) {
+        if (fileSize > Integer.MAX_VALUE)
+            throw new RuntimeException("Example store is too large to be mapped: " + storeFile);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining())
+            out.write(bytes);
+    }
+
+    /**
+     * @return in the order the examples were written.
+     */
+    public Collection<String> getExampleIds() {
+        return Collections.unmodifiableSet(exampleIdToEntry.keySet());
+    }
+
+    public boolean containsExample(String exampleId) {
+        return exampleIdToEntry.containsKey(exampleId);
+    }
+
+    /**
+     * Decodes the example (every call creates a new {@link Example} object, which is not referenced by this store).
+     * @throws RuntimeException if there's no such example.
+     */
+    public Example readExample(String exampleId) {
+        IndexEntry entry = getEntry(exampleId);
+        try (NliBinaryReader reader = new NliBinaryReader(new ByteBufferInputStream(slice(entry.offset,
+                entry.length)))) {
+            return (Example) reader.readObject();
+        }
+    }
+
+    /**
+     * @return in the order of 'exampleIds'.
+     */
+    public List<Example> readExamples(Collection<String> exampleIds) {
+        List<Example> result = new ArrayList<>(exampleIds.size());
+        for (String exampleId : exampleIds)
+            result.add(readExample(exampleId));
+        return result;
+    }
+
+    /**
+     * @return null if the example was not in the train/test split when written.
+     */
+    public @Nullable ExampleSplit.SplitPart getSplitPart(String exampleId) {
+        return getEntry(exampleId).splitPart;
+    }
+
+    public @Nullable ExampleCategory getExampleCategory(String exampleId) {
+        return getEntry(exampleId).category;
+    }
+
+    /**
+     * @return the ids of the examples in 'splitPart', in the order the examples were written.
+     */
+    public List<String> getExampleIds(ExampleSplit.SplitPart splitPart) {
+        List<String> result = new ArrayList<>();
+        exampleIdToEntry.forEach((exampleId, entry) -> {
+            if (entry.splitPart == splitPart)
+                result.add(exampleId);
+        });
+        return result;
+    }
+
+    private IndexEntry getEntry(String exampleId) {
+        IndexEntry entry = exampleIdToEntry.get(exampleId);
+        Verify.verify(entry != null, "No such example: %s", exampleId);
+        return entry;
+    }
+
+    /**
+     * @return a view of the mapped file that doesn't share the position of {@link #buffer} (so it can be used
+     * concurrently with other views).
+     */
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    /**
+     * Closes the file. The mapping itself is released when garbage collected.
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    private static class IndexEntry {
+
+        final int offset;
+        final int length;
+        final @Nullable ExampleSplit.SplitPart splitPart;
+        final @Nullable ExampleCategory category;
+
+        IndexEntry(int offset, int length, @Nullable ExampleSplit.SplitPart splitPart,
+                   @Nullable ExampleCategory category) {
+            this.offset = offset;
+            this.length = length;
+            this.splitPart = splitPart;
+            this.category = category;
+        }
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining())
+                return -1;
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package il.ac.technion.nlp.nli.core.serialization;
+
+import il.ac.technion.nlp.nli.core.dataset.Dataset;
+import il.ac.technion.nlp.nli.core.dataset.Example;
+import il.ac.technion.nlp.nli.core.method_call.MethodCall;
+import il.ac.technion.nlp.nli.core.reflection.EntityGraphCopier;
+import il.ac.technion.nlp.nli.core.state.State;
+import ofergivoli.olib.io.serialization.xml.XStreamSerialization;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * A compact binary alternative to the XStream XML files, for {@link State}s, {@link Example}s, {@link MethodCall}s,
+ * {@link Dataset}s and lists thereof.
+ *
+ * A stream starts with {@link #MAGIC} and {@link #VERSION}, followed by objects written by {@link NliBinaryWriter}.
+ * An entity graph is written in BFS order: each entity is written once (later occurrences refer to it by index),
+ * and its fields are written in the order given by the schema of its class. The schema (the class name and the field
+ * names, see {@link EntityGraphCopier#getCopiedFields(Class)}) is written the first time the class appears in the
+ * stream, so it's shared by all the states of a domain. Java-primitive fields are written inline, and all strings
+ * (including class names and entity ids) are written once per stream.
+ *
+ * The values written are the ones serialization would write, so an object read back equals the one written (in
+ * particular, states have the same entity graph and the same entity ids).
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class NliBinaryFormat {
+
+    static final int MAGIC = 0x4E4C4942; // "NLIB"
+    /**
+     * Must be incremented when the format changes.
+     */
+    static final int VERSION = 1;
+
+    // object types
+    static final byte TYPE_STATE = 1;
+    static final byte TYPE_EXAMPLE = 2;
+    static final byte TYPE_METHOD_CALL = 3;
+    static final byte TYPE_DATASET = 4;
+    static final byte TYPE_LIST = 5;
+
+    // value tags (of field values and collection elements)
+    static final byte VALUE_NULL = 0;
+    static final byte VALUE_REF = 1;
+    static final byte VALUE_NEW_ENTITY = 2;
+    static final byte VALUE_NEW_COLLECTION = 3;
+    static final byte VALUE_STRING = 4;
+    static final byte VALUE_INTEGER = 5;
+    static final byte VALUE_DOUBLE = 6;
+    static final byte VALUE_TRUE = 7;
+    static final byte VALUE_FALSE = 8;
+    static final byte VALUE_ZONED_DATE_TIME = 9;
+    static final byte VALUE_ENUM = 10;
+
+    // argument types (of method calls)
+    static final byte ARGUMENT_EMPTY = 0;
+    static final byte ARGUMENT_PRIMITIVE = 1;
+    static final byte ARGUMENT_NON_PRIMITIVE = 2;
+
+
+    /**
+     * @return identifies 'field' in the schema of its class.
+     */
+    static String getFieldKey(Field field) {
+        return field.getDeclaringClass().getName() + "." + field.getName();
+    }
+
+    /**
+     * Only collections of these classes are read (so that reading a stream runs no code of classes outside the JDK,
+     * other than of the NLI entity classes of the domains).
+     */
+    static boolean isReadableCollectionClass(Class<?> clazz) {
+        return Collection.class.isAssignableFrom(clazz) && clazz.getClassLoader() == null;
+    }
+
+    public static byte[] toBytes(Object obj) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (NliBinaryWriter writer = new NliBinaryWriter(bytes)) {
+            writer.writeObject(obj);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static <T> T fromBytes(byte[] bytes) {
+        try (NliBinaryReader reader = new NliBinaryReader(new ByteArrayInputStream(bytes))) {
+            //noinspection unchecked
+            return (T) reader.readObject();
+        }
+    }
+
+    /**
+     * @param outputFile overwritten if already exists.
+     */
+    public static void writeObjectToFile(Object obj, Path outputFile) {
+        try (NliBinaryWriter writer = new NliBinaryWriter(Files.newOutputStream(outputFile))) {
+            writer.writeObject(obj);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return true iff 'inputFile' starts with {@link #MAGIC}, i.e. it was written in this format (rather than e.g. by
+     * Java serialization).
+     */
+    public static boolean isInBinaryFormat(Path inputFile) {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(inputFile))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static <T> T readObjectFromFile(Path inputFile) {
+        try (NliBinaryReader reader = new NliBinaryReader(Files.newInputStream(inputFile))) {
+            //noinspection unchecked
+            return (T) reader.readObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param outputFile overwritten if already exists.
+     */
+    public static void convertXmlFileToBinaryFile(Path inputXml, Path outputFile) {
+        writeObjectToFile(XStreamSerialization.readObjectFromTrustedXmlFile(false, inputXml), outputFile);
+    }
+
+    /**
+     * @param outputXml overwritten if already exists.
+     */
+    public static void convertBinaryFileToXmlFile(Path inputFile, Path outputXml) {
+        XStreamSerialization.writeObjectToXmlFile(readObjectFromFile(inputFile), outputXml);
+    }
+}
@@ -0,0 +1,482 @@
+package il.ac.technion.nlp.nli.core.serialization;
+
+import il.ac.technion.nlp.nli.core.dataset.Dataset;
+import il.ac.technion.nlp.nli.core.dataset.DatasetDomains;
+import il.ac.technion.nlp.nli.core.dataset.Domain;
+import il.ac.technion.nlp.nli.core.dataset.Example;
+import il.ac.technion.nlp.nli.core.dataset.ExampleSplit;
+import il.ac.technion.nlp.nli.core.dataset.construction.ExampleCategory;
+import il.ac.technion.nlp.nli.core.dataset.construction.InstructionQueryability;
+import il.ac.technion.nlp.nli.core.method_call.*;
+import il.ac.technion.nlp.nli.core.reflection.EntityGraphCopier;
+import il.ac.technion.nlp.nli.core.state.NliEntity;
+import il.ac.technion.nlp.nli.core.state.NliRootEntity;
+import il.ac.technion.nlp.nli.core.state.PrimitiveEntity;
+import il.ac.technion.nlp.nli.core.state.State;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+/**
+ * Reads objects written by {@link NliBinaryWriter}.
+ * Not thread-safe.
+ *
+ * The stream is not trusted: sizes are verified before anything is allocated for them, and the classes it names are
+ * loaded without being initialized, and only used when they fit their role (e.g. an entity class must be an NLI entity
+ * class of the domain of the state being read).
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class NliBinaryReader implements Closeable {
+
+    /**
+     * Larger sizes are not preallocated (the stream might be truncated or corrupt).
+     */
+    private static final int MAX_PREALLOCATED_SIZE = 1 << 16;
+
+    private final DataInputStream in;
+
+    private final List<String> strings = new ArrayList<>();
+    private final List<EntityClassSchema> entityClassSchemas = new ArrayList<>();
+    private final List<Domain> domains = new ArrayList<>();
+    /**
+     * Domains are created once per stream (and per domain id).
+     */
+    private final HashMap<String, Domain> domainIdToDomain = new HashMap<>();
+    /**
+     * The classes verified by {@link #verifyEntityClass(Domain, Class)}, per domain.
+     */
+    private final HashMap<Domain, Set<Class<?>>> domainToVerifiedEntityClasses = new HashMap<>();
+
+
+    /**
+     * Reads the header of the format.
+     * @throws RuntimeException if the stream is not in the format, or in an unsupported version of it.
+     */
+    public NliBinaryReader(InputStream inputStream) {
+        in = new DataInputStream(new BufferedInputStream(inputStream));
+        try {
+            if (in.readInt() != NliBinaryFormat.MAGIC)
+                throw new RuntimeException("Not in the NLI binary format");
+            int version = readVarInt();
+            if (version != NliBinaryFormat.VERSION)
+                throw new RuntimeException("Unsupported version of the NLI binary format: " + version);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads an object written by {@link NliBinaryWriter#writeObject(Object)}.
+     */
+    public Object readObject() {
+        try {
+            byte type = in.readByte();
+            switch (type) {
+                case NliBinaryFormat.TYPE_STATE:
+                    return readState();
+                case NliBinaryFormat.TYPE_EXAMPLE:
+                    return readExample();
+                case NliBinaryFormat.TYPE_METHOD_CALL:
+                    return readMethodCall();
+                case NliBinaryFormat.TYPE_DATASET:
+                    return readDataset();
+                case NliBinaryFormat.TYPE_LIST:
+                    int size = readSize();
+                    List<Object> list = new ArrayList<>(Math.min(size, MAX_PREALLOCATED_SIZE));
+                    for (int i=0; i<size; i++)
+                        list.add(readObject());
+                    return list;
+                default:
+                    throw new RuntimeException("Invalid object type: " + type);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private State readState() throws IOException {
+        Domain domain = readDomain();
+        List<NliEntity> entities = readEntityGraph(domain);
+        IdentityHashMap<NliEntity, String> entityToId = new IdentityHashMap<>();
+        for (NliEntity entity : entities) {
+            String id = readString();
+            if (id != null)
+                entityToId.put(entity, id);
+        }
+        return new State(domain, (NliRootEntity) entities.get(0), entityToId, readVarInt());
+    }
+
+    private Example readExample() throws IOException {
+        String id = readString();
+        String utterance = readString();
+        Domain domain = readDomain();
+        State initialState = readState();
+        State destinationState = readState();
+        return new Example(id, utterance, initialState, destinationState, domain);
+    }
+
+    private Dataset readDataset() throws IOException {
+
+        DatasetDomains datasetDomains = new DatasetDomains();
+        int domainsNum = readSize();
+        for (int i=0; i<domainsNum; i++) {
+            Domain domain = readDomain();
+            datasetDomains.addDomain(domain.getId(), domain.getRootEntityClass());
+        }
+        Dataset dataset = new Dataset(datasetDomains);
+
+        int examplesNum = readSize();
+        for (int i=0; i<examplesNum; i++) {
+            Example example = readExample();
+            dataset.addExample(example);
+            if (in.readBoolean()) {
+                MethodId nliMethod = readMethodId();
+                InstructionQueryability queryability = InstructionQueryability.valueOf(readString());
+                dataset.setExampleCategory(example, new ExampleCategory(nliMethod, queryability));
+            }
+        }
+
+        List<Example> train = readExamplesByIds(dataset);
+        List<Example> test = readExamplesByIds(dataset);
+        dataset.setTrainTestSplit(new ExampleSplit(train, test));
+        return dataset;
+    }
+
+    private List<Example> readExamplesByIds(Dataset dataset) throws IOException {
+        int size = readSize();
+        List<Example> examples = new ArrayList<>(Math.min(size, MAX_PREALLOCATED_SIZE));
+        for (int i=0; i<size; i++)
+            examples.add(dataset.getExampleById(readString()));
+        return examples;
+    }
+
+    private MethodCall readMethodCall() throws IOException {
+        MethodId methodId = readMethodId();
+        String entityIdOfObjectMethodIsInvokeOn = readString();
+        int argumentsNum = readSize();
+        ArrayList<Argument> arguments = new ArrayList<>(Math.min(argumentsNum, MAX_PREALLOCATED_SIZE));
+        for (int i=0; i<argumentsNum; i++) {
+            byte argumentType = in.readByte();
+            switch (argumentType) {
+                case NliBinaryFormat.ARGUMENT_PRIMITIVE: {
+                    int size = readSize();
+                    List<PrimitiveEntity> primitiveEntities = new ArrayList<>(Math.min(size, MAX_PREALLOCATED_SIZE));
+                    for (int j=0; j<size; j++)
+                        primitiveEntities.add(new PrimitiveEntity(readPrimitiveValue(in.readByte())));
+                    arguments.add(PrimitiveArgument.createFromEntities(primitiveEntities));
+                    break;
+                }
+                case NliBinaryFormat.ARGUMENT_NON_PRIMITIVE: {
+                    int size = readSize();
+                    List<String> ids = new ArrayList<>(Math.min(size, MAX_PREALLOCATED_SIZE));
+                    for (int j=0; j<size; j++)
+                        ids.add(readString());
+                    arguments.add(new NonPrimitiveArgument(ids));
+                    break;
+                }
+                case NliBinaryFormat.ARGUMENT_EMPTY:
+                    arguments.add(new EmptyArgument());
+                    break;
+                default:
+                    throw new RuntimeException("Invalid argument type: " + argumentType);
+            }
+        }
+        return new MethodCall(methodId, entityIdOfObjectMethodIsInvokeOn, arguments);
+    }
+
+    private MethodId readMethodId() throws IOException {
+        String declaringClassCanonicalName = readString();
+        String name = readString();
+        int parametersNum = readSize();
+        List<String> parameterClassNames = new ArrayList<>(Math.min(parametersNum, MAX_PREALLOCATED_SIZE));
+        for (int i=0; i<parametersNum; i++)
+            parameterClassNames.add(readString());
+        return new MethodId(declaringClassCanonicalName, name, parameterClassNames);
+    }
+
+    private Domain readDomain() throws IOException {
+        int code = readVarInt();
+        if (code > 0)
+            return domains.get(code - 1);
+        String id = readString();
+        String rootEntityClassName = readString();
+        Domain domain = domainIdToDomain.get(id);
+        if (domain == null) {
+            Class<?> rootEntityClass = loadClass(rootEntityClassName);
+            if (!NliRootEntity.class.isAssignableFrom(rootEntityClass))
+                throw new RuntimeException("Not an NLI root entity class: " + rootEntityClassName);
+            //noinspection unchecked
+            domain = new Domain(id, (Class<? extends NliRootEntity>) rootEntityClass);
+            domainIdToDomain.put(id, domain);
+        }
+        domains.add(domain);
+        return domain;
+    }
+
+    /**
+     * @param domain the domain of the state whose entity graph is read.
+     * @return the non-primitive entities of the graph, in the order they were written (the root entity is first).
+     */
+    private List<NliEntity> readEntityGraph(Domain domain) throws IOException {
+        List<Object> objects = new ArrayList<>();
+        List<NliEntity> entities = new ArrayList<>();
+        List<EntityClassSchema> entitySchemas = new ArrayList<>();
+        readValue(in.readByte(), domain, objects, entities, entitySchemas);
+        if (entities.isEmpty() || !(entities.get(0) instanceof NliRootEntity))
+            throw new RuntimeException("The entity graph doesn't start with a root entity");
+        for (int i=0; i<entities.size(); i++) {
+            NliEntity entity = entities.get(i);
+            try {
+                for (Field field : entitySchemas.get(i).fields) {
+                    if (field.getType().isPrimitive())
+                        readJavaPrimitiveField(field, entity);
+                    else
+                        field.set(entity, readValue(in.readByte(), domain, objects, entities, entitySchemas));
+                }
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * @param objects the entities and collections read so far in the current entity graph, by index.
+     * @param entities new entities are added, and their schema is added to 'entitySchemas' (their fields are read
+     *                 later).
+     */
+    private @Nullable Object readValue(byte tag, Domain domain, List<Object> objects, List<NliEntity> entities,
+                                       List<EntityClassSchema> entitySchemas) throws IOException {
+        switch (tag) {
+            case NliBinaryFormat.VALUE_REF:
+                return objects.get(readVarInt());
+            case NliBinaryFormat.VALUE_NEW_ENTITY: {
+                EntityClassSchema schema = readEntityClass();
+                verifyEntityClass(domain, schema.clazz);
+                NliEntity entity = EntityGraphCopier.newEntityToBeFilled(schema.clazz);
+                objects.add(entity);
+                entities.add(entity);
+                entitySchemas.add(schema);
+                return entity;
+            }
+            case NliBinaryFormat.VALUE_NEW_COLLECTION: {
+                String className = readString();
+                Collection<Object> collection = EntityGraphCopier.newEmptyCollection(loadCollectionClass(className));
+                if (collection == null)
+                    throw new RuntimeException("Can't create a collection of class: " + className);
+                objects.add(collection);
+                int size = readSize();
+                for (int i=0; i<size; i++)
+                    collection.add(readValue(in.readByte(), domain, objects, entities, entitySchemas));
+                return collection;
+            }
+            default:
+                return readPrimitiveValue(tag);
+        }
+    }
+
+    private @Nullable Object readPrimitiveValue(byte tag) throws IOException {
+        switch (tag) {
+            case NliBinaryFormat.VALUE_NULL:
+                return null;
+            case NliBinaryFormat.VALUE_STRING:
+                return readString();
+            case NliBinaryFormat.VALUE_INTEGER:
+                return in.readInt();
+            case NliBinaryFormat.VALUE_DOUBLE:
+                return in.readDouble();
+            case NliBinaryFormat.VALUE_TRUE:
+                return true;
+            case NliBinaryFormat.VALUE_FALSE:
+                return false;
+            case NliBinaryFormat.VALUE_ZONED_DATE_TIME: {
+                long epochSecond = in.readLong();
+                int nano = in.readInt();
+                return ZonedDateTime.ofInstant(Instant.ofEpochSecond(epochSecond, nano), ZoneId.of(readString()));
+            }
+            case NliBinaryFormat.VALUE_ENUM: {
+                String className = readString();
+                Class<?> clazz = loadClass(className);
+                if (!clazz.isEnum())
+                    throw new RuntimeException("Not an enum class: " + className);
+                //noinspection unchecked
+                Class<? extends Enum> enumClass = (Class<? extends Enum>) clazz;
+                //noinspection unchecked
+                return Enum.valueOf(enumClass, readString());
+            }
+            default:
+                throw new RuntimeException("Invalid value tag: " + tag);
+        }
+    }
+
+    private void readJavaPrimitiveField(Field field, Object obj) throws IOException, IllegalAccessException {
+        Class<?> type = field.getType();
+        if (type == boolean.class)
+            field.setBoolean(obj, in.readBoolean());
+        else if (type == byte.class)
+            field.setByte(obj, in.readByte());
+        else if (type == short.class)
+            field.setShort(obj, in.readShort());
+        else if (type == char.class)
+            field.setChar(obj, in.readChar());
+        else if (type == int.class)
+            field.setInt(obj, in.readInt());
+        else if (type == long.class)
+            field.setLong(obj, in.readLong());
+        else if (type == float.class)
+            field.setFloat(obj, in.readFloat());
+        else
+            field.setDouble(obj, in.readDouble());
+    }
+
+    private EntityClassSchema readEntityClass() throws IOException {
+        int code = readVarInt();
+        if (code > 0)
+            return entityClassSchemas.get(code - 1);
+        String className = readString();
+        Class<?> clazz = loadClass(className);
+        if (!NliEntity.class.isAssignableFrom(clazz))
+            throw new RuntimeException("Not an NLI entity class: " + className);
+        int fieldsNum = readSize();
+        List<String> fieldKeys = new ArrayList<>(Math.min(fieldsNum, MAX_PREALLOCATED_SIZE));
+        for (int i=0; i<fieldsNum; i++)
+            fieldKeys.add(readString());
+        //noinspection unchecked
+        EntityClassSchema schema = new EntityClassSchema((Class<? extends NliEntity>) clazz, fieldKeys);
+        entityClassSchemas.add(schema);
+        return schema;
+    }
+
+    /**
+     * @throws RuntimeException if 'clazz' is neither an NLI entity class of 'domain' nor a subclass of one.
+     */
+    private void verifyEntityClass(Domain domain, Class<? extends NliEntity> clazz) {
+        Set<Class<?>> verifiedClasses = domainToVerifiedEntityClasses.computeIfAbsent(domain, d -> new HashSet<>());
+        if (verifiedClasses.contains(clazz))
+            return;
+        if (domain.getNliEntityClasses().stream().noneMatch(entityClass -> entityClass.isAssignableFrom(clazz)))
+            throw new RuntimeException("Not an NLI entity class of domain " + domain.getId() + ": " + clazz.getName());
+        verifiedClasses.add(clazz);
+    }
+
+    /**
+     * @throws RuntimeException if the class is not {@link NliBinaryFormat#isReadableCollectionClass(Class)}.
+     */
+    private static Class<?> loadCollectionClass(@Nullable String className) {
+        Class<?> clazz = loadClass(className);
+        if (!NliBinaryFormat.isReadableCollectionClass(clazz))
+            throw new RuntimeException("Not a readable collection class: " + className);
+        return clazz;
+    }
+
+    /**
+     * The class is not initialized (its static initializers are run only once it's verified and used).
+     */
+    private static Class<?> loadClass(@Nullable String className) {
+        if (className == null)
+            throw new RuntimeException("Missing class name");
+        try {
+            return Class.forName(className, false, NliBinaryReader.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private @Nullable String readString() throws IOException {
+        int code = readVarInt();
+        if (code == 0)
+            return null;
+        if (code > 1)
+            return strings.get(code - 2);
+        String s = new String(readBytes(readSize()), StandardCharsets.UTF_8);
+        strings.add(s);
+        return s;
+    }
+
+    /**
+     * Large arrays are allocated only once their bytes were actually read.
+     */
+    private byte[] readBytes(int size) throws IOException {
+        if (size <= MAX_PREALLOCATED_SIZE) {
+            byte[] bytes = new byte[size];
+            in.readFully(bytes);
+            return bytes;
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream(MAX_PREALLOCATED_SIZE);
+        byte[] buffer = new byte[MAX_PREALLOCATED_SIZE];
+        for (int remaining = size; remaining > 0; remaining -= buffer.length) {
+            int length = Math.min(remaining, buffer.length);
+            in.readFully(buffer, 0, length);
+            result.write(buffer, 0, length);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * @throws RuntimeException if the size is negative.
+     */
+    private int readSize() throws IOException {
+        int size = readVarInt();
+        if (size < 0)
+            throw new RuntimeException("Invalid size: " + size);
+        return size;
+    }
+
+    /**
+     * @throws RuntimeException if the varint is longer than the 5 bytes an int takes, or doesn't fit an int.
+     */
+    private int readVarInt() throws IOException {
+        int result = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            if (shift == 28 && (b & 0xF0) != 0)
+                throw new RuntimeException("Invalid varint (longer than an int)");
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    /**
+     * The fields of an entity class, in the order their values were written.
+     */
+    private static class EntityClassSchema {
+
+        final Class<? extends NliEntity> clazz;
+        final List<Field> fields = new ArrayList<>();
+
+        /**
+         * @throws RuntimeException if one of the fields no longer exists in 'clazz' (fields that were added to 'clazz'
+         * keep their default value).
+         */
+        EntityClassSchema(Class<? extends NliEntity> clazz, List<String> fieldKeys) {
+            this.clazz = clazz;
+            HashMap<String, Field> keyToField = new HashMap<>();
+            for (Field field : EntityGraphCopier.getCopiedFields(clazz))
+                keyToField.put(NliBinaryFormat.getFieldKey(field), field);
+            for (String fieldKey : fieldKeys) {
+                Field field = keyToField.get(fieldKey);
+                if (field == null)
+                    throw new RuntimeException("Field no longer exists: " + fieldKey);
+                fields.add(field);
+            }
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package il.ac.technion.nlp.nli.core.serialization;
+
+import il.ac.technion.nlp.nli.core.dataset.Dataset;
+import il.ac.technion.nlp.nli.core.dataset.Domain;
+import il.ac.technion.nlp.nli.core.dataset.Example;
+import il.ac.technion.nlp.nli.core.dataset.construction.ExampleCategory;
+import il.ac.technion.nlp.nli.core.method_call.*;
+import il.ac.technion.nlp.nli.core.reflection.EntityGraphCopier;
+import il.ac.technion.nlp.nli.core.state.NliEntity;
+import il.ac.technion.nlp.nli.core.state.PrimitiveEntity;
+import il.ac.technion.nlp.nli.core.state.State;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+/**
+ * Writes objects in the format described in {@link NliBinaryFormat}.
+ * Strings, entity class schemas and domains are written once per stream and referred to by index afterwards, so
+ * writing many states of the same domains to a single stream is much more compact than writing each separately.
+ * Not thread-safe.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class NliBinaryWriter implements Closeable {
+
+    private final DataOutputStream out;
+
+    private final HashMap<String, Integer> stringToIndex = new HashMap<>();
+    private final HashMap<Class<?>, Integer> entityClassToIndex = new HashMap<>();
+    private final HashMap<String, Integer> domainIdToIndex = new HashMap<>();
+
+
+    /**
+     * Writes the header of the format.
+     */
+    public NliBinaryWriter(OutputStream outputStream) {
+        out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        try {
+            out.writeInt(NliBinaryFormat.MAGIC);
+            writeVarInt(NliBinaryFormat.VERSION);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param obj one of the types supported by {@link NliBinaryFormat}.
+     */
+    public void writeObject(Object obj) {
+        try {
+            if (obj instanceof State) {
+                out.writeByte(NliBinaryFormat.TYPE_STATE);
+                writeState((State) obj);
+            } else if (obj instanceof Example) {
+                out.writeByte(NliBinaryFormat.TYPE_EXAMPLE);
+                writeExample((Example) obj);
+            } else if (obj instanceof MethodCall) {
+                out.writeByte(NliBinaryFormat.TYPE_METHOD_CALL);
+                writeMethodCall((MethodCall) obj);
+            } else if (obj instanceof Dataset) {
+                out.writeByte(NliBinaryFormat.TYPE_DATASET);
+                writeDataset((Dataset) obj);
+            } else if (obj instanceof List) {
+                out.writeByte(NliBinaryFormat.TYPE_LIST);
+                List<?> list = (List<?>) obj;
+                writeVarInt(list.size());
+                for (Object element : list)
+                    writeObject(element);
+            } else {
+                throw new RuntimeException("Unsupported type: " + obj.getClass().getName());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeState(State state) throws IOException {
+        writeDomain(state.getDomain());
+        List<NliEntity> entities = writeEntityGraph(state);
+        for (NliEntity entity : entities)
+            writeString(state.getEntityIdOrNull(entity));
+        writeVarInt(state.getNextIdToGive());
+    }
+
+    private void writeExample(Example example) throws IOException {
+        writeString(example.getId());
+        writeString(example.getInstructionUtterance());
+        writeDomain(example.getDomain());
+        writeState(example.getInitialState());
+        writeState(example.getDestinationState());
+    }
+
+    private void writeDataset(Dataset dataset) throws IOException {
+
+        Collection<Domain> domains = dataset.getDatasetDomains().getDomains();
+        writeVarInt(domains.size());
+        for (Domain domain : domains)
+            writeDomain(domain);
+
+        Collection<Example> examples = dataset.getExamples();
+        writeVarInt(examples.size());
+        for (Example example : examples) {
+            writeExample(example);
+            ExampleCategory category = dataset.getExampleCategory(example);
+            out.writeBoolean(category != null);
+            if (category != null) {
+                writeMethodId(category.nliMethod);
+                writeString(category.instructionQueryability.name());
+            }
+        }
+
+        writeExampleIds(dataset.getTrainTestSplit().getTrainExamples());
+        writeExampleIds(dataset.getTrainTestSplit().getTestExamples());
+    }
+
+    private void writeExampleIds(List<Example> examples) throws IOException {
+        writeVarInt(examples.size());
+        for (Example example : examples)
+            writeString(example.getId());
+    }
+
+    private void writeMethodCall(MethodCall methodCall) throws IOException {
+        writeMethodId(methodCall.getMethodId());
+        writeString(methodCall.getEntityIdOfObjectMethodIsInvokeOn());
+        writeVarInt(methodCall.getArguments().size());
+        for (Argument argument : methodCall.getArguments()) {
+            if (argument instanceof PrimitiveArgument) {
+                out.writeByte(NliBinaryFormat.ARGUMENT_PRIMITIVE);
+                Collection<PrimitiveEntity> primitiveEntities = ((PrimitiveArgument) argument).getPrimitiveEntities();
+                writeVarInt(primitiveEntities.size());
+                for (PrimitiveEntity primitiveEntity : primitiveEntities)
+                    writePrimitiveValue(primitiveEntity.getValue());
+            } else if (argument instanceof NonPrimitiveArgument) {
+                out.writeByte(NliBinaryFormat.ARGUMENT_NON_PRIMITIVE);
+                Collection<String> ids = ((NonPrimitiveArgument) argument).getNonPrimitiveEntityIds();
+                writeVarInt(ids.size());
+                for (String id : ids)
+                    writeString(id);
+            } else {
+                out.writeByte(NliBinaryFormat.ARGUMENT_EMPTY);
+            }
+        }
+    }
+
+    private void writeMethodId(MethodId methodId) throws IOException {
+        writeString(methodId.getDeclaringClassCanonicalName());
+        writeString(methodId.getName());
+        writeVarInt(methodId.getParameterClassNames().size());
+        for (String parameterClassName : methodId.getParameterClassNames())
+            writeString(parameterClassName);
+    }
+
+    private void writeDomain(Domain domain) throws IOException {
+        Integer index = domainIdToIndex.get(domain.getId());
+        if (index != null) {
+            writeVarInt(index + 1);
+            return;
+        }
+        writeVarInt(0);
+        domainIdToIndex.put(domain.getId(), domainIdToIndex.size());
+        writeString(domain.getId());
+        writeString(domain.getRootEntityClass().getName());
+    }
+
+    /**
+     * @return the non-primitive entities of the graph, in the order they were written.
+     */
+    private List<NliEntity> writeEntityGraph(State state) throws IOException {
+        IdentityHashMap<Object, Integer> objectToIndex = new IdentityHashMap<>();
+        List<NliEntity> entities = new ArrayList<>();
+        writeValue(state.getRootEntity(), objectToIndex, entities);
+        // the fields of entity i are written after the ones of all entities allocated before it (like the reader
+        // allocates them).
+        for (int i=0; i<entities.size(); i++) {
+            NliEntity entity = entities.get(i);
+            try {
+                for (Field field : EntityGraphCopier.getCopiedFields(entity.getClass())) {
+                    if (field.getType().isPrimitive())
+                        writeJavaPrimitiveField(field, entity);
+                    else
+                        writeValue(field.get(entity), objectToIndex, entities);
+                }
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * @param entities new entities are added (their fields are written later).
+     */
+    private void writeValue(@Nullable Object value, IdentityHashMap<Object, Integer> objectToIndex,
+                            List<NliEntity> entities) throws IOException {
+        if (value == null) {
+            out.writeByte(NliBinaryFormat.VALUE_NULL);
+            return;
+        }
+        Integer index = objectToIndex.get(value);
+        if (index != null) {
+            out.writeByte(NliBinaryFormat.VALUE_REF);
+            writeVarInt(index);
+            return;
+        }
+        if (value instanceof NliEntity) {
+            if (!EntityGraphCopier.isSupported(value.getClass()))
+                throw new RuntimeException("Entity class can't be read back (no no-args constructor): " +
+                        value.getClass().getName());
+            out.writeByte(NliBinaryFormat.VALUE_NEW_ENTITY);
+            writeEntityClass(value.getClass());
+            objectToIndex.put(value, objectToIndex.size());
+            entities.add((NliEntity) value);
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            if (!NliBinaryFormat.isReadableCollectionClass(value.getClass()))
+                throw new RuntimeException("Collection class can't be read back (not a JDK collection): " +
+                        value.getClass().getName());
+            // the reader creates the collection via the no-args constructor of its class.
+            if (!EntityGraphCopier.canCreateEmptyCollection(value.getClass()))
+                throw new RuntimeException("Collection class can't be read back (no no-args constructor): " +
+                        value.getClass().getName());
+            if (EntityGraphCopier.getComparator(collection) != null)
+                throw new RuntimeException("Sorted collection with a comparator can't be written: " +
+                        value.getClass().getName());
+            out.writeByte(NliBinaryFormat.VALUE_NEW_COLLECTION);
+            writeString(value.getClass().getName());
+            objectToIndex.put(value, objectToIndex.size());
+            writeVarInt(collection.size());
+            for (Object element : collection)
+                writeValue(element, objectToIndex, entities);
+        } else {
+            writePrimitiveValue(value);
+        }
+    }
+
+    /**
+     * @param value must be a value of a primitive entity type (see {@link PrimitiveEntity#isPrimitiveEntityType(Class)}).
+     */
+    private void writePrimitiveValue(@Nullable Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NliBinaryFormat.VALUE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(NliBinaryFormat.VALUE_STRING);
+            writeString((String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(NliBinaryFormat.VALUE_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Double) {
+            out.writeByte(NliBinaryFormat.VALUE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? NliBinaryFormat.VALUE_TRUE : NliBinaryFormat.VALUE_FALSE);
+        } else if (value instanceof ZonedDateTime) {
+            ZonedDateTime time = (ZonedDateTime) value;
+            out.writeByte(NliBinaryFormat.VALUE_ZONED_DATE_TIME);
+            out.writeLong(time.toEpochSecond());
+            out.writeInt(time.getNano());
+            writeString(time.getZone().getId());
+        } else if (value instanceof Enum) {
+            out.writeByte(NliBinaryFormat.VALUE_ENUM);
+            writeString(((Enum<?>) value).getDeclaringClass().getName());
+            writeString(((Enum<?>) value).name());
+        } else {
+            throw new RuntimeException("Unsupported value type: " + value.getClass().getName());
+        }
+    }
+
+    private void writeJavaPrimitiveField(Field field, Object obj) throws IOException, IllegalAccessException {
+        Class<?> type = field.getType();
+        if (type == boolean.class)
+            out.writeBoolean(field.getBoolean(obj));
+        else if (type == byte.class)
+            out.writeByte(field.getByte(obj));
+        else if (type == short.class)
+            out.writeShort(field.getShort(obj));
+        else if (type == char.class)
+            out.writeChar(field.getChar(obj));
+        else if (type == int.class)
+            out.writeInt(field.getInt(obj));
+        else if (type == long.class)
+            out.writeLong(field.getLong(obj));
+        else if (type == float.class)
+            out.writeFloat(field.getFloat(obj));
+        else
+            out.writeDouble(field.getDouble(obj));
+    }
+
+    /**
+     * The schema of the class (its name and the names of its fields, in the order their values are written) is written
+     * the first time the class is written.
+     */
+    private void writeEntityClass(Class<?> clazz) throws IOException {
+        Integer index = entityClassToIndex.get(clazz);
+        if (index != null) {
+            writeVarInt(index + 1);
+            return;
+        }
+        writeVarInt(0);
+        entityClassToIndex.put(clazz, entityClassToIndex.size());
+        writeString(clazz.getName());
+        //noinspection unchecked
+        List<Field> fields = EntityGraphCopier.getCopiedFields((Class<? extends NliEntity>) clazz);
+        writeVarInt(fields.size());
+        for (Field field : fields)
+            writeString(NliBinaryFormat.getFieldKey(field));
+    }
+
+    private void writeString(@Nullable String s) throws IOException {
+        if (s == null) {
+            writeVarInt(0);
+            return;
+        }
+        Integer index = stringToIndex.get(s);
+        if (index != null) {
+            writeVarInt(index + 2);
+            return;
+        }
+        writeVarInt(1);
+        stringToIndex.put(s, stringToIndex.size());
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @param n non-negative.
+     */
+    private void writeVarInt(int n) throws IOException {
+        while ((n & ~0x7F) != 0) {
+            out.writeByte((n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        out.writeByte(n);
+    }
+
+    public void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -24,8 +24,9 @@ import il.ac.technion.nlp.nli.core.reflection.EntityGraphReflection;
  * {@link java.util.Collection}. If the succesfulness If a deterministic functionality is required (e.g. for
  * deterministic experiment results), then the collection should be of type .
  *
- * IMPORTANT: since we use serialization to clone {@link NliEntity} subtype objects - all subtype fields must
- * not refer to objects outside the entities graph, unless defined as transient.
+ * IMPORTANT: since {@link NliEntity} subtype objects are cloned with serialization semantics (see
+ * {@link il.ac.technion.nlp.nli.core.reflection.EntityGraphCopier}) - all subtype fields must not refer to objects
+ * outside the entities graph, unless defined as transient.
  *
  *
  *
@@ -1,10 +1,14 @@
 package il.ac.technion.nlp.nli.core.state;
 
+import com.google.common.base.Verify;
+import com.google.common.hash.HashCode;
 import ofergivoli.olib.data_structures.map.SafeHashMap;
 import ofergivoli.olib.data_structures.map.SafeIdentityHashMap;
 import ofergivoli.olib.data_structures.map.SafeMap;
 import il.ac.technion.nlp.nli.core.dataset.Domain;
+import il.ac.technion.nlp.nli.core.reflection.EntityGraphCopier;
 import il.ac.technion.nlp.nli.core.reflection.EntityGraphReflection;
+import il.ac.technion.nlp.nli.core.reflection.EntityGraphSnapshot;
 import il.ac.technion.nlp.nli.core.state.knowledgebase.GraphKb;
 import il.ac.technion.nlp.nli.core.state.knowledgebase.KBTriple;
 import org.apache.commons.lang3.SerializationUtils;
@@ -12,12 +16,22 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.Serializable;
-import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Objects;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Represents an entity graph and {@link NliEntity}-id mapping.
@@ -42,6 +56,31 @@ public class State implements Serializable {
      * Generated first time on demand (and updated from that moment when entity graph changes).
      */
     transient @Nullable private GraphKb graphKb;
+    /**
+     * See {@link #getEntityGraphSnapshot()}. Of the entity graph as it was when the ids were last updated (i.e. the
+     * snapshot is updated by {@link #updateStateFollowingEntityGraphModifications()}).
+     */
+    transient @Nullable private EntityGraphSnapshot entityGraphSnapshot;
+    /**
+     * true iff {@link EntityGraphSnapshot#create(NliRootEntity)} was already called and returned null.
+     */
+    transient private boolean entityGraphSnapshotUnsupported;
+    /**
+     * See {@link #getEntityGraphFingerprint()}.
+     */
+    transient @Nullable private HashCode entityGraphFingerprint;
+    /**
+     * See {@link #markEntityGraphAsUnmodifiable()}.
+     */
+    transient private boolean entityGraphUnmodifiable;
+    /**
+     * See {@link #sharesEntitiesWithOtherStates()}.
+     */
+    transient private boolean sharesEntitiesWithOtherStates;
+    /**
+     * See {@link #getEntityGraphLock()}.
+     */
+    transient @Nullable private ReadWriteLock entityGraphLock;
 
 	/**
 	 * This constructor generates ids for the non-primitive entities in the graph which its root is constantRootEntity.
@@ -54,6 +93,24 @@ public class State implements Serializable {
 		updateIdsOfNonPrimitiveEntities(deterministic);
 	}
 
+    /**
+     * Creates a state with a given id assignment (e.g. when deserializing a state).
+     * @param entityToEntityId must contain exactly the non-primitive entities in the entity graph.
+     * @param nextIdToGive see {@link #getNextIdToGive()}.
+     */
+    public State(Domain domain, NliRootEntity rootEntity, IdentityHashMap<NliEntity, String> entityToEntityId,
+                 int nextIdToGive) {
+        this.domain = domain;
+        this.rootEntity = rootEntity;
+        this.nextIdToGive = nextIdToGive;
+        this.entityToEntityId = new SafeIdentityHashMap<>();
+        this.entityIdToEntity = new SafeHashMap<>();
+        entityToEntityId.forEach((entity, id) -> {
+            this.entityToEntityId.put(entity, id);
+            this.entityIdToEntity.put(id, entity);
+        });
+    }
+
 	/**
 	 * @return A map mapping entity id to entity (contains all the entities in the state).
      */
@@ -76,7 +133,7 @@ public class State implements Serializable {
 
         SafeIdentityHashMap<NliEntity, String> newEntityToId = new SafeIdentityHashMap<>();
 
-        Queue<NliEntity> pending = new LinkedList<>(); // not yet traversed.
+        Queue<NliEntity> pending = new ArrayDeque<>(); // not yet traversed.
         pending.add(rootEntity);
 
         while (!pending.isEmpty()) {
@@ -84,8 +141,8 @@ public class State implements Serializable {
 
             if (newEntityToId.safeContainsKey(current)) continue;
 
-            EntityGraphReflection.getNonPrimitiveEntitiesInOutgoingRelationFromGivenEntity(current, deterministic)
-                    .forEach(pair-> pending.add(pair.getRight()));
+            EntityGraphReflection.forEachNonPrimitiveEntityInOutgoingRelations(current, deterministic,
+                    (field, entity) -> pending.add(entity));
 
             String newId;
             if (entityToEntityId!=null && entityToEntityId.safeContainsKey(current)) {
@@ -108,11 +165,31 @@ public class State implements Serializable {
     /**
      * This method must be called after doing anything that changes the entity graph (reachable from the root entity) of
      * this state.
+     * If this state has a snapshot of its entity graph (see {@link #getEntityGraphSnapshot()}, which is taken when the
+     * graph KB of a modifiable state is generated), the ids, the graph KB and the snapshot are updated incrementally:
+     * only the modified entities, and the entities that became reachable or unreachable, are traversed (new
+     * non-primitive entities may then get different ids than the ones a full update would give, see
+     * {@link #updateIdsOfNonPrimitiveEntities(boolean)}). Otherwise, the entire entity graph is traversed (and the graph
+     * KB, if already generated, is regenerated).
      */
     public void updateStateFollowingEntityGraphModifications() {
+        Verify.verify(!entityGraphUnmodifiable, "the entity graph of this state was marked as unmodifiable");
+        entityGraphFingerprint = null;
+        EntityGraphSnapshot snapshot = entityGraphSnapshot;
+        if (snapshot != null) {
+            List<NliEntity> modifiedEntities = snapshot.findModifiedEntities();
+            List<NliEntity> removedEntities = updateIdsAndGraphKbIncrementally(snapshot, modifiedEntities,
+                    new IdentityHashMap<>());
+            if (!snapshot.update(modifiedEntities, removedEntities))
+                entityGraphSnapshot = null; // a value that can't be snapshotted was added.
+            return;
+        }
+        entityGraphSnapshotUnsupported = false;
         updateIdsOfNonPrimitiveEntities(true);
-        if (graphKb != null)
+        if (graphKb != null) {
             graphKb = generateGraphKB();
+            getEntityGraphSnapshot(); // so the next update is incremental.
+        }
     }
 
 
@@ -122,25 +199,318 @@ public class State implements Serializable {
      * relevant for this.
 	 */
 	public boolean entityGraphsEqual(@Nullable State otherState) {
-        return otherState != null &&
-                EntityGraphReflection.entityGraphEquals(rootEntity, otherState.rootEntity);
+        if (otherState == null)
+            return false;
+        // Fingerprints are cached only for unmodifiable entity graphs (see getEntityGraphFingerprint()), so comparing
+        // them first saves a walk only when both are. Otherwise (and to confirm equality) the graphs are walked.
+        if (entityGraphUnmodifiable && otherState.entityGraphUnmodifiable &&
+                !getEntityGraphFingerprint().equals(otherState.getEntityGraphFingerprint()))
+            return false;
+        return EntityGraphReflection.entityGraphEquals(rootEntity, otherState.rootEntity);
+    }
+
+    /**
+     * Marks the entity graph of this state as one that won't be modified anymore (except for modifications that are
+     * restored, see {@link EntityGraphSnapshot}), so its fingerprint can be cached and used by
+     * {@link #entityGraphsEqual(State)}. States that are compared many times (e.g. the states of a dataset) should be
+     * marked once they are loaded.
+     * Calling {@link #updateStateFollowingEntityGraphModifications()} afterwards is an error. Copies of this state are
+     * not marked.
+     */
+    public void markEntityGraphAsUnmodifiable() {
+        if (entityGraphUnmodifiable)
+            return;
+        entityGraphUnmodifiable = true;
+        entityGraphFingerprint = null; // might have been computed before a modification.
+    }
+
+    public boolean isEntityGraphUnmodifiable() {
+        return entityGraphUnmodifiable;
+    }
+
+    /**
+     * @return true iff some non-primitive entities of this state are shared with another state (i.e. this state was
+     * created by {@link #createSuccessorSharingUnmodifiedEntities(List, IdentityHashMap)} or was the one it was called
+     * on). Such a state is also unmodifiable (see {@link #markEntityGraphAsUnmodifiable()}); {@link #deepCopy()} returns
+     * an owned state that may be modified.
+     */
+    public boolean sharesEntitiesWithOtherStates() {
+        return sharesEntitiesWithOtherStates;
+    }
+
+    /**
+     * Like {@link #entityGraphsEqual(State)}, for an entity graph that is not held by a state (e.g. one that is
+     * temporarily modified in place, see
+     * {@link il.ac.technion.nlp.nli.core.method_call.MethodCall#invokeInPlaceAndRollBack}).
+     */
+    public boolean entityGraphEqualsGraphOf(NliRootEntity otherRoot) {
+        // the fingerprint of 'otherRoot' is computed from its current graph, so the mismatch is final only if ours is
+        // too (see entityGraphsEqual).
+        if (entityGraphUnmodifiable &&
+                !getEntityGraphFingerprint().equals(EntityGraphReflection.computeEntityGraphFingerprint(otherRoot)))
+            return false;
+        return EntityGraphReflection.entityGraphEquals(rootEntity, otherRoot);
+    }
+
+    /**
+     * Computed on demand. Cached only if the entity graph is unmodifiable (see {@link #markEntityGraphAsUnmodifiable()}),
+     * as otherwise it may be modified without notifying this state.
+     * @return see {@link EntityGraphReflection#computeEntityGraphFingerprint(NliRootEntity)}. States for which
+     * {@link #entityGraphsEqual(State)} returns true have the same fingerprint.
+     */
+    public HashCode getEntityGraphFingerprint() {
+        HashCode fingerprint = entityGraphFingerprint;
+        if (fingerprint != null)
+            return fingerprint;
+        // the graph may be temporarily modified in place by another thread (see getEntityGraphLock()).
+        Lock lock = getEntityGraphLock().readLock();
+        lock.lock();
+        try {
+            fingerprint = EntityGraphReflection.computeEntityGraphFingerprint(rootEntity);
+        } finally {
+            lock.unlock();
+        }
+        if (entityGraphUnmodifiable)
+            entityGraphFingerprint = fingerprint;
+        return fingerprint;
     }
 
 
 	/**
-	 * Implementation uses serialization.
-	 * Make sure there are no needed non-transient fields in the state and entity graph that
-	 * reference an external object.
-     * The {@link #domain} field of the duplicated object is set to the one of the this object (not the duplicated
-     * domain).
+	 * The entity graph is copied via {@link EntityGraphCopier}, which has the same semantics as cloning it via
+	 * serialization (and is much faster). If the entity graph contains values {@link EntityGraphCopier} can't copy, we
+	 * fall back to actual serialization, so make sure there are no needed non-transient fields in the state and entity
+	 * graph that reference an external object.
+	 * The duplicated object has the same id for each (copied) non-primitive entity.
+     * The {@link #domain} field of the duplicated object is set to the one of the this object.
 	 */
 	public State deepCopy() {
-        State clone = SerializationUtils.clone(this);
-        clone.domain = domain; // there's a bit of time waist here (no reason the domain field was serialized)...
-        return clone;
+        IdentityHashMap<Object, Object> originalToCopy = EntityGraphCopier.deepCopyEntityGraph(rootEntity);
+        if (originalToCopy == null) {
+            State clone = SerializationUtils.clone(this);
+            clone.domain = domain; // there's a bit of time waist here (no reason the domain field was serialized)...
+            return clone;
+        }
+        return new State(this, originalToCopy);
 	}
 
+    /**
+     * Creates a copy of 'other' with the entity graph given by 'originalToCopy'.
+     * @param originalToCopy maps non-primitive entities of 'other' to their copy. Entities not in this map are shared
+     *                       with 'other'.
+     */
+    private State(State other, IdentityHashMap<Object, Object> originalToCopy) {
+        domain = other.domain;
+        rootEntity = (NliRootEntity) originalToCopy.getOrDefault(other.rootEntity, other.rootEntity);
+        nextIdToGive = other.nextIdToGive;
+        entityIdToEntity = new SafeHashMap<>();
+        entityToEntityId = new SafeIdentityHashMap<>();
+        other.entityToEntityId.forEach((entity, id) -> {
+            NliEntity copy = (NliEntity) originalToCopy.getOrDefault(entity, entity);
+            entityIdToEntity.put(id, copy);
+            entityToEntityId.put(copy, id);
+        });
+    }
+
+
+
+    /**
+     * Generated first time on demand, used for invoking methods on a copy-on-write view of this state.
+     * @return null if the entity graph contains values that can't be snapshotted (see
+     * {@link EntityGraphSnapshot#create(NliRootEntity)}).
+     */
+    public @Nullable EntityGraphSnapshot getEntityGraphSnapshot() {
+        if (entityGraphSnapshot == null && !entityGraphSnapshotUnsupported) {
+            entityGraphSnapshot = EntityGraphSnapshot.create(rootEntity);
+            entityGraphSnapshotUnsupported = entityGraphSnapshot == null;
+        }
+        return entityGraphSnapshot;
+    }
+
+    /**
+     * Guards the entity graph of this state while it's temporarily modified in place (and then restored), so that
+     * multiple threads may invoke method calls on this state concurrently.
+     * The write lock is held while the entity graph is modified in place (see
+     * {@link il.ac.technion.nlp.nli.core.method_call.MethodCall#invokeOnCopyOnWriteViewOfState(State)}), and the read
+     * lock is held while it's copied (see
+     * {@link il.ac.technion.nlp.nli.core.method_call.MethodCall#invokeOnDeepCopyOfState(State)}).
+     */
+    public synchronized ReadWriteLock getEntityGraphLock() {
+        if (entityGraphLock == null)
+            entityGraphLock = new ReentrantReadWriteLock();
+        return entityGraphLock;
+    }
+
+    /**
+     * Creates the state resulting from a copy-on-write modification of this state.
+     * The returned state shares with this state all the non-primitive entities that are not in 'originalToCopy', so
+     * neither of the states may be modified from that moment (except for modifications that are restored, see
+     * {@link EntityGraphSnapshot}). This is enforced by marking both states (see
+     * {@link #sharesEntitiesWithOtherStates()}).
+     * Non-primitive entities keep their ids (a copy gets the id of the original), and new ones get a new id.
+     * The ids and the graph KB (if already generated for this state) of the returned state are derived from the ones
+     * of this state, traversing only the parts of the entity graph affected by the modifications.
+     * @param modifiedEntities as returned by {@link EntityGraphSnapshot#findModifiedEntities()} for the snapshot
+     *                         returned by {@link #getEntityGraphSnapshot()}.
+     * @param originalToCopy as returned by
+     *                       {@link EntityGraphSnapshot#copyModifiedEntitiesAndTheirAncestors(Collection)}.
+     */
+    public State createSuccessorSharingUnmodifiedEntities(List<NliEntity> modifiedEntities,
+                                                          IdentityHashMap<Object, Object> originalToCopy) {
+        State successor = new State(this, originalToCopy);
+        if (graphKb != null)
+            successor.graphKb = new GraphKb(graphKb);
+        successor.updateIdsAndGraphKbIncrementally(Objects.requireNonNull(entityGraphSnapshot), modifiedEntities,
+                originalToCopy);
+        for (State s : new State[]{this, successor}) {
+            s.markEntityGraphAsUnmodifiable();
+            s.sharesEntitiesWithOtherStates = true;
+        }
+        return successor;
+    }
+
+    /**
+     * Updates the ids and the graph KB (if not null) following modifications of the entities of 'snapshot', either
+     * in place or in copies of them.
+     * Rather than traversing the entire entity graph, only the entities that became reachable from the modified
+     * entities, and the ones that may have become unreachable, are traversed.
+     * @param snapshot a snapshot of the entity graph (of this state, or of the state this state was created from by
+     *                 {@link #State(State, IdentityHashMap)}) that the ids and graph KB of this state are consistent
+     *                 with (except for replacing entities by their copies). It must be the one used to find
+     *                 'modifiedEntities' (and create 'originalToCopy').
+     * @param originalToCopy empty for in place modifications. Entities not in this map are not copied.
+     * @return the entities removed from this state (i.e. no longer reachable from the root).
+     */
+    private List<NliEntity> updateIdsAndGraphKbIncrementally(EntityGraphSnapshot snapshot,
+                                                             List<NliEntity> modifiedEntities,
+                                                             IdentityHashMap<Object, Object> originalToCopy) {
+
+        Set<NliEntity> modifiedEntitySet = Collections.newSetFromMap(new IdentityHashMap<>());
+        modifiedEntitySet.addAll(modifiedEntities);
+        IdentityHashMap<NliEntity, NliEntity> copyToOriginal = new IdentityHashMap<>();
+        originalToCopy.forEach((original, copy) -> {
+            if (original instanceof NliEntity)
+                copyToOriginal.put((NliEntity) copy, (NliEntity) original);
+        });
+
+        /*
+         * Maps an entity to the entities of this state that refer to it and are either a copy of a modified entity or
+         * a new entity. All other references are given by 'snapshot'.
+         */
+        IdentityHashMap<NliEntity, List<NliEntity>> entityToNewReferringEntities = new IdentityHashMap<>();
+
+        // giving ids to entities that became reachable (by BFS from the copies of the modified entities).
+        List<NliEntity> newEntities = new ArrayList<>();
+        Set<NliEntity> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<NliEntity> pending = new ArrayDeque<>();
+        modifiedEntities.forEach(e -> pending.add((NliEntity) originalToCopy.getOrDefault(e, e)));
+        while (!pending.isEmpty()) {
+            NliEntity current = pending.remove();
+            if (!visited.add(current))
+                continue;
+            for (NliEntity referred : getReferredNonPrimitiveEntities(current)) {
+                entityToNewReferringEntities.computeIfAbsent(referred, e -> new ArrayList<>()).add(current);
+                if (!entityToEntityId.safeContainsKey(referred)) {
+                    giveNewId(referred);
+                    newEntities.add(referred);
+                    pending.add(referred);
+                }
+            }
+        }
+
+        // finding the entities that became unreachable (their ids are removed after the graph KB is updated, as the
+        // triples of entities modified in place get ids from this state).
+        Deque<NliEntity> candidatesForRemoval = new ArrayDeque<>();
+        for (NliEntity modified : modifiedEntities) {
+            Set<NliEntity> currentlyReferred = Collections.newSetFromMap(new IdentityHashMap<>());
+            currentlyReferred.addAll(getReferredNonPrimitiveEntities(
+                    (NliEntity) originalToCopy.getOrDefault(modified, modified)));
+            snapshot.getReferredEntities(modified).stream()
+                    .map(e -> (NliEntity) originalToCopy.getOrDefault(e, e))
+                    .filter(e -> !currentlyReferred.contains(e))
+                    .forEach(candidatesForRemoval::add);
+        }
+        List<NliEntity> removedEntities = new ArrayList<>();
+        Set<NliEntity> removedEntitySet = Collections.newSetFromMap(new IdentityHashMap<>());
+        while (!candidatesForRemoval.isEmpty()) {
+            NliEntity candidate = candidatesForRemoval.remove();
+            if (!entityToEntityId.safeContainsKey(candidate) || removedEntitySet.contains(candidate))
+                continue; // already removed.
+            Set<NliEntity> unreachable = findEntitiesUnreachableFromRootReferringTo(candidate, entity -> {
+                List<NliEntity> referring = new ArrayList<>(
+                        entityToNewReferringEntities.getOrDefault(entity, Collections.emptyList()));
+                NliEntity original = copyToOriginal.getOrDefault(entity, entity);
+                if (snapshot.contains(original))
+                    snapshot.getReferringEntities(original).stream()
+                            .filter(e -> !modifiedEntitySet.contains(e))
+                            .forEach(e -> referring.add((NliEntity) originalToCopy.getOrDefault(e, e)));
+                referring.removeIf(removedEntitySet::contains);
+                return referring;
+            });
+            if (unreachable == null)
+                continue;
+            removedEntities.addAll(unreachable);
+            removedEntitySet.addAll(unreachable);
+            unreachable.forEach(entity -> candidatesForRemoval.addAll(getReferredNonPrimitiveEntities(entity)));
+        }
+
+        // updating the graph KB (the triples of the copies, which refer to other copies, and of the entities
+        // modified in place are replaced).
+        if (graphKb != null) {
+            Set<NliEntity> replacedEntities = Collections.newSetFromMap(new IdentityHashMap<>());
+            replacedEntities.addAll(copyToOriginal.keySet());
+            modifiedEntities.forEach(e -> replacedEntities.add((NliEntity) originalToCopy.getOrDefault(e, e)));
+            replacedEntities.forEach(e -> graphKb.removeTriplesOfFirstEntity(copyToOriginal.getOrDefault(e, e)));
+            removedEntities.forEach(e -> graphKb.removeTriplesOfFirstEntity(copyToOriginal.getOrDefault(e, e)));
+            Collection<KBTriple> addedTriples = new ArrayList<>();
+            Stream.concat(replacedEntities.stream(), newEntities.stream())
+                    .filter(entity -> entity != rootEntity && !removedEntitySet.contains(entity))
+                    .forEach(entity -> addTriplesOfEntity(entity, addedTriples));
+            graphKb.addAll(addedTriples);
+        }
+
+        removedEntities.forEach(entity -> entityIdToEntity.safeRemove(entityToEntityId.safeRemove(entity)));
+        return removedEntities;
+    }
+
+    /**
+     * @param getReferringEntities maps an entity to the entities that refer to it.
+     * @return null if 'entity' is reachable from the root. Otherwise, 'entity' and all the entities from which it is
+     * reachable (none of which is reachable from the root).
+     */
+    private @Nullable Set<NliEntity> findEntitiesUnreachableFromRootReferringTo(
+            NliEntity entity, Function<NliEntity, List<NliEntity>> getReferringEntities) {
 
+        // doing a BFS on the reversed edges, from 'entity'.
+        Set<NliEntity> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<NliEntity> pending = new ArrayDeque<>();
+        visited.add(entity);
+        pending.add(entity);
+        while (!pending.isEmpty()) {
+            NliEntity current = pending.remove();
+            if (current == rootEntity)
+                return null;
+            for (NliEntity referring : getReferringEntities.apply(current)) {
+                if (entityToEntityId.safeContainsKey(referring) && visited.add(referring))
+                    pending.add(referring);
+            }
+        }
+        return visited;
+    }
+
+    private List<NliEntity> getReferredNonPrimitiveEntities(NliEntity entity) {
+        List<NliEntity> result = new ArrayList<>();
+        EntityGraphReflection.forEachNonPrimitiveEntityInOutgoingRelations(entity, true,
+                (field, referred) -> result.add(referred));
+        return result;
+    }
+
+    private void giveNewId(NliEntity entity) {
+        String id = Integer.toString(nextIdToGive);
+        nextIdToGive++;
+        entityToEntityId.put(entity, id);
+        entityIdToEntity.put(id, entity);
+    }
 
 	public Domain getDomain() {
 		return domain;
@@ -150,6 +520,20 @@ public class State implements Serializable {
         return entityToEntityId.getExisting(e);
     }
 
+    /**
+     * @return null if 'e' is not a non-primitive entity of this state.
+     */
+    public @Nullable String getEntityIdOrNull(NliEntity e) {
+        return entityToEntityId.safeGet(e);
+    }
+
+    /**
+     * @return the numeric id that will be given to the next new non-primitive entity (ids are never reused).
+     */
+    public int getNextIdToGive() {
+        return nextIdToGive;
+    }
+
     public List<String> getEntityIds(List<? extends NliEntity> l) {
 	    return l.stream()
                 .map(this::getEntityId)
@@ -166,19 +550,30 @@ public class State implements Serializable {
      */
     private GraphKb generateGraphKB() {
 
-        Collection<KBTriple> triples = new LinkedList<>();
+        Collection<KBTriple> triples = new ArrayList<>();
         EntityGraphReflection.getNonPrimitiveEntitiesReachableFromRoot(rootEntity, false, false).forEach(current->
-                EntityGraphReflection.getEntitiesInOutgoingRelationsFromGivenEntity(current, false).forEach(pair-> {
-            Field relationField = pair.getLeft();
-            Entity secondEntity = pair.getRight();
-                    triples.add(new KBTriple(current, relationField,secondEntity, this));
-        }));
+                addTriplesOfEntity(current, triples));
         return new GraphKb(triples);
     }
 
+    /**
+     * Adds to 'triples' the triples in which 'entity' is the first entity.
+     */
+    private void addTriplesOfEntity(NliEntity entity, Collection<KBTriple> triples) {
+        EntityGraphReflection.forEachEntityInOutgoingRelations(entity, false, (relationField, secondEntity) ->
+                triples.add(new KBTriple(entity, relationField, secondEntity, this)));
+    }
+
+    /**
+     * For a modifiable state, generating the graph KB also takes a snapshot of the entity graph, so that
+     * {@link #updateStateFollowingEntityGraphModifications()} updates the graph KB incrementally (in place).
+     */
     public GraphKb getGraphKb() {
-        if (graphKb == null)
+        if (graphKb == null) {
             graphKb = generateGraphKB();
+            if (!entityGraphUnmodifiable)
+                getEntityGraphSnapshot();
+        }
         return graphKb;
     }
 
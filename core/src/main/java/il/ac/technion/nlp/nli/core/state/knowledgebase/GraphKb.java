@@ -4,9 +4,13 @@ import com.google.common.base.Verify;
 import ofergivoli.olib.data_structures.set.SafeHashSet;
 import ofergivoli.olib.data_structures.set.SafeSet;
 import ofergivoli.olib.string.StringManager;
+import il.ac.technion.nlp.nli.core.state.NliEntity;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
@@ -19,19 +23,58 @@ public class GraphKb {
 
     private final SafeSet<KBTriple> triples = new SafeHashSet<>();
 
+    /**
+     * Index of {@link #triples} by their first entity.
+     */
+    private final IdentityHashMap<NliEntity, List<KBTriple>> firstEntityToTriples = new IdentityHashMap<>();
+
     public GraphKb()
     {
     }
 
     public GraphKb(Collection<KBTriple> triples)
     {
-        this.triples.addAll(triples);
+        addAll(triples);
+    }
+
+    /**
+     * Creates a copy of 'other' (the triples themselves are shared).
+     */
+    public GraphKb(GraphKb other)
+    {
+        triples.addAll(other.triples);
+        other.firstEntityToTriples.forEach((entity, entityTriples) ->
+                firstEntityToTriples.put(entity, new ArrayList<>(entityTriples)));
     }
 
 
     public void add(KBTriple triple) {
         // actually add the triple:
         Verify.verify(triples.add(triple));
+        addToIndex(triple);
+    }
+
+    /**
+     * Unlike {@link #add(KBTriple)}, triples that are already in this KB are ignored.
+     */
+    public void addAll(Collection<KBTriple> triples) {
+        triples.forEach(triple -> {
+            if (this.triples.add(triple))
+                addToIndex(triple);
+        });
+    }
+
+    private void addToIndex(KBTriple triple) {
+        firstEntityToTriples.computeIfAbsent(triple.firstEntity, e -> new ArrayList<>()).add(triple);
+    }
+
+    /**
+     * Removes all the triples in which 'firstEntity' is the first entity.
+     */
+    public void removeTriplesOfFirstEntity(NliEntity firstEntity) {
+        List<KBTriple> entityTriples = firstEntityToTriples.remove(firstEntity);
+        if (entityTriples != null)
+            triples.safeRemoveAll(entityTriples);
     }
 
 
@@ -24,6 +24,11 @@ public class KBTriple {
      */
     private final State state;
 
+    /**
+     * Lazily computed by {@link #hashCode()} (the ids it depends on don't change during the life of this object).
+     */
+    private int hashCode;
+
 
     /**
      * @param state Will be used to get the id of entities. Thus caller must not remove from
@@ -63,7 +68,10 @@ public class KBTriple {
      */
     @Override
     public int hashCode() {
-        return Objects.hash(getPrimitiveEntityOrId(firstEntity), relation, getPrimitiveEntityOrId(secondEntity));
+        if (hashCode == 0)
+            hashCode = Objects.hash(getPrimitiveEntityOrId(firstEntity), relation,
+                    getPrimitiveEntityOrId(secondEntity));
+        return hashCode;
     }
 
     /**
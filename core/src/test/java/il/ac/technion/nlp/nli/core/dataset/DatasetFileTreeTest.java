@@ -0,0 +1,72 @@
+package il.ac.technion.nlp.nli.core.dataset;
+
+import il.ac.technion.nlp.nli.core.dataset.simple_test_domain.SimpleSocialNetwork;
+import il.ac.technion.nlp.nli.core.dataset.simple_test_domain.User;
+import il.ac.technion.nlp.nli.core.state.State;
+import ofergivoli.olib.io.TextIO;
+import ofergivoli.olib.io.serialization.xml.XStreamSerialization;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DatasetFileTreeTest {
+
+    @Test
+    public void testListingExampleDirectories() throws Exception {
+
+        Path rootDir = Files.createTempDirectory("DatasetFileTreeTest");
+        createExampleDir(rootDir.resolve("train/domain_b/train-2"), "Second utterance.");
+        createExampleDir(rootDir.resolve("train/domain_a/train-1"), "First utterance.");
+        createExampleDir(rootDir.resolve("test/domain_a/test-1"), "Third utterance.");
+        Files.createFile(rootDir.resolve("train/Utterances.csv"));
+
+        DatasetFileTree fileTree = new DatasetFileTree(rootDir);
+        assertEquals("[train-1, train-2, test-1]", fileTree.getEntries().toString());
+
+        List<DatasetFileTree.ExampleEntry> trainEntries = fileTree.getEntries(ExampleSplit.SplitPart.TRAIN);
+        assertEquals("[domain_a, domain_b]", trainEntries.stream()
+                .map(entry -> entry.domainId)
+                .collect(Collectors.toList()).toString());
+        assertEquals("First utterance.", trainEntries.get(0).readUtterance());
+        assertEquals(ExampleSplit.SplitPart.TEST, fileTree.getEntries(ExampleSplit.SplitPart.TEST).get(0).splitPart);
+    }
+
+    @Test
+    public void testReadingExample() throws Exception {
+
+        Path rootDir = Files.createTempDirectory("DatasetFileTreeTest");
+        Path exampleDir = rootDir.resolve("train/" + SimpleSocialNetwork.domain.getId() + "/train-1");
+        createExampleDir(exampleDir, "Add a user.");
+        SimpleSocialNetwork initialRoot = new SimpleSocialNetwork();
+        initialRoot.users.add(new User());
+        State initialState = new State(SimpleSocialNetwork.domain, initialRoot, true);
+        SimpleSocialNetwork desiredRoot = new SimpleSocialNetwork();
+        desiredRoot.users.add(new User());
+        desiredRoot.users.add(new User());
+        State desiredState = new State(SimpleSocialNetwork.domain, desiredRoot, true);
+        XStreamSerialization.writeObjectToXmlFile(initialState,
+                exampleDir.resolve(DatasetFileTree.INITIAL_STATE_FILE_NAME));
+        XStreamSerialization.writeObjectToXmlFile(desiredState,
+                exampleDir.resolve(DatasetFileTree.DESIRED_STATE_FILE_NAME));
+
+        Example example = new DatasetFileTree(rootDir).getEntries().get(0).readExample();
+        assertEquals("train-1", example.getId());
+        assertEquals("Add a user.", example.getInstructionUtterance());
+        assertEquals(SimpleSocialNetwork.domain, example.getDomain());
+        assertTrue(example.getInitialState().entityGraphsEqual(initialState));
+        assertTrue(example.getDestinationState().entityGraphsEqual(desiredState));
+        assertTrue(!example.getInitialState().entityGraphsEqual(desiredState));
+    }
+
+    private static void createExampleDir(Path exampleDir, String utterance) throws Exception {
+        Files.createDirectories(exampleDir);
+        TextIO.writeTextToFileInStandardEncoding(exampleDir.resolve(DatasetFileTree.UTTERANCE_FILE_NAME).toFile(),
+                utterance + "\n", false);
+    }
+}
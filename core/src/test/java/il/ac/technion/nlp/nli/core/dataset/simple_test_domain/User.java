@@ -1,6 +1,7 @@
 package il.ac.technion.nlp.nli.core.dataset.simple_test_domain;
 
 import il.ac.technion.nlp.nli.core.EnableNli;
+import il.ac.technion.nlp.nli.core.method_call.InvalidNliMethodInvocation;
 import il.ac.technion.nlp.nli.core.state.NliEntity;
 
 import java.util.Collection;
@@ -37,4 +38,14 @@ public class User implements NliEntity {
     public void setAge(int age) {
         this.age = age;
     }
+
+    /**
+     * Fails after modifying the entity graph (for testing that failed invocations leave no trace).
+     */
+    @EnableNli
+    public void addFriendUnlessSelf(User u) {
+        friends.add(u);
+        if (u == this)
+            throw new InvalidNliMethodInvocation();
+    }
 }
@@ -0,0 +1,150 @@
+package il.ac.technion.nlp.nli.core.reflection;
+
+import il.ac.technion.nlp.nli.core.state.NliEntity;
+import il.ac.technion.nlp.nli.core.state.NliRootEntity;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class EntityGraphCopierTest {
+
+    public static class RootWithSortedSet implements NliRootEntity {
+        private static final long serialVersionUID = 1L;
+        public TreeSet<String> names = new TreeSet<>(Comparator.reverseOrder());
+    }
+
+    /**
+     * Its hash code depends on its field.
+     */
+    public static class NamedEntity implements NliEntity {
+        private static final long serialVersionUID = 1L;
+        public String name;
+        public HashSet<NamedEntity> friends = new HashSet<>();
+
+        @SuppressWarnings("unused")
+        private NamedEntity() {
+        }
+
+        NamedEntity(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof NamedEntity && Objects.equals(name, ((NamedEntity) o).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(name);
+        }
+    }
+
+    public static class RootWithEntitySet implements NliRootEntity {
+        private static final long serialVersionUID = 1L;
+        public HashSet<NamedEntity> entities = new HashSet<>();
+    }
+
+    public static class RootWithoutNoArgsConstructor implements NliRootEntity {
+        private static final long serialVersionUID = 1L;
+        public String name;
+
+        public RootWithoutNoArgsConstructor(String name) {
+            this.name = name;
+        }
+    }
+
+    @Test
+    public void testSortedSetComparatorIsCopied() {
+
+        RootWithSortedSet root = new RootWithSortedSet();
+        root.names.addAll(Arrays.asList("a", "c", "b"));
+        IdentityHashMap<Object, Object> originalToCopy = EntityGraphCopier.deepCopyEntityGraph(root);
+
+        assertTrue(originalToCopy != null);
+        RootWithSortedSet copy = (RootWithSortedSet) originalToCopy.get(root);
+        assertTrue(copy.names != root.names);
+        assertTrue(copy.names.comparator() == root.names.comparator());
+        assertEquals(Arrays.asList("c", "b", "a"), new ArrayList<>(copy.names));
+    }
+
+    @Test
+    public void testEntityWithoutNoArgsConstructorIsNotSupported() {
+        assertTrue(!EntityGraphCopier.isSupported(RootWithoutNoArgsConstructor.class));
+        assertTrue(EntityGraphCopier.deepCopyEntityGraph(new RootWithoutNoArgsConstructor("a")) == null);
+    }
+
+    /**
+     * The copies of the entities in a hash-based set are added to the copy of the set after their fields are set, so
+     * they're found by their hash code.
+     */
+    @Test
+    public void testHashSetOfEntitiesIsConsistent() {
+
+        RootWithEntitySet root = new RootWithEntitySet();
+        NamedEntity a = new NamedEntity("a");
+        NamedEntity b = new NamedEntity("b");
+        a.friends.add(b);
+        b.friends.add(a);
+        root.entities.addAll(Arrays.asList(a, b));
+        IdentityHashMap<Object, Object> originalToCopy = EntityGraphCopier.deepCopyEntityGraph(root);
+
+        assertTrue(originalToCopy != null);
+        RootWithEntitySet copy = (RootWithEntitySet) originalToCopy.get(root);
+        NamedEntity aCopy = (NamedEntity) originalToCopy.get(a);
+        NamedEntity bCopy = (NamedEntity) originalToCopy.get(b);
+        assertEquals(2, copy.entities.size());
+        assertTrue(copy.entities.contains(aCopy));
+        assertTrue(copy.entities.contains(bCopy));
+        assertTrue(copy.entities.remove(new NamedEntity("a")));
+        assertTrue(aCopy.friends.contains(bCopy));
+        assertTrue(bCopy.friends.contains(aCopy));
+        for (NamedEntity entity : copy.entities)
+            assertTrue(entity != a && entity != b);
+    }
+
+    /**
+     * Same as {@link #testHashSetOfEntitiesIsConsistent()}, for the copies created from a snapshot.
+     */
+    @Test
+    public void testHashSetOfEntitiesIsConsistentInCopiesOfModifiedEntities() {
+
+        RootWithEntitySet root = new RootWithEntitySet();
+        NamedEntity a = new NamedEntity("a");
+        NamedEntity b = new NamedEntity("b");
+        b.friends.add(a);
+        root.entities.addAll(Arrays.asList(a, b));
+        EntityGraphSnapshot snapshot = EntityGraphSnapshot.create(root);
+        assertTrue(snapshot != null);
+
+        a.friends.add(new NamedEntity("c"));
+        List<NliEntity> modifiedEntities = snapshot.findModifiedEntities();
+        IdentityHashMap<Object, Object> originalToCopy = snapshot.copyModifiedEntitiesAndTheirAncestors(
+                modifiedEntities);
+        snapshot.restore(modifiedEntities);
+
+        assertTrue(originalToCopy != null);
+        RootWithEntitySet copy = (RootWithEntitySet) originalToCopy.get(root);
+        NamedEntity aCopy = (NamedEntity) originalToCopy.get(a);
+        NamedEntity bCopy = (NamedEntity) originalToCopy.get(b);
+        assertTrue(copy.entities.contains(aCopy));
+        assertTrue(copy.entities.contains(bCopy));
+        assertTrue(bCopy.friends.contains(aCopy));
+        assertEquals(1, aCopy.friends.size());
+        assertTrue(a.friends.isEmpty());
+        assertTrue(root.entities.contains(a));
+    }
+}
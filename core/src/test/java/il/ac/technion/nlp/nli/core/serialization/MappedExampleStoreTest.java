@@ -0,0 +1,74 @@
+package il.ac.technion.nlp.nli.core.serialization;
+
+import il.ac.technion.nlp.nli.core.dataset.Dataset;
+import il.ac.technion.nlp.nli.core.dataset.DatasetDomains;
+import il.ac.technion.nlp.nli.core.dataset.Example;
+import il.ac.technion.nlp.nli.core.dataset.ExampleSplit;
+import il.ac.technion.nlp.nli.core.dataset.construction.ExampleCategory;
+import il.ac.technion.nlp.nli.core.dataset.construction.InstructionQueryability;
+import il.ac.technion.nlp.nli.core.dataset.simple_test_domain.SimpleSocialNetwork;
+import il.ac.technion.nlp.nli.core.dataset.simple_test_domain.User;
+import il.ac.technion.nlp.nli.core.method_call.MethodId;
+import il.ac.technion.nlp.nli.core.state.State;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedExampleStoreTest {
+
+    @Test
+    public void testRandomAccessByExampleId() throws Exception {
+
+        DatasetDomains domains = new DatasetDomains();
+        domains.addDomain(SimpleSocialNetwork.domain.getId(), SimpleSocialNetwork.class);
+        Dataset dataset = new Dataset(domains);
+        Example train = createExample("train-1", 20);
+        Example test = createExample("test-1", 30);
+        Example notInSplit = createExample("other-1", 40);
+        dataset.addExample(train);
+        dataset.addExample(test);
+        dataset.addExample(notInSplit);
+        ExampleCategory category = new ExampleCategory(new MethodId(User.class, "setAge", int.class),
+                InstructionQueryability.OTHER);
+        dataset.setExampleCategory(train, category);
+        dataset.setTrainTestSplit(new ExampleSplit(Collections.singletonList(train),
+                Collections.singletonList(test)));
+
+        Path storeFile = Files.createTempFile("MappedExampleStoreTest", ".bin");
+        MappedExampleStore.write(dataset, storeFile);
+        assertTrue(MappedExampleStore.isExampleStore(storeFile));
+        try (MappedExampleStore store = new MappedExampleStore(storeFile)) {
+            assertEquals(3, store.getExampleIds().size());
+            assertTrue(store.containsExample("other-1"));
+
+            Example readTest = store.readExample("test-1");
+            assertEquals(test.getInstructionUtterance(), readTest.getInstructionUtterance());
+            assertTrue(readTest.getDestinationState().entityGraphsEqual(test.getDestinationState()));
+            assertEquals("test-1", store.readExamples(Arrays.asList("test-1", "train-1")).get(0).getId());
+            assertEquals("train-1", store.readExample("train-1").getId());
+
+            assertEquals(ExampleSplit.SplitPart.TRAIN, store.getSplitPart("train-1"));
+            assertNull(store.getSplitPart("other-1"));
+            assertEquals(Collections.singletonList("test-1"), store.getExampleIds(ExampleSplit.SplitPart.TEST));
+            assertEquals(category, store.getExampleCategory("train-1"));
+            assertNull(store.getExampleCategory("test-1"));
+        }
+    }
+
+    private static Example createExample(String id, int age) {
+        SimpleSocialNetwork initial = new SimpleSocialNetwork();
+        initial.users.add(new User());
+        State initialState = new State(SimpleSocialNetwork.domain, initial, true);
+        State destinationState = initialState.deepCopy();
+        ((SimpleSocialNetwork) destinationState.getRootEntity()).users.get(0).age = age;
+        destinationState.updateStateFollowingEntityGraphModifications();
+        return new Example(id, "set the age to " + age, initialState, destinationState, SimpleSocialNetwork.domain);
+    }
+}
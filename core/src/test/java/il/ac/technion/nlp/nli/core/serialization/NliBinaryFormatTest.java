@@ -0,0 +1,164 @@
+package il.ac.technion.nlp.nli.core.serialization;
+
+import il.ac.technion.nlp.nli.core.dataset.Dataset;
+import il.ac.technion.nlp.nli.core.dataset.DatasetDomains;
+import il.ac.technion.nlp.nli.core.dataset.Example;
+import il.ac.technion.nlp.nli.core.dataset.ExampleSplit;
+import il.ac.technion.nlp.nli.core.dataset.construction.ExampleCategory;
+import il.ac.technion.nlp.nli.core.dataset.construction.InstructionQueryability;
+import il.ac.technion.nlp.nli.core.dataset.simple_test_domain.SimpleSocialNetwork;
+import il.ac.technion.nlp.nli.core.dataset.simple_test_domain.User;
+import il.ac.technion.nlp.nli.core.method_call.MethodCall;
+import il.ac.technion.nlp.nli.core.method_call.MethodId;
+import il.ac.technion.nlp.nli.core.method_call.NonPrimitiveArgument;
+import il.ac.technion.nlp.nli.core.method_call.PrimitiveArgument;
+import il.ac.technion.nlp.nli.core.state.NliEntity;
+import il.ac.technion.nlp.nli.core.state.State;
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NliBinaryFormatTest {
+
+    @Test
+    public void testStateRoundTrip() throws Exception {
+
+        State state = createState();
+        State read = NliBinaryFormat.fromBytes(NliBinaryFormat.toBytes(state));
+        assertTrue(state.entityGraphsEqual(read));
+        assertEquals(state.getNextIdToGive(), read.getNextIdToGive());
+        assertEquals(state.getGraphKb().toString(), read.getGraphKb().toString()); // same ids.
+
+        // sharing is preserved:
+        SimpleSocialNetwork root = (SimpleSocialNetwork) read.getRootEntity();
+        assertTrue(root.users.get(0).friends.get(0) == root.users.get(1));
+    }
+
+    @Test
+    public void testMethodCallRoundTrip() throws Exception {
+
+        MethodId methodId = new MethodId(User.class, "setAgeInTwoCollections", java.util.Collection.class, int.class,
+                java.util.Collection.class, int.class);
+        MethodCall methodCall = new MethodCall(methodId, "1", new NonPrimitiveArgument("2", "3"),
+                new PrimitiveArgument(20), new NonPrimitiveArgument("2"), new PrimitiveArgument(30));
+        List<MethodCall> methodCalls = Arrays.asList(methodCall, methodCall);
+        assertEquals(methodCalls, NliBinaryFormat.fromBytes(NliBinaryFormat.toBytes(methodCalls)));
+    }
+
+    @Test
+    public void testUnreadableCollectionsAreRejected() throws Exception {
+
+        State state = createState();
+        ((SimpleSocialNetwork) state.getRootEntity()).users.get(0).hobbies = Arrays.asList("chess", "go");
+        boolean failed = false;
+        try {
+            NliBinaryFormat.toBytes(state);
+        } catch (RuntimeException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+    }
+
+    @Test
+    public void testBinaryFormatDetection() throws Exception {
+
+        Path binaryFile = Files.createTempFile("NliBinaryFormatTest", ".bin");
+        NliBinaryFormat.writeObjectToFile(createState(), binaryFile);
+        assertTrue(NliBinaryFormat.isInBinaryFormat(binaryFile));
+        Path otherFile = Files.createTempFile("NliBinaryFormatTest", ".ser");
+        Files.write(otherFile, SerializationUtils.serialize(createState()));
+        assertTrue(!NliBinaryFormat.isInBinaryFormat(otherFile));
+    }
+
+    @Test
+    public void testDatasetRoundTrip() throws Exception {
+
+        DatasetDomains domains = new DatasetDomains();
+        domains.addDomain(SimpleSocialNetwork.domain.getId(), SimpleSocialNetwork.class);
+        Dataset dataset = new Dataset(domains);
+        State initialState = createState();
+        State destinationState = initialState.deepCopy();
+        ((SimpleSocialNetwork) destinationState.getRootEntity()).users.get(1).age = 40;
+        Example train = new Example("train-1", "make Bob 40", initialState, destinationState,
+                SimpleSocialNetwork.domain);
+        Example test = new Example("test-1", "nothing", initialState, initialState, SimpleSocialNetwork.domain);
+        dataset.addExample(train);
+        dataset.addExample(test);
+        dataset.setExampleCategory(train, new ExampleCategory(new MethodId(User.class, "setAge", int.class),
+                InstructionQueryability.OTHER));
+        dataset.setTrainTestSplit(new ExampleSplit(Collections.singletonList(train),
+                Collections.singletonList(test)));
+
+        Dataset read = NliBinaryFormat.fromBytes(NliBinaryFormat.toBytes(dataset));
+        Example readTrain = read.getExampleById("train-1");
+        assertEquals("make Bob 40", readTrain.getInstructionUtterance());
+        assertTrue(readTrain.getInitialState().entityGraphsEqual(initialState));
+        assertTrue(readTrain.getDestinationState().entityGraphsEqual(destinationState));
+        assertEquals(dataset.getExampleCategory(train), read.getExampleCategory(readTrain));
+        assertEquals(Collections.singletonList(readTrain), read.getTrainTestSplit().getTrainExamples());
+        assertEquals("test-1", read.getTrainTestSplit().getTestExamples().get(0).getId());
+    }
+
+    /**
+     * An entity of a class that is not an NLI entity class of the domain (here in a relation field of the domain).
+     */
+    public static class ForeignEntity implements NliEntity {
+        private static final long serialVersionUID = 1L;
+    }
+
+    @Test
+    public void testEntitiesOfForeignClassesAreRejected() throws Exception {
+
+        State state = createState();
+        //noinspection unchecked
+        ((List) ((SimpleSocialNetwork) state.getRootEntity()).users.get(0).friends).add(new ForeignEntity());
+        byte[] bytes = NliBinaryFormat.toBytes(state);
+        boolean failed = false;
+        try {
+            NliBinaryFormat.fromBytes(bytes);
+        } catch (RuntimeException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+    }
+
+    @Test
+    public void testTooLongVarIntsAreRejected() throws Exception {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(NliBinaryFormat.MAGIC);
+        // the version (1) as a 6 bytes varint.
+        out.write(new byte[]{(byte) 0x81, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0});
+        boolean failed = false;
+        try {
+            new NliBinaryReader(new ByteArrayInputStream(bytes.toByteArray()));
+        } catch (RuntimeException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+    }
+
+    private static State createState() {
+        User user1 = new User();
+        User user2 = new User();
+        user1.friends.add(user2);
+        user1.hobbies.add("chess");
+        user2.age = 30;
+        SimpleSocialNetwork network = new SimpleSocialNetwork();
+        network.users.add(user1);
+        network.users.add(user2);
+        return new State(SimpleSocialNetwork.domain, network, true);
+    }
+}
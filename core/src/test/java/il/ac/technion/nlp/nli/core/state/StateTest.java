@@ -1,13 +1,24 @@
 package il.ac.technion.nlp.nli.core.state;
 
 import il.ac.technion.nlp.nli.core.method_call.*;
+import il.ac.technion.nlp.nli.core.reflection.EntityGraphReflection;
+import il.ac.technion.nlp.nli.core.reflection.EntityGraphSnapshot;
+import il.ac.technion.nlp.nli.core.state.knowledgebase.GraphKb;
 import il.ac.technion.nlp.nli.core.dataset.simple_test_domain.SimpleSocialNetwork;
 import il.ac.technion.nlp.nli.core.dataset.simple_test_domain.User;
 import org.jetbrains.annotations.NotNull;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -43,6 +54,315 @@ public class StateTest {
         State state3_copy = methodCall.invokeOnDeepCopyOfState(state1);
         assertExpectedEqualityOfTwoStates(state3,state3_copy, true); // just a sanity check.
         assertExpectedEqualityOfTwoStates(state1,state3, false);
+
+        // an argument not matching the parameter type is a bug, not a failure of the invoked method.
+        methodCall = new MethodCall(new MethodId(User.class, "addFriend", User.class), state1.getEntityId(user1),
+                new NonPrimitiveArgument(state1.getEntityId(state1.getRootEntity())));
+        boolean exceptionThrown = false;
+        try {
+            methodCall.invokeOnDeepCopyOfState(state1);
+        } catch (IllegalArgumentException e) {
+            exceptionThrown = true;
+        }
+        assertTrue(exceptionThrown);
+    }
+
+    @Test
+    public void testDeepCopy() throws Exception {
+
+        User user1 = new User();
+        User user2 = new User();
+        user1.friends.add(user2);
+        user1.hobbies.add("chess");
+        State state = new State(SimpleSocialNetwork.domain, createSimpleSocialNetwork(user1, user2), true);
+
+        State copy = state.deepCopy();
+        assertExpectedEqualityOfTwoStates(state, copy, true);
+
+        SimpleSocialNetwork copiedRoot = (SimpleSocialNetwork) copy.getRootEntity();
+        User copiedUser1 = copiedRoot.users.get(0);
+        User copiedUser2 = copiedRoot.users.get(1);
+        assertTrue(copiedUser1 != user1 && copiedUser2 != user2);
+        // an entity referred to from multiple places is copied once.
+        assertTrue(copiedUser1.friends.get(0) == copiedUser2);
+        // ids are kept.
+        assertEquals(state.getEntityId(user1), copy.getEntityId(copiedUser1));
+        assertEquals(state.getEntityId(user2), copy.getEntityId(copiedUser2));
+        assertTrue(copy.getEntityById(state.getEntityId(user2)) == copiedUser2);
+
+        // modifying the copy does not affect the original.
+        copiedUser1.hobbies.add("go");
+        assertExpectedEqualityOfTwoStates(state, copy, false);
+    }
+
+    @Test
+    public void testCopyOnWriteInvocation() throws Exception {
+
+        User user1 = new User();
+        User user2 = new User();
+        User user3 = new User();
+        State state = new State(SimpleSocialNetwork.domain, createSimpleSocialNetwork(user1, user2, user3), true);
+        State originalStateCopy = state.deepCopy();
+
+        MethodCall methodCall = new MethodCall(new MethodId(User.class, "addFriend", User.class),
+                state.getEntityId(user1), new NonPrimitiveArgument(state.getEntityId(user2)));
+        State result = methodCall.invokeOnCopyOnWriteViewOfState(state);
+        assertExpectedEqualityOfTwoStates(result, methodCall.invokeOnDeepCopyOfState(state), true);
+        // the initial state was restored.
+        assertExpectedEqualityOfTwoStates(state, originalStateCopy, true);
+        assertTrue(user1.friends.isEmpty());
+
+        SimpleSocialNetwork resultRoot = (SimpleSocialNetwork) result.getRootEntity();
+        assertTrue(resultRoot != state.getRootEntity());
+        assertTrue(resultRoot.users.get(0) != user1);
+        // entities not modified are shared.
+        assertTrue(resultRoot.users.get(1) == user2);
+        assertTrue(resultRoot.users.get(2) == user3);
+        assertTrue(resultRoot.users.get(0).friends.get(0) == user2);
+        assertEquals(state.getEntityId(user1), result.getEntityId(resultRoot.users.get(0)));
+
+        // the states sharing entities may not be modified, but a deep copy may be.
+        assertTrue(state.sharesEntitiesWithOtherStates() && result.sharesEntitiesWithOtherStates());
+        boolean failed = false;
+        try {
+            result.updateStateFollowingEntityGraphModifications();
+        } catch (RuntimeException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+        State ownedResult = result.deepCopy();
+        assertTrue(!ownedResult.sharesEntitiesWithOtherStates() && !ownedResult.isEntityGraphUnmodifiable());
+        ownedResult.updateStateFollowingEntityGraphModifications();
+    }
+
+    @Test
+    public void testIncrementalUpdateOfSuccessorState() throws Exception {
+
+        User user1 = new User();
+        User user2 = new User();
+        User user3 = new User();
+        SimpleSocialNetwork root = createSimpleSocialNetwork(user1, user2);
+        user2.friends.add(user3);
+        State state = new State(SimpleSocialNetwork.domain, root, true);
+        int initialTriplesNum = state.getGraphKb().getTriples().size();
+        EntityGraphSnapshot snapshot = state.getEntityGraphSnapshot();
+
+        // user2 & user3 become unreachable, and a new user becomes reachable.
+        root.users.remove(user2);
+        User newUser = new User();
+        user1.friends.add(newUser);
+        List<NliEntity> modifiedEntities = snapshot.findModifiedEntities();
+        IdentityHashMap<Object, Object> originalToCopy = snapshot.copyModifiedEntitiesAndTheirAncestors(
+                modifiedEntities);
+        snapshot.restore(modifiedEntities);
+        State successor = state.createSuccessorSharingUnmodifiedEntities(modifiedEntities, originalToCopy);
+
+        State expected = successor.deepCopy();
+        expected.updateStateFollowingEntityGraphModifications();
+        assertEquals(expected.getGraphKb().getTriples(), successor.getGraphKb().getTriples());
+        assertEquals(state.getEntityId(user1), successor.getEntityId((NliEntity) originalToCopy.get(user1)));
+        assertTrue(successor.getEntityById(state.getEntityId(user3)) == null);
+        assertEquals(initialTriplesNum, state.getGraphKb().getTriples().size());
+    }
+
+    /**
+     * Once the graph KB of a modifiable state is generated, updating the state after modifying its entity graph in
+     * place updates the ids and the graph KB incrementally (the graph KB is the same object), with the same result as
+     * a full update.
+     */
+    @Test
+    public void testIncrementalUpdateOfModifiedState() throws Exception {
+
+        User user1 = new User();
+        User user2 = new User();
+        User user3 = new User();
+        SimpleSocialNetwork root = createSimpleSocialNetwork(user1, user2);
+        user2.friends.add(user3);
+        State state = new State(SimpleSocialNetwork.domain, root, true);
+        GraphKb graphKb = state.getGraphKb();
+        String user1Id = state.getEntityId(user1);
+
+        // user2 & user3 become unreachable, a new user becomes reachable, and a primitive value is modified.
+        root.users.remove(user2);
+        User newUser = new User();
+        newUser.friends.add(user1);
+        user1.friends.add(newUser);
+        user1.age = 30;
+        state.updateStateFollowingEntityGraphModifications();
+        assertTrue(state.getGraphKb() == graphKb);
+        assertUpdatedAsByFullUpdate(state);
+        assertEquals(user1Id, state.getEntityId(user1));
+        assertTrue(state.getEntityIdOrNull(user2) == null && state.getEntityIdOrNull(user3) == null);
+        String newUserId = state.getEntityId(newUser);
+
+        // the snapshot was updated too, so modifications of the new entity are found.
+        newUser.friends.add(user2);
+        newUser.hobbies.add("chess");
+        state.updateStateFollowingEntityGraphModifications();
+        assertTrue(state.getGraphKb() == graphKb);
+        assertUpdatedAsByFullUpdate(state);
+        assertEquals(newUserId, state.getEntityId(newUser));
+        assertTrue(state.getEntityIdOrNull(user2) != null && state.getEntityIdOrNull(user3) != null);
+
+        // a removed entity that refers to reachable entities.
+        user1.friends.clear();
+        root.users.add(user3);
+        state.updateStateFollowingEntityGraphModifications();
+        assertUpdatedAsByFullUpdate(state);
+        assertTrue(state.getEntityIdOrNull(newUser) == null && state.getEntityIdOrNull(user2) == null);
+        assertTrue(graphKb.getTriples().stream().anyMatch(triple -> triple.firstEntity == user3));
+    }
+
+    /**
+     * Checks that the ids and graph KB of 'state' are the ones a full update gives (for the current ids).
+     */
+    private void assertUpdatedAsByFullUpdate(State state) {
+        List<NliEntity> reachable = EntityGraphReflection.getNonPrimitiveEntitiesReachableFromRoot(
+                state.getRootEntity(), true, false);
+        for (NliEntity entity : reachable)
+            assertTrue(state.getEntityIdOrNull(entity) != null);
+        State expected = state.deepCopy();
+        expected.updateStateFollowingEntityGraphModifications();
+        assertEquals(expected.getGraphKb().getTriples(), state.getGraphKb().getTriples());
+    }
+
+    @Test
+    public void testEntityGraphFingerprint() throws Exception {
+
+        User user1 = new User();
+        User user2 = new User();
+        State state = new State(SimpleSocialNetwork.domain, createSimpleSocialNetwork(user1, user2), true);
+        State copy = state.deepCopy();
+        State equalState = new State(SimpleSocialNetwork.domain, createSimpleSocialNetwork(new User(), new User()),
+                true);
+        assertEquals(state.getEntityGraphFingerprint(), copy.getEntityGraphFingerprint());
+        assertEquals(state.getEntityGraphFingerprint(), equalState.getEntityGraphFingerprint());
+
+        MethodCall methodCall = new MethodCall(new MethodId(User.class, "addFriend", User.class),
+                state.getEntityId(user1), new NonPrimitiveArgument(state.getEntityId(user2)));
+        State result = methodCall.invokeOnDeepCopyOfState(state);
+        assertNotEquals(state.getEntityGraphFingerprint(), result.getEntityGraphFingerprint());
+        assertEquals(result.getEntityGraphFingerprint(),
+                methodCall.invokeOnCopyOnWriteViewOfState(copy).getEntityGraphFingerprint());
+
+        // the fingerprint of a modifiable state isn't cached, so it isn't stale after modifying its graph without
+        // updating the state.
+        State modified = state.deepCopy();
+        assertEquals(state.getEntityGraphFingerprint(), modified.getEntityGraphFingerprint());
+        SimpleSocialNetwork modifiedRoot = (SimpleSocialNetwork) modified.getRootEntity();
+        modifiedRoot.users.get(0).addFriend(modifiedRoot.users.get(1));
+        assertEquals(result.getEntityGraphFingerprint(), modified.getEntityGraphFingerprint());
+        assertExpectedEqualityOfTwoStates(modified, result, true);
+        assertExpectedEqualityOfTwoStates(modified, state, false);
+        modified.markEntityGraphAsUnmodifiable();
+        result.markEntityGraphAsUnmodifiable();
+        assertExpectedEqualityOfTwoStates(modified, result, true);
+    }
+
+    /**
+     * The fingerprints of unmodifiable states are compared before walking their entity graphs. This is observed by
+     * breaking the contract of {@link State#markEntityGraphAsUnmodifiable()}: after the fingerprints are cached, the
+     * graphs are made equal, but the states are still considered different.
+     */
+    @Test
+    public void testEntityGraphsEqualComparesFingerprintsOfUnmodifiableStates() throws Exception {
+
+        User user1 = new User();
+        User user2 = new User();
+        State state = new State(SimpleSocialNetwork.domain, createSimpleSocialNetwork(user1, user2), true);
+        MethodCall methodCall = new MethodCall(new MethodId(User.class, "addFriend", User.class),
+                state.getEntityId(user1), new NonPrimitiveArgument(state.getEntityId(user2)));
+        State result = methodCall.invokeOnDeepCopyOfState(state);
+        state.markEntityGraphAsUnmodifiable();
+        result.markEntityGraphAsUnmodifiable();
+        assertExpectedEqualityOfTwoStates(state, result, false); // caches the fingerprints.
+
+        ((SimpleSocialNetwork) result.getRootEntity()).users.get(0).friends.clear();
+        assertTrue(EntityGraphReflection.entityGraphEquals(state.getRootEntity(), result.getRootEntity()));
+        assertExpectedEqualityOfTwoStates(state, result, false);
+
+        // a modifiable state's fingerprint isn't cached, so the graphs are walked.
+        State copy = state.deepCopy();
+        assertExpectedEqualityOfTwoStates(copy, result, true);
+    }
+
+    @Test
+    public void testInPlaceInvocationWithRollBack() throws Exception {
+
+        User user1 = new User();
+        User user2 = new User();
+        State state = new State(SimpleSocialNetwork.domain, createSimpleSocialNetwork(user1, user2), true);
+        State originalStateCopy = state.deepCopy();
+        MethodId methodId = new MethodId(User.class, "addFriendUnlessSelf", User.class);
+
+        MethodCall methodCall = new MethodCall(methodId, state.getEntityId(user1),
+                new NonPrimitiveArgument(state.getEntityId(user2)));
+        State expected = methodCall.invokeOnDeepCopyOfState(state);
+        assertEquals(true, methodCall.invokeInPlaceAndRollBack(state, expected::entityGraphEqualsGraphOf));
+        assertEquals(false, methodCall.invokeInPlaceAndRollBack(state, originalStateCopy::entityGraphEqualsGraphOf));
+        assertExpectedEqualityOfTwoStates(state, originalStateCopy, true);
+        assertTrue(user1.friends.isEmpty());
+
+        // a failed invocation (after modifying the entity graph).
+        methodCall = new MethodCall(methodId, state.getEntityId(user1),
+                new NonPrimitiveArgument(state.getEntityId(user1)));
+        assertEquals(null, methodCall.invokeInPlaceAndRollBack(state, root -> true));
+        assertExpectedEqualityOfTwoStates(state, originalStateCopy, true);
+        assertTrue(user1.friends.isEmpty());
+
+        // not allowed on a state sharing entities with a copy-on-write view.
+        methodCall = new MethodCall(methodId, state.getEntityId(user1),
+                new NonPrimitiveArgument(state.getEntityId(user2)));
+        methodCall.invokeOnCopyOnWriteViewOfState(state);
+        boolean failed = false;
+        try {
+            methodCall.invokeInPlaceAndRollBack(state, expected::entityGraphEqualsGraphOf);
+        } catch (RuntimeException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+    }
+
+    @Test
+    public void testConcurrentInvocationsOnSameState() throws Exception {
+
+        User user1 = new User();
+        User user2 = new User();
+        State state = new State(SimpleSocialNetwork.domain, createSimpleSocialNetwork(user1, user2), true);
+        State originalStateCopy = state.deepCopy();
+        MethodId methodId = new MethodId(User.class, "addFriendUnlessSelf", User.class);
+        MethodCall successfulCall = new MethodCall(methodId, state.getEntityId(user1),
+                new NonPrimitiveArgument(state.getEntityId(user2)));
+        MethodCall failingCall = new MethodCall(methodId, state.getEntityId(user1),
+                new NonPrimitiveArgument(state.getEntityId(user1)));
+        State expected = successfulCall.invokeOnDeepCopyOfState(state);
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            // (copy-on-write views are not included, as they may not be used with in-place invocations)
+            for (int i=0; i<150; i++) {
+                switch (i % 3) {
+                    case 0:
+                        futures.add(pool.submit(() -> expected.entityGraphsEqual(
+                                successfulCall.invokeOnDeepCopyOfState(state))));
+                        break;
+                    case 1:
+                        futures.add(pool.submit(() -> successfulCall.invokeInPlaceAndRollBack(state,
+                                expected::entityGraphEqualsGraphOf)));
+                        break;
+                    default:
+                        futures.add(pool.submit(() -> failingCall.invokeInPlaceAndRollBack(state, root -> true)
+                                == null));
+                }
+            }
+            for (Future<Boolean> future : futures)
+                assertTrue(future.get());
+        } finally {
+            pool.shutdown();
+        }
+        assertExpectedEqualityOfTwoStates(state, originalStateCopy, true);
+        assertTrue(user1.friends.isEmpty());
     }
 
     private void assertExpectedEqualityOfTwoStates(State s1, State s2, boolean identical) {
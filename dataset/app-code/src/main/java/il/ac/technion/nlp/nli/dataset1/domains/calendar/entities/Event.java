@@ -25,6 +25,12 @@ public class Event implements NliEntity {
     public List<String> attendees = new LinkedList<>();
 
 
+	/**
+	 * Used by {@link il.ac.technion.nlp.nli.core.reflection.EntityGraphCopier}.
+	 */
+	private Event() {
+	}
+
 	public Event(String title, ZonedDateTime startTime, @Nullable String location, Color color,
                  List<String> attendees) {
 		this.title = title;
@@ -12,6 +12,12 @@ public class ShippingContainer implements NliEntity {
     public int length;
     public ContentState contentState;
 
+    /**
+     * Used by {@link il.ac.technion.nlp.nli.core.reflection.EntityGraphCopier}.
+     */
+    private ShippingContainer() {
+    }
+
     public ShippingContainer(int length, ContentState contentState) {
         this.length = length;
         this.contentState = contentState;
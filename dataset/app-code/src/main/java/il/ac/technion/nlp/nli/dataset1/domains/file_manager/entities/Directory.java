@@ -15,6 +15,12 @@ public class Directory  implements NliEntity {
     public List<File> childFiles;
     public List<Directory> childDirectories;
 
+    /**
+     * Used by {@link il.ac.technion.nlp.nli.core.reflection.EntityGraphCopier}.
+     */
+    private Directory() {
+    }
+
     public Directory(String name, List<File> childFiles, List<Directory> childDirectories) {
         this.name = name;
         this.childFiles = childFiles;
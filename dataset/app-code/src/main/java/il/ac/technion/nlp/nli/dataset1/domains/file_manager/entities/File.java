@@ -16,6 +16,12 @@ public class File implements NliEntity, Comparable {
     public String type;
     public int sizeInBytes;
 
+    /**
+     * Used by {@link il.ac.technion.nlp.nli.core.reflection.EntityGraphCopier}.
+     */
+    private File() {
+    }
+
     public File(String name, String type, int sizeInBytes) {
         this.name = name;
         this.type = type;
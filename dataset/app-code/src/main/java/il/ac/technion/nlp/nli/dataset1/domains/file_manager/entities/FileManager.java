@@ -18,6 +18,12 @@ public class FileManager implements NliRootEntity {
 
     public Directory cwd;
 
+    /**
+     * Used by {@link il.ac.technion.nlp.nli.core.reflection.EntityGraphCopier}.
+     */
+    private FileManager() {
+    }
+
     public FileManager(List<File> allFiles, List<Directory> allDirectories, Directory cwd) {
         this.allFiles = allFiles;
         this.allDirectories = allDirectories;
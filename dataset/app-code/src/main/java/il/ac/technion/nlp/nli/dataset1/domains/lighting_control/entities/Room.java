@@ -24,6 +24,12 @@ public class Room implements NliEntity {
     }
 
 
+    /**
+     * Used by {@link il.ac.technion.nlp.nli.core.reflection.EntityGraphCopier}.
+     */
+    private Room() {
+    }
+
     public Room(@NotNull String roomName, @NotNull LightMode lightMode, int floor) {
         this.roomName = roomName;
         this.lightMode = lightMode;
@@ -17,6 +17,12 @@ public class ListElement implements NliEntity {
      */
     public int value;
 
+    /**
+     * Used by {@link il.ac.technion.nlp.nli.core.reflection.EntityGraphCopier}.
+     */
+    private ListElement() {
+    }
+
     public ListElement(int value) {
         this.value = value;
     }
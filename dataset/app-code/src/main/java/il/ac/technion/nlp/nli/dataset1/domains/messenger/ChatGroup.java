@@ -19,6 +19,12 @@ public class ChatGroup implements NliEntity {
      */
     public int participantsNumber;
 
+    /**
+     * Used by {@link il.ac.technion.nlp.nli.core.reflection.EntityGraphCopier}.
+     */
+    private ChatGroup() {
+    }
+
     public ChatGroup(List<User> contacts, boolean muted, int participantsNumber) {
         this.contacts = contacts;
         this.muted = muted;
@@ -14,6 +14,12 @@ public class User implements NliEntity, Comparable{
 
     // more fields not relevant to our dataset can follow...
 
+    /**
+     * Used by {@link il.ac.technion.nlp.nli.core.reflection.EntityGraphCopier}.
+     */
+    private User() {
+    }
+
     public User(String firstName) {
         this.firstName = firstName;
     }
@@ -14,6 +14,12 @@ public class Employee implements NliEntity {
     public @Nullable Employee manager;
     public int salary;
 
+    /**
+     * Used by {@link il.ac.technion.nlp.nli.core.reflection.EntityGraphCopier}.
+     */
+    private Employee() {
+    }
+
     public Employee(String name, Position position, @Nullable Employee manager, int salary) {
         this.name = name;
         this.position = position;
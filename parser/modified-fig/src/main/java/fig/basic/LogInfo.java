@@ -1,3 +1,4 @@
+//NOTICE: this file was modified by Ofer Givoli (i.e. it's not identical to the matching file in the original fig package).
 package fig.basic;
 
 import java.io.*;
@@ -14,7 +15,11 @@ public class LogInfo {
   // Either in main mode.
   // List of LogInfos, one for each thread.
   private static ThreadLogInfo mainInfo;
-  private static List<ThreadLogInfo> threadInfos = null;
+  private static volatile List<ThreadLogInfo> threadInfos = null; // Modified (volatile). --Ofer Givoli
+  // The number of begin_threads() and begin_thread() calls not matched yet. Thread mode may be entered by several
+  // threads at once (e.g. ones running experiments concurrently, each parsing examples in parallel), and it's left
+  // when this drops to 0. Guarded by the class lock. Added. --Ofer Givoli
+  private static int threadModeDepth = 0;
 
   // Wrapped versions of the usual stdin/stdout/stderr.
   public static BufferedReader stdin;
@@ -35,6 +40,7 @@ public class LogInfo {
       mainInfo = new ThreadLogInfo(out, fileOut);
 
     // Not in thread mode
+    List<ThreadLogInfo> threadInfos = LogInfo.threadInfos; // Modified (thread mode may be left meanwhile). --Ofer Givoli
     if (threadInfos == null) return mainInfo;
 
     Thread currentThread = Thread.currentThread();
@@ -53,19 +59,65 @@ public class LogInfo {
   // indenting several times, and we want to restore the indent level.
   public static int getIndLevel() { return getInfo().getIndLevel(); }
 
-  public static void begin_threads() {
-    if (threadInfos != null) throw new RuntimeException("Already in thread mode");
-    mainInfo.flush();
+  // Modified: may be nested (see threadModeDepth). --Ofer Givoli
+  public static synchronized void begin_threads() {
+    if (threadModeDepth++ > 0) return;
+    getInfo().flush();
     threadInfos = new ArrayList<ThreadLogInfo>();
   }
 
-  public static void end_threads() {
-    if (threadInfos == null) throw new RuntimeException("Not in thread mode");
-    for (ThreadLogInfo info : threadInfos)
-      info.flush();
+  // Modified: may be nested (see threadModeDepth). --Ofer Givoli
+  public static synchronized void end_threads() {
+    if (threadModeDepth == 0) throw new RuntimeException("Not in thread mode");
+    if (--threadModeDepth > 0) return;
+    synchronized (threadInfos) {
+      for (ThreadLogInfo info : threadInfos)
+        info.flush();
+    }
     threadInfos = null;
   }
 
+  // Added. --Ofer Givoli
+  // Enters thread mode and gives the current thread its own output until the matching end_thread(). Unlike the output
+  // a thread gets by default in thread mode, it's not buffered (lines are printed as they are logged, which suits a
+  // long-running thread, e.g. one running an experiment concurrently with others), and it's discarded altogether in
+  // case |silent| is true.
+  public static synchronized void begin_thread(boolean silent) {
+    begin_threads(); // so |mainInfo| exists.
+    synchronized (threadInfos) {
+      ThreadLogInfo previous = removeInfoOfCurrentThread();
+      ThreadLogInfo info = new ThreadLogInfo(previous != null ? previous : mainInfo, silent);
+      info.previous = previous;
+      threadInfos.add(info);
+    }
+  }
+
+  // Added. --Ofer Givoli
+  public static synchronized void end_thread() {
+    if (threadModeDepth == 0) throw new RuntimeException("Not in thread mode");
+    synchronized (threadInfos) {
+      ThreadLogInfo info = removeInfoOfCurrentThread();
+      if (info == null || !info.isOwn())
+        throw new RuntimeException("end_thread() without a matching begin_thread()");
+      info.flush();
+      if (info.previous != null)
+        threadInfos.add(info.previous);
+    }
+    end_threads();
+  }
+
+  // In thread mode, with the lock of |threadInfos|. Added. --Ofer Givoli
+  private static ThreadLogInfo removeInfoOfCurrentThread() {
+    for (Iterator<ThreadLogInfo> it = threadInfos.iterator(); it.hasNext(); ) {
+      ThreadLogInfo info = it.next();
+      if (info.getThread() == Thread.currentThread()) {
+        it.remove();
+        return info;
+      }
+    }
+    return null;
+  }
+
   public static void flush() {
     if (threadInfos != null) {
       for (ThreadLogInfo info : threadInfos)
@@ -164,6 +216,9 @@ public class LogInfo {
 class ThreadLogInfo {
   // Private state.
   private PrintWriter out, fileOut;  // Where to output stuff
+  private boolean own;            // Whether created by LogInfo.begin_thread(). Added. --Ofer Givoli
+  private boolean silent;         // Whether nothing is printed (see LogInfo.begin_thread()). Added. --Ofer Givoli
+  ThreadLogInfo previous;         // The info the thread had before LogInfo.begin_thread(). Added. --Ofer Givoli
   private boolean buffered;       // Whether we buffer everything that's printed, and only displaying it when flush() is called.
   private int indLevel;           // Current indent level.
   private int stoppedIndLevel;    // At what level did we stop printing
@@ -194,6 +249,20 @@ class ThreadLogInfo {
     initBasic();
   }
 
+  // Added. --Ofer Givoli
+  // An unbuffered output for the current thread (see LogInfo.begin_thread()), starting at the indent level of |info|.
+  public ThreadLogInfo(ThreadLogInfo info, boolean silent) {
+    this.out = silent ? null : info.out;
+    this.fileOut = silent ? null : info.fileOut;
+    this.own = true;
+    this.silent = silent;
+    this.buffered = false;
+    this.indLevel = info.indLevel;
+    this.stoppedIndLevel = info.stoppedIndLevel;
+    this.flushLevel = -1;
+    initBasic();
+  }
+
   private void initBasic() {
     this.thread = Thread.currentThread();
     this.buf = new StringBuilder();
@@ -206,7 +275,9 @@ class ThreadLogInfo {
 
   public int getIndLevel() { return indLevel; }
 
-  public void setFileOut(PrintWriter newFileOut) { this.fileOut = newFileOut; }
+  public void setFileOut(PrintWriter newFileOut) { if (!silent) this.fileOut = newFileOut; } // Modified. --Ofer Givoli
+
+  public boolean isOwn() { return own; } // Added. --Ofer Givoli
 
   public void begin_track(String format, Object... args) {
     begin_track_general(String.format(format, args), false, false);
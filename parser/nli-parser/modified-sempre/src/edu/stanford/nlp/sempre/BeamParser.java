@@ -1,3 +1,4 @@
+//NOTICE: this file was modified by Ofer Givoli (i.e. it's not identical to the matching file in the original Sempre package).
 package edu.stanford.nlp.sempre;
 
 import com.google.common.base.Joiner;
@@ -5,6 +6,7 @@ import com.google.common.collect.ImmutableList;
 
 import fig.basic.*;
 import fig.exec.Execution;
+import il.ac.technion.nlp.nli.parser.general.IndexedSparseVector; // Added. --Ofer Givoli
 
 import java.util.*;
 
@@ -112,7 +114,7 @@ class BeamParserState extends ChartParserState {
       // Compute gradient with respect to the predicted derivations
       ensureExecuted();
       if (computeExpectedCounts) {
-        expectedCounts = new HashMap<>();
+        expectedCounts = new IndexedSparseVector(); // Modified. --Ofer Givoli
         ParserState.computeExpectedCounts(predDerivations, expectedCounts);
       }
     }
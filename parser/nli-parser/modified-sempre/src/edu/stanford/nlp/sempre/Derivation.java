@@ -4,6 +4,7 @@ package edu.stanford.nlp.sempre;
 import edu.stanford.nlp.sempre.tables.features.PredicateInfo;
 import fig.basic.*;
 import il.ac.technion.nlp.nli.parser.features.phrase_predicate.PhrasePredicateAlignments;
+import il.ac.technion.nlp.nli.parser.general.IndexedSparseVector;
 
 import java.util.*;
 
@@ -89,6 +90,9 @@ public class Derivation implements SemanticFn.Callable, HasScore {
 
   // Number in [0, 1] denoting how correct the value is.
   public double compatibility = Double.NaN;
+  // Milliseconds it took to execute |formula| and compute |compatibility| in ParserState.ensureExecuted() (-1 if not
+  // measured). Added. --Ofer Givoli
+  public long executionTime = -1;
   // Probability (normalized exp of score).
   public double prob = Double.NaN;
 
@@ -276,6 +280,15 @@ public class Derivation implements SemanticFn.Callable, HasScore {
     executorStats = response.stats;
   }
 
+  // Like ensureExecuted(), but may be called concurrently for different derivations (the global StopWatchSet is not
+  // used). Added. --Ofer Givoli
+  public void ensureExecutedConcurrently(Executor executor, ContextValue context) {
+    if (isExecuted()) return;
+    Executor.Response response = executor.execute(formula, context);
+    value = response.value;
+    executorStats = response.stats;
+  }
+
   public LispTree toLispTree() {
     LispTree tree = LispTree.proto.newList();
     tree.addChild("derivation");
@@ -355,6 +368,12 @@ public class Derivation implements SemanticFn.Callable, HasScore {
     for (Derivation child : children)
       child.incrementAllFeatureVector(factor, map, updateFeatureMatcher);
   }
+  // Added. --Ofer Givoli
+  public void incrementAllFeatureVector(double factor, IndexedSparseVector vector) {
+    localFeatureVector.increment(factor, vector);
+    for (Derivation child : children)
+      child.incrementAllFeatureVector(factor, vector);
+  }
   public void incrementAllFeatureVector(double factor, FeatureVector fv) {
     localFeatureVector.add(factor, fv);
     for (Derivation child : children)
@@ -174,7 +174,15 @@ public class Example {
   }
 
   public void preprocess() {
-    this.languageInfo = LanguageAnalyzer.getSingleton().analyze(this.utterance);
+    preprocess(LanguageAnalyzer.getSingleton().analyze(this.utterance)); // Modified. --Ofer Givoli
+  }
+
+  // Added. --Ofer Givoli
+  /**
+   * Same as {@link #preprocess()}, but with the given (already computed) analysis of |utterance|.
+   */
+  public void preprocess(LanguageInfo languageInfo) {
+    this.languageInfo = languageInfo;
     this.targetValue = TargetValuePreprocessor.getSingleton().preprocess(this.targetValue);
   }
 
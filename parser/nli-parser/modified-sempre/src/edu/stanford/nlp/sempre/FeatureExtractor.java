@@ -3,6 +3,7 @@ package edu.stanford.nlp.sempre;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Sets;
 import fig.basic.*;
+import il.ac.technion.nlp.nli.parser.general.LanguageAnalysisCache;
 
 import java.util.*;
 
@@ -271,7 +272,7 @@ public class FeatureExtractor {
   private void extractBigramFeatures(Example ex, Derivation deriv) {
     if (!containsDomain("bigram")) return;
     if (!deriv.cat.equals(Rule.rootCat)) return;
-    LanguageInfo derivInfo = LanguageAnalyzer.getSingleton().analyze(deriv.canonicalUtterance);
+    LanguageInfo derivInfo = LanguageAnalysisCache.getInstance().analyze(deriv.canonicalUtterance); // Modified (cached). --Ofer Givoli
     List<String> derivLemmas = derivInfo.lemmaTokens;
     List<String> exLemmas = ex.languageInfo.lemmaTokens;
     Map<Integer, Integer> bigramCounts = new HashMap<Integer, Integer>();
@@ -7,6 +7,8 @@ import com.google.common.base.Verify;
 import ofergivoli.olib.data_structures.set.SafeSet;
 import fig.basic.*;
 import il.ac.technion.nlp.nli.parser.experiment.ExperimentRunner;
+import il.ac.technion.nlp.nli.parser.general.FeatureIndex;
+import il.ac.technion.nlp.nli.parser.general.IndexedSparseVector;
 
 import java.util.*;
 
@@ -29,10 +31,16 @@ public class FeatureVector {
   }
   public static Options opts = new Options();
 
+  // Modified: features are represented by their index in |featureIndex|, and only the first |indicatorFeaturesNum|
+  // (|generalFeaturesNum|) elements of the arrays are used. --Ofer Givoli
+  private static final FeatureIndex featureIndex = FeatureIndex.getInstance(); // Added. --Ofer Givoli
   // These features map to the value 1 (most common case in NLP).
-  private ArrayList<String> indicatorFeatures;
+  private int[] indicatorFeatures;
+  private int indicatorFeaturesNum;
   // General features
-  private ArrayList<Pair<String, Double>> generalFeatures;
+  private int[] generalFeatures;
+  private double[] generalFeatureValues;
+  private int generalFeaturesNum;
   // A dense array of features to save memory
   private double[] denseFeatures;
   private static final String DENSE_NAME = "Dns";
@@ -44,30 +52,53 @@ public class FeatureVector {
     Arrays.fill(denseFeatures, 0d);
   }
 
-  private static String toFeature(String domain, String name) { return domain + " :: " + name; }
+  private static String toFeature(String domain, String name) { return FeatureIndex.toFeature(domain, name); }
 
+  // Modified: the feature name is concatenated only when needed. --Ofer Givoli
   public void add(String domain, String name) {
-    add(toFeature(domain, name));
+    if (isFeatureExtractionRestricted() && !canFeatureBeAdded(toFeature(domain, name)))
+      return;
+    addIndicator(featureIndex.getOrCreateIndex(domain, name));
   }
   private void add(String feature) {
     if (!canFeatureBeAdded(feature)) // Added this block. --Ofer Givoli
       return;
-    if (ExperimentRunner.isExperimentCurrentlyRunning()) // add this if-block. --Ofer Givoli
-      feature = ExperimentRunner.getCurrentExperiment().featureNameStorageOfCurrentInference.getReferenceToStoredFeatureName(feature);
-    if (indicatorFeatures == null) indicatorFeatures = new ArrayList<>();
-    indicatorFeatures.add(feature);
+    addIndicator(featureIndex.getOrCreateIndex(feature));
+  }
+  // Added. --Ofer Givoli
+  // |feature| may be -1 (see FeatureIndex#getOrCreateIndex(String)), in which case nothing is added.
+  private void addIndicator(int feature) {
+    if (feature < 0) return;
+    if (indicatorFeatures == null) indicatorFeatures = new int[4];
+    else if (indicatorFeaturesNum == indicatorFeatures.length)
+      indicatorFeatures = Arrays.copyOf(indicatorFeatures, 2 * indicatorFeaturesNum);
+    indicatorFeatures[indicatorFeaturesNum++] = feature;
   }
 
+  // Modified: the feature name is concatenated only when needed. --Ofer Givoli
   public void add(String domain, String name, double value) {
-    add(toFeature(domain, name), value);
+    if (isFeatureExtractionRestricted() && !canFeatureBeAdded(toFeature(domain, name)))
+      return;
+    addGeneral(featureIndex.getOrCreateIndex(domain, name), value);
   }
   private void add(String feature, double value) {
     if (!canFeatureBeAdded(feature))  // Added this block. --Ofer Givoli
       return;
-    if (ExperimentRunner.isExperimentCurrentlyRunning()) // add this if-block. --Ofer Givoli
-      feature = ExperimentRunner.getCurrentExperiment().featureNameStorageOfCurrentInference.getReferenceToStoredFeatureName(feature);
-    if (generalFeatures == null) generalFeatures = new ArrayList<>();
-    generalFeatures.add(Pair.newPair(feature, value));
+    addGeneral(featureIndex.getOrCreateIndex(feature), value);
+  }
+  // Added. --Ofer Givoli
+  // |feature| may be -1 (see FeatureIndex#getOrCreateIndex(String)), in which case nothing is added.
+  private void addGeneral(int feature, double value) {
+    if (feature < 0) return;
+    if (generalFeatures == null) {
+      generalFeatures = new int[4];
+      generalFeatureValues = new double[4];
+    } else if (generalFeaturesNum == generalFeatures.length) {
+      generalFeatures = Arrays.copyOf(generalFeatures, 2 * generalFeaturesNum);
+      generalFeatureValues = Arrays.copyOf(generalFeatureValues, 2 * generalFeaturesNum);
+    }
+    generalFeatures[generalFeaturesNum] = feature;
+    generalFeatureValues[generalFeaturesNum++] = value;
   }
 
   public void addWithBias(String domain, String name, double value) {
@@ -114,19 +145,20 @@ public class FeatureVector {
   public void add(double scale, FeatureVector that) { add(scale, that, AllFeatureMatcher.matcher); }
   public void add(FeatureVector that, FeatureMatcher matcher) { add(1, that, matcher); }
   public void add(double scale, FeatureVector that, FeatureMatcher matcher) {
-    if (that.indicatorFeatures != null) {
-      for (String f : that.indicatorFeatures)
-        if (matcher.matches(f)) {
-          if (scale == 1)
-            add(f);
-          else
-            add(f, scale);
-        }
+    // Modified (features are indices). --Ofer Givoli
+    for (int i = 0; i < that.indicatorFeaturesNum; i++) {
+      int f = that.indicatorFeatures[i];
+      if (matches(matcher, f) && canFeatureBeAdded(f)) {
+        if (scale == 1)
+          addIndicator(f);
+        else
+          addGeneral(f, scale);
+      }
     }
-    if (that.generalFeatures != null) {
-      for (Pair<String, Double> pair : that.generalFeatures)
-        if (matcher.matches(pair.getFirst()))
-          add(pair.getFirst(), scale * pair.getSecond());
+    for (int i = 0; i < that.generalFeaturesNum; i++) {
+      int f = that.generalFeatures[i];
+      if (matches(matcher, f) && canFeatureBeAdded(f))
+        addGeneral(f, scale * that.generalFeatureValues[i]);
     }
     // dense features are always added
     if (that.denseFeatures != null) {
@@ -138,14 +170,11 @@ public class FeatureVector {
   // Return the dot product between this feature vector and the weight vector (parameters).
   public double dotProduct(Params params) {
     double sum = 0;
-    if (indicatorFeatures != null) {
-      for (String f : indicatorFeatures)
-        sum += params.getWeight(f);
-    }
-    if (generalFeatures != null) {
-      for (Pair<String, Double> pair : generalFeatures)
-        sum += params.getWeight(pair.getFirst()) * pair.getSecond();
-    }
+    // Modified (features are indices). --Ofer Givoli
+    for (int i = 0; i < indicatorFeaturesNum; i++)
+      sum += params.getWeight(indicatorFeatures[i]);
+    for (int i = 0; i < generalFeaturesNum; i++)
+      sum += params.getWeight(generalFeatures[i]) * generalFeatureValues[i];
     if (denseFeatures != null) {
       for (int i = 0; i < denseFeatures.length; ++i)
         sum += params.getWeight(DENSE_NAME + "_" + i) * denseFeatures[i];
@@ -159,15 +188,16 @@ public class FeatureVector {
     increment(factor, map, AllFeatureMatcher.matcher);
   }
   public void increment(double factor, Map<String, Double> map, FeatureMatcher matcher) {
-    if (indicatorFeatures != null) {
-      for (String feature : indicatorFeatures)
-        if (matcher.matches(feature))
-          MapUtils.incr(map, feature, factor);
+    // Modified (features are indices). --Ofer Givoli
+    for (int i = 0; i < indicatorFeaturesNum; i++) {
+      String feature = featureIndex.getFeature(indicatorFeatures[i]);
+      if (matcher.matches(feature))
+        MapUtils.incr(map, feature, factor);
     }
-    if (generalFeatures != null) {
-      for (Pair<String, Double> pair : generalFeatures)
-        if (matcher.matches(pair.getFirst()))
-          MapUtils.incr(map, pair.getFirst(), factor * pair.getSecond());
+    for (int i = 0; i < generalFeaturesNum; i++) {
+      String feature = featureIndex.getFeature(generalFeatures[i]);
+      if (matcher.matches(feature))
+        MapUtils.incr(map, feature, factor * generalFeatureValues[i]);
     }
     if (denseFeatures != null) {
       for (int i = 0; i < denseFeatures.length; ++i)
@@ -175,18 +205,32 @@ public class FeatureVector {
     }
   }
 
+  /**
+   * Added. --Ofer Givoli
+   * Same as {@link #increment(double, Map)}, but without converting the feature indices to names.
+   */
+  public void increment(double factor, IndexedSparseVector vector) {
+    for (int i = 0; i < indicatorFeaturesNum; i++)
+      vector.increment(indicatorFeatures[i], factor);
+    for (int i = 0; i < generalFeaturesNum; i++)
+      vector.increment(generalFeatures[i], factor * generalFeatureValues[i]);
+    if (denseFeatures != null) {
+      for (int i = 0; i < denseFeatures.length; ++i) {
+        int f = featureIndex.getOrCreateIndex(DENSE_NAME + "_" + i);
+        if (f >= 0)
+          vector.increment(f, factor * denseFeatures[i]);
+      }
+    }
+  }
+
   // returns a feature vector where all features are prefixed
   public FeatureVector addPrefix(String prefix) {
     FeatureVector res = new FeatureVector();
-    if (indicatorFeatures != null) {
-      for (String feature : indicatorFeatures)
-        res.add(prefix + feature);
-    }
-    if (generalFeatures != null) {
-      for (Pair<String, Double> pair : generalFeatures) {
-        res.add(prefix + pair.getFirst(), pair.getSecond());
-      }
-    }
+    // Modified (features are indices). --Ofer Givoli
+    for (int i = 0; i < indicatorFeaturesNum; i++)
+      res.add(prefix + featureIndex.getFeature(indicatorFeatures[i]));
+    for (int i = 0; i < generalFeaturesNum; i++)
+      res.add(prefix + featureIndex.getFeature(generalFeatures[i]), generalFeatureValues[i]);
     return res;
   }
 
@@ -294,10 +338,8 @@ public class FeatureVector {
   }
 
   public void clear() {
-    if (indicatorFeatures != null)
-      indicatorFeatures.clear();
-    if (generalFeatures != null)
-      generalFeatures.clear();
+    indicatorFeaturesNum = 0; // Modified. --Ofer Givoli
+    generalFeaturesNum = 0; // Modified. --Ofer Givoli
     denseFeatures = null;
   }
 
@@ -307,11 +349,36 @@ public class FeatureVector {
    * {@link il.ac.technion.nlp.nli.parser.general.SempreExperiment#featuresAllowedToBeExtracted} if relevant.
    * Note: this method can't be used for dense features.
    */
-  private boolean canFeatureBeAdded(String feature) {
+  private static boolean canFeatureBeAdded(String feature) {
     if (!ExperimentRunner.isExperimentCurrentlyRunning())
             return true;
     SafeSet<String> featuresAllowedToBeExtracted = ExperimentRunner.getCurrentExperiment().featuresAllowedToBeExtracted;
     return featuresAllowedToBeExtracted == null || featuresAllowedToBeExtracted.safeContains(feature);
   }
 
+  /**
+   * Added. --Ofer Givoli
+   * Same as {@link #canFeatureBeAdded(String)}, for the feature with index 'feature'.
+   */
+  private static boolean canFeatureBeAdded(int feature) {
+    return !isFeatureExtractionRestricted() || canFeatureBeAdded(featureIndex.getFeature(feature));
+  }
+
+  /**
+   * Added. --Ofer Givoli
+   * @return false iff every feature can be added (so there's no need to compute the feature name in order to call
+   * {@link #canFeatureBeAdded(String)}).
+   */
+  private static boolean isFeatureExtractionRestricted() {
+    return ExperimentRunner.isExperimentCurrentlyRunning() &&
+            ExperimentRunner.getCurrentExperiment().featuresAllowedToBeExtracted != null;
+  }
+
+  /**
+   * Added. --Ofer Givoli
+   */
+  private static boolean matches(FeatureMatcher matcher, int feature) {
+    return matcher == AllFeatureMatcher.matcher || matcher.matches(featureIndex.getFeature(feature));
+  }
+
 }
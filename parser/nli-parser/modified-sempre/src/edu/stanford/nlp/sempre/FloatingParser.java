@@ -4,11 +4,10 @@ package edu.stanford.nlp.sempre;
 import fig.basic.*;
 import fig.exec.Execution;
 import il.ac.technion.nlp.nli.parser.general.CallbacksFromSempre;
+import il.ac.technion.nlp.nli.parser.general.IndexedSparseVector;
 
 import java.io.PrintWriter;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static fig.basic.LogInfo.logs;
 
@@ -88,7 +87,17 @@ class FloatingParserState extends ParserState {
   //   (category, depth)
   //   (category, depth, set of tokens)
 
-  private final Map<Object, List<Derivation>> chart = new HashMap<>();
+  // The chart is indexed by interned categories, spans and depths rather than by string keys, so that no strings are
+  // built or hashed when accessing it (changed. --Ofer Givoli).
+  private final Map<String, Integer> catToIndex = new HashMap<>();
+  // anchoredCells[catIndex][start * (numTokens + 1) + end] (an inner array is allocated when first needed).
+  private Cell[][] anchoredCells = new Cell[0][];
+  // floatingCells[catIndex][depth] (an inner array is allocated when first needed).
+  private Cell[][] floatingCells = new Cell[0][];
+  // The number of cells that any derivation was added to.
+  private int numCells = 0;
+  // Milliseconds it took to build the chart (added. --Ofer Givoli).
+  private long chartBuildTime;
 
   private final DerivationPruner pruner;
 
@@ -113,28 +122,71 @@ class FloatingParserState extends ParserState {
 
 
 
-  // Construct state names.
-  private Object floatingCell(String cat, int depth) {
-    return cat + ":" + depth;
-  }
-  private Object anchoredCell(String cat, int start, int end) {
-    return cat + "[" + start + "," + end + "]";
+  // A chart cell: either anchored (cat, start, end) or floating (cat, depth).
+  // Class added (replacing the string keys). --Ofer Givoli
+  private static final class Cell {
+    final String cat;
+    final int start;
+    final int end;
+    final int depth;  // -1 for anchored cells.
+    final List<Derivation> derivations = new ArrayList<>();
+    boolean inChart = false;  // Whether any derivation was added to this cell.
+
+    Cell(String cat, int start, int end, int depth) {
+      this.cat = cat;
+      this.start = start;
+      this.end = end;
+      this.depth = depth;
+    }
+
+    // Same as the keys of the original string-keyed chart.
+    @Override
+    public String toString() {
+      return (start != -1) ? cat + "[" + start + "," + end + "]" : cat + ":" + depth;
+    }
   }
-  private Object cell(String cat, int start, int end, int depth) {
-    return (start != -1) ? anchoredCell(cat, start, end) : floatingCell(cat, depth);
+
+  // Returns -1 if |cat| is not interned and |create| is false.
+  private int getCatIndex(String cat, boolean create) {
+    Integer index = catToIndex.get(cat);
+    if (index != null) return index;
+    if (!create) return -1;
+    index = catToIndex.size();
+    catToIndex.put(cat, index);
+    anchoredCells = Arrays.copyOf(anchoredCells, index + 1);
+    floatingCells = Arrays.copyOf(floatingCells, index + 1);
+    return index;
   }
 
-  /**
-   * Method added. --Ofer Givoli
-   * @return -1 in case 'cell' is not a floating cell.
-   */
-  private int getDepthOfCell(Object cell){
-    String s = (String) cell;
-    Pattern pattern = Pattern.compile(":([0-9]+)$");
-    Matcher matcher = pattern.matcher(s);
-    if (!matcher.find())
-      return -1;
-    return Integer.parseInt(matcher.group(1));
+  // Get cells. If |create| is false and the cell does not exist, null is returned.
+  private Cell floatingCell(String cat, int depth, boolean create) {
+    int catIndex = getCatIndex(cat, create);
+    if (catIndex == -1) return null;
+    Cell[] cells = floatingCells[catIndex];
+    if (cells == null || depth >= cells.length) {
+      if (!create) return null;
+      cells = floatingCells[catIndex] = (cells == null) ?
+          new Cell[Math.max(FloatingParser.opts.maxDepth, depth) + 1] : Arrays.copyOf(cells, depth + 1);
+    }
+    if (cells[depth] == null && create)
+      cells[depth] = new Cell(cat, -1, -1, depth);
+    return cells[depth];
+  }
+  private Cell anchoredCell(String cat, int start, int end, boolean create) {
+    int catIndex = getCatIndex(cat, create);
+    if (catIndex == -1) return null;
+    Cell[] cells = anchoredCells[catIndex];
+    if (cells == null) {
+      if (!create) return null;
+      cells = anchoredCells[catIndex] = new Cell[(numTokens + 1) * (numTokens + 1)];
+    }
+    int i = start * (numTokens + 1) + end;
+    if (cells[i] == null && create)
+      cells[i] = new Cell(cat, start, end, -1);
+    return cells[i];
+  }
+  private Cell cell(String cat, int start, int end, int depth) {
+    return (start != -1) ? anchoredCell(cat, start, end, true) : floatingCell(cat, depth, true);
   }
 
   //Added. --Ofer Givoli
@@ -146,15 +198,19 @@ class FloatingParserState extends ParserState {
     return result;
   }
 
-  private void addToChart(Object cell, Derivation deriv) {
+  private void addToChart(Cell cell, Derivation deriv) {
     if (!deriv.isFeaturizedAndScored())  // A derivation could be belong in multiple cells.
       featurizeAndScoreDerivation(deriv);
     if (Parser.opts.pruneErrorValues && deriv.value instanceof ErrorValue) return;
     if (Parser.opts.verbose >= 4)
       LogInfo.logs("addToChart %s: %s", cell, deriv);
-    MapUtils.addToList(chart, cell, deriv);
+    if (!cell.inChart) {
+      cell.inChart = true;
+      numCells++;
+    }
+    cell.derivations.add(deriv);
     // Added the code from this point until the end of the method. --Ofer Givoli
-    int depth = getDepthOfCell(cell);
+    int depth = cell.depth;
     if (depth>=0) {
       if (!derivationToMinDepthOrSize.containsKey(deriv))
         derivationToMinDepthOrSize.put(deriv, Integer.MAX_VALUE);
@@ -196,14 +252,14 @@ class FloatingParserState extends ParserState {
         newDeriv.ensureExecuted(parser.executor, ex.context);
 
       boolean pruned = pruner.isPruned(newDeriv); // factored out. --Ofer Givoli
-      Object currentCell = cell(rule.lhs, start, end, depth);  // factored out. --Ofer Givoli
-      CallbacksFromSempre.reportNewDerivationCreatedByRule(rule, currentCell.toString(), newDeriv, pruned); // added. --Ofer Givoli
+      Cell currentCell = cell(rule.lhs, start, end, depth);  // factored out. --Ofer Givoli
+      CallbacksFromSempre.reportNewDerivationCreatedByRule(rule, currentCell, newDeriv, pruned); // added. --Ofer Givoli
 
       if (pruned) continue;
       // Avoid repetitive floating cells
       addToChart(currentCell, newDeriv);
       if (depth == -1)  // In addition, anchored cells become floating at level 0
-        addToChart(floatingCell(rule.lhs, 0), newDeriv);
+        addToChart(floatingCell(rule.lhs, 0, true), newDeriv);
     }
   }
 
@@ -215,11 +271,10 @@ class FloatingParserState extends ParserState {
     applyRule(rule, -1, -1, depth, child1, child2, canonicalUtterance);
   }
 
-  private List<Derivation> getDerivations(Object cell) {
-    List<Derivation> derivations = chart.get(cell);
-    // logs("getDerivations %s => %s", cell, derivations);
-    if (derivations == null) return Derivation.emptyList;
-    return derivations;
+  private List<Derivation> getDerivations(Cell cell) {
+    // logs("getDerivations %s => %s", cell, cell == null ? null : cell.derivations);
+    if (cell == null) return Derivation.emptyList;
+    return cell.derivations;
   }
 
   // Build derivations over span |start|, |end|.
@@ -246,13 +301,13 @@ class FloatingParserState extends ParserState {
 
         if (!Rule.isCat(rhs1) && Rule.isCat(rhs2)) {  // token $Cat
           if (match1) {
-            List<Derivation> derivations = getDerivations(anchoredCell(rhs2, mid, end));
+            List<Derivation> derivations = getDerivations(anchoredCell(rhs2, mid, end, false));
             for (Derivation deriv : derivations)
               applyAnchoredRule(rule, start, end, deriv, null, rhs1 + " " + deriv.canonicalUtterance);
           }
         } else if (Rule.isCat(rhs1) && !Rule.isCat(rhs2)) {  // $Cat token
           if (match2) {
-            List<Derivation> derivations = getDerivations(anchoredCell(rhs1, start, mid));
+            List<Derivation> derivations = getDerivations(anchoredCell(rhs1, start, mid, false));
             for (Derivation deriv : derivations)
               applyAnchoredRule(rule, start, end, deriv, null, deriv.canonicalUtterance + " " + rhs2);
           }
@@ -260,8 +315,8 @@ class FloatingParserState extends ParserState {
           if (match1 && match2)
             applyAnchoredRule(rule, start, end, null, null, rhs1 + " " + rhs2);
         } else {  // $Cat $Cat
-          List<Derivation> derivations1 = getDerivations(anchoredCell(rhs1, start, mid));
-          List<Derivation> derivations2 = getDerivations(anchoredCell(rhs2, mid, end));
+          List<Derivation> derivations1 = getDerivations(anchoredCell(rhs1, start, mid, false));
+          List<Derivation> derivations2 = getDerivations(anchoredCell(rhs2, mid, end, false));
           for (Derivation deriv1 : derivations1)
             for (Derivation deriv2 : derivations2)
               applyAnchoredRule(rule, start, end, deriv1, deriv2, deriv1.canonicalUtterance + " " + deriv2.canonicalUtterance);
@@ -273,7 +328,7 @@ class FloatingParserState extends ParserState {
     // Important: do this in topologically sorted order and after all the binaries are done.
     for (Rule rule : parser.catUnaryRules) {
       if (!rule.isAnchored()) continue;
-      List<Derivation> derivations = getDerivations(anchoredCell(rule.rhs.get(0), start, end));
+      List<Derivation> derivations = getDerivations(anchoredCell(rule.rhs.get(0), start, end, false));
       for (Derivation deriv : derivations) {
         applyAnchoredRule(rule, start, end, deriv, null, deriv.canonicalUtterance);
       }
@@ -303,34 +358,34 @@ class FloatingParserState extends ParserState {
         if (depth == 1)
           applyFloatingRule(rule, depth, null, null, rhs1 + " " + rhs2);
       } else if (!Rule.isCat(rhs1) && Rule.isCat(rhs2)) {  // token $Cat
-        List<Derivation> derivations = getDerivations(floatingCell(rhs2, depth - 1));
+        List<Derivation> derivations = getDerivations(floatingCell(rhs2, depth - 1, false));
         for (Derivation deriv : derivations)
           applyFloatingRule(rule, depth, deriv, null, rhs1 + " " + deriv.canonicalUtterance);
       } else if (Rule.isCat(rhs1) && !Rule.isCat(rhs2)) {  // $Cat token
-        List<Derivation> derivations = getDerivations(floatingCell(rhs1, depth - 1));
+        List<Derivation> derivations = getDerivations(floatingCell(rhs1, depth - 1, false));
         for (Derivation deriv : derivations)
           applyFloatingRule(rule, depth, deriv, null, deriv.canonicalUtterance + " " + rhs2);
       } else {  // $Cat $Cat
         if (FloatingParser.opts.useSizeInsteadOfDepth) {
           for (int depth1 = 0; depth1 < depth; depth1++) {
             int depth2 = depth - 1 - depth1;
-            List<Derivation> derivations1 = getDerivations(floatingCell(rhs1, depth1));
-            List<Derivation> derivations2 = getDerivations(floatingCell(rhs2, depth2));
+            List<Derivation> derivations1 = getDerivations(floatingCell(rhs1, depth1, false));
+            List<Derivation> derivations2 = getDerivations(floatingCell(rhs2, depth2, false));
             for (Derivation deriv1 : derivations1)
               for (Derivation deriv2 : derivations2)
                 applyFloatingRule(rule, depth, deriv1, deriv2, deriv1.canonicalUtterance + " " + deriv2.canonicalUtterance);
           }
         } else {
           for (int subDepth = 0; subDepth < depth; subDepth++) {  // depth-1 <=depth-1
-            List<Derivation> derivations1 = getDerivations(floatingCell(rhs1, depth - 1));
-            List<Derivation> derivations2 = getDerivations(floatingCell(rhs2, subDepth));
+            List<Derivation> derivations1 = getDerivations(floatingCell(rhs1, depth - 1, false));
+            List<Derivation> derivations2 = getDerivations(floatingCell(rhs2, subDepth, false));
             for (Derivation deriv1 : derivations1)
               for (Derivation deriv2 : derivations2)
                 applyFloatingRule(rule, depth, deriv1, deriv2, deriv1.canonicalUtterance + " " + deriv2.canonicalUtterance);
           }
           for (int subDepth = 0; subDepth < depth - 1; subDepth++) {  // <depth-1 depth-1
-            List<Derivation> derivations1 = getDerivations(floatingCell(rhs1, subDepth));
-            List<Derivation> derivations2 = getDerivations(floatingCell(rhs2, depth - 1));
+            List<Derivation> derivations1 = getDerivations(floatingCell(rhs1, subDepth, false));
+            List<Derivation> derivations2 = getDerivations(floatingCell(rhs2, depth - 1, false));
             for (Derivation deriv1 : derivations1)
               for (Derivation deriv2 : derivations2)
                 applyFloatingRule(rule, depth, deriv1, deriv2, deriv1.canonicalUtterance + " " + deriv2.canonicalUtterance);
@@ -343,31 +398,32 @@ class FloatingParserState extends ParserState {
     // Important: do this in topologically sorted order and after all the binaries are done.
     for (Rule rule : parser.catUnaryRules) {
       if (!rule.isFloating()) continue;
-      List<Derivation> derivations = getDerivations(floatingCell(rule.rhs.get(0), depth - 1));
+      List<Derivation> derivations = getDerivations(floatingCell(rule.rhs.get(0), depth - 1, false));
       for (Derivation deriv : derivations)
         applyFloatingRule(rule, depth, deriv, null, deriv.canonicalUtterance);
     }
   }
 
-  void addToDerivations(Object cell, List<Derivation> derivations) {
-    List<Derivation> myDerivations = chart.get(cell);
-    if (myDerivations != null)
-      derivations.addAll(myDerivations);
+  void addToDerivations(Cell cell, List<Derivation> derivations) {
+    if (cell != null)
+      derivations.addAll(cell.derivations);
   }
 
   private static class InferenceNeedsToBeAborted extends RuntimeException {}  // added. --Ofer Givoli
 
   @Override public void infer() {
     LogInfo.begin_track("FloatingParser.infer()");
+    StopWatch chartBuildStopWatch = new StopWatch(); // Added. --Ofer Givoli
+    chartBuildStopWatch.start(); // Added. --Ofer Givoli
 
     // Base case ($TOKEN, $PHRASE)
     for (Derivation deriv : gatherTokenAndPhraseDerivations()) {
-      Object currentAnchoredCell = anchoredCell(deriv.cat, deriv.start, deriv.end); //factored out. --Ofer Givoli
-      Object currentFloatingCell = floatingCell(deriv.cat, 0); //factored out. --Ofer Givoli
+      Cell currentAnchoredCell = anchoredCell(deriv.cat, deriv.start, deriv.end, true); //factored out. --Ofer Givoli
+      Cell currentFloatingCell = floatingCell(deriv.cat, 0, true); //factored out. --Ofer Givoli
       addToChart(currentAnchoredCell, deriv);
       addToChart(currentFloatingCell, deriv);
-      CallbacksFromSempre.reportNewBasicDerivationCreatedFromTokenOrPhrase(currentAnchoredCell.toString(),
-              currentFloatingCell.toString(), deriv); //Added. --Ofer Givoli.
+      CallbacksFromSempre.reportNewBasicDerivationCreatedFromTokenOrPhrase(currentAnchoredCell,
+              currentFloatingCell, deriv); //Added. --Ofer Givoli.
     }
 
     Set<String> categories = new HashSet<>();
@@ -385,8 +441,9 @@ class FloatingParserState extends ParserState {
             throw new InferenceNeedsToBeAborted();
           }
           for (String cat : categories) {
-            String cell = anchoredCell(cat, i, i + len).toString();
-            pruneCell(cell, chart.get(cell));
+            Cell cell = anchoredCell(cat, i, i + len, false);
+            if (cell != null)
+              pruneCell(cell, cell.derivations); // Modified (the cell's name is built only if needed). --Ofer Givoli
           }
         }
       }
@@ -398,24 +455,27 @@ class FloatingParserState extends ParserState {
           throw new InferenceNeedsToBeAborted();
         }
         for (String cat : categories) {
-          String cell = floatingCell(cat, depth).toString();
-          pruneCell(cell, chart.get(cell));
+          Cell cell = floatingCell(cat, depth, false);
+          if (cell != null)
+            pruneCell(cell, cell.derivations); // Modified (the cell's name is built only if needed). --Ofer Givoli
         }
       }
     } catch (InferenceNeedsToBeAborted e) {
       CallbacksFromSempre.reportAbortingInference();
     }
+    chartBuildStopWatch.stop(); // Added. --Ofer Givoli
+    chartBuildTime = chartBuildStopWatch.ms; // Added. --Ofer Givoli
 
     // Collect final predicted derivations
     assert(predDerivations.isEmpty()); // Added. --Ofer Givoli
-    addToDerivations(anchoredCell(Rule.rootCat, 0, numTokens), predDerivations);
+    addToDerivations(anchoredCell(Rule.rootCat, 0, numTokens, false), predDerivations);
     for (int depth = 1; depth <= FloatingParser.opts.maxDepth; depth++)
-      addToDerivations(floatingCell(Rule.rootCat, depth), predDerivations);
+      addToDerivations(floatingCell(Rule.rootCat, depth, false), predDerivations);
 
     // Compute gradient with respect to the predicted derivations
     ensureExecuted();
     if (computeExpectedCounts) {
-      expectedCounts = new HashMap<>();
+      expectedCounts = new IndexedSparseVector(); // Modified. --Ofer Givoli
       ParserState.computeExpectedCounts(predDerivations, expectedCounts);
     }
 
@@ -447,14 +507,15 @@ class FloatingParserState extends ParserState {
   @Override
   protected void setEvaluation() {
     super.setEvaluation();
-    evaluation.add("numCells", chart.size());
+    evaluation.add("numCells", numCells);
+    evaluation.add("chartBuildTime", chartBuildTime); // Added. --Ofer Givoli
   }
 
   private void visualizeAnchoredChart(Set<String> categories) {
     for (String cat : categories) {
       for (int len = 1; len <= numTokens; ++len) {
         for (int i = 0; i + len <= numTokens; ++i) {
-          List<Derivation> derivations = getDerivations(anchoredCell(cat, i, i + len));
+          List<Derivation> derivations = getDerivations(anchoredCell(cat, i, i + len, false));
           for (Derivation deriv : derivations) {
             LogInfo.logs("ParserState.visualize: %s(%s:%s): %s", cat, i, i + len, deriv);
           }
@@ -1,3 +1,4 @@
+//NOTICE: this file was modified by Ofer Givoli (i.e. it's not identical to the matching file in the original Sempre package).
 package edu.stanford.nlp.sempre;
 
 import fig.basic.*;
@@ -19,13 +20,20 @@ public abstract class LanguageAnalyzer {
 
   // We keep a singleton LanguageAnalyzer because for any given run we
   // generally will be working with one.
-  private static LanguageAnalyzer singleton;
+  private static volatile LanguageAnalyzer singleton; // Modified (volatile). --Ofer Givoli
+  // Modified (thread-safe: examples may be analyzed by multiple threads). --Ofer Givoli
   public static LanguageAnalyzer getSingleton() {
-    if (singleton == null)
-      singleton = (LanguageAnalyzer) Utils.newInstanceHard(SempreUtils.resolveClassName(opts.languageAnalyzer));
-    return singleton;
+    LanguageAnalyzer analyzer = singleton;
+    if (analyzer != null)
+      return analyzer;
+    synchronized (LanguageAnalyzer.class) {
+      if (singleton == null)
+        singleton = (LanguageAnalyzer) Utils.newInstanceHard(SempreUtils.resolveClassName(opts.languageAnalyzer));
+      return singleton;
+    }
   }
-  public static void setSingleton(LanguageAnalyzer analyzer) { singleton = analyzer; }
+  // Modified (synchronized). --Ofer Givoli
+  public static synchronized void setSingleton(LanguageAnalyzer analyzer) { singleton = analyzer; }
 
   public abstract LanguageInfo analyze(String utterance);
 }
@@ -3,12 +3,23 @@ package edu.stanford.nlp.sempre;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import fig.basic.*;
 import fig.exec.Execution;
 import il.ac.technion.nlp.nli.parser.general.CallbacksFromSempre;
+import il.ac.technion.nlp.nli.parser.general.FeatureIndex;
+import il.ac.technion.nlp.nli.parser.general.IndexedSparseVector;
+import il.ac.technion.nlp.nli.parser.general.InferenceContext;
 
 import java.io.PrintWriter;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * The main learning loop.  Goes over a dataset multiple times, calling the
@@ -36,6 +47,16 @@ public class Learner {
     @Option(gloss = "When using mini-batch updates for SGD, this is the batch size")
     public int batchSize = 1;  // Default is SGD
 
+    /** Added --Ofer Givoli
+     * The examples of a mini-batch (see {@link #batchSize}) are parsed in parallel, and their gradients are summed in
+     * the order of the examples, so the results don't depend on the number of threads (the weights are not updated
+     * within a mini-batch anyway). When not training, the examples are parsed in groups of this size.
+     * Not supported with {@link #addFeedback} (which changes the parser between the examples of a mini-batch).
+     * When greater than 1, {@link #batchSize} must be at least this.
+     */
+    @Option(gloss = "Number of threads used for parsing the examples of a mini-batch (1 means no parallelism)")
+    public int trainingThreads = 1; // Added. --Ofer Givoli
+
     @Option(gloss = "Write predDerivations to examples file (huge)")
     public boolean outputPredDerivations = false;
 
@@ -64,12 +85,28 @@ public class Learner {
   private final Dataset dataset;
   private final PrintWriter eventsOut;  // For printing a machine-readable log
   private final List<SemanticFn> semFuncsToUpdate;
+  // Whether the random weights drawn while parsing an example (see Params.opts.initWeightsRandomly) are drawn from a
+  // generator seeded by |initRandomSeed| and the example's id, so that they don't depend on the order in which the
+  // examples are parsed by several threads. Otherwise (and when parsing sequentially), Params.opts.initRandom is used as
+  // in the original code, and |initRandomSeed| is not drawn from it. Added. --Ofer Givoli
+  private final boolean seedRandomWeightsPerExample =
+      Params.opts.initWeightsRandomly && opts.trainingThreads > 1;
+  private final long initRandomSeed = seedRandomWeightsPerExample ? Params.opts.initRandom.nextLong() : 0; // Added. --Ofer Givoli
+  // Prepended to the names of the files written to the execution directory (params.*, featureIndex and learner.events),
+  // so that learners run concurrently don't write the same files. Added. --Ofer Givoli
+  private final String outputFilesPrefix;
 
   public Learner(Parser parser, Params params, Dataset dataset) {
+    this(parser, params, dataset, ""); // Modified. --Ofer Givoli
+  }
+
+  // Added |outputFilesPrefix|. --Ofer Givoli
+  public Learner(Parser parser, Params params, Dataset dataset, String outputFilesPrefix) {
     this.parser = parser;
     this.params = params;
     this.dataset = dataset;
-    this.eventsOut = IOUtils.openOutAppendEasy(Execution.getFile("learner.events"));
+    this.outputFilesPrefix = outputFilesPrefix;
+    this.eventsOut = IOUtils.openOutAppendEasy(Execution.getFile(outputFilesPrefix + "learner.events"));
     if (opts.initialization != null && this.params.isEmpty())
       this.params.init(opts.initialization);
 
@@ -97,6 +134,17 @@ public class Learner {
    * @param evaluations Evaluations per iteration per group.
    */
   public void learn(int numIters, Map<String, List<Evaluation>> evaluations) {
+    // Added: the threads used for parsing in parallel are owned by this learner, and are released once learning ends.
+    // --Ofer Givoli
+    try {
+      learnIterations(numIters, evaluations);
+    } finally {
+      shutdownTrainingPool();
+    }
+  }
+
+  // Extracted from learn(). --Ofer Givoli
+  private void learnIterations(int numIters, Map<String, List<Evaluation>> evaluations) {
     // modified method. --Ofer Givoli
     LogInfo.begin_track("Learner.learn()");
    // if when we start we have parameters already - need to sort the semantic functions.
@@ -138,12 +186,14 @@ public class Learner {
       }
 
       // Write out parameters
-      String path = Execution.getFile("params." + iter);
+      String path = Execution.getFile(outputFilesPrefix + "params." + iter); // Modified (prefix). --Ofer Givoli
       if (path != null) {
         params.write(path);
+        FeatureIndex.getInstance().write(Paths.get(Execution.getFile(outputFilesPrefix + "featureIndex"))); // Added. --Ofer Givoli
 
         if (!il.ac.technion.nlp.nli.parser.general.Utils.isWindowsOS()) // Added this condition --Ofer Givoli
-          Utils.systemHard("ln -sf params." + iter + " " + Execution.getFile("params"));
+          Utils.systemHard("ln -sf " + outputFilesPrefix + "params." + iter + " " +
+                  Execution.getFile(outputFilesPrefix + "params")); // Modified (prefix). --Ofer Givoli
       }
 
       LogInfo.end_track();
@@ -153,7 +203,7 @@ public class Learner {
 
   public void onlineLearnExample(Example ex) {
     LogInfo.begin_track("onlineLearnExample: %s derivations", ex.predDerivations.size());
-    HashMap<String, Double> counts = new HashMap<>();
+    IndexedSparseVector counts = new IndexedSparseVector(); // Modified (indexed). --Ofer Givoli
     for (Derivation deriv : ex.predDerivations)
       deriv.compatibility = parser.valueEvaluator.getCompatibility(ex.targetValue, deriv.value);
     ParserState.computeExpectedCounts(ex.predDerivations, counts);
@@ -176,18 +226,45 @@ public class Learner {
             "Processing %s: %s examples", prefix, examples.size());
     LogInfo.begin_track("Examples");
 
-    Map<String, Double> counts = new HashMap<>();
+    IndexedSparseVector counts = new IndexedSparseVector(); // Modified (indexed). --Ofer Givoli
     int batchSize = 0;
+    // Added: when parsing in parallel, the examples of a group (a mini-batch when training) are parsed first, and then
+    // processed one by one as if they were parsed sequentially. --Ofer Givoli
+    boolean parallel = opts.trainingThreads > 1;
+    if (parallel && opts.addFeedback)
+      throw new RuntimeException("trainingThreads > 1 is not supported with addFeedback");
+    // A mini-batch smaller than the number of threads would leave threads idle (with the default batchSize of 1,
+    // nothing would be parsed in parallel).
+    if (parallel && computeExpectedCounts && opts.batchSize < opts.trainingThreads)
+      throw new RuntimeException("batchSize (" + opts.batchSize + ") must be at least trainingThreads (" +
+              opts.trainingThreads + "), since the examples of a mini-batch are parsed in parallel");
+    int parallelGroupSize = computeExpectedCounts ? opts.batchSize : opts.trainingThreads;
+    ParserState[] parsedStates = new ParserState[parallelGroupSize];
+    InferenceContext[] parsedContexts = new InferenceContext[parallelGroupSize];
     for (int e = 0; e < examples.size(); e++) {
 
       Example ex = examples.get(e);
 
+      if (parallel && e % parallelGroupSize == 0) // Added. --Ofer Givoli
+        parseExamplesInParallel(examples.subList(e, Math.min(e + parallelGroupSize, examples.size())),
+                computeExpectedCounts, parsedStates, parsedContexts);
+
       LogInfo.begin_track_printAll(
               "%s: example %s/%s: %s", prefix, e, examples.size(), ex.id);
       ex.log();
       Execution.putOutput("example", e);
 
-      ParserState state = parseExample(params, ex, computeExpectedCounts);
+      ParserState state; // Modified (may have been parsed in parallel). --Ofer Givoli
+      if (parallel) {
+        state = parsedStates[e % parallelGroupSize];
+        // So callbacks made from this thread (e.g. when updating the weights) refer to this example, as they would
+        // have had it been parsed here.
+        parsedContexts[e % parallelGroupSize].makeCurrent();
+        parsedStates[e % parallelGroupSize] = null;
+        parsedContexts[e % parallelGroupSize] = null;
+      } else {
+        state = parseExample(params, ex, computeExpectedCounts);
+      }
       if (computeExpectedCounts) {
         if (opts.checkGradient) {
           LogInfo.begin_track("Checking gradient");
@@ -195,7 +272,7 @@ public class Learner {
           LogInfo.end_track();
         }
 
-        SempreUtils.addToDoubleMap(counts, state.expectedCounts);
+        counts.add(1, state.expectedCounts); // Modified. --Ofer Givoli
 
         batchSize++;
         if (batchSize >= opts.batchSize) {
@@ -240,11 +317,12 @@ public class Learner {
 
   private void checkGradient(Example ex, ParserState state) {
     double eps = 1e-2;
-    for (String feature : state.expectedCounts.keySet()) {
+    for (int i = 0; i < state.expectedCounts.size(); i++) { // Modified (indexed). --Ofer Givoli
+      String feature = FeatureIndex.getInstance().getFeature(state.expectedCounts.getIndexAt(i));
       LogInfo.begin_track("feature=%s", feature);
-      double computedGradient = state.expectedCounts.get(feature);
+      double computedGradient = state.expectedCounts.getValueAt(i);
       Params perturbedParams = this.params.copyParams();
-      perturbedParams.getWeights().put(feature, perturbedParams.getWeight(feature) + eps);
+      perturbedParams.setWeight(feature, perturbedParams.getWeight(feature) + eps); // Modified (getWeights() returns a copy). --Ofer Givoli
       ParserState perturbedState = parseExample(perturbedParams, ex, true);
       double checkedGradient = (perturbedState.objectiveValue - state.objectiveValue) / eps;
       LogInfo.logs("Learner.checkGradient(): weight=%s, pertWeight=%s, obj=%s, pertObj=%s, feature=%s, computed=%s, checked=%s, diff=%s",
@@ -270,18 +348,85 @@ public class Learner {
 
   private ParserState parseExample(Params params, Example ex, boolean computeExpectedCounts) {
     StopWatchSet.begin("Parser.parse");
-    ParserState res = this.parser.parse(params, ex, computeExpectedCounts);
+    // Added: so the random weights don't depend on the order in which the examples are parsed (by several threads).
+    // --Ofer Givoli
+    if (seedRandomWeightsPerExample)
+      Params.setInitRandomOfCurrentThread(new Random(initRandomSeed ^ Objects.hashCode(ex.id)));
+    ParserState res;
+    try {
+      res = this.parser.parse(params, ex, computeExpectedCounts);
+    } finally {
+      Params.setInitRandomOfCurrentThread(null);
+    }
     StopWatchSet.end();
     return res;
   }
 
-  private void updateWeights(Map<String, Double> counts) {
+  // Used by parseExamplesInParallel(). Owned by this learner, created on first use with |opts.trainingThreads| threads
+  // (and recreated if that option changes), and shut down when learn() returns. Added. --Ofer Givoli
+  private ThreadPoolExecutor trainingPool;
+
+  // Added. --Ofer Givoli
+  private synchronized ExecutorService getTrainingPool() {
+    if (trainingPool == null || trainingPool.getCorePoolSize() != opts.trainingThreads) {
+      if (trainingPool != null)
+        trainingPool.shutdown(); // tasks already submitted still run.
+      trainingPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(opts.trainingThreads,
+              new ThreadFactoryBuilder().setDaemon(true).setNameFormat("training-%d").build());
+    }
+    return trainingPool;
+  }
+
+  // Added. --Ofer Givoli
+  private synchronized void shutdownTrainingPool() {
+    if (trainingPool != null) {
+      trainingPool.shutdown();
+      trainingPool = null;
+    }
+  }
+
+  // Parses |examples| using |opts.trainingThreads| threads, and waits for all of them to finish. The parser state of
+  // examples.get(i) is put in states[i], and the context of its inference (which is per thread) in contexts[i].
+  // Added. --Ofer Givoli
+  private void parseExamplesInParallel(List<Example> examples, boolean computeExpectedCounts,
+                                       ParserState[] states, InferenceContext[] contexts) {
+    InferenceContext context = InferenceContext.ofCurrentThread();
+    List<Callable<Void>> tasks = new ArrayList<>(examples.size());
+    for (int i = 0; i < examples.size(); i++) {
+      int index = i;
+      tasks.add(() -> {
+        context.makeCurrent();
+        try {
+          states[index] = parseExample(params, examples.get(index), computeExpectedCounts);
+          contexts[index] = InferenceContext.ofCurrentThread();
+        } finally {
+          InferenceContext.clearCurrent();
+        }
+        return null;
+      });
+    }
+    LogInfo.begin_threads();
+    try {
+      for (Future<Void> future : getTrainingPool().invokeAll(tasks))
+        future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    } finally {
+      LogInfo.end_threads();
+    }
+  }
+
+  private void updateWeights(IndexedSparseVector counts) { // Modified (indexed). --Ofer Givoli
     StopWatchSet.begin("Learner.updateWeights");
     LogInfo.begin_track("Updating learner weights");
-    double sum = 0;
-    for (double v : counts.values()) sum += v * v;
+    double sum = counts.getSquaredL2Norm(); // Modified. --Ofer Givoli
     if (opts.verbose >= 2)
-      SempreUtils.logMap(counts, "gradient");
+      SempreUtils.logMap(counts.toMap(FeatureIndex.getInstance()), "gradient"); // Modified. --Ofer Givoli
     LogInfo.logs("L2 norm: %s", Math.sqrt(sum));
     CallbacksFromSempre.reportWeightsUpdateBegins(params, counts); //Added. --Ofer Givoli
     params.update(counts);
@@ -10,6 +10,8 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A Master manages multiple sessions. Currently, they all share the same model,
@@ -39,6 +41,10 @@ public class Master {
 
     @Option(gloss = "Write out new grammar rules")
     public String newGrammarPath;
+
+    @Option(gloss = "Parse the utterances of different sessions concurrently (commands are still processed one at a " +
+        "time). The log of such an utterance is not captured into its response.")
+    public boolean concurrentUtterances = false; // Added. --Ofer Givoli
   }
 
   public static Options opts = new Options();
@@ -81,7 +87,14 @@ public class Master {
 
   private Builder builder;
   private Learner learner;
-  private HashMap<String, Session> sessions = new LinkedHashMap<>();
+  private HashMap<String, Session> sessions = new LinkedHashMap<>();  // Modified (guarded by itself). --Ofer Givoli
+
+  // Added. --Ofer Givoli
+  // Utterances parsed concurrently (see |opts.concurrentUtterances|) share the model (|builder| and |learner|) for
+  // reading, so they hold the read lock. Everything else may modify the model, and holds the write lock.
+  private final ReadWriteLock modelLock = new ReentrantReadWriteLock();
+  // Guards |opts.logPath|.
+  private final Object logFileLock = new Object();
 
   public Master(Builder builder) {
     this.builder = builder;
@@ -92,16 +105,26 @@ public class Master {
 
   // Return the unique session identified by session id |id|.
   // Create a new session if one doesn't exist.
+  // Modified (thread-safe; the scripts of a new session are processed without holding the lock of |sessions|).
+  // --Ofer Givoli
   public Session getSession(String id) {
-    Session session = sessions.get(id);
-    if (session == null) {
-      session = new Session(id);
-      for (String path : opts.scriptPaths)
-        processScript(session, path);
-      for (String command : opts.commands)
-        processQuery(session, command);
-      if (id != null)
-        sessions.put(id, session);
+    synchronized (sessions) {
+      Session session = sessions.get(id);
+      if (session != null)
+        return session;
+    }
+    Session session = new Session(id);
+    for (String path : opts.scriptPaths)
+      processScript(session, path);
+    for (String command : opts.commands)
+      processQuery(session, command);
+    if (id == null)
+      return session;
+    synchronized (sessions) {
+      Session existingSession = sessions.get(id);
+      if (existingSession != null)  // created concurrently by another request of the same session.
+        return existingSession;
+      sessions.put(id, session);
     }
     return session;
   }
@@ -167,28 +190,71 @@ public class Master {
   // Currently, synchronize a very crude level.
   // In the future, refine this.
   // Currently need the synchronization because of writing to stdout.
-  public synchronized Response processQuery(Session session, String line) {
+  // Modified: when |opts.concurrentUtterances| is set, utterances don't take the crude lock (see
+  // processUtteranceConcurrently()). --Ofer Givoli
+  public Response processQuery(Session session, String line) {
     line = line.trim();
-    Response response = new Response();
+    if (opts.concurrentUtterances && !line.startsWith("("))
+      return processUtteranceConcurrently(session, line);
 
-    // Capture log output and put it into response.
-    // Hack: modifying a static variable to capture the logging.
-    // Make sure we're synchronized!
-    StringWriter stringOut = new StringWriter();
-    LogInfo.setFileOut(new PrintWriter(stringOut));
+    Response response = new Response();
+    modelLock.writeLock().lock();
+    try {
+      // Capture log output and put it into response.
+      // Hack: modifying a static variable to capture the logging.
+      // Make sure we're synchronized!
+      StringWriter stringOut = new StringWriter();
+      LogInfo.setFileOut(new PrintWriter(stringOut));
+
+      if (line.startsWith("("))
+        handleCommand(session, line, response);
+      else
+        handleUtterance(session, line, response);
+
+      // Clean up
+      for (String outLine : stringOut.toString().split("\n"))
+        response.lines.add(outLine);
+      LogInfo.setFileOut(null);
+    } finally {
+      modelLock.writeLock().unlock();
+    }
 
-    if (line.startsWith("("))
-      handleCommand(session, line, response);
-    else
-      handleUtterance(session, line, response);
+    logInteraction(session, line, response);
+    return response;
+  }
 
-    // Clean up
-    for (String outLine : stringOut.toString().split("\n"))
-      response.lines.add(outLine);
-    LogInfo.setFileOut(null);
+  // Parses the utterance |line| concurrently with utterances of other sessions: the model is shared for reading, and
+  // only the requests of |session| are serialized (since they update its context).
+  // The log is written in thread mode, in a track per utterance, so the lines of each utterance are printed together
+  // when its track ends rather than interleaved with those of other utterances.
+  // Added. --Ofer Givoli
+  private Response processUtteranceConcurrently(Session session, String line) {
+    Response response = new Response();
+    modelLock.readLock().lock();
+    LogInfo.begin_threads();
+    try {
+      synchronized (session) {
+        LogInfo.begin_track("Utterance of session %s: %s", session.id, line);
+        try {
+          handleUtterance(session, line, response);
+        } finally {
+          LogInfo.end_track();
+        }
+      }
+    } finally {
+      LogInfo.end_threads();
+      modelLock.readLock().unlock();
+    }
+    logInteraction(session, line, response);
+    return response;
+  }
 
-    // Log interaction to disk
-    if (!Strings.isNullOrEmpty(opts.logPath)) {
+  // Log interaction to disk
+  // Added (extracted from processQuery()). --Ofer Givoli
+  private void logInteraction(Session session, String line, Response response) {
+    if (Strings.isNullOrEmpty(opts.logPath))
+      return;
+    synchronized (logFileLock) {
       PrintWriter out = IOUtils.openOutAppendHard(opts.logPath);
       out.println(
           Joiner.on("\t").join(
@@ -201,8 +267,6 @@ public class Master {
                   "response=" + summaryString(response))));
       out.close();
     }
-
-    return response;
   }
 
   String summaryString(Response response) {
@@ -268,8 +332,12 @@ public class Master {
     if (command == null || command.equals("help")) {
       printHelp();
     } else if (command.equals("status")) {
-      LogInfo.begin_track("%d sessions", sessions.size());
-      for (Session otherSession : sessions.values())
+      List<Session> allSessions;
+      synchronized (sessions) {  // Added. --Ofer Givoli
+        allSessions = new ArrayList<>(sessions.values());
+      }
+      LogInfo.begin_track("%d sessions", allSessions.size());
+      for (Session otherSession : allSessions)
         LogInfo.log(otherSession + (session == otherSession ? " *" : ""));
       LogInfo.end_track();
       StopWatchSet.logStats();
@@ -5,6 +5,8 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import fig.basic.*;
 import il.ac.technion.nlp.nli.parser.experiment.ExperimentRunner;
+import il.ac.technion.nlp.nli.parser.general.FeatureIndex;
+import il.ac.technion.nlp.nli.parser.general.IndexedSparseVector;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -50,27 +52,38 @@ public class Params {
   }
   private L1Reg l1Reg = parseReg(opts.l1Reg);
 
+  // Modified: weights and AdaGrad state are stored in arrays indexed by |featureIndex|. A NaN marks a missing value
+  // (i.e. a feature that has no entry in the original maps), and so does -1 in |l1UpdateTimes|. --Ofer Givoli
+  private static final FeatureIndex featureIndex = FeatureIndex.getInstance(); // Added. --Ofer Givoli
+
+  // Added: the generator of the random weights (see opts.initWeightsRandomly) used by the current thread instead of
+  // opts.initRandom, so that when examples are parsed concurrently, the weights drawn while parsing an example don't
+  // depend on the other examples (see Learner). --Ofer Givoli
+  private static final ThreadLocal<Random> initRandomOfCurrentThread = new ThreadLocal<>();
+
   // Discriminative weights
-  private Map<String, Double> weights = new HashMap<>();
+  // Modified (volatile, so weights may be read without locking while no update is done, see getWeight(int)). --Ofer Givoli
+  private volatile double[] weights = new double[0];
+  private int weightsNum; // Added (the number of features with a weight). --Ofer Givoli
 
   // For AdaGrad
-  Map<String, Double> sumSquaredGradients = new HashMap<>();
+  double[] sumSquaredGradients = new double[0];
 
   // For dual averaging
-  Map<String, Double> sumGradients = new HashMap<>();
+  double[] sumGradients = new double[0];
 
   // Number of stochastic updates we've made so far (for determining step size).
   int numUpdates;
 
   // for lazy l1-reg update
-  Map<String, Integer> l1UpdateTimeMap = new HashMap<>();
+  int[] l1UpdateTimes = new int[0];
 
   // Initialize the weights
   public void init(List<Pair<String, Double>> initialization) {
-    if (!weights.isEmpty())
+    if (!isEmpty())
       throw new RuntimeException("Initialization is not legal when there are non-zero weights");
     for (Pair<String, Double> pair: initialization)
-      weights.put(pair.getFirst(), pair.getSecond());
+      putWeightIfIndexed(featureIndex.getOrCreateIndex(pair.getFirst()), pair.getSecond());
   }
 
   // Read parameters from |path|.
@@ -81,13 +94,13 @@ public class Params {
       String line;
       while ((line = in.readLine()) != null) {
         String[] pair = Lists.newArrayList(Splitter.on('\t').split(line)).toArray(new String[2]);
-        weights.put(pair[0], Double.parseDouble(pair[1]));
+        putWeightIfIndexed(featureIndex.getOrCreateIndex(pair[0]), Double.parseDouble(pair[1]));
       }
       in.close();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
-    LogInfo.logs("Read %s weights", weights.size());
+    LogInfo.logs("Read %s weights", weightsNum);
     LogInfo.end_track();
   }
 
@@ -99,24 +112,33 @@ public class Params {
       String line;
       while ((line = in.readLine()) != null) {
         String[] pair = Lists.newArrayList(Splitter.on('\t').split(line)).toArray(new String[2]);
-        weights.put(pair[0], Double.parseDouble(pair[1]));
-        weights.put(prefix + pair[0], Double.parseDouble(pair[1]));
+        putWeightIfIndexed(featureIndex.getOrCreateIndex(pair[0]), Double.parseDouble(pair[1]));
+        putWeightIfIndexed(featureIndex.getOrCreateIndex(prefix + pair[0]), Double.parseDouble(pair[1]));
       }
       in.close();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
-    LogInfo.logs("Read %s weights", weights.size());
+    LogInfo.logs("Read %s weights", weightsNum);
     LogInfo.end_track();
   }
 
   // Update weights by adding |gradient| (modified appropriately with step size).
-  public synchronized void update(Map<String, Double> gradient) {
-    for (Map.Entry<String, Double> entry : gradient.entrySet()) {
-      String f = entry.getKey();
-      double g = entry.getValue();
+  // Modified (delegates to update(IndexedSparseVector)). --Ofer Givoli
+  public void update(Map<String, Double> gradient) {
+    IndexedSparseVector indexedGradient = new IndexedSparseVector();
+    indexedGradient.increment(gradient, featureIndex); // features with no index (the index is frozen) are skipped.
+    update(indexedGradient);
+  }
+
+  // Added (the same as update(Map), but the gradient is indexed by |featureIndex|, so no feature names are hashed). --Ofer Givoli
+  public synchronized void update(IndexedSparseVector gradient) {
+    for (int i = 0; i < gradient.size(); i++) {
+      int f = gradient.getIndexAt(i);
+      double g = gradient.getValueAt(i);
       if (g * g == 0) continue;  // In order to not divide by zero
 
+      ensureCapacity(f); // Added. --Ofer Givoli
       if (l1Reg == L1Reg.LAZY) lazyL1Update(f);
       double stepSize = computeStepSize(f, g);
 
@@ -125,26 +147,26 @@ public class Params {
           throw new RuntimeException("Dual averaging not supported when " +
                   "step-size changes across iterations for " +
                   "features for which the gradient is zero");
-        MapUtils.incr(sumGradients, f, g);
-        MapUtils.set(weights, f, stepSize * sumGradients.get(f));
+        sumGradients[f] = getOrZero(sumGradients, f) + g;
+        putWeight(f, stepSize * sumGradients[f]);
       } else {
         if (stepSize * g == Double.POSITIVE_INFINITY || stepSize * g == Double.NEGATIVE_INFINITY) {
-          LogInfo.logs("WEIRD FEATURE UPDATE: feature=%s, currentWeight=%s, stepSize=%s, gradient=%s", f, getWeight(f), stepSize, g);
+          LogInfo.logs("WEIRD FEATURE UPDATE: feature=%s, currentWeight=%s, stepSize=%s, gradient=%s", featureIndex.getFeature(f), getWeight(f), stepSize, g);
           throw new RuntimeException("Gradient absolute value is too large or too small");
         }
         double update = stepSize * g; // extracted. --Ofer Givoli
         if (ExperimentRunner.isExperimentCurrentlyRunning()) // Added block.
-          update = ExperimentRunner.getCurrentExperiment().calcWeightUpdate(f,update);
-        MapUtils.incr(weights, f, update); // added new weight calculation logic. --Ofer Givoli
-        if (l1Reg == L1Reg.LAZY) l1UpdateTimeMap.put(f, numUpdates);
+          update = ExperimentRunner.getCurrentExperiment().calcWeightUpdate(f, update);
+        putWeight(f, getOrZero(weights, f) + update); // added new weight calculation logic. --Ofer Givoli
+        if (l1Reg == L1Reg.LAZY) l1UpdateTimes[f] = numUpdates;
       }
     }
     // non lazy implementation goes over all weights
     if (l1Reg == L1Reg.NONLAZY) {
-      Set<String> features = new HashSet<String>(weights.keySet());
-      for (String f : features) {
+      for (int f = 0; f < weights.length; f++) {
+        if (Double.isNaN(weights[f])) continue;
         double stepSize = computeStepSize(f, 0d); // no update for gradient here
-        double update = opts.l1RegCoeff * -Math.signum(MapUtils.getDouble(weights, f, opts.defaultWeight));
+        double update = opts.l1RegCoeff * -Math.signum(weights[f]);
         clipUpdate(f, stepSize * update);
       }
     }
@@ -157,14 +179,14 @@ public class Params {
     }
   }
 
-  private double computeStepSize(String feature, double gradient) {
+  private double computeStepSize(int feature, double gradient) {
     if (opts.adaptiveStepSize) {
-      MapUtils.incr(sumSquaredGradients, feature, gradient * gradient);
+      sumSquaredGradients[feature] = getOrZero(sumSquaredGradients, feature) + gradient * gradient;
       // ugly - adding one to the denominator when using l1 reg.
       if (l1Reg != L1Reg.NONE)
-        return opts.initStepSize / (Math.sqrt(sumSquaredGradients.get(feature) + 1));
+        return opts.initStepSize / (Math.sqrt(sumSquaredGradients[feature] + 1));
       else
-        return opts.initStepSize / Math.sqrt(sumSquaredGradients.get(feature));
+        return opts.initStepSize / Math.sqrt(sumSquaredGradients[feature]);
     } else {
       return opts.initStepSize / Math.pow(numUpdates, opts.stepSizeReduction);
     }
@@ -173,59 +195,118 @@ public class Params {
   /*
    * If the update changes the sign, remove the feature
    */
-  private void clipUpdate(String f, double update) {
-    double currWeight = MapUtils.getDouble(weights, f, 0);
+  private void clipUpdate(int f, double update) {
+    double currWeight = getOrZero(weights, f);
     if (currWeight == 0)
       return;
 
     if (currWeight * (currWeight + update) < 0.0)  {
-      weights.remove(f);
+      removeWeight(f);
     } else {
-      MapUtils.incr(weights, f, update);
+      putWeight(f, currWeight + update);
     }
   }
 
-  private void lazyL1Update(String f) {
-    if (MapUtils.getDouble(weights, f, 0.0) == 0) return;
+  private void lazyL1Update(int f) {
+    if (getOrZero(weights, f) == 0) return;
     // For pre-initialized weights, which have no updates yet
-    if (sumSquaredGradients.get(f) == null || l1UpdateTimeMap.get(f) == null) {
-      l1UpdateTimeMap.put(f, numUpdates);
-      sumSquaredGradients.put(f, 0.0);
+    if (Double.isNaN(sumSquaredGradients[f]) || l1UpdateTimes[f] == -1) {
+      l1UpdateTimes[f] = numUpdates;
+      sumSquaredGradients[f] = 0.0;
       return;
     }
-    int numOfIter = numUpdates - MapUtils.get(l1UpdateTimeMap, f, 0);
+    int numOfIter = numUpdates - l1UpdateTimes[f];
     if (numOfIter == 0) return;
-    if (numOfIter < 0) throw new RuntimeException("l1UpdateTimeMap is out of sync.");
+    if (numOfIter < 0) throw new RuntimeException("l1UpdateTimes is out of sync.");
 
-    double stepSize = (numOfIter * opts.initStepSize) / (Math.sqrt(sumSquaredGradients.get(f) + 1));
-    double update = -opts.l1RegCoeff * Math.signum(MapUtils.getDouble(weights, f, 0.0));
+    double stepSize = (numOfIter * opts.initStepSize) / (Math.sqrt(sumSquaredGradients[f] + 1));
+    double update = -opts.l1RegCoeff * Math.signum(weights[f]);
     clipUpdate(f, stepSize * update);
-    if (weights.containsKey(f))
-      l1UpdateTimeMap.put(f, numUpdates);
+    if (!Double.isNaN(weights[f]))
+      l1UpdateTimes[f] = numUpdates;
     else
-      l1UpdateTimeMap.remove(f);
+      l1UpdateTimes[f] = -1;
+  }
+
+  public double getWeight(String f) { // Modified (not synchronized, see getWeight(int)). --Ofer Givoli
+    return getWeight(featureIndex.getIndex(f)); // Modified (features are indices). --Ofer Givoli
   }
 
-  public synchronized double getWeight(String f) {
-    if (l1Reg == L1Reg.LAZY)
-      lazyL1Update(f);
-    return getWeightWithoutUpdate(f); // extracted this method. --Ofer Givoli
+  /**
+   * Added. --Ofer Givoli
+   * Locks this object only when lazy L1 regularization is used (as it may update the weight), so concurrent inferences
+   * (see {@link Learner.Options#trainingThreads}) don't contend on reading the weights.
+   * @param f an index in {@link FeatureIndex#getInstance()}, or -1 for a feature that has no index.
+   */
+  public double getWeight(int f) {
+    if (l1Reg == L1Reg.LAZY) {
+      synchronized (this) {
+        if (f >= 0 && f < weights.length)
+          lazyL1Update(f);
+        return getWeightWithoutUpdate(f);
+      }
+    }
+    return getWeightWithoutUpdate(f);
   }
 
   public double getWeightWithoutUpdate(String f) { // Extracted this method. --Ofer Givoli
-    if (opts.initWeightsRandomly)
-      return MapUtils.getDouble(weights, f, 2 * opts.initRandom.nextDouble() - 1);
-    else {
-      return MapUtils.getDouble(weights, f, opts.defaultWeight);
+    return getWeightWithoutUpdate(featureIndex.getIndex(f));
+  }
+
+  private double getWeightWithoutUpdate(int f) { // Added. --Ofer Givoli
+    double[] weights = this.weights; // may be replaced by a larger copy meanwhile.
+    boolean hasWeight = f >= 0 && f < weights.length && !Double.isNaN(weights[f]);
+    if (opts.initWeightsRandomly) {
+      Random initRandom = initRandomOfCurrentThread.get(); // Modified. --Ofer Givoli
+      double randomWeight = 2 * (initRandom != null ? initRandom : opts.initRandom).nextDouble() - 1;
+      return hasWeight ? weights[f] : randomWeight;
+    } else {
+      return hasWeight ? weights[f] : opts.defaultWeight;
     }
   }
 
-  public synchronized Map<String, Double> getWeights() { finalizeWeights(); return weights; }
+  /**
+   * Added. --Ofer Givoli
+   * @param initRandom used by the current thread instead of opts.initRandom. May be null, in order to use
+   *                   opts.initRandom again.
+   */
+  public static void setInitRandomOfCurrentThread(Random initRandom) {
+    if (initRandom == null)
+      initRandomOfCurrentThread.remove();
+    else
+      initRandomOfCurrentThread.set(initRandom);
+  }
+
+  /**
+   * Added. --Ofer Givoli
+   * Sets the weight of 'feature' (without affecting the AdaGrad state).
+   */
+  public synchronized void setWeight(String feature, double weight) {
+    int f = featureIndex.getOrCreateIndex(feature);
+    if (f < 0)
+      throw new RuntimeException("The feature index is frozen and has no index for: " + feature);
+    putWeight(f, weight);
+  }
+
+  // Modified: returns a copy. --Ofer Givoli
+  public synchronized Map<String, Double> getWeights() { finalizeWeights(); return getWeightsWithoutUpdate(); }
+
+  /**
+   * Added. --Ofer Givoli
+   * @return a new map from every feature that has a weight to its weight.
+   */
+  private synchronized Map<String, Double> getWeightsWithoutUpdate() {
+    Map<String, Double> result = new HashMap<>(weightsNum * 2);
+    for (int f = 0; f < weights.length; f++)
+      if (!Double.isNaN(weights[f]))
+        result.put(featureIndex.getFeature(f), weights[f]);
+    return result;
+  }
 
   public void write(PrintWriter out) { write(null, out); }
 
   public void write(String prefix, PrintWriter out) {
-    List<Map.Entry<String, Double>> entries = Lists.newArrayList(weights.entrySet());
+    List<Map.Entry<String, Double>> entries = Lists.newArrayList(getWeightsWithoutUpdate().entrySet());
     Collections.sort(entries, new ValueComparator<String, Double>(true));
     for (Map.Entry<String, Double> entry : entries) {
       double value = entry.getValue();
@@ -243,7 +324,7 @@ public class Params {
 
   public void log() {
     LogInfo.begin_track("Params");
-    List<Map.Entry<String, Double>> entries = Lists.newArrayList(weights.entrySet());
+    List<Map.Entry<String, Double>> entries = Lists.newArrayList(getWeightsWithoutUpdate().entrySet());
     Collections.sort(entries, new ValueComparator<String, Double>(true));
     for (Map.Entry<String, Double> entry : entries) {
       double value = entry.getValue();
@@ -254,16 +335,16 @@ public class Params {
 
   public synchronized void finalizeWeights() {
     if (l1Reg == L1Reg.LAZY) {
-      Set<String> features = new HashSet<>(weights.keySet());
-      for (String f : features)
-        lazyL1Update(f);
+      for (int f = 0; f < weights.length; f++)
+        if (!Double.isNaN(weights[f]))
+          lazyL1Update(f);
     }
   }
 
   public Params copyParams()  {
     Params result = new Params();
     for (String feature : this.getWeights().keySet()) {
-      result.weights.put(feature, this.getWeight(feature));
+      result.setWeight(feature, this.getWeight(feature));
     }
     return result;
   }
@@ -274,21 +355,76 @@ public class Params {
     for (String feature : this.getWeights().keySet()) {
       if (feature.startsWith(prefix)) {
         String newFeature = feature.substring(prefix.length());
-        result.weights.put(newFeature, this.getWeight(feature));
+        result.setWeight(newFeature, this.getWeight(feature));
       }
     }
     return result;
   }
 
+  /**
+   * Added. --Ofer Givoli
+   * Makes sure the arrays have an element for the feature with index 'f'.
+   */
+  private void ensureCapacity(int f) {
+    if (f < weights.length)
+      return;
+    int oldLength = weights.length;
+    int newLength = Math.max(Math.max(f + 1, featureIndex.size()), 2 * oldLength);
+    double[] newWeights = Arrays.copyOf(weights, newLength);
+    Arrays.fill(newWeights, oldLength, newLength, Double.NaN);
+    weights = newWeights; // published only when filled, as it may be read without locking.
+    sumSquaredGradients = Arrays.copyOf(sumSquaredGradients, newLength);
+    sumGradients = Arrays.copyOf(sumGradients, newLength);
+    l1UpdateTimes = Arrays.copyOf(l1UpdateTimes, newLength);
+    Arrays.fill(sumSquaredGradients, oldLength, newLength, Double.NaN);
+    Arrays.fill(sumGradients, oldLength, newLength, Double.NaN);
+    Arrays.fill(l1UpdateTimes, oldLength, newLength, -1);
+  }
+
+  /**
+   * Added. --Ofer Givoli
+   */
+  private void putWeight(int f, double weight) {
+    ensureCapacity(f);
+    if (Double.isNaN(weights[f]))
+      weightsNum++;
+    weights[f] = weight;
+  }
+
+  /**
+   * Added. --Ofer Givoli
+   * Does nothing in case 'f' is -1 (i.e. the feature index is frozen and has no index for the feature).
+   */
+  private void putWeightIfIndexed(int f, double weight) {
+    if (f >= 0)
+      putWeight(f, weight);
+  }
+
+  /**
+   * Added. --Ofer Givoli
+   */
+  private void removeWeight(int f) {
+    if (!Double.isNaN(weights[f]))
+      weightsNum--;
+    weights[f] = Double.NaN;
+  }
+
+  /**
+   * Added. --Ofer Givoli
+   */
+  private static double getOrZero(double[] values, int f) {
+    return Double.isNaN(values[f]) ? 0 : values[f];
+  }
+
   public boolean isEmpty() {
-    return weights.size() == 0;
+    return weightsNum == 0;
   }
 
   public Params getRandomWeightParams()  {
     Random rand = new Random();
     Params result = new Params();
     for (String feature : this.getWeights().keySet()) {
-      result.weights.put(feature, 2 * rand.nextDouble() - 1); // between -1 and 1
+      result.setWeight(feature, 2 * rand.nextDouble() - 1); // between -1 and 1
     }
     return result;
   }
@@ -6,6 +6,8 @@ import il.ac.technion.nlp.nli.parser.general.CallbacksFromSempre;
 
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 ////////////////////////////////////////////////////////////
 
@@ -58,6 +60,9 @@ public abstract class Parser {
 
     @Option(gloss = "Dump all features (for debugging)")
     public boolean dumpAllFeatures = false;
+
+    @Option(gloss = "Number of threads used for executing the predicted derivations and computing their compatibility (1 means no parallelism). Not supported with copy-on-write or in-place method invocation")
+    public int executionThreads = 1; // Added. --Ofer Givoli
   }
 
   public static final Options opts = new Options();
@@ -92,6 +97,20 @@ public abstract class Parser {
   // TODO(joberant): move this to a separate class in charge of visualizing charts
   PrintWriter chartFillOut = null;  // For printing a machine-readable json file
 
+  // Used by ParserState for executing the predicted derivations in parallel. Owned by this parser, created on first use
+  // with |opts.executionThreads| threads (and recreated if that option changes). Added. --Ofer Givoli
+  private ForkJoinPool executionPool;
+
+  // Added. --Ofer Givoli
+  synchronized ExecutorService getExecutionPool() {
+    if (executionPool == null || executionPool.getParallelism() != opts.executionThreads) {
+      if (executionPool != null)
+        executionPool.shutdown(); // tasks already submitted still run.
+      executionPool = new ForkJoinPool(opts.executionThreads);
+    }
+    return executionPool;
+  }
+
   public Parser(Spec spec) {
     this.grammar = spec.grammar;
     this.extractor = spec.extractor;
@@ -4,11 +4,16 @@ package edu.stanford.nlp.sempre;
 import fig.basic.*;
 import il.ac.technion.nlp.nli.parser.experiment.ExperimentRunner;
 import il.ac.technion.nlp.nli.parser.general.CallbacksFromSempre;
+import il.ac.technion.nlp.nli.parser.general.IndexedSparseVector;
+import il.ac.technion.nlp.nli.parser.general.InferenceContext;
 import org.apache.commons.lang3.NotImplementedException;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Actually does the parsing.  Main method is infer(), whose job is to fill in
@@ -42,14 +47,16 @@ public abstract class ParserState {
   public final Evaluation evaluation = new Evaluation();
 
   // If computeExpectedCounts is true (for learning), then fill this out.
-  public Map<String, Double> expectedCounts;
+  // Modified (indexed by FeatureIndex rather than by feature names). --Ofer Givoli
+  public IndexedSparseVector expectedCounts;
   public double objectiveValue;
 
   // Statistics generated while parsing
   public final int numTokens;
   public long parseTime;  // Number of milliseconds to parse this example
   public int maxCellSize; // Maximum number of derivations in any chart cell prior to pruning.
-  public String maxCellDescription; // Description of that cell (for debugging)
+  public String maxCellDescription; // Description of that cell (for debugging). Modified: set by setEvaluation(). --Ofer Givoli
+  private Object maxCell; // That cell, see pruneCell(). Added. --Ofer Givoli
   public boolean fallOffBeam; // Did any hypotheses fall off the beam?
   public int totalGeneratedDerivs; // Total number of derivations produced
   public int numOfFeaturizedDerivs = 0; // Number of derivations featured
@@ -90,16 +97,18 @@ public abstract class ParserState {
    * Prune down the number of derivations in |derivations| to the beam size.
    * Sort the beam by score.
    * Update beam statistics.
+   * Modified: |cell| is described by its toString(), which is called only when needed (so the description is not
+   * built for every cell that is pruned). --Ofer Givoli
    */
-  protected void pruneCell(String cellDescription, List<Derivation> derivations) {
+  protected void pruneCell(Object cell, List<Derivation> derivations) {
     if (derivations == null) return;
 
     // Update stats about cell size.
     if (derivations.size() > maxCellSize) {
       maxCellSize = derivations.size();
-      maxCellDescription = cellDescription;
+      maxCell = cell; // Modified. --Ofer Givoli
       if (maxCellSize > 5000)
-        LogInfo.logs("ParserState.pruneCell %s: %s entries", maxCellDescription, maxCellSize);
+        LogInfo.logs("ParserState.pruneCell %s: %s entries", maxCell, maxCellSize);
     }
 
     // The extra code blocks in here that set |deriv.maxXBeamPosition|
@@ -134,7 +143,7 @@ public abstract class ParserState {
 
     // Print out information
     if (parser.opts.verbose >= 3) {
-      LogInfo.begin_track("ParserState.pruneCell(%s): %d derivations", cellDescription, derivations.size());
+      LogInfo.begin_track("ParserState.pruneCell(%s): %d derivations", cell, derivations.size());
       for (Derivation deriv : derivations) {
         LogInfo.logs("%s(%s,%s): %s %s, [score=%s]", deriv.cat, deriv.start, deriv.end, deriv.formula,
                 deriv.canonicalUtterance, deriv.score);
@@ -236,23 +245,77 @@ public abstract class ParserState {
   // Ensure that all the logical forms are executed and compatibilities are computed.
   protected void ensureExecuted() {
     LogInfo.begin_track("Parser.ensureExecuted");
+    boolean executeTopFormulaOnly = !computeExpectedCounts && Parser.opts.executeTopFormulaOnly; // Added. --Ofer Givoli
+    if (Parser.opts.executionThreads > 1 && !executeTopFormulaOnly) { // Added this block. --Ofer Givoli
+      executeAndComputeCompatibilityInParallel();
+      for (Derivation deriv : predDerivations) {
+        if (ex.targetValue != null)
+          CallbacksFromSempre.reportDerivCorrectnessWasSet(deriv, deriv.compatibility == 1);
+        evaluation.add("derivExecutionTime", deriv.executionTime);
+      }
+      LogInfo.end_track();
+      return;
+    }
     // Execute predicted derivations to get value.
     for (Derivation deriv : predDerivations) {
-      deriv.ensureExecuted(parser.executor, ex.context);
-      if (ex.targetValue != null) {
-        deriv.compatibility = parser.valueEvaluator.getCompatibility(ex.targetValue, deriv.value);
+      executeAndComputeCompatibility(deriv, false); // Modified. --Ofer Givoli
+      if (ex.targetValue != null)
         CallbacksFromSempre.reportDerivCorrectnessWasSet(deriv,deriv.compatibility == 1); //Added. --Ofer Givoli
-      }
-      if (!computeExpectedCounts && Parser.opts.executeTopFormulaOnly) break;
+      evaluation.add("derivExecutionTime", deriv.executionTime); // Added. --Ofer Givoli
+      if (executeTopFormulaOnly) break;
     }
     LogInfo.end_track();
   }
 
+  // Added. --Ofer Givoli
+  private void executeAndComputeCompatibility(Derivation deriv, boolean concurrently) {
+    long startTime = System.nanoTime();
+    if (concurrently)
+      deriv.ensureExecutedConcurrently(parser.executor, ex.context);
+    else
+      deriv.ensureExecuted(parser.executor, ex.context);
+    if (ex.targetValue != null)
+      deriv.compatibility = parser.valueEvaluator.getCompatibility(ex.targetValue, deriv.value);
+    deriv.executionTime = (System.nanoTime() - startTime) / 1000000;
+  }
+
+  // Executes all the predicted derivations and computes their compatibility using |Parser.opts.executionThreads|
+  // threads, and waits for all of them to finish. Each derivation is handled by a single task, so the results are the
+  // same as when done sequentially. Added. --Ofer Givoli
+  private void executeAndComputeCompatibilityInParallel() {
+    InferenceContext context = InferenceContext.ofCurrentThread();
+    List<Callable<Void>> tasks = new ArrayList<>(predDerivations.size());
+    for (Derivation deriv : predDerivations) {
+      tasks.add(() -> {
+        // The execution reads the data of the inference, which is per thread.
+        context.makeCurrent();
+        try {
+          executeAndComputeCompatibility(deriv, true);
+        } finally {
+          InferenceContext.clearCurrent();
+        }
+        return null;
+      });
+    }
+    try {
+      for (Future<Void> future : parser.getExecutionPool().invokeAll(tasks))
+        future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
   // Add statistics to |evaluation|.
   // Override if we have more statistics.
   protected void setEvaluation() {
     evaluation.add("numTokens", numTokens);
     evaluation.add("parseTime", parseTime);
+    maxCellDescription = maxCell == null ? null : maxCell.toString(); // Added. --Ofer Givoli
     evaluation.add("maxCellSize", maxCellDescription, maxCellSize);
     evaluation.add("fallOffBeam", fallOffBeam);
     evaluation.add("totalDerivs", totalGeneratedDerivs);
@@ -270,7 +333,7 @@ public abstract class ParserState {
    * according to a standard exponential family model over a finite set of derivations.
    * Assume that everything has been executed, and compatibility has been computed.
    */
-  public static void computeExpectedCounts(List<Derivation> derivations, Map<String, Double> counts) {
+  public static void computeExpectedCounts(List<Derivation> derivations, IndexedSparseVector counts) { // Modified (indexed). --Ofer Givoli
     double[] trueScores;
     double[] predScores;
 
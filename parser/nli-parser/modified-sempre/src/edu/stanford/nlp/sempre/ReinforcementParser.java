@@ -1,9 +1,12 @@
+//NOTICE: this file was modified by Ofer Givoli (i.e. it's not identical to the matching file in the original Sempre package).
 package edu.stanford.nlp.sempre;
 
 import com.google.common.base.Joiner;
 import fig.basic.*;
 import fig.exec.Execution;
 import fig.prob.SampleUtils;
+import il.ac.technion.nlp.nli.parser.general.FeatureIndex; // Added. --Ofer Givoli
+import il.ac.technion.nlp.nli.parser.general.IndexedSparseVector; // Added. --Ofer Givoli
 
 import java.util.*;
 
@@ -260,7 +263,7 @@ final class ReinforcementParserState extends AbstractReinforcementParserState {
       return;
 
     ReinforcementParserState oracleState = null;
-    expectedCounts = new HashMap<>();
+    expectedCounts = new IndexedSparseVector(); // Modified. --Ofer Givoli
     if (computeExpectedCounts && !ReinforcementParser.opts.simulateNonRlObjective) { // when updating params we first find a correct derivation to set the oracle sampler
       // TODO(jonathan): move to ReinforcementParser, not ParserState
       LogInfo.begin_track("Finding oracle derivation");
@@ -509,13 +512,16 @@ final class ReinforcementParserState extends AbstractReinforcementParserState {
     // final gradient computation
     Map<String, Double> sampleCounts = new HashMap<>();
     if (ReinforcementParser.opts.simulateNonRlObjective) {
-      ParserState.computeExpectedCounts(predDerivations, sampleCounts);
+      // Modified (computeExpectedCounts gives indexed counts). --Ofer Givoli
+      IndexedSparseVector nonRlCounts = new IndexedSparseVector();
+      ParserState.computeExpectedCounts(predDerivations, nonRlCounts);
+      sampleCounts = nonRlCounts.toMap(FeatureIndex.getInstance());
     } else {
       sampleCounts = ReinforcementUtils.multiplyDoubleMap(stateSequenceExpectedCounts, rewardExpectation);
       SempreUtils.addToDoubleMap(sampleCounts, rewardInfusedFeatureExpectation);
       ReinforcementUtils.subtractFromDoubleMap(sampleCounts, ReinforcementUtils.multiplyDoubleMap(featureExpectation, rewardExpectation));
     }
-    SempreUtils.addToDoubleMap(expectedCounts, sampleCounts);
+    expectedCounts.increment(sampleCounts, FeatureIndex.getInstance()); // Modified. --Ofer Givoli
 
     double sum = 0d;
     for (String key : sampleCounts.keySet()) {
@@ -15,8 +15,10 @@ import com.sun.net.httpserver.Headers;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 
@@ -48,12 +50,43 @@ public class Server {
     @Option public String basePath = "demo-www";
     @Option public int verbose = 1;
     @Option public int htmlVerbose = 1;
+
+    // Added. --Ofer Givoli
+    @Option(gloss = "Maximum number of requests waiting for a thread. When reached, the server stops accepting " +
+        "connections until a request is taken by a thread (so further clients wait in the connection backlog)")
+    public int maxQueuedRequests = 64;
+    @Option(gloss = "Log the latency statistics every this many queries (0 for never)")
+    public int latencyLogFrequency = 100;
   }
   public static Options opts = new Options();
 
   Master master;
   public static final HtmlUtils H = new HtmlUtils();
 
+  // Latency statistics (in milliseconds), guarded by |this|.
+  // Added. --Ofer Givoli
+  static class Latencies {
+    // From the time a request is received until a thread starts handling it.
+    final StatFig queueing = new StatFig();
+    // From the time a thread starts handling a query until the response is sent.
+    final StatFig queryHandling = new StatFig();
+
+    synchronized void addQueueing(long nanos) {
+      queueing.add(nanos / 1e6);
+    }
+
+    synchronized void addQueryHandling(long nanos) {
+      queryHandling.add(nanos / 1e6);
+      if (opts.latencyLogFrequency > 0 && (long) queryHandling.count() % opts.latencyLogFrequency == 0)
+        log();
+    }
+
+    synchronized void log() {
+      LogInfo.logs("Server latencies (ms): queueing: %s; query handling: %s", queueing, queryHandling);
+    }
+  }
+  final Latencies latencies = new Latencies(); // Added. --Ofer Givoli
+
   class Handler implements HttpHandler {
     public void handle(HttpExchange exchange) {
       try {
@@ -122,7 +155,9 @@ public class Server {
       String uriPath = uri.getPath();
       if (uriPath.equals("/")) uriPath += "index.html";
       if (uriPath.equals("/sempre")) {
+        long startTime = System.nanoTime(); // Added. --Ofer Givoli
         handleQuery(sessionId);
+        latencies.addQueryHandling(System.nanoTime() - startTime); // Added. --Ofer Givoli
       } else {
         getFile(opts.basePath + uriPath);
       }
@@ -656,13 +691,42 @@ public class Server {
     this.master = master;
   }
 
+  // Returns a pool whose queue holds at most |maxQueuedRequests| requests. When the queue is full, execute() waits for
+  // room in it rather than queueing requests without bound (so when the thread dispatching the requests is that of an
+  // HttpServer, further clients wait in the connection backlog meanwhile).
+  // Once the pool is shut down, requests are rejected, including the ones waiting for room.
+  // Added. --Ofer Givoli
+  public static ThreadPoolExecutor createRequestPool(int numThreads, int maxQueuedRequests) {
+    return new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(maxQueuedRequests), (request, executor) -> {
+          if (executor.isShutdown())
+            throw new RejectedExecutionException("Server is shutting down");
+          try {
+            executor.getQueue().put(request);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+          }
+          // The pool may have been shut down while waiting, and its threads may have already exited (after running
+          // the requests queued before), in which case |request| would never run.
+          if (executor.isShutdown() && executor.remove(request))
+            throw new RejectedExecutionException("Server is shutting down");
+        });
+  }
+
   void run() {
     try {
       String hostname = fig.basic.SysInfoUtils.getHostName();
       HttpServer server = HttpServer.create(new InetSocketAddress(opts.port), 10);
-      ExecutorService pool = Executors.newFixedThreadPool(opts.numThreads);
+      ThreadPoolExecutor pool = createRequestPool(opts.numThreads, opts.maxQueuedRequests); // Modified. --Ofer Givoli
       server.createContext("/", new Handler());
-      server.setExecutor(pool);
+      server.setExecutor(request -> {  // Modified (measures the queueing time). --Ofer Givoli
+        long receiveTime = System.nanoTime();
+        pool.execute(() -> {
+          latencies.addQueueing(System.nanoTime() - receiveTime);
+          request.run();
+        });
+      });
       server.start();
       LogInfo.logs("Server started at http://%s:%s/sempre", hostname, opts.port);
       LogInfo.log("Press Ctrl-D to terminate.");
@@ -671,6 +735,7 @@ public class Server {
       server.stop(0);
       LogInfo.log("Shutting down executor pool...");
       pool.shutdown();
+      latencies.log(); // Added. --Ofer Givoli
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -1,3 +1,4 @@
+//NOTICE: this file was modified by Ofer Givoli (i.e. it's not identical to the matching file in the original Sempre package).
 package edu.stanford.nlp.sempre.corenlp;
 
 import edu.stanford.nlp.sempre.*;
@@ -49,9 +50,10 @@ public class CoreNLPAnalyzer extends LanguageAnalyzer {
   private static final Set<String> AUX_VERBS = new HashSet<String>(Arrays.asList(AUX_VERB_ARR));
   private static final String AUX_VERB_TAG = "VBD-AUX";
 
-  public static StanfordCoreNLP pipeline = null;
+  public static volatile StanfordCoreNLP pipeline = null; // Modified (volatile). --Ofer Givoli
 
-  public static void initModels() {
+  // Modified (synchronized: may be called by multiple threads analyzing utterances concurrently). --Ofer Givoli
+  public static synchronized void initModels() {
     if (pipeline != null) return;
     Properties props = new Properties();
     props.put("annotators", Joiner.on(',').join(opts.annotators));
@@ -93,7 +95,8 @@ public class CoreNLPAnalyzer extends LanguageAnalyzer {
     utterance = breakHyphens(utterance);
 
     // Run Stanford CoreNLP
-    initModels();
+    if (pipeline == null) // Modified (the lock of initModels() is taken only until the models are loaded). --Ofer Givoli
+      initModels();
     Annotation annotation = pipeline.process(utterance);
 
     for (CoreLabel token : annotation.get(CoreAnnotations.TokensAnnotation.class)) {
@@ -1,9 +1,11 @@
+//NOTICE: this file was modified by Ofer Givoli (i.e. it's not identical to the matching file in the original Sempre package).
 package edu.stanford.nlp.sempre.tables;
 
 import java.util.*;
 
 import edu.stanford.nlp.sempre.*;
 import fig.basic.*;
+import il.ac.technion.nlp.nli.parser.general.IndexedSparseVector; // Added. --Ofer Givoli
 
 /**
  * A DPParser parses utterances like a FloatingParser,
@@ -554,7 +556,7 @@ class DPParserState extends ParserState {
     collectFinalDerivations();
     ensureExecuted();
     if (computeExpectedCounts) {
-      expectedCounts = new HashMap<>();
+      expectedCounts = new IndexedSparseVector(); // Modified. --Ofer Givoli
       ParserState.computeExpectedCounts(predDerivations, expectedCounts);
     }
     StopWatchSet.end();
@@ -1,3 +1,4 @@
+//NOTICE: this file was modified by Ofer Givoli (i.e. it's not identical to the matching file in the original Sempre package).
 package edu.stanford.nlp.sempre.tables.baseline;
 
 import java.util.*;
@@ -5,6 +6,7 @@ import java.util.*;
 import edu.stanford.nlp.sempre.*;
 import edu.stanford.nlp.sempre.tables.*;
 import fig.basic.*;
+import il.ac.technion.nlp.nli.parser.general.IndexedSparseVector; // Added. --Ofer Givoli
 
 /**
  * Baseline parser for table.
@@ -46,7 +48,7 @@ class TableBaselineParserState extends ParserState {
     // Execute + Compute expected counts
     ensureExecuted();
     if (computeExpectedCounts) {
-      expectedCounts = new HashMap<>();
+      expectedCounts = new IndexedSparseVector(); // Modified. --Ofer Givoli
       ParserState.computeExpectedCounts(predDerivations, expectedCounts);
     }
     LogInfo.end_track();
@@ -9,6 +9,7 @@ import fig.basic.Option;
 import il.ac.technion.nlp.nli.parser.experiment.ExperimentRunner;
 import il.ac.technion.nlp.nli.parser.NliMethodCallFormula;
 import il.ac.technion.nlp.nli.parser.NameValuesManager;
+import il.ac.technion.nlp.nli.parser.general.LanguageAnalysisCache;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -151,19 +152,12 @@ public class PredicateInfo {
   // Get original strings and lemmas
   // ============================================================
 
-  // Lemma cache
-  private static final Map<String, String> lemmaCache = new HashMap<>();
-
   // Helper function: get lemma form
-  public static synchronized String getLemma(String s) {
+  // Modified (not synchronized: the lemmas are cached by a concurrent bounded cache, and the analyzer singleton is
+  // thread-safe, see LanguageAnalyzer.getSingleton()). --Ofer Givoli
+  public static String getLemma(String s) {
     if (s == null || s.trim().isEmpty()) return null;
-    String lemma = lemmaCache.get(s);
-    if (lemma == null) {
-      LanguageInfo langInfo = LanguageAnalyzer.getSingleton().analyze(s);
-      lemma = (langInfo.numTokens() == 0) ? "" : langInfo.lemmaPhrase(0, langInfo.numTokens());
-      lemmaCache.put(s, lemma);
-    }
-    return lemma;
+    return LanguageAnalysisCache.getInstance().getLemma(s);
   }
 
 
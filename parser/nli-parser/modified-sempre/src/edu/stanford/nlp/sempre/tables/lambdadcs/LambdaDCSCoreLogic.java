@@ -4,6 +4,7 @@ import edu.stanford.nlp.sempre.*;
 import fig.basic.Evaluation;
 import fig.basic.LogInfo;
 import fig.basic.Pair;
+import il.ac.technion.nlp.nli.parser.InstructionKnowledgeGraph;
 import il.ac.technion.nlp.nli.parser.NliMethodCallFormula;
 
 import java.util.ArrayList;
@@ -73,12 +74,11 @@ public class LambdaDCSCoreLogic { // made public. --Ofer Givoli
 
     if (LambdaDCSExecutor.opts.useCache) {
       Object object = ExecutorCache.singleton.get(graph, formula);
-      if (object != null && object instanceof UnaryDenotation) {
-        stats.addCumulative("cacheHit", true);
-        return (UnaryDenotation) object;
-      } else {
-        stats.addCumulative("cacheHit", false);
+      synchronized (stats) { // added synchronization (the executor may be used concurrently). --Ofer Givoli
+        stats.addCumulative("cacheHit", object != null && object instanceof UnaryDenotation);
       }
+      if (object != null && object instanceof UnaryDenotation)
+        return (UnaryDenotation) object;
     }
 
     if (formula instanceof ValueFormula) {
@@ -100,22 +100,13 @@ public class LambdaDCSCoreLogic { // made public. --Ofer Givoli
       // JoinFormula
       // ============================================================
       JoinFormula join = (JoinFormula) formula;
-      try {
-        // Compute unary, then join binary
-        UnaryDenotation childD = computeUnary(join.child, typeHint.newUnrestrictedUnary());
-        BinaryDenotation relationD = computeBinary(join.relation, typeHint.asFirstOfBinaryWithSecond(childD));
-        return typeHint.applyBound(relationD.joinSecond(childD, graph));
-      } catch (LambdaDCSException e1) {
-        try {
-          // Compute binary, then join unary
-          BinaryDenotation relationD = computeBinary(join.relation, typeHint.asFirstOfBinary());
-          UnaryDenotation childUpperBound = relationD.joinFirst(typeHint.upperBound, graph);
-          UnaryDenotation childD = computeUnary(join.child, typeHint.newRestrictedUnary(childUpperBound));
-          return typeHint.applyBound(relationD.joinSecond(childD, graph));
-        } catch (LambdaDCSException e2) {
-          throw new LambdaDCSException(LambdaDCSException.Type.unknown, "Cannot join | %s | %s", e1, e2);
-        }
+      if (LambdaDCSExecutor.opts.joinRelationChainsAtOnce && graph instanceof InstructionKnowledgeGraph) { // Added. --Ofer Givoli
+        UnaryDenotation chainD = computeJoinChainAtOnce(join, typeHint);
+        if (chainD != null)
+          return chainD;
       }
+      // Modified: the code of this case was extracted to computeJoin() and computeJoinWithRestrictedChild(). --Ofer Givoli
+      return computeJoin(join, typeHint);
 
     } else if (formula instanceof MergeFormula) {
       // ============================================================
@@ -216,6 +207,102 @@ public class LambdaDCSCoreLogic { // made public. --Ofer Givoli
 
 
 
+  /**
+   * Added (the code was in computeUnary()). --Ofer Givoli
+   */
+  private UnaryDenotation computeJoin(JoinFormula join, UnaryTypeHint typeHint) {
+    LambdaDCSException e1;
+    try {
+      // Compute unary, then join binary
+      UnaryDenotation childD = computeUnary(join.child, typeHint.newUnrestrictedUnary());
+      BinaryDenotation relationD = computeBinary(join.relation, typeHint.asFirstOfBinaryWithSecond(childD));
+      return typeHint.applyBound(relationD.joinSecond(childD, graph));
+    } catch (LambdaDCSException e) {
+      e1 = e;
+    }
+    return computeJoinWithRestrictedChild(join, typeHint, e1);
+  }
+
+  /**
+   * Added (the code was in computeUnary()). --Ofer Givoli
+   * The fallback of computeJoin(), used after computing |join| with an unrestricted child failed with |e1|.
+   */
+  private UnaryDenotation computeJoinWithRestrictedChild(JoinFormula join, UnaryTypeHint typeHint,
+                                                         LambdaDCSException e1) {
+    try {
+      // Compute binary, then join unary
+      BinaryDenotation relationD = computeBinary(join.relation, typeHint.asFirstOfBinary());
+      UnaryDenotation childUpperBound = relationD.joinFirst(typeHint.upperBound, graph);
+      UnaryDenotation childD = computeUnary(join.child, typeHint.newRestrictedUnary(childUpperBound));
+      return typeHint.applyBound(relationD.joinSecond(childD, graph));
+    } catch (LambdaDCSException e2) {
+      throw new LambdaDCSException(LambdaDCSException.Type.unknown, "Cannot join | %s | %s", e1, e2);
+    }
+  }
+
+  /**
+   * Added. --Ofer Givoli
+   * Computes the chain of joins with relation predicates starting at |join| (e.g., (r1 (r2 X))) with a single call to
+   * InstructionKnowledgeGraph.joinSecondAlongPath(), so the intermediate unaries are not materialized. The result is
+   * identical to the one of computeJoin() (including the order of the values and their multiplicities).
+   * Joins with the 'next' relation end the chain, because whether the regular logic succeeds for them depends on the
+   * type hint (see InstructionKnowledgeGraph.filterSecond()).
+   * The innermost child X is computed once. If that fails, the innermost join is computed by the fallback of the
+   * regular logic (as computeJoin() does), and the rest of the chain is joined with its result; if the fallback fails
+   * too, the exception is thrown (rather than computing X again for every join of the chain).
+   * Returns null if |join| does not join a relation predicate.
+   */
+  private UnaryDenotation computeJoinChainAtOnce(JoinFormula join, UnaryTypeHint typeHint) {
+    InstructionKnowledgeGraph instructionGraph = (InstructionKnowledgeGraph) graph;
+    List<Value> relationPath = new ArrayList<>();
+    JoinFormula innermostJoin = null;
+    Formula child = join;
+    while (child instanceof JoinFormula) {
+      Value relation = getRelationPredicate(((JoinFormula) child).relation);
+      if (relation == null || isNextRelation(instructionGraph, relation)) break;
+      relationPath.add(relation);
+      innermostJoin = (JoinFormula) child;
+      child = innermostJoin.child;
+    }
+    if (relationPath.isEmpty()) return null;
+    // The type hint of the innermost join (the joins inside the chain compute their child with an unrestricted hint).
+    UnaryTypeHint innermostJoinTypeHint = relationPath.size() == 1 ? typeHint : typeHint.newUnrestrictedUnary();
+    UnaryDenotation childD;
+    try {
+      childD = computeUnary(child, typeHint.newUnrestrictedUnary());
+    } catch (LambdaDCSException e) {
+      childD = computeJoinWithRestrictedChild(innermostJoin, innermostJoinTypeHint, e);
+      relationPath.remove(relationPath.size() - 1);
+      if (relationPath.isEmpty())
+        return childD; // the type hint was already applied.
+    }
+    return typeHint.applyBound(new ExplicitUnaryDenotation(
+        instructionGraph.joinSecondAlongPath(relationPath, childD)));
+  }
+
+  /**
+   * Added. --Ofer Givoli
+   */
+  private static boolean isNextRelation(InstructionKnowledgeGraph graph, Value relation) {
+    return relation.equals(graph.NEXT_RELATION_NV) ||
+        relation.equals(KnowledgeGraph.getReversedPredicate(graph.NEXT_RELATION_NV));
+  }
+
+  /**
+   * Added. --Ofer Givoli
+   * Returns the (possibly reversed) predicate if |formula| is a relation predicate or its reverse, and null otherwise.
+   */
+  private static Value getRelationPredicate(Formula formula) {
+    if (formula instanceof ReverseFormula) {
+      Value child = getRelationPredicate(((ReverseFormula) formula).child);
+      return child == null ? null : KnowledgeGraph.getReversedPredicate(child);
+    }
+    if (!(formula instanceof ValueFormula)) return null;
+    Value value = ((ValueFormula<?>) formula).value;
+    if (!(value instanceof NameValue) || STAR.equals(value) || SpecialBinaryDenotation.isSpecial(value)) return null;
+    return value;
+  }
+
   public BinaryDenotation computeBinary(Formula formula, BinaryTypeHint typeHint) {
     assert typeHint != null;
     if (formula instanceof ValueFormula) {
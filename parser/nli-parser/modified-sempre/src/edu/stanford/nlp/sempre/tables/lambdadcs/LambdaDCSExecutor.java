@@ -27,6 +27,9 @@ public class LambdaDCSExecutor extends Executor {
     public boolean arithmeticsFailOnMultipleElements = false;
     @Option(gloss = "Use caching")
     public boolean useCache = true;
+    // Added. --Ofer Givoli
+    @Option(gloss = "Execute chains of joins with relation predicates, e.g. (r1 (r2 X)), set-at-a-time when the graph supports it (see InstructionKnowledgeGraph.joinSecondAlongPath)")
+    public boolean joinRelationChainsAtOnce = true;
   }
   public static Options opts = new Options();
 
@@ -44,7 +47,9 @@ public class LambdaDCSExecutor extends Executor {
     stopWatch.start();
     Value answer = logic.execute(formula);
     stopWatch.stop();
-    stats.addCumulative("execTime", stopWatch.ms);
+    synchronized (stats) { // synchronized, as this method may be called concurrently (see Parser.opts.executionThreads). --Ofer Givoli
+      stats.addCumulative("execTime", stopWatch.ms);
+    }
     if (stopWatch.ms >= 10 && opts.verbose >= 1)
       LogInfo.logs("long time: %s %s", Formulas.betaReduction(formula), answer);
     /*///////// DEBUG! //////////
@@ -1,8 +1,10 @@
+//NOTICE: this file was modified by Ofer Givoli (i.e. it's not identical to the matching file in the original Sempre package).
 package edu.stanford.nlp.sempre.tables.serialize;
 
 import java.util.*;
 
 import edu.stanford.nlp.sempre.*;
+import il.ac.technion.nlp.nli.parser.general.IndexedSparseVector; // Added. --Ofer Givoli
 
 public class DummyParser extends Parser {
 
@@ -32,7 +34,7 @@ class DummyParserState extends ParserState {
       predDerivations.add(deriv);
     }
     if (computeExpectedCounts) {
-      expectedCounts = new HashMap<>();
+      expectedCounts = new IndexedSparseVector(); // Modified. --Ofer Givoli
       ParserState.computeExpectedCounts(predDerivations, expectedCounts);
     }
   }
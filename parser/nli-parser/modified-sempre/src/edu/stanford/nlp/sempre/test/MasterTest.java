@@ -0,0 +1,77 @@
+package edu.stanford.nlp.sempre.test;
+
+import edu.stanford.nlp.sempre.*;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+/**
+ * Test Master.
+ * @author Ofer Givoli
+ */
+public class MasterTest {
+  // The first execution for each session (user) waits until one for another session is executed at the same time.
+  static class MeetingExecutor extends Executor {
+    final CyclicBarrier barrier = new CyclicBarrier(2);
+    final Set<String> users = Collections.synchronizedSet(new HashSet<>());
+    volatile boolean met = true;
+    final Executor executor = new FormulaMatchExecutor();
+
+    public Response execute(Formula formula, ContextValue context) {
+      if (users.add(context.user)) {
+        try {
+          barrier.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+          met = false;
+        }
+      }
+      return executor.execute(formula, context);
+    }
+  }
+
+  @Test public void utterancesOfTwoSessionsParsedConcurrently() throws Exception {
+    boolean originalConcurrentUtterances = Master.opts.concurrentUtterances;
+    Master.opts.concurrentUtterances = true;
+    ExecutorService threads = Executors.newFixedThreadPool(2);
+    try {
+      Builder builder = new Builder();
+      builder.grammar = TestUtils.makeNumberConcatGrammar();
+      MeetingExecutor executor = new MeetingExecutor();
+      builder.executor = executor;
+      builder.buildUnspecified();
+      Master master = new Master(builder);
+
+      List<String> utterances = Arrays.asList("3 4", "5 6");
+      List<Future<Master.Response>> responses = new ArrayList<>();
+      for (int i = 0; i < utterances.size(); i++) {
+        String sessionId = "session" + i;
+        String utterance = utterances.get(i);
+        responses.add(threads.submit(() -> master.processQuery(master.getSession(sessionId), utterance)));
+      }
+      for (Future<Master.Response> response : responses)
+        assertTrue(response.get().getExample().getPredDerivations().size() > 0);
+      assertEquals(2, executor.users.size());
+      assertTrue(executor.met);
+      for (int i = 0; i < utterances.size(); i++)
+        assertEquals(utterances.get(i), master.getSession("session" + i).getLastQuery());
+    } finally {
+      threads.shutdown();
+      Master.opts.concurrentUtterances = originalConcurrentUtterances;
+    }
+  }
+}
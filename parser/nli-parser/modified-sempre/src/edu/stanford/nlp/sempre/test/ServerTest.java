@@ -0,0 +1,88 @@
+package edu.stanford.nlp.sempre.test;
+
+import edu.stanford.nlp.sempre.Server;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+/**
+ * Test the request pool of Server.
+ * @author Ofer Givoli
+ */
+public class ServerTest {
+  // Waits until |thread| waits (for room in the queue of a pool).
+  private static void awaitWaiting(Thread thread) throws InterruptedException {
+    while (thread.getState() != Thread.State.WAITING)
+      Thread.sleep(10);
+  }
+
+  // Runs |pool|'s single thread until |release| is counted down, and queues a request after it.
+  // Returns the queued request.
+  private static Runnable occupyPool(ThreadPoolExecutor pool, CountDownLatch release, AtomicInteger ranNum) {
+    pool.execute(() -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      ranNum.incrementAndGet();
+    });
+    Runnable queued = ranNum::incrementAndGet;
+    pool.execute(queued);
+    return queued;
+  }
+
+  @Test public void fullQueueBlocksDispatcher() throws Exception {
+    ThreadPoolExecutor pool = Server.createRequestPool(1, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger ranNum = new AtomicInteger();
+    occupyPool(pool, release, ranNum);
+    Thread dispatcher = new Thread(() -> pool.execute(ranNum::incrementAndGet));
+    dispatcher.start();
+    awaitWaiting(dispatcher);
+    assertEquals(1, pool.getQueue().size());
+
+    release.countDown();
+    dispatcher.join();
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(3, ranNum.get());
+  }
+
+  // A request waiting for room when the pool is shut down is rejected (rather than queued after the pool's thread
+  // may have exited).
+  @Test public void waitingRequestRejectedOnShutdown() throws Exception {
+    ThreadPoolExecutor pool = Server.createRequestPool(1, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger ranNum = new AtomicInteger();
+    Runnable queued = occupyPool(pool, release, ranNum);
+    AtomicBoolean rejected = new AtomicBoolean();
+    Thread dispatcher = new Thread(() -> {
+      try {
+        pool.execute(ranNum::incrementAndGet);
+      } catch (RejectedExecutionException e) {
+        rejected.set(true);
+      }
+    });
+    dispatcher.start();
+    awaitWaiting(dispatcher);
+
+    pool.shutdown();
+    assertTrue(pool.remove(queued));  // makes room for the waiting request.
+    dispatcher.join();
+    assertTrue(rejected.get());
+
+    release.countDown();
+    assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(1, ranNum.get());
+    assertTrue(pool.getQueue().isEmpty());
+  }
+}
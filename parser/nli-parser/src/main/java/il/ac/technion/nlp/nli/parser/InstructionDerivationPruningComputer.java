@@ -38,9 +38,7 @@ public class InstructionDerivationPruningComputer extends DerivationPruningCompu
             return false;
 
 
-        //TODO: don't use analysis logic here.
-        Example sempreExample = ExperimentRunner.getCurrentExperiment().analysis.currentSempreExampleBeingParsed;
-        //noinspection ConstantConditions
+        Example sempreExample = ExperimentRunner.getCurrentExperiment().getCurrentInferenceData().sempreExample;
         Verify.verify(sempreExample.id.equals(
                 ExperimentRunner.getCurrentExperiment().getCurrentExampleBeingParsed().getId()));
 
@@ -14,13 +14,13 @@ import il.ac.technion.nlp.nli.core.state.*;
 import il.ac.technion.nlp.nli.core.state.knowledgebase.GraphKb;
 import il.ac.technion.nlp.nli.core.state.knowledgebase.KBTriple;
 import il.ac.technion.nlp.nli.parser.kb.GraphKbWithSempreTypes;
+import il.ac.technion.nlp.nli.parser.kb.IndexedGraphKb;
 import org.apache.commons.lang3.ClassUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.time.ZonedDateTime;
 import java.util.*;
-import java.util.stream.Stream;
 
 /**
  * A {@link GraphKb} wrapper with required logic for integration into Sempre.
@@ -36,6 +36,10 @@ public class InstructionKnowledgeGraph extends KnowledgeGraph {
     public final State initialState;
     public final NameValuesManager nameValuesManager = new NameValuesManager();
     public final GraphKbWithSempreTypes kb = new GraphKbWithSempreTypes();
+    /**
+     * Created from {@link #kb} once all the facts were added, and used for answering joins.
+     */
+    public final IndexedGraphKb indexedKb;
 
     private final boolean deterministic;
 
@@ -75,6 +79,7 @@ public class InstructionKnowledgeGraph extends KnowledgeGraph {
 
 
         createFactsFromState();
+        indexedKb = new IndexedGraphKb(kb, nameValuesManager);
     }
 
 
@@ -312,34 +317,102 @@ public class InstructionKnowledgeGraph extends KnowledgeGraph {
 
         NameValue relationNV = (NameValue) relation;
 
-        Boolean isBinary = nameValuesManager.isNameValueRepresentBinaryRelation(relationNV);
-        if (isBinary== null || !isBinary || !kb.getRelationToFirstArgToSecondArgs().safeContainsKey(relationNV))
+        if (!isRelationInKb(relationNV))
             return answer;
 
         if (relation.equals(NEXT_RELATION_NV) && secondElementsOfPairs.size() != 1)
             throw new LambdaDCSException(LambdaDCSException.Type.nonSingletonList,
                     "Refusing to return an answer for the 'next' relation with multiple NLI entities");
 
-        Stream<Value> secondElementsOfPairsToConsider;
         if (secondElementsOfPairs.size() == Integer.MAX_VALUE) {
             // 'secondElementsOfPairs' is an infinite collection.
-            secondElementsOfPairsToConsider = kb.getRelationToSecondArgToFirstArgs().getExisting(relationNV).keySet()
-                    .stream()
-                    .filter(secondElementsOfPairs::contains);
+            for (int secondElementIndex : indexedKb.getDomain(relationNV, true)) {
+                Value secondElement = indexedKb.getValue(secondElementIndex);
+                if (secondElementsOfPairs.contains(secondElement))
+                    addPairsWithSecondElement(relationNV, isInverse, secondElementIndex, secondElement, answer);
+            }
         } else {
             // 'secondElementsOfPairs' is a finite collection.
-            secondElementsOfPairsToConsider = secondElementsOfPairs.stream();
+            for (Value secondElement : secondElementsOfPairs)
+                addPairsWithSecondElement(relationNV, isInverse, indexedKb.getValueIndex(secondElement),
+                        secondElement, answer);
         }
 
-        boolean finalIsInverse = isInverse;
-        secondElementsOfPairsToConsider.forEach(secondElementsOfPair->
-                kb.getRelationAsFunction(relationNV, finalIsInverse).apply(secondElementsOfPair)
-                        .forEach(firstElement ->
-                                answer.add(new Pair<>(firstElement, secondElementsOfPair))));
-
         return answer;
     }
 
+    /**
+     * Adds to 'answer' a pair (x, 'secondElement') for every x in the image of 'secondElement' under 'relation' as a
+     * function (see {@link IndexedGraphKb}).
+     * @param secondElementIndex the index of 'secondElement' in {@link #indexedKb}, or -1.
+     */
+    private void addPairsWithSecondElement(NameValue relation, boolean inverse, int secondElementIndex,
+                                           Value secondElement, List<Pair<Value, Value>> answer) {
+        indexedKb.forEachImage(relation, inverse, secondElementIndex, firstElementIndex ->
+                answer.add(new Pair<>(indexedKb.getValue(firstElementIndex), secondElement)));
+    }
+
+    /**
+     * Set-at-a-time equivalent of a chain of {@link #joinSecond(Value, Collection)} invocations: returns the denotation
+     * of the lambda-DCS formula (r1 (r2 ... (rn seconds))), where r1, ..., rn are the elements of 'relationPath'.
+     * The returned list is identical to the one returned by the last of the chained joins (including the order and the
+     * duplicates).
+     * The intermediate results are represented by value indices, and no pairs or intermediate {@link Value} lists are
+     * created.
+     * @param relationPath reversible relations; must not be empty.
+     * @param seconds may be infinite (i.e. have size {@link Integer#MAX_VALUE}).
+     */
+    public List<Value> joinSecondAlongPath(List<Value> relationPath, Collection<Value> seconds) {
+
+        Verify.verify(!relationPath.isEmpty());
+
+        int[] current = null; // null until 'seconds' is converted.
+        for (int i = relationPath.size()-1; i >= 0; i--) {
+            Value relation = relationPath.get(i);
+            boolean isInverse = false;
+            Value reversed = isReversedRelation(relation);
+            if (reversed != null) {
+                isInverse = true;
+                relation = reversed;
+            }
+
+            if (!(relation instanceof NameValue) || !isRelationInKb((NameValue) relation)) {
+                current = new int[0];
+                continue;
+            }
+            NameValue relationNV = (NameValue) relation;
+
+            int inputSize = current == null ? seconds.size() : current.length;
+            if (relationNV.equals(NEXT_RELATION_NV) && inputSize != 1)
+                throw new LambdaDCSException(LambdaDCSException.Type.nonSingletonList,
+                        "Refusing to return an answer for the 'next' relation with multiple NLI entities");
+
+            if (current == null) {
+                if (seconds.size() == Integer.MAX_VALUE) {
+                    // 'seconds' is an infinite collection (so we consider only the values that can be joined with).
+                    current = Arrays.stream(indexedKb.getDomain(relationNV, true))
+                            .filter(index -> seconds.contains(indexedKb.getValue(index)))
+                            .toArray();
+                } else {
+                    current = indexedKb.getValueIndices(seconds);
+                }
+            }
+            current = indexedKb.getImages(relationNV, isInverse, current);
+        }
+
+        //noinspection ConstantConditions
+        return indexedKb.getValues(current);
+    }
+
+    /**
+     * @param relation without an inverse prefix.
+     * @return true iff 'relation' is a binary relation with at least one fact in the KB.
+     */
+    private boolean isRelationInKb(NameValue relation) {
+        Boolean isBinary = nameValuesManager.isNameValueRepresentBinaryRelation(relation);
+        return isBinary != null && isBinary && indexedKb.containsRelation(relation);
+    }
+
     @Override
     public List<Formula> getFuzzyMatchedFormulas(String term, FuzzyMatchFn.FuzzyMatchFnMode mode) {
         throw new RuntimeException("method shouldn't be used");
@@ -0,0 +1,238 @@
+package il.ac.technion.nlp.nli.parser;
+
+import com.google.common.base.Verify;
+import edu.stanford.nlp.sempre.Builder;
+import edu.stanford.nlp.sempre.Derivation;
+import edu.stanford.nlp.sempre.ListValue;
+import edu.stanford.nlp.sempre.Params;
+import edu.stanford.nlp.sempre.Parser;
+import edu.stanford.nlp.sempre.Value;
+import il.ac.technion.nlp.nli.core.dataset.Example;
+import il.ac.technion.nlp.nli.core.method_call.MethodCall;
+import il.ac.technion.nlp.nli.core.state.State;
+import il.ac.technion.nlp.nli.parser.denotation.DenotationUtils;
+import il.ac.technion.nlp.nli.parser.denotation.LazyStateValue;
+import il.ac.technion.nlp.nli.parser.experiment.ExperimentRunner;
+import il.ac.technion.nlp.nli.parser.experiment.ExperimentSettings;
+import il.ac.technion.nlp.nli.parser.general.FeatureIndex;
+import il.ac.technion.nlp.nli.parser.general.InferenceContext;
+import il.ac.technion.nlp.nli.parser.general.LanguageAnalysisCache;
+import il.ac.technion.nlp.nli.parser.general.SempreExperiment;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Parses instructions given by a user into {@link MethodCall}s, using a trained model (an embeddable alternative to
+ * running an experiment via {@link ExperimentRunner}).
+ * All the loading (of the grammar and the weights) is done once by {@link #load(Path, ExperimentSettings, Path)}, and
+ * no file is read or written by {@link #parse(State, String, int, boolean)}. Sempre's log output (see
+ * {@link fig.basic.LogInfo}) is discarded while loading and parsing.
+ *
+ * Thread-safe: {@link #parse(State, String, int, boolean)} may be invoked concurrently by many threads, as long as
+ * they don't use the same {@link State} object concurrently (the initial state may be modified temporarily during a
+ * parse, see {@link LazyStateValue}).
+ *
+ * A loaded parser counts as a running Sempre run until it's closed (see {@link ExperimentRunner#startSempreRun}), as
+ * it relies on Sempre's static options: experiments (and other parsers) used meanwhile in the same process must
+ * configure them the same way.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class InstructionParser implements AutoCloseable {
+
+    /**
+     * A single parse candidate.
+     */
+    public static class ParsedMethodCall {
+
+        public final MethodCall methodCall;
+        /**
+         * The score of the best derivation denoting {@link #methodCall}.
+         */
+        public final double score;
+        /**
+         * The probability of the best derivation denoting {@link #methodCall} (among all the predicted derivations).
+         */
+        public final double probability;
+        /**
+         * The state resulting from invoking {@link #methodCall} on the initial state, owned by the caller (it shares no
+         * entities with other states, and may be modified).
+         * null in case it was not requested, or in case the invocation failed.
+         */
+        public final @Nullable State resultingState;
+
+        public ParsedMethodCall(MethodCall methodCall, double score, double probability,
+                                @Nullable State resultingState) {
+            this.methodCall = methodCall;
+            this.score = score;
+            this.probability = probability;
+            this.resultingState = resultingState;
+        }
+
+        @Override
+        public String toString() {
+            return "ParsedMethodCall{" + methodCall + ", score=" + score + ", probability=" + probability + "}";
+        }
+    }
+
+    public static class ParseResult {
+
+        /**
+         * Sorted by descending score. Different elements have different method calls.
+         */
+        public final List<ParsedMethodCall> parsedMethodCalls;
+        public final long latencyInMs;
+
+        public ParseResult(List<ParsedMethodCall> parsedMethodCalls, long latencyInMs) {
+            this.parsedMethodCalls = parsedMethodCalls;
+            this.latencyInMs = latencyInMs;
+        }
+    }
+
+
+    private final SempreExperiment experiment;
+    private final Parser parser;
+    private final Params params;
+
+    private final LongAdder parsesNum = new LongAdder();
+    private final LongAdder totalLatencyInMs = new LongAdder();
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+
+    private InstructionParser(SempreExperiment experiment, Parser parser, Params params) {
+        this.experiment = experiment;
+        this.parser = parser;
+        this.params = params;
+    }
+
+    /**
+     * The requirements are the same as of an experiment: Sempre's options must already be initialized (e.g. by
+     * {@link fig.exec.Execution}) and the working directory must be the Sempre data directory (see
+     * {@link ExperimentRunner#main(String[])}).
+     * Note that this sets static options of Sempre (as an experiment does, see class doc). The {@link FeatureIndex} is
+     * frozen for the
+     * returned parser only (see {@link SempreExperiment#freezeFeatureIndex()}), so that features that have no weight
+     * are not indexed during its parsing, while other parsers and experiments in the process are not affected.
+     * @param weightsFile a weights file written by Sempre during training.
+     * @throws RuntimeException in case Sempre runs configured differently are running (see class doc).
+     */
+    public static InstructionParser load(Path moduleResourceDir, ExperimentSettings settings, Path weightsFile) {
+
+        ExperimentRunner.startSempreRun(settings, 0, weightsFile, settings.regularizationCoefficient,
+                settings.initStepSize);
+        boolean loaded = false;
+        InferenceContext previousContext = InferenceContext.ofCurrentThread();
+        try {
+            SempreExperiment experiment = SempreExperiment.createForServing(moduleResourceDir, settings);
+            InferenceContext.ofExperiment(experiment).withSilentLog().makeCurrent();
+            Builder builder = new Builder();
+            builder.valueEvaluator = new InstructionValueEvaluator(); //This overrides the [-Builder.valueEvaluator] command line option.
+            builder.buildUnspecified();
+            experiment.setSempreParser(builder.parser);
+            experiment.freezeFeatureIndex();
+            InstructionParser result = new InstructionParser(experiment, builder.parser, builder.params);
+            loaded = true;
+            return result;
+        } finally {
+            previousContext.makeCurrent();
+            if (!loaded)
+                ExperimentRunner.endSempreRun();
+        }
+    }
+
+    /**
+     * Ends the Sempre run of this parser (see class doc), after which it must not be used. Calling this method again
+     * has no effect.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true))
+            ExperimentRunner.endSempreRun();
+    }
+
+    /**
+     * @param initialState not modified (see class doc).
+     * @param k the maximal number of method calls to return (positive).
+     * @param computeResultingStates whether to compute {@link ParsedMethodCall#resultingState}.
+     */
+    public ParseResult parse(State initialState, String utterance, int k, boolean computeResultingStates) {
+
+        Verify.verify(k > 0);
+        Verify.verify(!closed.get(), "the parser is closed");
+        long startTime = System.currentTimeMillis();
+
+        Example example = new Example(UUID.randomUUID().toString(), utterance, initialState, null,
+                initialState.getDomain());
+        edu.stanford.nlp.sempre.Example sempreExample =
+                SempreInstructionDataset.createSempreExample(example, experiment.settings.deterministic);
+        sempreExample.preprocess(LanguageAnalysisCache.getInstance().analyze(utterance));
+
+        List<ParsedMethodCall> result = new ArrayList<>();
+        InferenceContext previousContext = InferenceContext.ofCurrentThread();
+        InferenceContext.ofExperiment(experiment).withSilentLog().makeCurrent();
+        experiment.addExampleBeingServed(example);
+        try {
+            parser.parse(params, sempreExample, false);
+            Set<MethodCall> methodCallsFound = new LinkedHashSet<>();
+            for (Derivation deriv : sempreExample.predDerivations) { // sorted by descending score.
+                if (result.size() == k)
+                    break;
+                LazyStateValue stateValue = getLazyStateValue(sempreExample, deriv);
+                if (stateValue == null || !methodCallsFound.add(stateValue.getMethodCall()))
+                    continue;
+                // The state of the value is unmodifiable, and may share entities with other states.
+                State resultingState = computeResultingStates ? stateValue.getState() : null;
+                result.add(new ParsedMethodCall(stateValue.getMethodCall(), deriv.getScore(), deriv.prob,
+                        resultingState == null ? null : resultingState.deepCopy()));
+            }
+        } finally {
+            experiment.removeExampleBeingServed(example);
+            previousContext.makeCurrent();
+        }
+
+        long latencyInMs = System.currentTimeMillis() - startTime;
+        parsesNum.increment();
+        totalLatencyInMs.add(latencyInMs);
+        return new ParseResult(Collections.unmodifiableList(result), latencyInMs);
+    }
+
+    /**
+     * @return null in case 'deriv' does not denote a single {@link LazyStateValue}.
+     */
+    private static @Nullable LazyStateValue getLazyStateValue(edu.stanford.nlp.sempre.Example sempreExample,
+                                                              Derivation deriv) {
+        Value value = DenotationUtils.getDenotationOfDerivation(sempreExample, deriv);
+        if (!(value instanceof ListValue))
+            return null;
+        List<Value> values = ((ListValue) value).values;
+        if (values == null || values.size() != 1 || !(values.get(0) instanceof LazyStateValue))
+            return null;
+        return (LazyStateValue) values.get(0);
+    }
+
+    public long getParsesNum() {
+        return parsesNum.sum();
+    }
+
+    /**
+     * @return null in case no parse was done yet.
+     */
+    public @Nullable Double getAverageLatencyInMs() {
+        long parsesNum = getParsesNum();
+        return parsesNum == 0 ? null : (double) totalLatencyInMs.sum() / parsesNum;
+    }
+
+    public SempreExperiment getExperiment() {
+        return experiment;
+    }
+}
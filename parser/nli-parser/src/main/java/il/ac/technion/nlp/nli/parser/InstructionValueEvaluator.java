@@ -4,6 +4,7 @@ import com.google.common.base.Verify;
 import edu.stanford.nlp.sempre.ListValue;
 import edu.stanford.nlp.sempre.Value;
 import edu.stanford.nlp.sempre.ValueEvaluator;
+import il.ac.technion.nlp.nli.parser.denotation.LazyStateValue;
 import il.ac.technion.nlp.nli.parser.denotation.StateValue;
 import il.ac.technion.nlp.nli.core.state.State;
 import org.jetbrains.annotations.Nullable;
@@ -26,7 +27,10 @@ public class InstructionValueEvaluator implements ValueEvaluator {
 
 
         State targetDestState = ((StateValue) targetValues.get(0)).getState();
-        State predDestState = ((StateValue) predValues.get(0)).getState();
+        StateValue predValue = (StateValue) predValues.get(0);
+        if (predValue instanceof LazyStateValue) // may avoid computing the predicted state.
+            return ((LazyStateValue) predValue).resultStateEquals(targetDestState) ? 1 : 0;
+        State predDestState = predValue.getState();
 
         return isPredictedStateCorrect(targetDestState, predDestState) ? 1 : 0;
     }
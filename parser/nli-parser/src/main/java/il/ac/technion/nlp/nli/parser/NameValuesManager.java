@@ -9,6 +9,7 @@ import ofergivoli.olib.data_structures.set.SafeHashSet;
 import ofergivoli.olib.data_structures.set.SafeSet;
 import edu.stanford.nlp.sempre.CanonicalNames;
 import edu.stanford.nlp.sempre.NameValue;
+import edu.stanford.nlp.sempre.Value;
 import edu.stanford.nlp.sempre.tables.TableTypeSystem;
 import il.ac.technion.nlp.nli.core.state.NliEntity;
 import il.ac.technion.nlp.nli.core.state.State;
@@ -16,6 +17,8 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Supplier;
 
 import static il.ac.technion.nlp.nli.parser.NameValuesManager.NameValueType.*;
@@ -79,6 +82,12 @@ public class NameValuesManager {
     private SafeSet<String> usedNameValueIds = new SafeHashSet<>();
 
 
+    /**
+     * The values interned by {@link #getOrCreateValueIndex(Value)}, by their index.
+     */
+    private final List<Value> indexToValue = new ArrayList<>();
+    private final SafeMap<Value, Integer> valueToIndex = new SafeHashMap<>();
+
     /**
      * used in order to avoid collisions with ids given by Sempre's logic.
      */
@@ -261,6 +270,40 @@ public class NameValuesManager {
     }
 
 
+    /**
+     * Interns 'value' (which may be any {@link Value}, not necessarily one managed by this object).
+     * @return the index of 'value', which is the number of values interned before it. Equal values get the same index.
+     */
+    public int getOrCreateValueIndex(Value value) {
+        Integer index = valueToIndex.safeGet(value);
+        if (index != null)
+            return index;
+        index = indexToValue.size();
+        indexToValue.add(value);
+        valueToIndex.putNewKey(value, index);
+        return index;
+    }
+
+    /**
+     * Doesn't modify this object, so may be invoked concurrently (as long as no value is being interned).
+     * @return -1 in case 'value' was not interned.
+     */
+    public int getValueIndex(Value value) {
+        Integer index = valueToIndex.safeGet(value);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @throws RuntimeException in case no value was interned with 'index'.
+     */
+    public @NotNull Value getValueByIndex(int index) {
+        return indexToValue.get(index);
+    }
+
+    public int getInternedValuesNum() {
+        return indexToValue.size();
+    }
+
     /**
      * @return null if 'nameValueWithReversibleId' is not managed by this object.
      */
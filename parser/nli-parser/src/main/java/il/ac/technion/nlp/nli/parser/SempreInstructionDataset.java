@@ -11,6 +11,7 @@ import il.ac.technion.nlp.nli.core.dataset.Example;
 import il.ac.technion.nlp.nli.core.dataset.ExampleSplit;
 import il.ac.technion.nlp.nli.parser.experiment.ExperimentRunner;
 import il.ac.technion.nlp.nli.parser.denotation.ExplicitStateValue;
+import il.ac.technion.nlp.nli.parser.general.PersistentLanguageInfoCache;
 
 import java.util.Collections;
 import java.util.Iterator;
@@ -58,8 +59,17 @@ public class SempreInstructionDataset extends Dataset {
         while (outExamples.size() < maxExamples && exIt.hasNext()) {
 
             Example instructionEx = exIt.next();
-            edu.stanford.nlp.sempre.Example sempreEx = createSempreExample(instructionEx);
-            sempreEx.preprocess();
+            // the states of the dataset are only compared and copied from now on, so their fingerprints may be cached.
+            instructionEx.getInitialState().markEntityGraphAsUnmodifiable();
+            if (instructionEx.getDestinationState() != null)
+                instructionEx.getDestinationState().markEntityGraphAsUnmodifiable();
+            edu.stanford.nlp.sempre.Example sempreEx = createSempreExample(instructionEx,
+                    ExperimentRunner.getCurrentExperiment().settings.deterministic);
+            PersistentLanguageInfoCache languageInfoCache = ExperimentRunner.getCurrentExperiment().languageInfoCache;
+            if (languageInfoCache == null)
+                sempreEx.preprocess();
+            else
+                sempreEx.preprocess(languageInfoCache.analyze(sempreEx.utterance));
 
             // Skip example if too long
             if (sempreEx.numTokens() > opts.maxTokens) {
@@ -78,16 +88,22 @@ public class SempreInstructionDataset extends Dataset {
 
     }
 
-    private edu.stanford.nlp.sempre.Example createSempreExample(Example example) {
+    /**
+     * @param example in case its destination state is null, the returned example has no target value (i.e. it can
+     *                only be used for prediction).
+     * @return an example that is not preprocessed yet.
+     */
+    public static edu.stanford.nlp.sempre.Example createSempreExample(Example example, boolean deterministic) {
         Builder builder = new Builder();
 
         builder.setId(example.getId());
         builder.setUtterance(example.getInstructionUtterance());
 
-        ExplicitStateValue destinationStateValue = new ExplicitStateValue(example.getDestinationState());
-        builder.setTargetValue(new ListValue(Collections.singletonList(destinationStateValue)));
-        builder.setContext(new ContextValue(new InstructionKnowledgeGraph(example.getInitialState(),
-                ExperimentRunner.getCurrentExperiment().settings.deterministic)));
+        if (example.getDestinationState() != null) {
+            ExplicitStateValue destinationStateValue = new ExplicitStateValue(example.getDestinationState());
+            builder.setTargetValue(new ListValue(Collections.singletonList(destinationStateValue)));
+        }
+        builder.setContext(new ContextValue(new InstructionKnowledgeGraph(example.getInitialState(), deterministic)));
         builder.setLanguageInfo(new LanguageInfo());
 
         return builder.createExample();
@@ -10,6 +10,7 @@ import il.ac.technion.nlp.nli.core.method_call.*;
 import il.ac.technion.nlp.nli.core.reflection.GeneralReflection;
 import il.ac.technion.nlp.nli.core.state.*;
 import il.ac.technion.nlp.nli.parser.experiment.ExperimentRunner;
+import il.ac.technion.nlp.nli.parser.experiment.ExperimentSettings;
 import il.ac.technion.nlp.nli.parser.InstructionKnowledgeGraph;
 import il.ac.technion.nlp.nli.parser.NliMethodCallFormula;
 import il.ac.technion.nlp.nli.parser.NameValuesManager;
@@ -23,6 +24,7 @@ import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -80,7 +82,14 @@ public class DenotationUtils {
         if (methodCall == null)
             return new ExplicitUnaryDenotation();
 
-        return new ExplicitUnaryDenotation(new LazyStateValue(initialState, methodCall));
+        ExperimentSettings settings = ExperimentRunner.getCurrentExperiment().settings;
+        Function<MethodCall, LazyStateValue> createValue = call -> new LazyStateValue(initialState, call,
+                settings.copyOnWriteMethodInvocation, settings.inPlaceMethodInvocationForEvaluation);
+        if (settings.methodCallExecutionCacheSize == null)
+            return new ExplicitUnaryDenotation(createValue.apply(methodCall));
+        MethodCallExecutionCache executionCache = Objects.requireNonNull(
+                ExperimentRunner.getCurrentExperiment().getCurrentInferenceData().executionCache);
+        return new ExplicitUnaryDenotation(executionCache.getOrCreate(methodCall, createValue));
     }
 
 
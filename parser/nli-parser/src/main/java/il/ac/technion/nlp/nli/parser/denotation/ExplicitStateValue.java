@@ -3,8 +3,6 @@ package il.ac.technion.nlp.nli.parser.denotation;
 import il.ac.technion.nlp.nli.core.state.State;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Objects;
-
 /**
  * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
  */
@@ -25,16 +23,22 @@ public class ExplicitStateValue extends StateValue {
     }
 
 
+    /**
+     * See {@link StateValue#statesEqual(State, State)}.
+     */
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ExplicitStateValue that = (ExplicitStateValue) o;
-        return Objects.equals(state, that.state);
+        return statesEqual(state, that.state);
     }
 
+    /**
+     * See {@link StateValue#stateHashCode(State)}.
+     */
     @Override
     public int hashCode() {
-        return Objects.hash(state);
+        return stateHashCode(state);
     }
 }
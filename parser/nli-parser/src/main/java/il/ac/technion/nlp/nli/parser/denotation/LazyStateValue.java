@@ -4,8 +4,7 @@ import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import il.ac.technion.nlp.nli.core.method_call.MethodCall;
 import il.ac.technion.nlp.nli.core.state.State;
-
-import java.util.Objects;
+import il.ac.technion.nlp.nli.parser.InstructionValueEvaluator;
 
 /**
  * The state represented is the result of executing a {@link MethodCall}, which is done lazily (and memoized).
@@ -18,42 +17,77 @@ import java.util.Objects;
  */
 public class LazyStateValue extends StateValue {
 
+    private final State initialState;
     private final MethodCall methodCall;
+    private final boolean inPlaceEvaluation;
     private final Supplier<State> memoizedResultState;
+    /**
+     * true once {@link #memoizedResultState} computed the resulting state.
+     */
+    private volatile boolean resultStateComputed = false;
 
     /**
-     * @param initialState This object will not be modified by this class.
+     * @param initialState This object will not be modified by this class (when 'copyOnWrite' or 'inPlaceEvaluation'
+     *                     is true it's modified temporarily during the invocation, and with 'copyOnWrite' the
+     *                     resulting state shares entities with it).
+     * @param copyOnWrite when true, {@link MethodCall#invokeOnCopyOnWriteViewOfState(State)} is used instead of
+     *                    {@link MethodCall#invokeOnDeepCopyOfState(State)}.
+     * @param inPlaceEvaluation when true, {@link #resultStateEquals(State)} uses
+     *                          {@link MethodCall#invokeInPlaceAndRollBack} rather than computing the resulting state.
      */
-    public LazyStateValue(State initialState, MethodCall methodCall) {
+    public LazyStateValue(State initialState, MethodCall methodCall, boolean copyOnWrite, boolean inPlaceEvaluation) {
+        this.initialState = initialState;
         this.methodCall = methodCall;
-        this.memoizedResultState = Suppliers.memoize(()-> methodCall.invokeOnDeepCopyOfState(initialState));
+        this.inPlaceEvaluation = inPlaceEvaluation;
+        this.memoizedResultState = Suppliers.memoize(()-> {
+            State result = copyOnWrite ?
+                    methodCall.invokeOnCopyOnWriteViewOfState(initialState) :
+                    methodCall.invokeOnDeepCopyOfState(initialState);
+            if (result != null)
+                result.markEntityGraphAsUnmodifiable();
+            resultStateComputed = true;
+            return result;
+        });
     }
 
+    /**
+     * The returned state is marked as unmodifiable (see {@link State#markEntityGraphAsUnmodifiable()}).
+     */
     @Override
     public State getState() {
         return memoizedResultState.get();
     }
 
+    /**
+     * @return true iff the resulting state is valid and its entity graph equals the one of 'destinationState'.
+     */
+    public boolean resultStateEquals(State destinationState) {
+        if (!inPlaceEvaluation || resultStateComputed)
+            return InstructionValueEvaluator.isPredictedStateCorrect(destinationState, getState());
+        Boolean result = methodCall.invokeInPlaceAndRollBack(initialState, destinationState::entityGraphEqualsGraphOf);
+        return result != null && result; // null means the execution failed.
+    }
+
     public MethodCall getMethodCall() {
         return methodCall;
     }
 
     /**
-     * Based on {@link #getState()}.
+     * Based on {@link #getState()} (see {@link StateValue#statesEqual(State, State)}).
      */
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         LazyStateValue that = (LazyStateValue) o;
-        return Objects.equals(getState(), that.getState());
+        return statesEqual(getState(), that.getState());
     }
 
     /**
-     * Based on {@link #getState()}.
+     * Based on {@link #getState()} (see {@link StateValue#stateHashCode(State)}).
      */
     @Override
     public int hashCode() {
-        return Objects.hash(getState());
+        return stateHashCode(getState());
     }
 }
@@ -0,0 +1,85 @@
+package il.ac.technion.nlp.nli.parser.denotation;
+
+import il.ac.technion.nlp.nli.core.method_call.MethodCall;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Maps {@link MethodCall}s (on the initial state of a single example) to the {@link LazyStateValue} denoting their
+ * result, so that derivations denoting equal method calls share the (lazy and memoized) execution.
+ * Bounded: when full, the least recently used entry is evicted.
+ * Thread-safe.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class MethodCallExecutionCache {
+
+    private final LinkedHashMap<MethodCall, LazyStateValue> methodCallToValue;
+
+    private long hitsNum = 0;
+    private long missesNum = 0;
+    /**
+     * Shared by caches (e.g. of different examples), for aggregated statistics.
+     */
+    private final LongAdder totalHitsNum;
+    private final LongAdder totalMissesNum;
+
+
+    public MethodCallExecutionCache(int maxSize) {
+        this(maxSize, new LongAdder(), new LongAdder());
+    }
+
+    /**
+     * @param totalHitsNum incremented on every hit (in addition to {@link #getHitsNum()}).
+     * @param totalMissesNum incremented on every miss (in addition to {@link #getMissesNum()}).
+     */
+    public MethodCallExecutionCache(int maxSize, LongAdder totalHitsNum, LongAdder totalMissesNum) {
+        this.totalHitsNum = totalHitsNum;
+        this.totalMissesNum = totalMissesNum;
+        methodCallToValue = new LinkedHashMap<MethodCall, LazyStateValue>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<MethodCall, LazyStateValue> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param createValue used in case of a miss. Must not execute the method call (it's done lazily).
+     */
+    public synchronized LazyStateValue getOrCreate(MethodCall methodCall,
+                                                   Function<MethodCall, LazyStateValue> createValue) {
+        LazyStateValue value = methodCallToValue.get(methodCall);
+        if (value != null) {
+            hitsNum++;
+            totalHitsNum.increment();
+            return value;
+        }
+        missesNum++;
+        totalMissesNum.increment();
+        value = createValue.apply(methodCall);
+        methodCallToValue.put(methodCall, value);
+        return value;
+    }
+
+    public synchronized long getHitsNum() {
+        return hitsNum;
+    }
+
+    public synchronized long getMissesNum() {
+        return missesNum;
+    }
+
+    public synchronized int size() {
+        return methodCallToValue.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MethodCallExecutionCache{size=" + methodCallToValue.size() + ", hits=" + hitsNum + ", misses=" +
+                missesNum + "}";
+    }
+}
@@ -33,5 +33,21 @@ public abstract class StateValue extends Value {
         return getState() == null ? "[invalid state]" : getState().toString();
     }
 
+    /**
+     * Structural equality of states (see {@link State#entityGraphsEqual(State)}). Two undefined states are equal.
+     */
+    protected static boolean statesEqual(@Nullable State state1, @Nullable State state2) {
+        if (state1 == null || state2 == null)
+            return state1 == state2;
+        return state1 == state2 || state1.entityGraphsEqual(state2);
+    }
+
+    /**
+     * Consistent with {@link #statesEqual(State, State)}.
+     */
+    protected static int stateHashCode(@Nullable State state) {
+        return state == null ? 0 : state.getEntityGraphFingerprint().hashCode();
+    }
+
 
 }
@@ -257,6 +257,9 @@ public class ExperimentDirectory {
 
         if (result.enableInstructionFeatures == null)
             result.enableInstructionFeatures = true;
+        if (result.keptMethodCallExecutionCachesMaxNum == null)
+            result.keptMethodCallExecutionCachesMaxNum =
+                    ExperimentSettings.DEFAULT_KEPT_METHOD_CALL_EXECUTION_CACHES_MAX_NUM;
 
         return result;
     }
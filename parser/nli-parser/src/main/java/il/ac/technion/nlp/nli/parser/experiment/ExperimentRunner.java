@@ -10,15 +10,22 @@ import ofergivoli.olib.time.TemporalFormat;
 import edu.stanford.nlp.sempre.*;
 import edu.stanford.nlp.sempre.tables.DPParser;
 import edu.stanford.nlp.sempre.tables.features.PhrasePredicateFeatureComputer;
+import fig.basic.LogInfo;
 import fig.exec.Execution;
 import il.ac.technion.nlp.nli.core.dataset.Dataset;
+import il.ac.technion.nlp.nli.core.dataset.DatasetFileTree;
 import il.ac.technion.nlp.nli.core.dataset.Example;
 import il.ac.technion.nlp.nli.core.dataset.ExampleSplit;
+import il.ac.technion.nlp.nli.core.serialization.MappedExampleStore;
+import il.ac.technion.nlp.nli.core.serialization.NliBinaryFormat;
 import il.ac.technion.nlp.nli.parser.EnvironmentSettings;
 import il.ac.technion.nlp.nli.parser.experiment.analysis.FeatureGeneralityTools;
 import il.ac.technion.nlp.nli.parser.experiment.analysis.SempreExperimentAnalysis;
 import il.ac.technion.nlp.nli.parser.experiment.analysis.results.ExperimentAnalysisCsvRow;
+import il.ac.technion.nlp.nli.parser.general.LanguageAnalysisCache;
+import il.ac.technion.nlp.nli.parser.general.InferenceContext;
 import il.ac.technion.nlp.nli.parser.general.SempreExperiment;
+import il.ac.technion.nlp.nli.parser.InstructionParser;
 import il.ac.technion.nlp.nli.parser.InstructionValueEvaluator;
 import il.ac.technion.nlp.nli.parser.SempreInstructionDataset;
 import org.jetbrains.annotations.Nullable;
@@ -30,20 +37,23 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
  * Technical notes regarding Sempre's output:
- * If you run multiple experiments (sequentially):
- * - some files under Sempre's output dir are being overwritten in each sempreExperiment if not moved by this class,
- * these includes: 'params.*'
+ * If you run multiple experiments (sequentially or concurrently):
+ * - the files written by the {@link Learner} ('params.*', 'featureIndex' and 'learner.events') are prefixed by the
+ * Sempre run they belong to (e.g. 'run1.params.0'), and the 'params.*' files are moved by this class.
  * - some files under Sempre's output dir are appended to (and never cleared) in each sempreExperiment, these
  * includes:
  * - log
- * - learner.events
  * - preds-iter*-*.examples
  * - The file 'output.map' only gets filled with useful content when the program exits (and then it probably
  * refers to the last iteration only).
@@ -59,7 +69,11 @@ public class ExperimentRunner {
      *
      * Parameters:
      *  param 1: Path of the resource directory of this module.
-     *  param 2: Path of the dataset ser file.
+     *  param 2: Path of the dataset: either a {@link Dataset} file (written by Java serialization or in the binary
+     *           format of {@link NliBinaryFormat}, which is detected by its header), an example store file (see
+     *           {@link MappedExampleStore}, also detected by its header), or the root directory of a dataset file tree
+     *           (see {@link DatasetFileTree}). From an example store or a dataset file tree, only the examples of the
+     *           experiment are read.
      *  param 3: Path to an experiment directory (to be run).
      *
      * Note: Sempre prints a lot of text to stdout, and some (general information) text to stderr.
@@ -76,7 +90,7 @@ public class ExperimentRunner {
 
         Path datasetSer = Paths.get(args[1]);
         if (!Files.exists(datasetSer))
-            throw new RuntimeException("Dataset file does not exist: " + datasetSer);
+            throw new RuntimeException("Dataset file (or directory) does not exist: " + datasetSer);
 
         EnvironmentSettings environmentSettings = new EnvironmentSettings(moduleResourceDir, datasetSer);
         ExperimentDirectory experimentDirectory = new ExperimentDirectory(Paths.get(args[2]));
@@ -96,8 +110,19 @@ public class ExperimentRunner {
 
         Runnable runnable = ()->{
             ExperimentRunner experimentRunner = new ExperimentRunner(environmentSettings);
-            Dataset dataset = SerializationUtils.readObjectFromFile(environmentSettings.datasetSer.toFile());
-            experimentRunner.runExperiment(dataset, true, experimentDirectory);
+            if (Files.isDirectory(environmentSettings.datasetSer)) {
+                experimentRunner.runExperiment(new DatasetFileTree(environmentSettings.datasetSer),
+                        experimentDirectory);
+            } else if (MappedExampleStore.isExampleStore(environmentSettings.datasetSer)) {
+                try (MappedExampleStore store = new MappedExampleStore(environmentSettings.datasetSer)) {
+                    experimentRunner.runExperiment(store, experimentDirectory);
+                }
+            } else {
+                Dataset dataset = NliBinaryFormat.isInBinaryFormat(environmentSettings.datasetSer) ?
+                        NliBinaryFormat.readObjectFromFile(environmentSettings.datasetSer) :
+                        SerializationUtils.readObjectFromFile(environmentSettings.datasetSer.toFile());
+                experimentRunner.runExperiment(dataset, true, experimentDirectory);
+            }
         };
 
         /**
@@ -109,8 +134,6 @@ public class ExperimentRunner {
     }
 
 
-    private static int runsCounter = 0;
-
     private final EnvironmentSettings environmentSettings;
 
     public ExperimentRunner(EnvironmentSettings environmentSettings) {
@@ -152,17 +175,33 @@ public class ExperimentRunner {
 
 
     /**
-     * The sempreExperiment currently running or null if no {@link SempreExperiment} is currently running.
+     * The sempreExperiment run by the current thread (or by the thread it works for, see {@link InferenceContext}).
+     * The value is null if no {@link SempreExperiment} is currently running in the thread.
      * (So the current running {@link SempreExperiment} could be accessed from Sempre's code)
      */
-    private static @Nullable SempreExperiment currentRunningSempreExperiment;
+    private static final ThreadLocal<SempreExperiment> currentRunningSempreExperiment = new ThreadLocal<>();
 
 
     /**
      * Turns to 'true' (forever) once the first {@link SempreExperiment} is run (in the lifetime of the running process).
+     * Guarded by the class lock.
      */
     private static boolean alreadyInvokedAnExperiment = false;
 
+    /**
+     * The number of Sempre runs (see {@link #runSempreExperiment}) currently running in this process, and the values
+     * that configured Sempre's static options for them (see {@link SempreStaticOptionsValues}), which are the same for
+     * all of them. The values are null iff the number is 0.
+     * Guarded by the class lock.
+     */
+    private static int runningSempreRunsNum = 0;
+    private static @Nullable SempreStaticOptionsValues runningSempreRunsOptionsValues;
+
+    /**
+     * Used to give each Sempre run its own output files (see {@link Learner}).
+     */
+    private static final AtomicInteger sempreRunsCounter = new AtomicInteger();
+
 
 
 
@@ -172,9 +211,12 @@ public class ExperimentRunner {
      * to be true when fetching files).
      *
      * Important Notes:
-     * - Running Sempre multiple times simultaneously in the same process is not permitted (Sempre can't be trusted to
-     *    be thread-safe).
-     * - Running Sempre multiple times sequentially in the same process might yield non-deterministic results (i.e.
+     * - Several experiments may be run concurrently in the same process (by different threads), as long as they
+     *    configure Sempre's static Options fields the same way (see {@link #startSempreRun}), since these
+     *    are shared by the entire process (an exception is thrown otherwise). The experiment and inference state is per
+     *    thread (see {@link InferenceContext}), each Sempre run writes its own files to Sempre's output directory, and
+     *    each thread gets its own Sempre log output (see {@link LogInfo#begin_thread(boolean)}).
+     * - Running Sempre multiple times in the same process might yield non-deterministic results (i.e.
      *   deterministic only given the execution sequence), due static {@link Random} fields in Sempre.
      * - This method modified static Options fields of Sempre's classes.
      * - Sempre's output directory is first archived if not already empty.
@@ -183,19 +225,48 @@ public class ExperimentRunner {
      *                      to.
      */
     public void runExperiment(Dataset dataset, boolean preprocessAndModifyDataset, ExperimentDirectory experimentDir) {
+        if (preprocessAndModifyDataset)
+            dataset.preprocessExamples();
+        runExperiment(dataset::getExampleById, experimentDir);
+    }
 
-        if (++runsCounter>1)
-            throw new RuntimeException("Multiple runs not yet supported"); // TODO: check that it's ok to do multiple runs. Then you can delete the 'runsCounter' field.
-
-       if(Files.exists(experimentDir.getOutputDirectory()))
-           throw new RuntimeException("Output directory already exists: " + experimentDir);
+    /**
+     * Like {@link #runExperiment(Dataset, boolean, ExperimentDirectory)} (with preprocessing), but rather than holding
+     * an entire dataset in memory, only the examples of the experiment are read from 'datasetFileTree' (each one
+     * separately, see {@link DatasetFileTree.ExampleEntry#readExample()}).
+     */
+    public void runExperiment(DatasetFileTree datasetFileTree, ExperimentDirectory experimentDir) {
+        Map<String, DatasetFileTree.ExampleEntry> exampleIdToEntry = datasetFileTree.getEntries().stream()
+                .collect(Collectors.toMap(entry -> entry.exampleId, entry -> entry));
+        runExperiment(exampleId -> {
+            DatasetFileTree.ExampleEntry entry = exampleIdToEntry.get(exampleId);
+            if (entry == null)
+                throw new RuntimeException("Example not in the dataset file tree: " + exampleId);
+            Example example = entry.readExample();
+            Dataset.preprocessExample(example);
+            return example;
+        }, experimentDir);
+    }
 
+    /**
+     * Like {@link #runExperiment(DatasetFileTree, ExperimentDirectory)}, but the examples of the experiment are read
+     * from 'store' (see {@link MappedExampleStore#readExample(String)}).
+     */
+    public void runExperiment(MappedExampleStore store, ExperimentDirectory experimentDir) {
+        runExperiment(exampleId -> {
+            Example example = store.readExample(exampleId);
+            Dataset.preprocessExample(example);
+            return example;
+        }, experimentDir);
+    }
 
-        if (currentRunningSempreExperiment != null)
-            throw new RuntimeException("A SempreExperiment is already running!");
+    /**
+     * @param getExampleById called once for each example of the experiment.
+     */
+    private void runExperiment(Function<String, Example> getExampleById, ExperimentDirectory experimentDir) {
 
-        if (preprocessAndModifyDataset)
-            dataset.preprocessExamples();
+       if(Files.exists(experimentDir.getOutputDirectory()))
+           throw new RuntimeException("Output directory already exists: " + experimentDir);
 
         int experimentNum;
         try {
@@ -212,15 +283,17 @@ public class ExperimentRunner {
         }
 
         List<Example> trainExamples = experimentSettings.trainingExampleIds.stream()
-                .map(dataset::getExampleById).collect(Collectors.toList());
+                .map(getExampleById).collect(Collectors.toList());
         List<Example> testExamples = experimentSettings.testExampleIds.stream()
-                .map(dataset::getExampleById).collect(Collectors.toList());
+                .map(getExampleById).collect(Collectors.toList());
         ExampleSplit split = new ExampleSplit(trainExamples, testExamples);
 
 
-        if (!alreadyInvokedAnExperiment) {
-            verifyIgnoredSempreOptionsAreNotSet();
-            alreadyInvokedAnExperiment = true;
+        synchronized (ExperimentRunner.class) {
+            if (!alreadyInvokedAnExperiment) {
+                verifyIgnoredSempreOptionsAreNotSet();
+                alreadyInvokedAnExperiment = true;
+            }
         }
 
 
@@ -333,33 +406,51 @@ public class ExperimentRunner {
                 initStepSize = settings.firstStepInitStepSize;
         }
 
-        configSempreStaticOptions(settings, iterationsNum, initialWeightsFile, regularizationCoefficient, initStepSize);
+        startSempreRun(settings, iterationsNum, initialWeightsFile, regularizationCoefficient, initStepSize);
+        String outputFilesPrefix = "run" + sempreRunsCounter.incrementAndGet() + ".";
 
-        Verify.verify(currentRunningSempreExperiment == null);
-        currentRunningSempreExperiment = new SempreExperiment(environmentSettings.moduleResourceDir,
+        SempreExperiment sempreExperiment = new SempreExperiment(environmentSettings.moduleResourceDir,
                 split, experimentDir.getAnalysisDirectory(stepNumber).toFile(), settings,
                 stepNumber != null && stepNumber == 1,
                 featuresToOptimizeWeightsFor);
-
-        Builder builder = new Builder();
-        builder.valueEvaluator = new InstructionValueEvaluator(); //This overrides the [-Builder.valueEvaluator] command line option.
-        builder.buildUnspecified();
-        currentRunningSempreExperiment.setSempreParser(builder.parser);
-        SempreInstructionDataset sempreDataset = new SempreInstructionDataset(split);
-        sempreDataset.read(); // depends on 'currentRunningSempreExperiment' being already set.
-        Learner learner = new Learner(builder.parser, builder.params, sempreDataset);
-
-        currentRunningSempreExperiment.analysis.reportSempreStarting();
-        learner.learn();
-        currentRunningSempreExperiment.analysis.reportSempreFinished();
+        InferenceContext previousContext = InferenceContext.ofCurrentThread();
+        InferenceContext.ofExperiment(sempreExperiment).makeCurrent();
+        LogInfo.begin_thread(false);
+        try {
+            Builder builder = new Builder();
+            builder.valueEvaluator = new InstructionValueEvaluator(); //This overrides the [-Builder.valueEvaluator] command line option.
+            builder.buildUnspecified();
+            sempreExperiment.setSempreParser(builder.parser);
+            if (sempreExperiment.languageInfoCache != null)
+                sempreExperiment.languageInfoCache.precompute(split.getAllExamples()
+                                .map(Example::getInstructionUtterance)
+                                .collect(Collectors.toList()),
+                        settings.languageAnalysisThreads);
+            SempreInstructionDataset sempreDataset = new SempreInstructionDataset(split);
+            sempreDataset.read(); // depends on 'currentRunningSempreExperiment' being already set.
+            Learner learner = new Learner(builder.parser, builder.params, sempreDataset, outputFilesPrefix);
+
+            Path lemmasCacheFile = settings.lemmasCacheFile == null ? null :
+                    environmentSettings.moduleResourceDir.resolve(settings.lemmasCacheFile.toPath());
+            if (lemmasCacheFile != null && Files.exists(lemmasCacheFile))
+                LanguageAnalysisCache.getInstance().readLemmas(lemmasCacheFile);
+
+            Objects.requireNonNull(sempreExperiment.analysis).reportSempreStarting();
+            learner.learn();
+            if (lemmasCacheFile != null)
+                LanguageAnalysisCache.getInstance().writeLemmas(lemmasCacheFile);
+            Objects.requireNonNull(sempreExperiment.analysis).reportSempreFinished();
+        } finally {
+            LogInfo.end_thread();
+            previousContext.makeCurrent();
+            endSempreRun();
+        }
 
         if (copyToAnalysisDirWeightFiles)
             moveWeightsFilesToAnalysisDirectory(experimentDir, stepNumber, iterationsNum,
-                    settings.analysisSettings.copyToAnalysisDirNonFinalWeightFiles);
+                    settings.analysisSettings.copyToAnalysisDirNonFinalWeightFiles, outputFilesPrefix);
 
-        SempreExperimentAnalysis result = currentRunningSempreExperiment.analysis;
-        currentRunningSempreExperiment = null;
-        return result;
+        return Objects.requireNonNull(sempreExperiment.analysis);
     }
 
     /**
@@ -367,12 +458,14 @@ public class ExperimentRunner {
      * Note: if a "bonus" iteration is done (i.e. one that does not update the weights), then there will be a
      * 'param.<Learner.opts.maxTrainIters>' file, but it would be identical to 'param.<Learner.opts.maxTrainIters-1>'.
      * @param iterationsNum the number of iterations that were done during execution.
+     * @param outputFilesPrefix the prefix of the names of the files written by the {@link Learner}.
      */
     private void moveWeightsFilesToAnalysisDirectory(ExperimentDirectory experimentDir, @Nullable Integer stepNumber,
-                                                     int iterationsNum, boolean copyToAnalysisDirNonFinalWeightFiles) {
+                                                     int iterationsNum, boolean copyToAnalysisDirNonFinalWeightFiles,
+                                                     String outputFilesPrefix) {
         int firstIterator = copyToAnalysisDirNonFinalWeightFiles ? 1 : iterationsNum;
         for (int i = firstIterator; i<=iterationsNum; i++){
-            Path source = getSempreOutputDir().resolve("params." + (i-1));
+            Path source = getSempreOutputDir().resolve(outputFilesPrefix + "params." + (i-1));
             Path target = experimentDir.getWeightsFile(stepNumber, i);
             GeneralFileUtils.createDirectories(target.getParent());
             GeneralFileUtils.safeMove(source,target);
@@ -427,50 +520,159 @@ public class ExperimentRunner {
 
 
     /**
-     * @param settings All other arguments take precedence over this one.
-     * @param initialWeightsFile If this is null then no weights file is used (the relevant field in 'settings' is
-     *                           ignored).
+     * The values that configure Sempre's static options for a Sempre run (see {@link #startSempreRun}). Both the
+     * configuration of the options (see {@link #apply()}) and the comparison with the values of other running Sempre
+     * runs (see {@link #equals(Object)}) are derived from the fields of this class.
      */
-    private static void  configSempreStaticOptions(ExperimentSettings settings, int iterationsNum,
-                                                   @Nullable Path initialWeightsFile, double regularizationCoefficient,
-                                                   double initStepSize) {
+    private static final class SempreStaticOptionsValues {
+
+        private final boolean useLexicalizedPhrasePredicateFeatures;
+        private final int maxNgramLengthForLexicalizedPhrasePredicateFeatures;
+        private final int iterationsNum;
+        private final boolean shuffleTrainingExamplesBetweenIterations;
+        /**
+         * Absolute (Sempre expects either an absolute path or a path relative to cwd). null means no weights file is
+         * used.
+         */
+        private final @Nullable Path initialWeightsFile;
+        private final double regularizationCoefficient;
+        private final double initStepSize;
+        private final int lazyL1FullUpdateFreq;
+        private final int beamSize;
+        private final int maxDerivationSize;
 
+        /**
+         * @param settings All other arguments take precedence over this one.
+         * @param initialWeightsFile If this is null then no weights file is used (the relevant field in 'settings' is
+         *                           ignored).
+         */
+        SempreStaticOptionsValues(ExperimentSettings settings, int iterationsNum, @Nullable Path initialWeightsFile,
+                                  double regularizationCoefficient, double initStepSize) {
+            useLexicalizedPhrasePredicateFeatures = settings.useLexicalizedPhrasePredicateFeatures;
+            maxNgramLengthForLexicalizedPhrasePredicateFeatures =
+                    settings.maxNgramLengthForLexicalizedPhrasePredicateFeatures;
+            this.iterationsNum = iterationsNum;
+            shuffleTrainingExamplesBetweenIterations = settings.shuffleTrainingExamplesBetweenIterations;
+            this.initialWeightsFile = initialWeightsFile == null ? null : initialWeightsFile.toAbsolutePath();
+            this.regularizationCoefficient = regularizationCoefficient;
+            this.initStepSize = initStepSize;
+            lazyL1FullUpdateFreq = settings.lazyL1FullUpdateFreq;
+            beamSize = settings.beamSize;
+            maxDerivationSize = settings.maxDerivationSize;
+        }
+
+        /**
+         * Sets Sempre's static options.
+         */
+        void apply() {
+
+            // We use the same SemType for both the time-of-day and date time types.
+            CanonicalNames.DATE = CanonicalNames.TIME;
+
+            edu.stanford.nlp.sempre.Dataset.opts.maxExamples = new ArrayList<>();
+            PhrasePredicateFeatureComputer.opts.lexicalizedPhrasePredicate = useLexicalizedPhrasePredicateFeatures;
+            PhrasePredicateFeatureComputer.opts.maxNforLexicalizeAllPairs =
+                    maxNgramLengthForLexicalizedPhrasePredicateFeatures;
+            Learner.opts.maxTrainIters = iterationsNum;
+            Learner.opts.shuffleTrainingExamplesBetweenIterations = shuffleTrainingExamplesBetweenIterations;
+
+            Builder.opts.inParamsPath = initialWeightsFile == null ? null : initialWeightsFile.toString();
+            edu.stanford.nlp.sempre.Dataset.opts.splitRandom = new Random(1);
+            Params.opts.l1RegCoeff = regularizationCoefficient;
+            Params.opts.initRandom = new Random(1);
+            Params.opts.initStepSize = initStepSize;
+            if (lazyL1FullUpdateFreq < 0) {
+                Params.opts.l1Reg = "nonlazy";
+            } else {
+                Params.opts.l1Reg = "lazy";
+                Params.opts.lazyL1FullUpdateFreq = lazyL1FullUpdateFreq;
+            }
+            Parser.opts.derivationScoreRandom = new Random(1);
+            Parser.opts.beamSize = beamSize;
+            FloatingParser.opts.maxDepth = maxDerivationSize;
+            DPParser.opts.shuffleRandom = new Random(1);
+        }
 
-        // We use the same SemType for both the time-of-day and date time types.
-        CanonicalNames.DATE = CanonicalNames.TIME;
+        private List<Object> getValues() {
+            return Arrays.asList(useLexicalizedPhrasePredicateFeatures,
+                    maxNgramLengthForLexicalizedPhrasePredicateFeatures, iterationsNum,
+                    shuffleTrainingExamplesBetweenIterations, initialWeightsFile, regularizationCoefficient,
+                    initStepSize, lazyL1FullUpdateFreq, beamSize, maxDerivationSize);
+        }
 
-        edu.stanford.nlp.sempre.Dataset.opts.maxExamples = new ArrayList<>();
-        PhrasePredicateFeatureComputer.opts.lexicalizedPhrasePredicate = settings.useLexicalizedPhrasePredicateFeatures;
-        PhrasePredicateFeatureComputer.opts.maxNforLexicalizeAllPairs = settings.maxNgramLengthForLexicalizedPhrasePredicateFeatures;
-        Learner.opts.maxTrainIters = iterationsNum;
-        Learner.opts.shuffleTrainingExamplesBetweenIterations = settings.shuffleTrainingExamplesBetweenIterations;
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return getValues().equals(((SempreStaticOptionsValues) o).getValues());
+        }
 
-        if (initialWeightsFile != null) {
-            // Sempre expects either an absolute path or a path relative to cwd.
-            initialWeightsFile = initialWeightsFile.toAbsolutePath();
+        @Override
+        public int hashCode() {
+            return getValues().hashCode();
         }
-        Builder.opts.inParamsPath = initialWeightsFile==null ? null : initialWeightsFile.toString();
-        edu.stanford.nlp.sempre.Dataset.opts.splitRandom = new Random(1);
-        Params.opts.l1RegCoeff = regularizationCoefficient;
-        Params.opts.initRandom = new Random(1);
-        Verify.verify(settings.initStepSize != 0);
-        Params.opts.initStepSize = initStepSize;
-        if (settings.lazyL1FullUpdateFreq < 0) {
-            Params.opts.l1Reg = "nonlazy";
-        } else {
-            Verify.verify(settings.lazyL1FullUpdateFreq > 0);
-            Params.opts.l1Reg = "lazy";
-            Params.opts.lazyL1FullUpdateFreq = settings.lazyL1FullUpdateFreq;
+
+        @Override
+        public String toString() {
+            return getValues().toString();
         }
-        Parser.opts.derivationScoreRandom = new Random(1);
-        Parser.opts.beamSize = settings.beamSize;
-        FloatingParser.opts.maxDepth = settings.maxDerivationSize;
-        DPParser.opts.shuffleRandom = new Random(1);
+    }
+
+    /**
+     * Verifies that 'settings' may be used by a Sempre run, given the current values of Sempre's options that are not
+     * configured by {@link SempreStaticOptionsValues}.
+     * @throws RuntimeException otherwise.
+     */
+    private static void verifySettingsForSempreRun(ExperimentSettings settings) {
 
+        Verify.verify(settings.initStepSize != 0);
+        Verify.verify(settings.lazyL1FullUpdateFreq != 0);
         if (Params.opts.initWeightsRandomly || Params.opts.defaultWeight!=0)
             throw new RuntimeException("Bad sempre parameters: will cause features that are extracted only on test to have non-zero weight");
+        if (settings.keptMethodCallExecutionCachesMaxNum != null && settings.keptMethodCallExecutionCachesMaxNum < 1)
+            throw new RuntimeException("Bad settings: keptMethodCallExecutionCachesMaxNum must be positive");
+        if (settings.copyOnWriteMethodInvocation && settings.inPlaceMethodInvocationForEvaluation)
+            throw new RuntimeException("Bad settings: copyOnWriteMethodInvocation and inPlaceMethodInvocationForEvaluation are mutually exclusive");
+        // Both modify the initial state (temporarily) while other derivations are executed, and copy-on-write views
+        // share its entities without locking.
+        if (Parser.opts.executionThreads > 1 &&
+                (settings.copyOnWriteMethodInvocation || settings.inPlaceMethodInvocationForEvaluation))
+            throw new RuntimeException("Bad settings: Parser.opts.executionThreads > 1 can't be used with copyOnWriteMethodInvocation or inPlaceMethodInvocationForEvaluation");
+    }
+
+    /**
+     * To be called before a Sempre run (an experiment run, or a loaded {@link InstructionParser}) starts, and to be
+     * matched by {@link #endSempreRun()}. Verifies 'settings', and configures Sempre's static options (see
+     * {@link SempreStaticOptionsValues}), unless other Sempre runs are running, in which case they must have been
+     * configured by the same values (the options are shared by the entire process, and are read by Sempre throughout a
+     * run).
+     * @param settings All other arguments take precedence over this one.
+     * @param initialWeightsFile If this is null then no weights file is used (the relevant field in 'settings' is
+     *                           ignored).
+     * @throws RuntimeException in case 'settings' are invalid, or other Sempre runs are running with different
+     * options.
+     */
+    public static synchronized void startSempreRun(ExperimentSettings settings, int iterationsNum,
+                                                   @Nullable Path initialWeightsFile,
+                                                   double regularizationCoefficient, double initStepSize) {
+        verifySettingsForSempreRun(settings);
+        SempreStaticOptionsValues optionsValues = new SempreStaticOptionsValues(settings, iterationsNum,
+                initialWeightsFile, regularizationCoefficient, initStepSize);
+        if (runningSempreRunsNum == 0) {
+            optionsValues.apply();
+            runningSempreRunsOptionsValues = optionsValues;
+        } else if (!optionsValues.equals(runningSempreRunsOptionsValues)) {
+            throw new RuntimeException("Experiments run concurrently must configure Sempre's static options the same " +
+                    "way: " + optionsValues + " vs. " + runningSempreRunsOptionsValues);
+        }
+        runningSempreRunsNum++;
     }
 
+    public static synchronized void endSempreRun() {
+        Verify.verify(runningSempreRunsNum > 0);
+        if (--runningSempreRunsNum == 0)
+            runningSempreRunsOptionsValues = null;
+    }
 
     private static void verifyIgnoredSempreOptionsAreNotSet() {
         if(!edu.stanford.nlp.sempre.Dataset.opts.maxExamples.isEmpty())
@@ -497,15 +699,31 @@ public class ExperimentRunner {
             throw new RuntimeException("The value of -PhrasePredicateFeatureComputer.maxNforLexicalizeAllPairs must not be set!");
     }
 
+    /**
+     * @return the experiment run by the current thread (see {@link InferenceContext}).
+     */
     public static SempreExperiment getCurrentExperiment() {
-        if (currentRunningSempreExperiment == null)
+        SempreExperiment result = currentRunningSempreExperiment.get();
+        if (result == null)
             throw new RuntimeException("no sempreExperiment is currently running");
-        return currentRunningSempreExperiment;
+        return result;
     }
 
 
     public static boolean isExperimentCurrentlyRunning() {
-        return currentRunningSempreExperiment!=null;
+        return currentRunningSempreExperiment.get() != null;
+    }
+
+    /**
+     * Makes 'experiment' the experiment run by the current thread. Should be used only by {@link InferenceContext} and
+     * by the logic running the experiment.
+     * @param experiment null to clear.
+     */
+    public static void setCurrentExperiment(@Nullable SempreExperiment experiment) {
+        if (experiment == null)
+            currentRunningSempreExperiment.remove();
+        else
+            currentRunningSempreExperiment.set(experiment);
     }
 
 
@@ -29,6 +29,11 @@ public class ExperimentSettings implements Serializable {
 
     private static final long serialVersionUID = -8508792813064989008L;
 
+    /**
+     * See {@link #keptMethodCallExecutionCachesMaxNum}.
+     */
+    public static final int DEFAULT_KEPT_METHOD_CALL_EXECUTION_CACHES_MAX_NUM = 1000;
+
 
     /**
      * Tags contain information about the experiment that isn't used when executing the experiment.
@@ -202,6 +207,88 @@ public class ExperimentSettings implements Serializable {
 
 
 
+    /**
+     * When true, the {@link il.ac.technion.nlp.nli.core.method_call.MethodCall}s denoted by derivations are invoked on
+     * a copy-on-write view of the initial state (see
+     * {@link il.ac.technion.nlp.nli.core.method_call.MethodCall#invokeOnCopyOnWriteViewOfState}) instead of on a deep
+     * copy of it.
+     * Mutually exclusive with {@link #inPlaceMethodInvocationForEvaluation}, and can't be used with parallel execution
+     * ({@link edu.stanford.nlp.sempre.Parser.Options#executionThreads} > 1).
+     */
+    public boolean copyOnWriteMethodInvocation = false;
+
+    /**
+     * When true, checking whether the {@link il.ac.technion.nlp.nli.core.method_call.MethodCall} denoted by a
+     * derivation results in the desired state is done by invoking it in place on the initial state, and rolling back
+     * afterwards (see {@link il.ac.technion.nlp.nli.core.method_call.MethodCall#invokeInPlaceAndRollBack}), unless
+     * the resulting state was already computed. The resulting state is then computed only if something else needs it.
+     * Mutually exclusive with {@link #copyOnWriteMethodInvocation} (the in-place invocation would modify entities
+     * shared with copy-on-write views), and can't be used with parallel execution
+     * ({@link edu.stanford.nlp.sempre.Parser.Options#executionThreads} > 1).
+     */
+    public boolean inPlaceMethodInvocationForEvaluation = false;
+
+    /**
+     * When not null, derivations denoting equal {@link il.ac.technion.nlp.nli.core.method_call.MethodCall}s share
+     * the execution, via a {@link il.ac.technion.nlp.nli.parser.denotation.MethodCallExecutionCache} of this size.
+     */
+    public @Nullable Integer methodCallExecutionCacheSize;
+
+    /**
+     * Relevant only when {@link #methodCallExecutionCacheSize} is not null. When true, the execution cache of an example
+     * is kept across inferences (and iterations), otherwise a new one is created for each inference.
+     */
+    public boolean keepMethodCallExecutionCacheAcrossInferences = false;
+
+    /**
+     * Relevant only when {@link #keepMethodCallExecutionCacheAcrossInferences} is true. The maximal number of examples
+     * for which an execution cache is kept (when exceeded, the cache of the least recently inferred example is
+     * dropped).
+     * null is equivalent to {@link #DEFAULT_KEPT_METHOD_CALL_EXECUTION_CACHES_MAX_NUM} (for backward compatibility).
+     * Must be positive.
+     */
+    public Integer keptMethodCallExecutionCachesMaxNum = DEFAULT_KEPT_METHOD_CALL_EXECUTION_CACHES_MAX_NUM;
+
+    /**
+     * When not null, the parts of the inference data that depend only on the example (the phrase association and the
+     * lexicon) are computed once per example and kept in a
+     * {@link il.ac.technion.nlp.nli.parser.general.PrecomputedInferenceDataCache} of this size (rather than computed
+     * once per inference).
+     */
+    public @Nullable Integer precomputedInferenceDataCacheSize;
+
+    /**
+     * When true, the {@link il.ac.technion.nlp.nli.parser.general.FeatureIndex} is frozen after the training examples
+     * of the first iteration are processed, so features that were not extracted by then are ignored (they are not
+     * extracted and get no weight).
+     */
+    public boolean freezeFeatureIndexAfterFirstTrainingIteration = false;
+
+    /**
+     * When not null, the lemmas cached by {@link il.ac.technion.nlp.nli.parser.general.LanguageAnalysisCache} are read
+     * from this file (if it exists) before the experiment, and written to it after the experiment, so that the same
+     * strings are not lemmatized again in later experiments.
+     * Relative to the module resource directory.
+     */
+    public @Nullable File lemmasCacheFile;
+
+    /**
+     * When not null, the {@link edu.stanford.nlp.sempre.LanguageInfo}s of the utterances of the examples are taken from
+     * a {@link il.ac.technion.nlp.nli.parser.general.PersistentLanguageInfoCache} backed by this file (the utterances
+     * not in the file are analyzed concurrently, and added to it, before the experiment starts).
+     * Relative to the module resource directory.
+     */
+    public @Nullable File languageInfoCacheFile;
+
+    /**
+     * Relevant only when {@link #languageInfoCacheFile} is not null. The number of threads analyzing the utterances
+     * that are not in the cache file yet (see
+     * {@link il.ac.technion.nlp.nli.parser.general.PersistentLanguageInfoCache#precompute(java.util.Collection, int)}).
+     * Must be positive.
+     */
+    public int languageAnalysisThreads = 1;
+
+
     public ExperimentAnalysisSettings analysisSettings = new ExperimentAnalysisSettings();
 
 
@@ -12,6 +12,12 @@ public class ExperimentAnalysisSettings implements Serializable {
 
     public boolean saveLogicalFormsOfTopPredictedDerivationsForTestInferences = false;
     public boolean saveFunctionCallsOfTopPredictedDerivationsForTestInferences = false;
+    /**
+     * When true, the function calls saved due to {@link #saveFunctionCallsOfTopPredictedDerivationsForTestInferences}
+     * are written in the binary format of {@link il.ac.technion.nlp.nli.core.serialization.NliBinaryFormat} rather
+     * than as XML.
+     */
+    public boolean saveFunctionCallsInBinaryFormat = false;
     public boolean buildFeatureAndDomainToGradientSumMap = false;
     public boolean copyToAnalysisDirWeightFiles = false;
     /**
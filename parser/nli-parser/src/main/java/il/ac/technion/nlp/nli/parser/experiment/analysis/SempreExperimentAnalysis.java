@@ -14,9 +14,13 @@ import edu.stanford.nlp.sempre.*;
 import il.ac.technion.nlp.nli.core.dataset.Domain;
 import il.ac.technion.nlp.nli.core.dataset.ExampleSplit;
 import il.ac.technion.nlp.nli.core.method_call.MethodCall;
+import il.ac.technion.nlp.nli.core.serialization.NliBinaryFormat;
 import il.ac.technion.nlp.nli.parser.experiment.analysis.results.InferenceResults;
 import il.ac.technion.nlp.nli.parser.experiment.analysis.results.SempreExperimentResults;
 import il.ac.technion.nlp.nli.parser.general.DatasetSempreGroupLabel;
+import il.ac.technion.nlp.nli.parser.general.FeatureIndex;
+import il.ac.technion.nlp.nli.parser.general.IndexedSparseVector;
+import il.ac.technion.nlp.nli.parser.general.LanguageAnalysisCache;
 import il.ac.technion.nlp.nli.parser.general.SempreExperiment;
 import il.ac.technion.nlp.nli.parser.NliMethodCallFormula;
 import il.ac.technion.nlp.nli.parser.denotation.LazyStateValue;
@@ -77,23 +81,22 @@ public class SempreExperimentAnalysis {
      * over all training examples from the domain.
      */
     public @Nullable SafeMap<Pair<String,Domain>,Double> featureAndDomainToGradientSum;
-    public @Nullable Example currentSempreExampleBeingParsed;
 
 
     private final LogDirectory logDir;
     private final LogDirectory derivationDepthOrSizeLogDir;
 
     /**
-     * Being set by {@link #reportStartingNewInference}
+     * The analysis data of the inference being done by the current thread. Being set by
+     * {@link #reportStartingNewInference}.
      */
-    public @Nullable Logger allDerivationsOfCurrentExampleLogger;
+    private final ThreadLocal<InferenceAnalysisData> currentInferenceAnalysisData = new ThreadLocal<>();
 
 
     /**
      * Being set by {@link #reportStartingNewInference}
      */
     public @Nullable Logger memoryLogger;
-    private int reportedDerivationNumber;
 
 
     /**
@@ -130,7 +133,7 @@ public class SempreExperimentAnalysis {
     /**
      * Should be called whenever adding an instruction feature.
      */
-    public void reportExtractedInstructionFeatureNotFilteredOut(Example example,
+    public synchronized void reportExtractedInstructionFeatureNotFilteredOut(Example example,
                                                                 @SuppressWarnings("unused") Derivation deriv,
                                                                 String feature) {
         if (instructionFeatureIdToExamples != null) {
@@ -154,7 +157,7 @@ public class SempreExperimentAnalysis {
 
 
 
-    public void writeExtractedInstructionFeaturesCsvAndListIfRelevant() {
+    public synchronized void writeExtractedInstructionFeaturesCsvAndListIfRelevant() {
 
         if (instructionFeatureIdToExamples == null)
             return;
@@ -220,6 +223,9 @@ public class SempreExperimentAnalysis {
         writeFeatureAndDomainToGradientSum();
         writeExtractedInstructionFeaturesCsvAndListIfRelevant();
         writeExampleCorrectnessFromTestOfLastIteration();
+        logDir.getGeneralLogger().log(LanguageAnalysisCache.getInstance().toString());
+        if (sempreExperiment.languageInfoCache != null)
+            logDir.getGeneralLogger().log(sempreExperiment.languageInfoCache.toString());
     }
 
     private void writeCwuAnalysisDataAtEndOfTrainingIterationIfRelevant() {
@@ -262,7 +268,7 @@ public class SempreExperimentAnalysis {
      * @param timeInMs the time the inference took in milliseconds.
      * @param correct in the range [0,1]
      */
-    public void processInferenceResults(Example ex, long timeInMs, double correct) {
+    public synchronized void processInferenceResults(Example ex, long timeInMs, double correct) {
         InferenceResults results = new InferenceResults(correct, timeInMs/1000.0);
 
         il.ac.technion.nlp.nli.core.dataset.Example nliExample = sempreExperiment.exampleIdToExample.safeGet(ex.id);
@@ -273,7 +279,7 @@ public class SempreExperimentAnalysis {
                 nliExample.getId() + "\t" + results.correct + "\t" + results.time);
     }
 
-    public void reportNewDatasetGroupBegins(DatasetSempreGroupLabel currentDatasetGroupLabel) {
+    public synchronized void reportNewDatasetGroupBegins(DatasetSempreGroupLabel currentDatasetGroupLabel) {
         logDir.getOrCreateLogger(allInferenceResultsLoggerId).log(
                 "iteration " + sempreExperiment.getCurrentIterationNumber()
                         + "\t" + currentDatasetGroupLabel.tag);
@@ -288,7 +294,7 @@ public class SempreExperimentAnalysis {
     }
 
 
-    public void reportAbortingCurrentInference() {
+    public synchronized void reportAbortingCurrentInference() {
         logDir.getWarningLogger().log(
                 "Aborting inference for example " + sempreExperiment.getCurrentExampleBeingParsed().getId());
     }
@@ -297,7 +303,7 @@ public class SempreExperimentAnalysis {
     /**
      * Do be called during inference after detecting the memory usage decreased.
      */
-    public void reportGarbageCollection(){
+    public synchronized void reportGarbageCollection(){
         getMemoryLogger().log("Garbage collection detected. Memory used currently (MiB):\t" +
                         MemoryAnalyzer.getUsedMemoryByJvmInMiBAsFormattedStr());
 
@@ -308,16 +314,17 @@ public class SempreExperimentAnalysis {
     }
 
     /**
-     * @param gradient a map from feature f to the partial derivation of the objective with respect to the weight of f.
+     * @param gradient maps every feature f (see {@link FeatureIndex#getInstance()}) to the partial derivation of the
+     *                 objective with respect to the weight of f.
      */
-    public void reportWeightsUpdateBegins(Map<String, Double> gradient) {
+    public synchronized void reportWeightsUpdateBegins(IndexedSparseVector gradient) {
 
         Verify.verify(sempreExperiment.getCurrentDatasetGroupLabel() == DatasetSempreGroupLabel.TRAIN);
 
         SafeMap<Pair<String, Domain>, Double> gradMap = sempreExperiment.analysis.featureAndDomainToGradientSum;
         if (gradMap != null){
             Domain domain = sempreExperiment.getCurrentExampleBeingParsed().getDomain();
-            gradient.forEach((feature,grad)-> {
+            gradient.toMap(FeatureIndex.getInstance()).forEach((feature,grad)-> {
                 Pair<String, Domain> featureDomainPair = new ImmutablePair<>(feature, domain);
                 if (!gradMap.safeContainsKey(featureDomainPair))
                     gradMap.put(featureDomainPair, 0.0);
@@ -378,12 +385,15 @@ public class SempreExperimentAnalysis {
                 Verify.verify(values.size()==1);
                 methodCalls.add(((LazyStateValue) values.get(0)).getMethodCall());
             }
-            Path outputXml = outputAnalysisDir.toPath()
+            Path outputFile = outputAnalysisDir.toPath()
                     .resolve(predictedFunctionCallOnTest_rootPathRelativeToAnalysisDir)
                     .resolve("iteration_" + currentIterationNumber)
-                    .resolve(example.id + ".xml");
-            GeneralFileUtils.createDirectories(outputXml.getParent()); // may already exist.
-            XStreamSerialization.writeObjectToXmlFile(methodCalls, outputXml);
+                    .resolve(example.id + (settings.saveFunctionCallsInBinaryFormat ? ".bin" : ".xml"));
+            GeneralFileUtils.createDirectories(outputFile.getParent()); // may already exist.
+            if (settings.saveFunctionCallsInBinaryFormat)
+                NliBinaryFormat.writeObjectToFile(methodCalls, outputFile);
+            else
+                XStreamSerialization.writeObjectToXmlFile(methodCalls, outputFile);
         }
 
         if (settings.saveAllCandidateLogicalFormsWithTheirFeatureData && !sempreExperiment.isFirstStep &&
@@ -416,27 +426,31 @@ public class SempreExperimentAnalysis {
         if (settings.logDerivationDepthOrSize) {
             OptionalDouble average = derivations.stream().mapToInt(sempreParserState::getMinDepthOrSizeOfDerivation)
                     .average();
-            derivationDepthOrSizeLogDir.getOrCreateLogger("average__iteration_" + currentIterationNumber +
-                    "__" + sempreExperiment.getCurrentDatasetGroupLabel().toString().toLowerCase())
-                    .log("" + (average.isPresent() ? average.getAsDouble() : -1));
+            logDerivationDepthOrSize(currentIterationNumber, average);
         }
     }
 
+    private synchronized void logDerivationDepthOrSize(int currentIterationNumber, OptionalDouble average) {
+        derivationDepthOrSizeLogDir.getOrCreateLogger("average__iteration_" + currentIterationNumber +
+                "__" + sempreExperiment.getCurrentDatasetGroupLabel().toString().toLowerCase())
+                .log("" + (average.isPresent() ? average.getAsDouble() : -1));
+    }
+
     private static String getSizeOrDepthLabel() {
         return FloatingParser.opts.useSizeInsteadOfDepth ?  "size" : "depth";
     }
 
 
-    public void logMemoryUsageIfRelevant() {
+    public synchronized void logMemoryUsageIfRelevant() {
     if (!settings.logMemoryUsage)
             return;
 
 
-        getMemoryLogger().log("example: " + Objects.requireNonNull(currentSempreExampleBeingParsed).id);
-        getMemoryLogger().log("estimated memory used for storing feature data (MiB): " +
+        getMemoryLogger().log("example: " + getCurrentSempreExampleBeingParsed().id);
+        getMemoryLogger().log("estimated memory used by the feature index (MiB): " +
                 MemoryAnalyzer.getMemoryInMiBAsFormattedStr(
-                        sempreExperiment.featureNameStorageOfCurrentInference
-                                .getEstimatedMemoryUsedForStoringFeatureDataInBytes()));
+                        FeatureIndex.getInstance().getEstimatedMemoryUsageInBytes()) +
+                " (features: " + FeatureIndex.getInstance().size() + ")");
 
         long currentlyUsedMemoryByJvmInBytes = MemoryAnalyzer.getUsedMemoryByJvmInBytes();
         if (lastRecordedUsedMemoryByJmvInBytes != null &&
@@ -447,17 +461,22 @@ public class SempreExperimentAnalysis {
         lastRecordedUsedMemoryByJmvInBytes = currentlyUsedMemoryByJvmInBytes;
     }
 
-    public void reportNewDerivationCreatedByRule(Rule rule, String cellName, Derivation deriv, boolean pruned) {
+    /**
+     * @param cell see {@link il.ac.technion.nlp.nli.parser.general.CallbacksFromSempre#reportNewDerivationCreatedByRule}.
+     */
+    public void reportNewDerivationCreatedByRule(Rule rule, Object cell, Derivation deriv, boolean pruned) {
         if (settings.saveAllDerivations) {
 
             StringBuilder sb = new StringBuilder();
 
 
-            reportedDerivationNumber++;
+            InferenceAnalysisData inferenceAnalysisData = currentInferenceAnalysisData.get();
+            inferenceAnalysisData.reportedDerivationNumber++;
 
 
-            sb.append("cellName=" + cellName)
-                    .append("\t\t\t\treportedDerivationNumber=" + reportedDerivationNumber).append("\n");
+            sb.append("cellName=" + cell)
+                    .append("\t\t\t\treportedDerivationNumber=" + inferenceAnalysisData.reportedDerivationNumber)
+                    .append("\n");
             sb.append(rule.toString()).append("\n");
             sb.append(GeneralAnalysisUtils.getHumanFriendlyRepresentationOfFormula(deriv.formula))
                     .append("\t\t\t=\t\t\t").append(deriv.formula.toString()).append("\n");
@@ -465,7 +484,7 @@ public class SempreExperimentAnalysis {
                 sb.append("************** PRUNED **************\n");
             Path outputDir = getOutputAnalysisDirectoryOfExampleBeingParsed();
             GeneralFileUtils.createDirectories(outputDir);
-            Objects.requireNonNull(allDerivationsOfCurrentExampleLogger).log(sb.toString());
+            Objects.requireNonNull(inferenceAnalysisData.allDerivationsLogger).log(sb.toString());
         }
     }
 
@@ -475,16 +494,37 @@ public class SempreExperimentAnalysis {
         return outputAnalysisDir.toPath()
                 .resolve(sempreExperiment.getCurrentDatasetGroupLabel().tag)
                 .resolve("iteration_" + sempreExperiment.getCurrentIterationNumber())
-                .resolve(Objects.requireNonNull(currentSempreExampleBeingParsed).id);
+                .resolve(getCurrentSempreExampleBeingParsed().id);
     }
 
+    /**
+     * @return the example of the inference being done by the current thread.
+     */
+    public Example getCurrentSempreExampleBeingParsed() {
+        return sempreExperiment.getCurrentInferenceData().sempreExample;
+    }
+
+    /**
+     * Should be called after the inference data of the current thread is set (see
+     * {@link SempreExperiment#getCurrentInferenceData()}).
+     */
     public void reportStartingNewInference(Example sempreExample) {
 
-        currentSempreExampleBeingParsed = sempreExample;
-        reportedDerivationNumber = 0;
+        Verify.verify(getCurrentSempreExampleBeingParsed() == sempreExample);
+        InferenceAnalysisData inferenceAnalysisData = new InferenceAnalysisData();
         if (settings.saveAllDerivations)
-            allDerivationsOfCurrentExampleLogger = new Logger(
+            inferenceAnalysisData.allDerivationsLogger = new Logger(
                     getOutputAnalysisDirectoryOfExampleBeingParsed().resolve("allDerivations.log").toFile(), true);
+        currentInferenceAnalysisData.set(inferenceAnalysisData);
+    }
+
+
+    /**
+     * The analysis data of a single inference.
+     */
+    private static class InferenceAnalysisData {
+        int reportedDerivationNumber;
+        @Nullable Logger allDerivationsLogger;
     }
 
 
@@ -127,6 +127,7 @@ public class ExperimentAnalysisCsvRow {
         add("numOfFeaturesToUpdateWeightsForInStep2", settings.numOfFeaturesToUpdateWeightsForInStep2);
 
         add("featuresAllowedToBeExtractedNum", settings.featuresAllowedToBeExtractedNum);
+        add("freezeFeatureIndexAfterFirstTrainingIteration", settings.freezeFeatureIndexAfterFirstTrainingIteration);
     }
 
 
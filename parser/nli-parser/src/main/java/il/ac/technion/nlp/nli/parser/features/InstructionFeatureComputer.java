@@ -4,6 +4,8 @@ import edu.stanford.nlp.sempre.Derivation;
 import edu.stanford.nlp.sempre.Example;
 import edu.stanford.nlp.sempre.FeatureComputer;
 import il.ac.technion.nlp.nli.parser.experiment.ExperimentRunner;
+import il.ac.technion.nlp.nli.parser.experiment.analysis.SempreExperimentAnalysis;
+import il.ac.technion.nlp.nli.parser.general.CallbacksFromSempre;
 import il.ac.technion.nlp.nli.parser.general.Utils;
 
 
@@ -20,8 +22,9 @@ public class InstructionFeatureComputer implements FeatureComputer {
 
     public static void addFeature(Example sempreExample,  Derivation deriv, String feature) {
         deriv.addFeature(INSTRUCTION_FEATURES_DOMAIN_IN_SEMPRE,feature);
-        ExperimentRunner.getCurrentExperiment().analysis
-                .reportExtractedInstructionFeatureNotFilteredOut(sempreExample, deriv, feature);
+        SempreExperimentAnalysis analysis = CallbacksFromSempre.getAnalysisOfCurrentExperimentIfExists();
+        if (analysis != null)
+            analysis.reportExtractedInstructionFeatureNotFilteredOut(sempreExample, deriv, feature);
     }
 
 
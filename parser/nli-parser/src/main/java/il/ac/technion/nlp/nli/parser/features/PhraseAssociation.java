@@ -12,7 +12,7 @@ import edu.stanford.nlp.sempre.tables.StringNormalizationUtils;
 import edu.stanford.nlp.sempre.tables.features.PredicateInfo;
 import il.ac.technion.nlp.nli.core.NliDescriptionsUtils;
 import il.ac.technion.nlp.nli.core.state.NliEntity;
-import il.ac.technion.nlp.nli.parser.general.CachedFunction;
+import il.ac.technion.nlp.nli.parser.general.ConcurrentBoundedCache;
 import il.ac.technion.nlp.nli.parser.BooleanEnum;
 import il.ac.technion.nlp.nli.parser.InstructionKnowledgeGraph;
 import il.ac.technion.nlp.nli.parser.NameValuesManager;
@@ -21,6 +21,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -35,6 +36,10 @@ import java.util.stream.Collectors;
  */
 public class PhraseAssociation {
 
+    /**
+     * Bounds the number of phrases memoized by {@link #processPhrase}.
+     */
+    private static final int MAX_PROCESSED_PHRASES_NUM = 10_000;
 
     /**
      * The keys in {@link #predicateInfoToAssociatedProcessedPhrases} that are probably not domain specific.
@@ -42,11 +47,18 @@ public class PhraseAssociation {
      */
     private final SafeSet<PredicateInfo> domainIndependentPredicateInfos = new SafeHashSet<>();
 
+    /**
+     * Memoizes {@link #processPhrase}.
+     * Shared with copies of this object (see {@link #PhraseAssociation(PhraseAssociation)}), and used by the
+     * {@link il.ac.technion.nlp.nli.parser.lexicon.Lexicon} of concurrent inferences, hence a concurrent cache.
+     */
+    private final ConcurrentBoundedCache<String, String> phraseToProcessedPhrase;
+
     /**
      * Takes a phrase and returns a processed phrase.
+     * Thread-safe.
      */
-    public final CachedFunction<String, String> processPhrase = new CachedFunction<>(false, phrase->
-            StringNormalizationUtils.collapseNormalize(PredicateInfo.getLemma(phrase).toLowerCase()));
+    public final Function<String, String> processPhrase;
 
     /**
      * @see #getPredicateInfosAssociatedWithPhrase(String)
@@ -71,6 +83,9 @@ public class PhraseAssociation {
      */
     public PhraseAssociation(InstructionKnowledgeGraph graph, boolean useDescriptions) {
         this.nameValueManager = graph.nameValuesManager;
+        phraseToProcessedPhrase = new ConcurrentBoundedCache<>(MAX_PROCESSED_PHRASES_NUM);
+        processPhrase = phrase ->
+                phraseToProcessedPhrase.getOrCompute(phrase, PhraseAssociation::computeProcessedPhrase);
         getAllNameValuesInKb(graph.kb).forEach(nameValue->
                 addAssociationsForNameValue(graph, nameValue, useDescriptions));
 
@@ -83,6 +98,29 @@ public class PhraseAssociation {
     }
 
 
+    /**
+     * Creates a copy of 'other' that can be modified independently of it (the associations are copied, and the
+     * iteration orders are kept).
+     */
+    public PhraseAssociation(PhraseAssociation other) {
+        nameValueManager = other.nameValueManager;
+        phraseToProcessedPhrase = other.phraseToProcessedPhrase;
+        processPhrase = other.processPhrase;
+        domainIndependentPredicateInfos.addAll(other.domainIndependentPredicateInfos);
+        other.processedPhraseToAssociatedPredicateInfos.forEach((processedPhrase, predicateInfos) ->
+                processedPhraseToAssociatedPredicateInfos.put(processedPhrase,
+                        new SafeLinkedHashSet<>(predicateInfos)));
+        other.predicateInfoToAssociatedProcessedPhrases.forEach((predicateInfo, processedPhrases) ->
+                predicateInfoToAssociatedProcessedPhrases.put(predicateInfo,
+                        new SafeLinkedHashSet<>(processedPhrases)));
+    }
+
+
+    private static String computeProcessedPhrase(String phrase) {
+        return StringNormalizationUtils.collapseNormalize(PredicateInfo.getLemma(phrase).toLowerCase());
+    }
+
+
     /**
      * @return The iteration order is arbitrary (but deterministic w.r.t order of method calls with this instance).
      *         Doesn't contain any {@link PredicateInfo} with an inverse {@link NameValue}.
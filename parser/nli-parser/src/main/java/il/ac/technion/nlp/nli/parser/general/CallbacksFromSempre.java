@@ -4,6 +4,8 @@ import com.google.common.base.Verify;
 import edu.stanford.nlp.sempre.*;
 import il.ac.technion.nlp.nli.parser.experiment.ExperimentRunner;
 import il.ac.technion.nlp.nli.parser.experiment.analysis.FeatureAndValue;
+import il.ac.technion.nlp.nli.parser.experiment.analysis.SempreExperimentAnalysis;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 import java.util.function.Supplier;
@@ -18,6 +20,16 @@ import java.util.stream.Collectors;
 @SuppressWarnings("UnusedParameters")
 public class CallbacksFromSempre {
 
+    /**
+     * @return null in case no experiment is running, or the running experiment does no analysis (see
+     * {@link SempreExperiment#analysis}).
+     */
+    public static @Nullable SempreExperimentAnalysis getAnalysisOfCurrentExperimentIfExists() {
+        if (!ExperimentRunner.isExperimentCurrentlyRunning())
+            return null;
+        return ExperimentRunner.getCurrentExperiment().analysis;
+    }
+
     /**
      * Reminder: sempre may invoke two consecutive inferences on the same example in order to compute gradients.
      */
@@ -69,8 +81,7 @@ public class CallbacksFromSempre {
      */
     public static void reportDatasetGroupEnds(String groupLabel) {
         if (ExperimentRunner.isExperimentCurrentlyRunning())
-            ExperimentRunner.getCurrentExperiment().analysis.reportDatasetGroupEnds(
-                    DatasetSempreGroupLabel.getFromSempreTag(groupLabel));
+            ExperimentRunner.getCurrentExperiment().datasetGroupEnds(groupLabel);
     }
 
 
@@ -79,30 +90,36 @@ public class CallbacksFromSempre {
      * @param correct in the range [0,1]
      */
     public static void reportInferenceResults(Example example, long timeInMs, double correct) {
-        if (ExperimentRunner.isExperimentCurrentlyRunning())
-            ExperimentRunner.getCurrentExperiment().analysis.processInferenceResults(example, timeInMs, correct);
+        SempreExperimentAnalysis analysis = getAnalysisOfCurrentExperimentIfExists();
+        if (analysis != null)
+            analysis.processInferenceResults(example, timeInMs, correct);
     }
 
     /**
      * Note:  anchored cells become floating at level 0 (which is not shown by calling this method).
+     * @param cell the chart cell. Its {@link Object#toString()} returns the cell name (it's invoked only if needed).
      * @param pruned whether the derivation is pruned by Sempre.
      */
-    public static void reportNewDerivationCreatedByRule(Rule rule, String cellName, Derivation deriv, boolean pruned) {
-        if (!ExperimentRunner.isExperimentCurrentlyRunning())
-            return;
-        ExperimentRunner.getCurrentExperiment().analysis.reportNewDerivationCreatedByRule(rule, cellName, deriv, pruned);
+    public static void reportNewDerivationCreatedByRule(Rule rule, Object cell, Derivation deriv, boolean pruned) {
+        SempreExperimentAnalysis analysis = getAnalysisOfCurrentExperimentIfExists();
+        if (analysis != null)
+            analysis.reportNewDerivationCreatedByRule(rule, cell, deriv, pruned);
     }
 
     /**
      * I think all the derivations reported here derive a {@link edu.stanford.nlp.sempre.Formula} that contains
      * a {@link edu.stanford.nlp.sempre.StringValue}.
+     * @param anchoredCell see the 'cell' parameter of {@link #reportNewDerivationCreatedByRule}.
+     * @param floatingCell see the 'cell' parameter of {@link #reportNewDerivationCreatedByRule}.
      */
     public static void reportNewBasicDerivationCreatedFromTokenOrPhrase(
-            String anchoredCellName, String floatingCellName, Derivation deriv) {
+            Object anchoredCell, Object floatingCell, Derivation deriv) {
     }
 
     public static void reportAbortingInference() {
-        ExperimentRunner.getCurrentExperiment().analysis.reportAbortingCurrentInference();
+        SempreExperimentAnalysis analysis = getAnalysisOfCurrentExperimentIfExists();
+        if (analysis != null)
+            analysis.reportAbortingCurrentInference();
     }
 
     /**
@@ -117,23 +134,21 @@ public class CallbacksFromSempre {
     /**
      * @param gradient a map from feature f to the partial derivation of the objective with respect to the weight of f.
      */
-    public static void reportWeightsUpdateBegins(Params weights, Map<String, Double> gradient) {
+    public static void reportWeightsUpdateBegins(Params weights, IndexedSparseVector gradient) {
 
-        if (!ExperimentRunner.isExperimentCurrentlyRunning())
-            return;
-
-        ExperimentRunner.getCurrentExperiment().analysis.reportWeightsUpdateBegins(gradient);
+        SempreExperimentAnalysis analysis = getAnalysisOfCurrentExperimentIfExists();
+        if (analysis != null)
+            analysis.reportWeightsUpdateBegins(gradient);
     }
 
     /**
      * Note: Throughout the execution of Sempre, the only stage in which the weights changed (after their
-     * initialization) is between calls to {@link #reportWeightsUpdateBegins(Params, Map)} and this method.
+     * initialization) is between calls to {@link #reportWeightsUpdateBegins(Params, IndexedSparseVector)} and this method.
      */
     public static void reportWeightsUpdateEnds(Params weights) {
-        if (!ExperimentRunner.isExperimentCurrentlyRunning())
-            return;
-
-        ExperimentRunner.getCurrentExperiment().analysis.reportWeightsUpdateEnds(weights);
+        SempreExperimentAnalysis analysis = getAnalysisOfCurrentExperimentIfExists();
+        if (analysis != null)
+            analysis.reportWeightsUpdateEnds(weights);
     }
 
     /**
@@ -146,7 +161,8 @@ public class CallbacksFromSempre {
             Example example, List<Derivation> derivations, double[] compatibilities, int topDerivationsNumber,
             ParserState sempreParserState) {
 
-        if (!ExperimentRunner.isExperimentCurrentlyRunning())
+        SempreExperimentAnalysis analysis = getAnalysisOfCurrentExperimentIfExists();
+        if (analysis == null)
             return;
 
         Verify.verify(ExperimentRunner.getCurrentExperiment().getCurrentExampleBeingParsed().getId().equals(
@@ -176,7 +192,7 @@ public class CallbacksFromSempre {
             return result;
         };
 
-        ExperimentRunner.getCurrentExperiment().analysis.reportDerivationsPredictedByInference(
+        analysis.reportDerivationsPredictedByInference(
                 example, new ArrayList<>(derivations), derivationsCorrectness, derivationFeatureValues,
                 derivationsScores, topDerivationsNumber, sempreParserState);
 
@@ -0,0 +1,121 @@
+package il.ac.technion.nlp.nli.parser.general;
+
+import com.google.common.base.Verify;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A cache of the values of a function, meant to be used concurrently by many threads.
+ * Hits don't lock. In case of a miss the value is computed without locking, so two threads missing the same key at
+ * the same time may both compute its value (in which case the value of one of them is kept), hence the function
+ * should be deterministic.
+ * Bounded: when full, the entry inserted earliest is evicted (the size may exceed the bound momentarily while
+ * entries are being inserted concurrently).
+ * Thread-safe.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class ConcurrentBoundedCache<K, V> {
+
+    private final int maxSize;
+    private final ConcurrentHashMap<K, V> keyToValue = new ConcurrentHashMap<>();
+    /**
+     * The keys of {@link #keyToValue}, in insertion order.
+     */
+    private final ConcurrentLinkedQueue<K> keysByInsertionOrder = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder hitsNum = new LongAdder();
+    private final LongAdder missesNum = new LongAdder();
+    private final LongAdder evictionsNum = new LongAdder();
+
+
+    /**
+     * @param maxSize positive.
+     */
+    public ConcurrentBoundedCache(int maxSize) {
+        Verify.verify(maxSize > 0);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param computeValue used in case of a miss. Must not return null.
+     */
+    public V getOrCompute(K key, Function<K, V> computeValue) {
+        V value = keyToValue.get(key);
+        if (value != null) {
+            hitsNum.increment();
+            return value;
+        }
+        missesNum.increment();
+        value = computeValue.apply(key);
+        Verify.verify(value != null);
+        V existingValue = putIfAbsent(key, value);
+        return existingValue == null ? value : existingValue;
+    }
+
+    /**
+     * Does not affect the statistics.
+     * @param value must not be null.
+     * @return the value already associated with 'key' (which is kept), or null if there was none.
+     */
+    public V putIfAbsent(K key, V value) {
+        V existingValue = keyToValue.putIfAbsent(key, value);
+        if (existingValue != null)
+            return existingValue;
+        keysByInsertionOrder.add(key);
+        while (keyToValue.size() > maxSize) {
+            K eldest = keysByInsertionOrder.poll();
+            if (eldest == null)
+                break;
+            if (keyToValue.remove(eldest) != null)
+                evictionsNum.increment();
+        }
+        return null;
+    }
+
+    /**
+     * @return null if 'key' is not cached. Does not affect the statistics.
+     */
+    public V getIfPresent(K key) {
+        return keyToValue.get(key);
+    }
+
+    /**
+     * Calls 'consumer' with every cached entry (entries added or evicted concurrently may or may not be included).
+     */
+    public void forEach(BiConsumer<K, V> consumer) {
+        for (Map.Entry<K, V> entry : keyToValue.entrySet())
+            consumer.accept(entry.getKey(), entry.getValue());
+    }
+
+    public int size() {
+        return keyToValue.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitsNum() {
+        return hitsNum.sum();
+    }
+
+    public long getMissesNum() {
+        return missesNum.sum();
+    }
+
+    public long getEvictionsNum() {
+        return evictionsNum.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentBoundedCache{size=" + size() + ", maxSize=" + maxSize + ", hits=" + getHitsNum() +
+                ", misses=" + getMissesNum() + ", evictions=" + getEvictionsNum() + "}";
+    }
+}
@@ -0,0 +1,251 @@
+package il.ac.technion.nlp.nli.parser.general;
+
+import com.google.common.base.Verify;
+import edu.stanford.nlp.sempre.FeatureVector;
+import edu.stanford.nlp.sempre.Params;
+import il.ac.technion.nlp.nli.parser.experiment.ExperimentRunner;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A dictionary between feature names (of the form "domain :: name", see {@link FeatureVector}) and consecutive int
+ * indices, used by {@link FeatureVector} and {@link Params} in order to store features and weights in primitive arrays.
+ * A feature gets an index the first time it's seen, and that index never changes afterwards.
+ * The process-wide instance ({@link #getInstance()}) holds the only long-lived copy of each feature name: the names
+ * returned by {@link FeatureVector#toMap()}, {@link Params#getWeights()} and the analysis code are the ones stored
+ * here.
+ *
+ * Besides being frozen as a whole (see {@link #freeze()}), the process-wide instance is frozen for the threads working on
+ * an experiment that froze it (see {@link SempreExperiment#freezeFeatureIndex()}): for them, only the features that had
+ * an index when it was frozen have one (the indices are shared, but an index is never changed once given, so these are
+ * the indices lower than the size at that time). So features indexed by experiments run concurrently don't affect a
+ * frozen experiment.
+ *
+ * The on-disk form (see {@link #write(Path)}) is a text file in which line i holds the name of the feature with index
+ * i, so a file written earlier remains valid as long as features are only added.
+ *
+ * Thread-safe. Lookups of features that already have an index don't lock.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class FeatureIndex {
+
+    private static final String DOMAIN_SEPARATOR = " :: ";
+
+    private static final FeatureIndex instance = new FeatureIndex();
+
+    /**
+     * The first {@link #size} elements are in use. Replaced (by a larger copy) when full.
+     */
+    private volatile String[] indexToFeature = new String[1024];
+    private volatile int size;
+    private final ConcurrentHashMap<String, Integer> featureToIndex = new ConcurrentHashMap<>();
+    /**
+     * Maps domain to name to the index of the feature "domain :: name". Allows looking up features without
+     * concatenating their domain and name.
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> domainToNameToIndex =
+            new ConcurrentHashMap<>();
+    /**
+     * The number of (domain, name) entries in {@link #domainToNameToIndex}.
+     */
+    private volatile int domainAndNameEntriesNum;
+
+    /**
+     * See {@link #freeze()}.
+     */
+    private volatile boolean frozen;
+    /**
+     * true once the process-wide instance was frozen for some experiment (see
+     * {@link SempreExperiment#freezeFeatureIndex()}), so that the experiment of the current thread is checked on lookups
+     * only from then on.
+     */
+    private volatile boolean frozenByExperiment;
+
+
+    /**
+     * @return the index used by {@link FeatureVector} and {@link Params}.
+     */
+    public static FeatureIndex getInstance() {
+        return instance;
+    }
+
+    public static String toFeature(String domain, String name) {
+        return domain + DOMAIN_SEPARATOR + name;
+    }
+
+    /**
+     * @param feature not necessarily of the form "domain :: name".
+     * @return -1 in case 'feature' has no index and this index is frozen, or in case this index is frozen for the
+     * current thread and 'feature' had no index when it was frozen (see class doc).
+     */
+    public int getOrCreateIndex(String feature) {
+        int sizeWhenFrozen = getSizeWhenFrozenForCurrentThread();
+        Integer index = featureToIndex.get(feature);
+        if (index != null)
+            return sizeWhenFrozen < 0 || index < sizeWhenFrozen ? index : -1;
+        if (sizeWhenFrozen >= 0)
+            return -1;
+        return createIndex(feature);
+    }
+
+    /**
+     * @return see {@link SempreExperiment#getFeatureIndexSizeWhenFrozen()} (of the experiment of the current thread).
+     * -1 in case this index is not frozen for the current thread.
+     */
+    private int getSizeWhenFrozenForCurrentThread() {
+        if (!frozenByExperiment || this != instance || !ExperimentRunner.isExperimentCurrentlyRunning())
+            return -1;
+        return ExperimentRunner.getCurrentExperiment().getFeatureIndexSizeWhenFrozen();
+    }
+
+    /**
+     * Called by {@link SempreExperiment#freezeFeatureIndex()}.
+     */
+    void notifyFrozenByExperiment() {
+        frozenByExperiment = true;
+    }
+
+    private synchronized int createIndex(String feature) {
+        Integer index = featureToIndex.get(feature);
+        if (index != null)
+            return index;
+        if (frozen)
+            return -1;
+        if (size == indexToFeature.length)
+            indexToFeature = Arrays.copyOf(indexToFeature, 2 * size);
+        index = size;
+        // The name is stored before the index is published by 'featureToIndex', so that whoever got the index can get
+        // the name.
+        indexToFeature[index] = feature;
+        size = index + 1;
+        featureToIndex.put(feature, index);
+        return index;
+    }
+
+    /**
+     * Same as {@link #getOrCreateIndex(String)} with the feature "domain :: name", but the strings are concatenated only
+     * when this is the first lookup of the feature by domain and name.
+     */
+    public int getOrCreateIndex(String domain, String name) {
+        ConcurrentHashMap<String, Integer> nameToIndex = domainToNameToIndex.get(domain);
+        if (nameToIndex != null) {
+            Integer index = nameToIndex.get(name);
+            if (index != null) {
+                int sizeWhenFrozen = getSizeWhenFrozenForCurrentThread();
+                return sizeWhenFrozen < 0 || index < sizeWhenFrozen ? index : -1;
+            }
+        }
+        int index = getOrCreateIndex(toFeature(domain, name));
+        if (index >= 0)
+            addDomainAndName(domain, name, index);
+        return index;
+    }
+
+    private synchronized void addDomainAndName(String domain, String name, int index) {
+        if (domainToNameToIndex.computeIfAbsent(domain, d -> new ConcurrentHashMap<>()).put(name, index) == null)
+            domainAndNameEntriesNum++;
+    }
+
+    /**
+     * @return -1 in case 'feature' has no index.
+     */
+    public int getIndex(String feature) {
+        Integer index = featureToIndex.get(feature);
+        return index == null ? -1 : index;
+    }
+
+    public String getFeature(int index) {
+        Verify.verify(index >= 0 && index < size);
+        return indexToFeature[index];
+    }
+
+    /**
+     * @return the number of features with an index (the indices are 0, ..., size-1).
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * After this is called, features that don't have an index yet don't get one: {@link #getOrCreateIndex(String)}
+     * returns -1 for them (so they are not extracted by {@link FeatureVector}).
+     * This affects all the threads, so an experiment should freeze the process-wide instance only for itself (see
+     * {@link SempreExperiment#freezeFeatureIndex()}).
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    public void unfreeze() {
+        frozen = false;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * @return an estimation of the memory used by this object: the feature names (and the names used for lookups by
+     * domain and name), the map entries, and the index-to-feature array.
+     */
+    public long getEstimatedMemoryUsageInBytes() {
+        int featuresNum = size; // read before the array (which may be replaced by a larger one meanwhile).
+        String[] features = indexToFeature;
+        long result = 0;
+        for (int i = 0; i < featuresNum; i++)
+            result += getEstimatedMemoryUsedToStoreStringInBytes(features[i]);
+        for (ConcurrentHashMap<String, Integer> nameToIndex : domainToNameToIndex.values())
+            for (String name : nameToIndex.keySet())
+                result += getEstimatedMemoryUsedToStoreStringInBytes(name);
+        // a map node (32 bytes), its slot in the table (8 bytes) and an Integer (16 bytes) per entry.
+        result += 56L * (featuresNum + domainAndNameEntriesNum);
+        result += 8L * features.length;
+        return result;
+    }
+
+    private static int getEstimatedMemoryUsedToStoreStringInBytes(String s){
+        // based on: [https://www.javamex.com/tutorials/memory/string_memory_usage.shtml]
+        return 8 * ((s.length() * 2) + 45) / 8;
+    }
+
+    /**
+     * @param outputFile overwritten if already exists.
+     */
+    public void write(Path outputFile) {
+        int featuresNum = size; // read before the array (which may be replaced by a larger one meanwhile).
+        String[] features = indexToFeature;
+        try {
+            Files.write(outputFile, Arrays.asList(features).subList(0, featuresNum), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Gives every feature in 'inputFile' (written by {@link #write(Path)}) the index it has there.
+     * @throws RuntimeException in case a feature in the file already has a different index (i.e. the file is not
+     * consistent with the features indexed so far), or in case this index is frozen and the file contains features
+     * without an index.
+     */
+    public synchronized void read(Path inputFile) {
+        List<String> features;
+        try {
+            features = Files.readAllLines(inputFile, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (int i = 0; i < features.size(); i++) {
+            String feature = features.get(i);
+            Verify.verify(i >= size ? getOrCreateIndex(feature) == i : indexToFeature[i].equals(feature),
+                    "feature index file is inconsistent with the current index: %s", feature);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package il.ac.technion.nlp.nli.parser.general;
+
+import com.google.common.base.Verify;
+import edu.stanford.nlp.sempre.Params;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * A sparse vector of doubles whose coordinates are feature indices (see {@link FeatureIndex}). Used for gradients, so
+ * that they are accumulated over derivations and examples and applied to the weights (see
+ * {@link Params#update(IndexedSparseVector)}) without building or hashing feature names.
+ *
+ * The entries are kept in the order in which their coordinates were first incremented, so iterating is deterministic.
+ * An entry is kept even if its value becomes 0.
+ *
+ * Not thread-safe.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class IndexedSparseVector {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The first {@link #size} elements are in use.
+     */
+    private int[] indices = new int[INITIAL_CAPACITY];
+    private double[] values = new double[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * An open-addressing (linear probing) hash table from a feature index to its position in {@link #indices} plus 1
+     * (0 marks an empty slot). Its length is a power of 2, and it's kept at most half full.
+     */
+    private int[] table = new int[2 * INITIAL_CAPACITY];
+
+
+    /**
+     * @param index a feature index (non-negative).
+     */
+    public void increment(int index, double value) {
+        Verify.verify(index >= 0);
+        int slot = findSlot(index);
+        if (table[slot] != 0) {
+            values[table[slot] - 1] += value;
+            return;
+        }
+        if (size == indices.length) {
+            indices = Arrays.copyOf(indices, 2 * size);
+            values = Arrays.copyOf(values, 2 * size);
+        }
+        indices[size] = index;
+        values[size] = value;
+        size++;
+        table[slot] = size;
+        if (2 * size > table.length)
+            rehash(2 * table.length);
+    }
+
+    /**
+     * Adds 'scale' times 'other' to this vector.
+     */
+    public void add(double scale, IndexedSparseVector other) {
+        for (int i = 0; i < other.size; i++)
+            increment(other.indices[i], scale * other.values[i]);
+    }
+
+    /**
+     * Adds the given feature values to this vector. Features that have no index in 'featureIndex' (because it's
+     * frozen) are ignored.
+     */
+    public void increment(Map<String, Double> featureToValue, FeatureIndex featureIndex) {
+        featureToValue.forEach((feature, value) -> {
+            int index = featureIndex.getOrCreateIndex(feature);
+            if (index >= 0)
+                increment(index, value);
+        });
+    }
+
+    /**
+     * @return 0 in case there's no entry for 'index'.
+     */
+    public double get(int index) {
+        int position = table[findSlot(index)];
+        return position == 0 ? 0 : values[position - 1];
+    }
+
+    /**
+     * @return the number of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param position in the range [0, {@link #size()}).
+     * @return the feature index of the entry at 'position' (in iteration order).
+     */
+    public int getIndexAt(int position) {
+        return indices[position];
+    }
+
+    /**
+     * @param position in the range [0, {@link #size()}).
+     */
+    public double getValueAt(int position) {
+        return values[position];
+    }
+
+    public double getSquaredL2Norm() {
+        double result = 0;
+        for (int i = 0; i < size; i++)
+            result += values[i] * values[i];
+        return result;
+    }
+
+    /**
+     * Removes the entries whose feature index satisfies 'predicate' (keeping the order of the other entries).
+     */
+    public void removeIf(IntPredicate predicate) {
+        int newSize = 0;
+        for (int i = 0; i < size; i++) {
+            if (predicate.test(indices[i]))
+                continue;
+            indices[newSize] = indices[i];
+            values[newSize] = values[i];
+            newSize++;
+        }
+        if (newSize == size)
+            return;
+        size = newSize;
+        rehash(table.length);
+    }
+
+    public void clear() {
+        size = 0;
+        Arrays.fill(table, 0);
+    }
+
+    /**
+     * @return a new map from the name of each feature with an entry to its value (in iteration order).
+     */
+    public Map<String, Double> toMap(FeatureIndex featureIndex) {
+        Map<String, Double> result = new LinkedHashMap<>(2 * size);
+        for (int i = 0; i < size; i++)
+            result.put(featureIndex.getFeature(indices[i]), values[i]);
+        return result;
+    }
+
+    /**
+     * @return the slot in {@link #table} that holds 'index', or the empty slot where it should be inserted.
+     */
+    private int findSlot(int index) {
+        int mask = table.length - 1;
+        int hash = index * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (table[slot] != 0 && indices[table[slot] - 1] != index)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void rehash(int tableLength) {
+        table = new int[tableLength];
+        for (int i = 0; i < size; i++)
+            table[findSlot(indices[i])] = i + 1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(indices[i]).append('=').append(values[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
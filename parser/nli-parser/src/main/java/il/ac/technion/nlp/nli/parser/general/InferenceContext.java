@@ -0,0 +1,111 @@
+package il.ac.technion.nlp.nli.parser.general;
+
+import fig.basic.LogInfo;
+import il.ac.technion.nlp.nli.parser.experiment.ExperimentRunner;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The experiment and the inference that a thread works on (see {@link ExperimentRunner#getCurrentExperiment()} and
+ * {@link SempreExperiment#getCurrentInferenceData()}). These are kept per thread, so that several inferences may be
+ * done concurrently in the same process.
+ * A thread that does work on behalf of another thread (e.g. executing the derivations of its inference) must be given
+ * the context of the other thread explicitly: the other thread calls {@link #ofCurrentThread()}, and the working
+ * thread calls {@link #makeCurrent()} before doing the work and {@link #clearCurrent()} after it.
+ *
+ * Immutable.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class InferenceContext {
+
+    /**
+     * null iff no experiment is running in the context.
+     */
+    public final @Nullable SempreExperiment experiment;
+    /**
+     * null iff no inference was started in the context.
+     */
+    public final @Nullable InferenceData inferenceData;
+    /**
+     * Whether Sempre's log output (see {@link LogInfo}) is discarded in the context.
+     */
+    public final boolean silentLog;
+
+    /**
+     * Whether the current thread discards Sempre's log output because its context has {@link #silentLog} (i.e. it
+     * called {@link LogInfo#begin_thread(boolean)} in {@link #makeCurrent()}).
+     */
+    private static final ThreadLocal<Boolean> logSilencedByContext = new ThreadLocal<>();
+
+
+    private InferenceContext(@Nullable SempreExperiment experiment, @Nullable InferenceData inferenceData,
+                             boolean silentLog) {
+        this.experiment = experiment;
+        this.inferenceData = inferenceData;
+        this.silentLog = silentLog;
+    }
+
+    public static InferenceContext ofCurrentThread() {
+        boolean silentLog = logSilencedByContext.get() != null;
+        if (!ExperimentRunner.isExperimentCurrentlyRunning())
+            return new InferenceContext(null, null, silentLog);
+        SempreExperiment experiment = ExperimentRunner.getCurrentExperiment();
+        return new InferenceContext(experiment, experiment.getCurrentInferenceDataIfExists(), silentLog);
+    }
+
+    /**
+     * @return a context in which 'experiment' is running, and no inference was started yet.
+     */
+    public static InferenceContext ofExperiment(SempreExperiment experiment) {
+        return new InferenceContext(experiment, null, false);
+    }
+
+    /**
+     * @return the same context, except that Sempre's log output is discarded (also by threads working on behalf of a
+     * thread in this context).
+     */
+    public InferenceContext withSilentLog() {
+        return new InferenceContext(experiment, inferenceData, true);
+    }
+
+    /**
+     * Makes this the context of the current thread (replacing its previous context).
+     * In case the log output of the current thread is already discarded by its previous context and this context has
+     * {@link #silentLog}, the thread keeps its current log state (so tracks it began are not lost).
+     */
+    public void makeCurrent() {
+        boolean keepSilencedLog = silentLog && logSilencedByContext.get() != null;
+        clearExperimentAndInference();
+        if (!keepSilencedLog)
+            restoreLog();
+        ExperimentRunner.setCurrentExperiment(experiment);
+        if (experiment != null)
+            experiment.setCurrentInferenceData(inferenceData);
+        if (silentLog && !keepSilencedLog) {
+            LogInfo.begin_thread(true);
+            logSilencedByContext.set(true);
+        }
+    }
+
+    /**
+     * Makes the current thread have no experiment and no inference (and not discard Sempre's log output, in case its
+     * context had {@link #silentLog}).
+     */
+    public static void clearCurrent() {
+        clearExperimentAndInference();
+        restoreLog();
+    }
+
+    private static void clearExperimentAndInference() {
+        if (ExperimentRunner.isExperimentCurrentlyRunning())
+            ExperimentRunner.getCurrentExperiment().setCurrentInferenceData(null);
+        ExperimentRunner.setCurrentExperiment(null);
+    }
+
+    private static void restoreLog() {
+        if (logSilencedByContext.get() != null) {
+            logSilencedByContext.remove();
+            LogInfo.end_thread();
+        }
+    }
+}
@@ -3,30 +3,56 @@ package il.ac.technion.nlp.nli.parser.general;
 import il.ac.technion.nlp.nli.core.dataset.Example;
 import il.ac.technion.nlp.nli.parser.experiment.ExperimentSettings;
 import il.ac.technion.nlp.nli.parser.InstructionKnowledgeGraph;
+import il.ac.technion.nlp.nli.parser.denotation.MethodCallExecutionCache;
 import il.ac.technion.nlp.nli.parser.features.PhraseAssociation;
 import il.ac.technion.nlp.nli.parser.lexicon.Lexicon;
 import il.ac.technion.nlp.nli.parser.type_system.InstructionTypeSystem;
+import org.jetbrains.annotations.Nullable;
 
 /**
- * Meant to be collected by the GC after the inference is done.
+ * Meant to be collected by the GC after the inference is done (the parts of it that are shared by all the inferences
+ * on the same example may be kept, see {@link PrecomputedInferenceData}).
+ * An inference is done by a single thread (see {@link SempreExperiment#getCurrentInferenceData()}), and the threads it
+ * hands work to must be given this object explicitly (see {@link InferenceContext}).
  *
  * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
  */
 public class InferenceData {
 
     public final Example example;
+    public final edu.stanford.nlp.sempre.Example sempreExample;
     public final InstructionKnowledgeGraph graph;
     public final PhraseAssociation phraseAssociation;
     public final InstructionTypeSystem instructionTypeSystem = new InstructionTypeSystem();
     public final Lexicon lexicon;
+    /**
+     * null iff {@link ExperimentSettings#methodCallExecutionCacheSize} is null.
+     */
+    public final @Nullable MethodCallExecutionCache executionCache;
 
 
-    public InferenceData(ExperimentSettings settings, Example example, edu.stanford.nlp.sempre.Example sempreExample) {
+    /**
+     * @param executionCache see field.
+     */
+    public InferenceData(ExperimentSettings settings, Example example, edu.stanford.nlp.sempre.Example sempreExample,
+                         @Nullable MethodCallExecutionCache executionCache) {
+        this(example, sempreExample,
+                new PrecomputedInferenceData(settings, (InstructionKnowledgeGraph)sempreExample.context.graph),
+                executionCache);
+    }
+
+    /**
+     * @param precomputedData of 'example' (not modified by this object, so it may be shared with other inferences).
+     * @param executionCache see field.
+     */
+    public InferenceData(Example example, edu.stanford.nlp.sempre.Example sempreExample,
+                         PrecomputedInferenceData precomputedData, @Nullable MethodCallExecutionCache executionCache) {
         this.example = example;
-        this.graph = (InstructionKnowledgeGraph)sempreExample.context.graph;
-        phraseAssociation = new PhraseAssociation(graph,
-                settings.enableInstructionFeatures && settings.useDescriptionPhraseFeatures);
-        lexicon = new Lexicon(graph, phraseAssociation, settings.deterministic);
+        this.sempreExample = sempreExample;
+        this.executionCache = executionCache;
+        this.graph = precomputedData.graph;
+        phraseAssociation = precomputedData.createPhraseAssociationForInference();
+        lexicon = precomputedData.lexicon;
     }
 
 }
@@ -0,0 +1,125 @@
+package il.ac.technion.nlp.nli.parser.general;
+
+import edu.stanford.nlp.sempre.LanguageAnalyzer;
+import edu.stanford.nlp.sempre.LanguageInfo;
+import edu.stanford.nlp.sempre.tables.features.PredicateInfo;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Caches the results of {@link LanguageAnalyzer#getSingleton()} (which may be slow, e.g. when CoreNLP is used): the
+ * lemma form of strings (see {@link PredicateInfo#getLemma(String)}) and the {@link LanguageInfo} of utterances.
+ * Assumes the singleton analyzer is not replaced while this cache is used.
+ *
+ * The lemmas may be written to a file and read back in another process (see {@link #writeLemmas(Path)}), so that the
+ * same strings are not lemmatized again.
+ *
+ * Thread-safe (see {@link ConcurrentBoundedCache}).
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class LanguageAnalysisCache {
+
+    public static final int DEFAULT_MAX_LEMMAS_NUM = 1000000;
+    public static final int DEFAULT_MAX_LANGUAGE_INFOS_NUM = 10000;
+
+    private static volatile LanguageAnalysisCache instance =
+            new LanguageAnalysisCache(DEFAULT_MAX_LEMMAS_NUM, DEFAULT_MAX_LANGUAGE_INFOS_NUM);
+
+    private final ConcurrentBoundedCache<String, String> stringToLemma;
+    private final ConcurrentBoundedCache<String, LanguageInfo> utteranceToLanguageInfo;
+
+
+    public LanguageAnalysisCache(int maxLemmasNum, int maxLanguageInfosNum) {
+        stringToLemma = new ConcurrentBoundedCache<>(maxLemmasNum);
+        utteranceToLanguageInfo = new ConcurrentBoundedCache<>(maxLanguageInfosNum);
+    }
+
+    /**
+     * @return the cache used by {@link PredicateInfo#getLemma(String)}.
+     */
+    public static LanguageAnalysisCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Replaces the cache returned by {@link #getInstance()} (e.g. in order to change its bounds).
+     */
+    public static void setInstance(LanguageAnalysisCache cache) {
+        instance = cache;
+    }
+
+    /**
+     * @param s not empty (after trimming).
+     * @return the lemmas of the tokens of 's', separated by spaces.
+     */
+    public String getLemma(String s) {
+        return stringToLemma.getOrCompute(s, str -> {
+            LanguageInfo langInfo = LanguageAnalyzer.getSingleton().analyze(str);
+            return (langInfo.numTokens() == 0) ? "" : langInfo.lemmaPhrase(0, langInfo.numTokens());
+        });
+    }
+
+    /**
+     * @return the {@link LanguageInfo} of 'utterance', which may be shared with other callers and thus must not be
+     * modified.
+     */
+    public LanguageInfo analyze(String utterance) {
+        return utteranceToLanguageInfo.getOrCompute(utterance, LanguageAnalyzer.getSingleton()::analyze);
+    }
+
+    /**
+     * Adds the lemmas in 'inputFile' (written by {@link #writeLemmas(Path)}) to the cache (up to its bound). Lemmas
+     * already in the cache are kept.
+     */
+    public void readLemmas(Path inputFile) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(inputFile, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (String line : lines) {
+            String[] stringAndLemma = line.split("\t", -1);
+            if (stringAndLemma.length != 2)
+                throw new RuntimeException("Invalid line in lemmas file: " + line);
+            stringToLemma.putIfAbsent(stringAndLemma[0], stringAndLemma[1]);
+        }
+    }
+
+    /**
+     * Writes the cached lemmas, one per line (the string and its lemma form, separated by a tab). Strings containing a
+     * tab or a line break are not written.
+     * @param outputFile overwritten if already exists.
+     */
+    public synchronized void writeLemmas(Path outputFile) {
+        try (Writer writer = Files.newBufferedWriter(outputFile, StandardCharsets.UTF_8)) {
+            stringToLemma.forEach((s, lemma) -> {
+                if (containsSeparator(s) || containsSeparator(lemma))
+                    return;
+                try {
+                    writer.write(s + "\t" + lemma + "\n");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean containsSeparator(String s) {
+        return s.indexOf('\t') >= 0 || s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "LanguageAnalysisCache{lemmas=" + stringToLemma + ", languageInfos=" + utteranceToLanguageInfo + "}";
+    }
+}
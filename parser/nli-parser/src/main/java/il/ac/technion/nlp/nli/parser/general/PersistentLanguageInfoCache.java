@@ -0,0 +1,202 @@
+package il.ac.technion.nlp.nli.parser.general;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edu.stanford.nlp.sempre.Json;
+import edu.stanford.nlp.sempre.LanguageAnalyzer;
+import edu.stanford.nlp.sempre.LanguageInfo;
+import edu.stanford.nlp.sempre.cache.FileStringCache;
+import edu.stanford.nlp.sempre.cache.StringCache;
+import fig.basic.Option;
+import il.ac.technion.nlp.nli.core.dataset.Dataset;
+import il.ac.technion.nlp.nli.core.dataset.Example;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * A persistent cache of the {@link LanguageInfo} of utterances, so that the (possibly slow, e.g. when CoreNLP is used)
+ * analysis of an utterance is done once, rather than once per experiment.
+ * The cache is content-addressed: the key of an utterance is a hash of the utterance together with the class and the
+ * options of the analyzer (see {@link #getAnalyzerDescription(LanguageAnalyzer)}), so an analysis done with different
+ * options is never returned, and a single file can be shared by experiments using different analyzers.
+ * The values are the JSON representations of the {@link LanguageInfo}s.
+ *
+ * Each call to {@link #analyze(String)} returns a new {@link LanguageInfo} object, which the caller may modify.
+ *
+ * Thread-safe (assuming the analyzer is). The analysis itself is done without locking.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class PersistentLanguageInfoCache {
+
+    private final StringCache keyToLanguageInfoJson;
+    private final LanguageAnalyzer analyzer;
+    private final String analyzerDescription;
+
+    private int hitsNum;
+    private int missesNum;
+
+
+    /**
+     * @param keyToLanguageInfoJson doesn't have to be thread-safe (it's accessed by one thread at a time).
+     */
+    public PersistentLanguageInfoCache(StringCache keyToLanguageInfoJson, LanguageAnalyzer analyzer) {
+        this.keyToLanguageInfoJson = keyToLanguageInfoJson;
+        this.analyzer = analyzer;
+        this.analyzerDescription = getAnalyzerDescription(analyzer);
+    }
+
+    /**
+     * @param cacheFile created if does not exist. New entries are appended to it.
+     */
+    public static PersistentLanguageInfoCache createFileBacked(Path cacheFile, LanguageAnalyzer analyzer) {
+        FileStringCache fileStringCache = new FileStringCache();
+        fileStringCache.init(cacheFile.toString());
+        return new PersistentLanguageInfoCache(fileStringCache, analyzer);
+    }
+
+    public LanguageInfo analyze(String utterance) {
+        String key = getKey(utterance);
+        String json = getJson(key);
+        if (json != null)
+            return Json.readValueHard(json, LanguageInfo.class);
+        LanguageInfo languageInfo = analyzer.analyze(utterance);
+        put(key, Json.writeValueAsStringHard(languageInfo));
+        return languageInfo;
+    }
+
+    /**
+     * Analyzes (concurrently) the utterances that are not cached yet, and adds them to the cache.
+     * The first one is analyzed by the calling thread before the others are submitted, so that whatever the analyzer
+     * initializes lazily (e.g. the CoreNLP models) is initialized once, rather than by all the threads at once.
+     * @param threadsNum positive.
+     */
+    public void precompute(Collection<String> utterances, int threadsNum) {
+
+        Set<String> missingUtterances = new LinkedHashSet<>();
+        for (String utterance : utterances)
+            if (!contains(getKey(utterance)))
+                missingUtterances.add(utterance);
+        if (missingUtterances.isEmpty())
+            return;
+        Iterator<String> it = missingUtterances.iterator();
+        analyze(it.next());
+        if (!it.hasNext())
+            return;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadsNum,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("language-analysis-%d").build());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            while (it.hasNext()) {
+                String utterance = it.next();
+                futures.add(executor.submit(() -> analyze(utterance)));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Precomputes the analysis of the instruction utterances of all the examples in 'dataset'.
+     * See {@link #precompute(Collection, int)}.
+     */
+    public void precompute(Dataset dataset, int threadsNum) {
+        precompute(dataset.getExamples().stream()
+                .map(Example::getInstructionUtterance)
+                .collect(Collectors.toList()), threadsNum);
+    }
+
+    private String getKey(String utterance) {
+        return Hashing.sha256().hashString(analyzerDescription + "\n" + utterance, StandardCharsets.UTF_8).toString();
+    }
+
+    private synchronized String getJson(String key) {
+        String json = keyToLanguageInfoJson.get(key);
+        if (json == null)
+            missesNum++;
+        else
+            hitsNum++;
+        return json;
+    }
+
+    private synchronized boolean contains(String key) {
+        return keyToLanguageInfoJson.get(key) != null;
+    }
+
+    private synchronized void put(String key, String json) {
+        if (keyToLanguageInfoJson.get(key) == null)
+            keyToLanguageInfoJson.put(key, json);
+    }
+
+    /**
+     * @return a string determined by the class of 'analyzer' and by the values of the options affecting it: the
+     * options of {@link LanguageAnalyzer} and the options of the class of 'analyzer' (its static 'opts' field, if
+     * exists, by the convention of Sempre).
+     */
+    static String getAnalyzerDescription(LanguageAnalyzer analyzer) {
+        StringBuilder sb = new StringBuilder(analyzer.getClass().getName());
+        appendOptions(sb, LanguageAnalyzer.opts);
+        try {
+            Field optsField = analyzer.getClass().getDeclaredField("opts");
+            if (Modifier.isStatic(optsField.getModifiers()) && Modifier.isPublic(optsField.getModifiers()))
+                appendOptions(sb, optsField.get(null));
+        } catch (NoSuchFieldException e) {
+            // the analyzer has no options of its own.
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        return sb.toString();
+    }
+
+    private static void appendOptions(StringBuilder sb, Object options) {
+        // sorted, since the order of the fields returned by reflection is unspecified.
+        List<Field> fields = Arrays.stream(options.getClass().getFields())
+                .filter(field -> field.isAnnotationPresent(Option.class))
+                .sorted(Comparator.comparing(Field::getName))
+                .collect(Collectors.toList());
+        for (Field field : fields) {
+            try {
+                sb.append(' ').append(field.getName()).append('=').append(field.get(options));
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    public synchronized int getHitsNum() {
+        return hitsNum;
+    }
+
+    public synchronized int getMissesNum() {
+        return missesNum;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PersistentLanguageInfoCache{hits=" + hitsNum + ", misses=" + missesNum + "}";
+    }
+}
@@ -0,0 +1,40 @@
+package il.ac.technion.nlp.nli.parser.general;
+
+import il.ac.technion.nlp.nli.parser.InstructionKnowledgeGraph;
+import il.ac.technion.nlp.nli.parser.experiment.ExperimentSettings;
+import il.ac.technion.nlp.nli.parser.features.PhraseAssociation;
+import il.ac.technion.nlp.nli.parser.lexicon.Lexicon;
+
+/**
+ * The part of the {@link InferenceData} of an example that depends only on the example (and on the settings), and
+ * therefore may be shared by all the inferences on that example (see {@link PrecomputedInferenceDataCache}).
+ *
+ * Not modified after construction: {@link #phraseAssociation} is never given to an inference directly (an inference
+ * gets a copy of it, to which it may add associations), and {@link #lexicon} is not modified by inferences.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class PrecomputedInferenceData {
+
+    public final InstructionKnowledgeGraph graph;
+    /**
+     * Must not be modified (see {@link #createPhraseAssociationForInference()}).
+     */
+    private final PhraseAssociation phraseAssociation;
+    public final Lexicon lexicon;
+
+
+    public PrecomputedInferenceData(ExperimentSettings settings, InstructionKnowledgeGraph graph) {
+        this.graph = graph;
+        phraseAssociation = new PhraseAssociation(graph,
+                settings.enableInstructionFeatures && settings.useDescriptionPhraseFeatures);
+        lexicon = new Lexicon(graph, phraseAssociation, settings.deterministic);
+    }
+
+    /**
+     * @return a new copy of the phrase association created for the example (which the inference may modify).
+     */
+    public PhraseAssociation createPhraseAssociationForInference() {
+        return new PhraseAssociation(phraseAssociation);
+    }
+}
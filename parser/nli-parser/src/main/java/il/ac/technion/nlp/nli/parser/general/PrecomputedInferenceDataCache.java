@@ -0,0 +1,67 @@
+package il.ac.technion.nlp.nli.parser.general;
+
+import il.ac.technion.nlp.nli.parser.InstructionKnowledgeGraph;
+import il.ac.technion.nlp.nli.parser.experiment.ExperimentSettings;
+
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Maps example ids to their {@link PrecomputedInferenceData}, so that it's computed once per example rather than
+ * once per inference (e.g. in every training iteration, and in every evaluation on the test set).
+ * Bounded: when full, the least recently used entry is evicted. In addition, the entries are softly referenced, so the
+ * GC may clear them when the memory runs low (in which case they are recomputed when needed).
+ * Thread-safe.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class PrecomputedInferenceDataCache {
+
+    private final LinkedHashMap<String, SoftReference<PrecomputedInferenceData>> exampleIdToData;
+
+    private long hitsNum = 0;
+    private long missesNum = 0;
+
+
+    public PrecomputedInferenceDataCache(int maxSize) {
+        exampleIdToData = new LinkedHashMap<String, SoftReference<PrecomputedInferenceData>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SoftReference<PrecomputedInferenceData>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param graph the graph of the example. A cached entry created for a different graph object (e.g. because the
+     *              dataset was reloaded) is replaced.
+     */
+    public synchronized PrecomputedInferenceData getOrCreate(ExperimentSettings settings, String exampleId,
+                                                             InstructionKnowledgeGraph graph) {
+        SoftReference<PrecomputedInferenceData> reference = exampleIdToData.get(exampleId);
+        PrecomputedInferenceData data = reference == null ? null : reference.get();
+        if (data != null && data.graph == graph) {
+            hitsNum++;
+            return data;
+        }
+        missesNum++;
+        data = new PrecomputedInferenceData(settings, graph);
+        exampleIdToData.put(exampleId, new SoftReference<>(data));
+        return data;
+    }
+
+    public synchronized long getHitsNum() {
+        return hitsNum;
+    }
+
+    public synchronized long getMissesNum() {
+        return missesNum;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PrecomputedInferenceDataCache{size=" + exampleIdToData.size() + ", hits=" + hitsNum + ", misses=" +
+                missesNum + "}";
+    }
+}
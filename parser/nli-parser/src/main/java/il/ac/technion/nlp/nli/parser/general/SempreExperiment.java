@@ -4,9 +4,13 @@ import com.google.common.base.Verify;
 import ofergivoli.olib.data_structures.map.SafeHashMap;
 import ofergivoli.olib.data_structures.map.SafeMap;
 import ofergivoli.olib.data_structures.set.SafeSet;
+import ofergivoli.olib.io.log.Log;
+import edu.stanford.nlp.sempre.LanguageAnalyzer;
 import edu.stanford.nlp.sempre.Parser;
 import il.ac.technion.nlp.nli.core.dataset.Example;
 import il.ac.technion.nlp.nli.core.dataset.ExampleSplit;
+import il.ac.technion.nlp.nli.parser.InstructionKnowledgeGraph;
+import il.ac.technion.nlp.nli.parser.denotation.MethodCallExecutionCache;
 import il.ac.technion.nlp.nli.parser.experiment.ExperimentSettings;
 import il.ac.technion.nlp.nli.parser.experiment.analysis.FeatureGeneralityTools;
 import il.ac.technion.nlp.nli.parser.experiment.analysis.SempreExperimentAnalysis;
@@ -15,9 +19,11 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.nio.file.Path;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Represents an entire Sempre experiment (i.e. Sempre learning process)(e.g. 4 iterations of train & dev).
@@ -39,7 +45,11 @@ public class SempreExperiment {
      * that won't be used.
      */
     public final ExampleSplit trainTestSplit;
-    public final SempreExperimentAnalysis analysis;
+    /**
+     * null iff this object only serves inferences (see {@link #createForServing}), in which case no analysis is done
+     * and nothing is written.
+     */
+    public final @Nullable SempreExperimentAnalysis analysis;
 
     /**
      * true if this object represents a first-step in a 2-step execution.
@@ -76,25 +86,53 @@ public class SempreExperiment {
     private @Nullable Integer currentIterationNumber;
 
     /**
-     * null iff no inference started yet.
+     * The data of the inference being done by the current thread (several inferences may be done concurrently, see
+     * {@link edu.stanford.nlp.sempre.Learner.Options#trainingThreads}). The value is null iff the thread didn't start
+     * an inference yet.
      */
-    private @Nullable InferenceData currentInferenceData;
+    private final ThreadLocal<InferenceData> currentInferenceData = new ThreadLocal<>();
 
     /**
-     * The reason that this is not a field in {@link InferenceData} is that it needs to be used by the constructor of
-     * {@link InferenceData}.
-     * It is cleared by {@link #endInference()}.
+     * Contains both the train and test examples.
      */
-    public FeatureNameStorage featureNameStorageOfCurrentInference = new FeatureNameStorage();
+    public final SafeMap<String, Example> exampleIdToExample;
 
+    /**
+     * The examples that are not in {@link #exampleIdToExample} and are currently being parsed (by different threads),
+     * see {@link #addExampleBeingServed(Example)}.
+     */
+    private final ConcurrentHashMap<String, Example> exampleIdToExampleBeingServed = new ConcurrentHashMap<>();
 
     /**
-     * Contains both the train and test examples.
+     * Used when {@link ExperimentSettings#keepMethodCallExecutionCacheAcrossInferences} is true. Bounded by
+     * {@link ExperimentSettings#keptMethodCallExecutionCachesMaxNum}: when full, the cache of the least recently
+     * inferred example is evicted.
      */
-    public final SafeMap<String, Example> exampleIdToExample;
+    private final LinkedHashMap<String, MethodCallExecutionCache> exampleIdToExecutionCache;
+
+    /**
+     * Aggregated over the execution caches of all the examples.
+     */
+    private final LongAdder executionCacheHitsNum = new LongAdder();
+    private final LongAdder executionCacheMissesNum = new LongAdder();
+
+    /**
+     * null iff {@link ExperimentSettings#precomputedInferenceDataCacheSize} is null or {@link #analysis} is null.
+     */
+    private final @Nullable PrecomputedInferenceDataCache precomputedInferenceDataCache;
 
     public final ExperimentSettings settings;
 
+    /**
+     * null iff {@link ExperimentSettings#languageInfoCacheFile} is null or {@link #analysis} is null.
+     */
+    public final @Nullable PersistentLanguageInfoCache languageInfoCache;
+
+    /**
+     * See {@link #freezeFeatureIndex()}. -1 while not frozen.
+     */
+    private volatile int featureIndexSizeWhenFrozen = -1;
+
 
 
     /**
@@ -104,6 +142,27 @@ public class SempreExperiment {
     public SempreExperiment(Path moduleResourceDir, ExampleSplit split, File outputAnalysisDir,
                             ExperimentSettings settings, boolean isFirstStep,
                             @Nullable SafeSet<String> featuresToOptimizeWeightsFor) {
+        this(moduleResourceDir, split, outputAnalysisDir, settings, isFirstStep, featuresToOptimizeWeightsFor,
+                true);
+    }
+
+    /**
+     * @return an object that only serves inferences of examples given by {@link #addExampleBeingServed(Example)}: no
+     * training is done, no analysis is done and nothing is written (so nothing that is kept per example id is used,
+     * i.e. the settings {@link ExperimentSettings#precomputedInferenceDataCacheSize},
+     * {@link ExperimentSettings#keepMethodCallExecutionCacheAcrossInferences} and
+     * {@link ExperimentSettings#languageInfoCacheFile} are ignored).
+     */
+    public static SempreExperiment createForServing(Path moduleResourceDir, ExperimentSettings settings) {
+        return new SempreExperiment(moduleResourceDir, new ExampleSplit(), null, settings, false, null, false);
+    }
+
+    /**
+     * @param outputAnalysisDir null iff 'withAnalysis' is false.
+     */
+    private SempreExperiment(Path moduleResourceDir, ExampleSplit split, @Nullable File outputAnalysisDir,
+                             ExperimentSettings settings, boolean isFirstStep,
+                             @Nullable SafeSet<String> featuresToOptimizeWeightsFor, boolean withAnalysis) {
 
         this.isFirstStep = isFirstStep;
 
@@ -120,13 +179,29 @@ public class SempreExperiment {
                     moduleResourceDir.resolve(settings.featuresGeneralityScoresXml.toPath()));
         }
         this.trainTestSplit = split;
+        int keptExecutionCachesMaxNum = settings.keptMethodCallExecutionCachesMaxNum == null ?
+                ExperimentSettings.DEFAULT_KEPT_METHOD_CALL_EXECUTION_CACHES_MAX_NUM :
+                settings.keptMethodCallExecutionCachesMaxNum;
+        this.exampleIdToExecutionCache = new LinkedHashMap<String, MethodCallExecutionCache>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MethodCallExecutionCache> eldest) {
+                return size() > keptExecutionCachesMaxNum;
+            }
+        };
+        this.precomputedInferenceDataCache = settings.precomputedInferenceDataCacheSize == null || !withAnalysis ?
+                null : new PrecomputedInferenceDataCache(settings.precomputedInferenceDataCacheSize);
+        this.languageInfoCache = settings.languageInfoCacheFile == null || !withAnalysis ? null :
+                PersistentLanguageInfoCache.createFileBacked(
+                        moduleResourceDir.resolve(settings.languageInfoCacheFile.toPath()),
+                        LanguageAnalyzer.getSingleton());
         this.conditionalWeightUpdater = settings.unconditionalWeightUpdateFraction ==null ? null :
                 new ConditionalWeightUpdater(settings.unconditionalWeightUpdateFraction,
                         Objects.requireNonNull(settings.domainsNumberRequiredForCwu),
                         settings.analysisSettings.collectAggregatedAnalysisDataForCWU);
 
 
-        analysis = new SempreExperimentAnalysis(this, split, settings.analysisSettings, outputAnalysisDir);
+        analysis = !withAnalysis ? null : new SempreExperimentAnalysis(this, split, settings.analysisSettings,
+                Objects.requireNonNull(outputAnalysisDir));
 
     }
 
@@ -145,18 +220,39 @@ public class SempreExperiment {
 
 
     public @NotNull  Example getCurrentExampleBeingParsed(){
-        assert currentInferenceData != null;
-        Example result = currentInferenceData.example;
+        Example result = getCurrentInferenceData().example;
         Verify.verify(result != null);
         return result;
     }
 
+    /**
+     * @return the data of the inference being done by the current thread.
+     */
     public @NotNull InferenceData getCurrentInferenceData(){
-        InferenceData result = this.currentInferenceData;
+        InferenceData result = this.currentInferenceData.get();
         Verify.verify(result != null);
         return result;
     }
 
+    /**
+     * @return null in case the current thread didn't start an inference (and wasn't given one by
+     * {@link #setCurrentInferenceData(InferenceData)}).
+     */
+    public @Nullable InferenceData getCurrentInferenceDataIfExists(){
+        return currentInferenceData.get();
+    }
+
+    /**
+     * Makes 'inferenceData' the data of the inference being done by the current thread (see {@link InferenceContext}).
+     * @param inferenceData null to clear.
+     */
+    public void setCurrentInferenceData(@Nullable InferenceData inferenceData){
+        if (inferenceData == null)
+            currentInferenceData.remove();
+        else
+            currentInferenceData.set(inferenceData);
+    }
+
 
     /**
      *
@@ -177,20 +273,76 @@ public class SempreExperiment {
      * Reminder: sempre may invoke two consecutive inferences on the same example.
      */
     public void startNewInference(edu.stanford.nlp.sempre.Example sempreExample) {
-        Example example = exampleIdToExample.getExisting(sempreExample.id);
-        currentInferenceData = new InferenceData(settings, example, sempreExample);
-        analysis.reportStartingNewInference(sempreExample);
+        Example example = exampleIdToExampleBeingServed.get(sempreExample.id);
+        if (example == null)
+            example = exampleIdToExample.getExisting(sempreExample.id);
+        if (precomputedInferenceDataCache == null) {
+            currentInferenceData.set(new InferenceData(settings, example, sempreExample,
+                    createOrGetExecutionCache(example)));
+        } else {
+            PrecomputedInferenceData precomputedData = precomputedInferenceDataCache.getOrCreate(settings,
+                    example.getId(), (InstructionKnowledgeGraph) sempreExample.context.graph);
+            currentInferenceData.set(new InferenceData(example, sempreExample, precomputedData,
+                    createOrGetExecutionCache(example)));
+        }
+        if (analysis != null)
+            analysis.reportStartingNewInference(sempreExample);
+    }
+
+    /**
+     * Allows inferences of 'example' (which is not in the split of this experiment) to be done, until
+     * {@link #removeExampleBeingServed(Example)} is called.
+     */
+    public void addExampleBeingServed(Example example) {
+        Verify.verify(exampleIdToExampleBeingServed.putIfAbsent(example.getId(), example) == null);
+    }
+
+    public void removeExampleBeingServed(Example example) {
+        exampleIdToExampleBeingServed.remove(example.getId());
+    }
+
+    private synchronized @Nullable MethodCallExecutionCache createOrGetExecutionCache(Example example) {
+        Integer cacheSize = settings.methodCallExecutionCacheSize;
+        if (cacheSize == null)
+            return null;
+        if (!settings.keepMethodCallExecutionCacheAcrossInferences || analysis == null)
+            return new MethodCallExecutionCache(cacheSize, executionCacheHitsNum, executionCacheMissesNum);
+        return exampleIdToExecutionCache.computeIfAbsent(example.getId(),
+                id -> new MethodCallExecutionCache(cacheSize, executionCacheHitsNum, executionCacheMissesNum));
     }
 
     public void endInference() {
-        analysis.logMemoryUsageIfRelevant();
-        featureNameStorageOfCurrentInference.clear();
+        if (analysis != null)
+            analysis.logMemoryUsageIfRelevant();
+        InferenceData inferenceData = getCurrentInferenceData();
+        MethodCallExecutionCache executionCache = inferenceData.executionCache;
+        if (executionCache != null)
+            Log.debug("Execution cache of example " + inferenceData.example.getId() + ": " + executionCache);
+        if (precomputedInferenceDataCache != null)
+            Log.debug(precomputedInferenceDataCache.toString());
     }
 
 
+    private synchronized void logExecutionCacheStatistics() {
+        Log.info("Method call execution caches: hits=" + executionCacheHitsNum.sum() + ", misses=" +
+                executionCacheMissesNum.sum() + ", kept caches=" + exampleIdToExecutionCache.size());
+    }
+
     public void newDatasetGroupBegins(String groupLabel) {
         currentDatasetGroupLabel = DatasetSempreGroupLabel.getFromSempreTag(groupLabel);
-        analysis.reportNewDatasetGroupBegins(currentDatasetGroupLabel);
+        Objects.requireNonNull(analysis).reportNewDatasetGroupBegins(currentDatasetGroupLabel);
+    }
+
+    public void datasetGroupEnds(String groupLabel) {
+        DatasetSempreGroupLabel label = DatasetSempreGroupLabel.getFromSempreTag(groupLabel);
+        Objects.requireNonNull(analysis).reportDatasetGroupEnds(label);
+        if (settings.methodCallExecutionCacheSize != null)
+            logExecutionCacheStatistics();
+        if (settings.freezeFeatureIndexAfterFirstTrainingIteration && label == DatasetSempreGroupLabel.TRAIN &&
+                Objects.equals(currentIterationNumber, 1)) {
+            freezeFeatureIndex();
+            Log.info("Feature index frozen with " + FeatureIndex.getInstance().size() + " features");
+        }
     }
 
 
@@ -198,38 +350,59 @@ public class SempreExperiment {
 
     /**
      * To be called when Sempre tries to do an update.
+     * @param feature an index in {@link FeatureIndex#getInstance()}.
      * @param originalUpdate the update that Sempre originally intended to add to the weight.
      * @return the (possibly modified) update to be carried out.
      */
-    public double calcWeightUpdate(String featureName, double originalUpdate) {
+    public double calcWeightUpdate(int feature, double originalUpdate) {
         Verify.verify(getCurrentDatasetGroupLabel() == DatasetSempreGroupLabel.TRAIN);
 
         if (conditionalWeightUpdater == null)
             return originalUpdate;
-        
-        return conditionalWeightUpdater.calcWeightUpdate(featureName, getCurrentExampleBeingParsed().getDomain(),
-                originalUpdate);
+
+        return conditionalWeightUpdater.calcWeightUpdate(FeatureIndex.getInstance().getFeature(feature),
+                getCurrentExampleBeingParsed().getDomain(), originalUpdate);
     }
 
     /**
      * Should be called immediately after Sempre calculates the gradient of the objective.
-     * @param gradient a map from feature name to the element of its weight in the gradient vector. May be modified by
-     *                 this method.
-     */
-    public void postprocessGradient(Map<String, Double> gradient) {
-        if (featuresToOptimizeWeightsFor != null){
-            gradient.keySet().stream()
-                    .filter(feature->!featuresToOptimizeWeightsFor.safeContains(feature))
-                    .collect(Collectors.toList()) // this is necessary because you may not modify the set you're
-                                                  // iterating on.
-                    .forEach(feature -> {
-                        Double value = gradient.remove(feature);
-                        Verify.verify(value != null);
-                    });
+     * @param gradient maps every feature (see {@link FeatureIndex#getInstance()}) to the element of its weight in the
+     *                 gradient vector. May be modified by this method.
+     */
+    public void postprocessGradient(IndexedSparseVector gradient) {
+        if (featuresToOptimizeWeightsFor != null) {
+            FeatureIndex featureIndex = FeatureIndex.getInstance();
+            gradient.removeIf(feature -> !featuresToOptimizeWeightsFor.safeContains(featureIndex.getFeature(feature)));
         }
     }
 
 
+    /**
+     * From now on, while working on this experiment, only the features that have an index in
+     * {@link FeatureIndex#getInstance()} now are considered to have one: other features (including ones indexed later
+     * by other experiments) are not extracted. Other experiments are not affected.
+     * Calling this method again has no effect.
+     */
+    public synchronized void freezeFeatureIndex() {
+        if (featureIndexSizeWhenFrozen >= 0)
+            return;
+        FeatureIndex featureIndex = FeatureIndex.getInstance();
+        featureIndexSizeWhenFrozen = featureIndex.size();
+        featureIndex.notifyFrozenByExperiment();
+    }
+
+    public boolean isFeatureIndexFrozen() {
+        return featureIndexSizeWhenFrozen >= 0;
+    }
+
+    /**
+     * @return the size of {@link FeatureIndex#getInstance()} when it was frozen for this experiment (see
+     * {@link #freezeFeatureIndex()}), or -1 in case it's not frozen.
+     */
+    public int getFeatureIndexSizeWhenFrozen() {
+        return featureIndexSizeWhenFrozen;
+    }
+
     public void setSempreParser(Parser sempreParser) {
         this.sempreParser = sempreParser;
     }
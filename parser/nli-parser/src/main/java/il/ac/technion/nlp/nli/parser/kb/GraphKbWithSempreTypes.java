@@ -30,7 +30,7 @@ import static il.ac.technion.nlp.nli.parser.NameValuesManager.NameValueType;
  * a field list.
  *
  * Implementation note: the data structures in this class where chosen to allow efficient access during
- * inference.
+ * inference. Joins during lambda-DCS execution are answered by an {@link IndexedGraphKb} created from this object.
  */
 public class GraphKbWithSempreTypes {
 
@@ -0,0 +1,211 @@
+package il.ac.technion.nlp.nli.parser.kb;
+
+import edu.stanford.nlp.sempre.NameValue;
+import edu.stanford.nlp.sempre.Value;
+import il.ac.technion.nlp.nli.parser.NameValuesManager;
+import ofergivoli.olib.data_structures.map.SafeHashMap;
+import ofergivoli.olib.data_structures.map.SafeMap;
+import ofergivoli.olib.data_structures.set.SafeSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * A read-only copy of a {@link GraphKbWithSempreTypes} in which every value (including the relations) is represented
+ * by its index in a {@link NameValuesManager} (see {@link NameValuesManager#getOrCreateValueIndex(Value)}).
+ * Each relation is stored in both directions as sorted int adjacency arrays (CSR), so that the queries done during
+ * lambda-DCS execution are answered with primitive operations, without hashing {@link Value} objects.
+ *
+ * The terminology here is the same as in {@link GraphKbWithSempreTypes#getRelationAsFunction(NameValue, boolean)}:
+ * the relation as a function maps every first arg x to all the second args y s.t. (x, relation, y) is a fact; and the
+ * inverse function maps every second arg to the first args.
+ *
+ * All the values in the KB are interned by the constructor, and the methods of this object don't intern values, so
+ * they may be invoked concurrently.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class IndexedGraphKb {
+
+    private final NameValuesManager nameValuesManager;
+
+    private final SafeMap<NameValue, Adjacency> relationToFunction = new SafeHashMap<>();
+    private final SafeMap<NameValue, Adjacency> relationToInverseFunction = new SafeHashMap<>();
+
+
+    /**
+     * @param kb should not be modified after this object is created (later modifications are not reflected here).
+     */
+    public IndexedGraphKb(GraphKbWithSempreTypes kb, NameValuesManager nameValuesManager) {
+        this.nameValuesManager = nameValuesManager;
+        kb.getRelationToFirstArgToSecondArgs().forEach((relation, firstArgToSecondArgs) -> {
+            nameValuesManager.getOrCreateValueIndex(relation);
+            relationToFunction.put(relation, new Adjacency(firstArgToSecondArgs, nameValuesManager));
+        });
+        kb.getRelationToSecondArgToFirstArgs().forEach((relation, secondArgToFirstArgs) ->
+                relationToInverseFunction.put(relation, new Adjacency(secondArgToFirstArgs, nameValuesManager)));
+    }
+
+    public boolean containsRelation(NameValue relation) {
+        return relationToFunction.safeContainsKey(relation);
+    }
+
+    /**
+     * @return -1 in case 'value' does not appear in the KB (or anywhere else in the {@link NameValuesManager}).
+     */
+    public int getValueIndex(Value value) {
+        return nameValuesManager.getValueIndex(value);
+    }
+
+    public Value getValue(int valueIndex) {
+        return nameValuesManager.getValueByIndex(valueIndex);
+    }
+
+    /**
+     * @return the sorted indices of all the values for which the relation as a function (or its inverse, if 'inverse'
+     * is true) is not empty. Must not be modified.
+     * @throws RuntimeException in case the KB contains no facts with 'relation'.
+     */
+    public int[] getDomain(NameValue relation, boolean inverse) {
+        return getAdjacency(relation, inverse).args;
+    }
+
+    /**
+     * Calls 'consumer' with the index of every value y s.t. (x, relation, y) is a fact in the KB, where x is the value
+     * with index 'valueIndex'; or with the index of every x s.t. (x, relation, y) is a fact and y is the value with index
+     * 'valueIndex' (if 'inverse' is true). The indices are given in ascending order.
+     * @param valueIndex may be -1, in which case 'consumer' is not called.
+     * @throws RuntimeException in case the KB contains no facts with 'relation'.
+     */
+    public void forEachImage(NameValue relation, boolean inverse, int valueIndex, IntConsumer consumer) {
+        Adjacency adjacency = getAdjacency(relation, inverse);
+        int i = adjacency.find(valueIndex);
+        if (i < 0)
+            return;
+        for (int j = adjacency.offsets[i]; j < adjacency.offsets[i + 1]; j++)
+            consumer.accept(adjacency.images[j]);
+    }
+
+    /**
+     * @return the number of values given by {@link #forEachImage(NameValue, boolean, int, IntConsumer)}.
+     */
+    public int getImageSize(NameValue relation, boolean inverse, int valueIndex) {
+        Adjacency adjacency = getAdjacency(relation, inverse);
+        int i = adjacency.find(valueIndex);
+        return i < 0 ? 0 : adjacency.offsets[i + 1] - adjacency.offsets[i];
+    }
+
+    /**
+     * @return the concatenation of the images of the elements of 'input' (in that order) under the relation as a
+     * function (or its inverse, if 'inverse' is true), i.e. the indices given by
+     * {@link #forEachImage(NameValue, boolean, int, IntConsumer)} for every element of 'input'. So a value appears in
+     * the result once per element of 'input' that is mapped to it.
+     * @param input value indices, may contain duplicates and -1.
+     * @throws RuntimeException in case the KB contains no facts with 'relation'.
+     */
+    public int[] getImages(NameValue relation, boolean inverse, int[] input) {
+        Adjacency adjacency = getAdjacency(relation, inverse);
+        int[] positions = new int[input.length];
+        int resultSize = 0;
+        for (int i = 0; i < input.length; i++) {
+            positions[i] = adjacency.find(input[i]);
+            if (positions[i] >= 0)
+                resultSize += adjacency.offsets[positions[i] + 1] - adjacency.offsets[positions[i]];
+        }
+        int[] result = new int[resultSize];
+        resultSize = 0;
+        for (int position : positions) {
+            if (position < 0)
+                continue;
+            int imageSize = adjacency.offsets[position + 1] - adjacency.offsets[position];
+            System.arraycopy(adjacency.images, adjacency.offsets[position], result, resultSize, imageSize);
+            resultSize += imageSize;
+        }
+        return result;
+    }
+
+    /**
+     * @return the indices of 'values', in iteration order. Values that do not appear in the KB are ignored.
+     */
+    public int[] getValueIndices(Collection<Value> values) {
+        int[] result = new int[values.size()];
+        int resultSize = 0;
+        for (Value value : values) {
+            int index = getValueIndex(value);
+            if (index >= 0)
+                result[resultSize++] = index;
+        }
+        return Arrays.copyOf(result, resultSize);
+    }
+
+    public List<Value> getValues(int[] valueIndices) {
+        List<Value> result = new ArrayList<>(valueIndices.length);
+        for (int valueIndex : valueIndices)
+            result.add(getValue(valueIndex));
+        return result;
+    }
+
+    private Adjacency getAdjacency(NameValue relation, boolean inverse) {
+        return (inverse ? relationToInverseFunction : relationToFunction).getExisting(relation);
+    }
+
+
+    /**
+     * The function represented by a relation (or by its inverse), in CSR form.
+     */
+    private static class Adjacency {
+
+        /**
+         * Sorted, without duplicates.
+         */
+        final int[] args;
+        /**
+         * The images of args[i] are images[offsets[i]], ..., images[offsets[i+1]-1] (and they are sorted).
+         */
+        final int[] offsets;
+        final int[] images;
+
+        Adjacency(SafeMap<? extends Value, ? extends SafeSet<? extends Value>> argToImages,
+                  NameValuesManager nameValuesManager) {
+
+            // Pairs of (arg index, image index), sorted by arg index and then by image index.
+            long[] pairs = new long[argToImages.values().stream().mapToInt(SafeSet::size).sum()];
+            int[] pairsNum = {0};
+            argToImages.forEach((arg, argImages) -> {
+                long argIndex = nameValuesManager.getOrCreateValueIndex(arg);
+                argImages.forEach(image -> pairs[pairsNum[0]++] =
+                        (argIndex << 32) | nameValuesManager.getOrCreateValueIndex(image));
+            });
+            Arrays.sort(pairs);
+
+            // An arg with an empty image set has no pairs, so it's not written, and the arrays are trimmed at the end
+            // (trailing zeros would break the binary search in find()).
+            int[] args = new int[argToImages.size()];
+            int[] offsets = new int[args.length + 1];
+            images = new int[pairs.length];
+            int argsNum = 0;
+            for (int j = 0; j < pairs.length; j++) {
+                int argIndex = (int) (pairs[j] >>> 32);
+                if (argsNum == 0 || args[argsNum - 1] != argIndex) {
+                    args[argsNum] = argIndex;
+                    offsets[argsNum] = j;
+                    argsNum++;
+                }
+                images[j] = (int) pairs[j];
+            }
+            offsets[argsNum] = pairs.length;
+            this.args = Arrays.copyOf(args, argsNum);
+            this.offsets = Arrays.copyOf(offsets, argsNum + 1);
+        }
+
+        /**
+         * @return the position of 'arg' in {@link #args}, or a negative number if it's not there.
+         */
+        int find(int arg) {
+            return arg < 0 ? -1 : Arrays.binarySearch(args, arg);
+        }
+    }
+}
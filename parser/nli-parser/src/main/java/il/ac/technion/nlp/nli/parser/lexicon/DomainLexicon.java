@@ -0,0 +1,154 @@
+package il.ac.technion.nlp.nli.parser.lexicon;
+
+import edu.stanford.nlp.sempre.FeatureVector;
+import edu.stanford.nlp.sempre.Formula;
+import edu.stanford.nlp.sempre.Value;
+import il.ac.technion.nlp.nli.core.NliDescriptionsUtils;
+import il.ac.technion.nlp.nli.core.dataset.Domain;
+import il.ac.technion.nlp.nli.core.reflection.EntityGraphReflection;
+import il.ac.technion.nlp.nli.parser.general.ConcurrentBoundedCache;
+import ofergivoli.olib.data_structures.map.SafeHashMap;
+import ofergivoli.olib.data_structures.map.SafeMap;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static il.ac.technion.nlp.nli.parser.lexicon.LexiconSemanticFn.Mode.*;
+
+/**
+ * The part of the {@link Lexicon} that depends only on the {@link Domain}, computed once and shared by the lexicons of
+ * all the examples of the domain (see {@link #getInstance(Domain, boolean)}).
+ *
+ * The non-anchored {@link Lexicon.DerivedFormulas} are shared as well: the {@link Value}s they are built from are
+ * created by the {@link il.ac.technion.nlp.nli.parser.NameValuesManager} of each example (so their ids may differ
+ * between examples), but examples of the same domain usually yield the same values, in which case they get the same
+ * {@link Lexicon.DerivedFormulas} object (see {@link #getNonAnchoredFormulas}).
+ *
+ * Thread-safe.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class DomainLexicon {
+
+    /**
+     * The maximal number of {@link Lexicon.DerivedFormulas} kept per non-anchored mode.
+     */
+    public static final int MAX_NON_ANCHORED_FORMULAS_PER_MODE = 1000;
+
+    private static final ConcurrentHashMap<Pair<Domain, Boolean>, DomainLexicon> domainAndDeterminismToLexicon =
+            new ConcurrentHashMap<>();
+
+    private final Domain domain;
+
+    /**
+     * See getter.
+     */
+    private final List<String> nliMethodFriendlyIds;
+
+    /**
+     * See getter.
+     */
+    private final List<Pair<Enum<?>, List<String>>> enumValuesAndDescriptions;
+
+    /**
+     * Contains all the non-anchored modes. Not modified after construction.
+     */
+    private final SafeMap<LexiconSemanticFn.Mode, ConcurrentBoundedCache<List<Value>, Lexicon.DerivedFormulas>>
+            modeToValuesToNonAnchoredDerivedFormulas = new SafeHashMap<>();
+
+
+    private DomainLexicon(Domain domain, boolean deterministic) {
+        this.domain = domain;
+        nliMethodFriendlyIds = Collections.unmodifiableList(new ArrayList<>(
+                domain.getFriendlyIdToMethodId().keySet()));
+        enumValuesAndDescriptions = Collections.unmodifiableList(createEnumValuesAndDescriptions(deterministic));
+        for (LexiconSemanticFn.Mode mode :
+                new LexiconSemanticFn.Mode[]{NLI_METHOD_NAME, PRIMITIVE_RELATION, NLI_ENTITY_RELATION,
+                        ALL_NLI_ENTITIES_PER_TYPE})
+            modeToValuesToNonAnchoredDerivedFormulas.putNewKey(mode,
+                    new ConcurrentBoundedCache<>(MAX_NON_ANCHORED_FORMULAS_PER_MODE));
+    }
+
+    /**
+     * @param deterministic when true the functionality of the returned object is deterministic.
+     */
+    public static DomainLexicon getInstance(Domain domain, boolean deterministic) {
+        return domainAndDeterminismToLexicon.computeIfAbsent(new ImmutablePair<>(domain, deterministic),
+                domainAndDeterminism -> new DomainLexicon(domain, deterministic));
+    }
+
+    private List<Pair<Enum<?>, List<String>>> createEnumValuesAndDescriptions(boolean deterministic) {
+
+        Collection<Enum<?>> enumValues = new HashSet<>();
+
+        Collection<Enum<?>> finalEnumValues = enumValues;
+        EntityGraphReflection.getPossiblyReachableNliEntityClasses(
+                domain.getRootEntityClass(), true, deterministic).forEach(nliEntityClass->
+                EntityGraphReflection.getRelationFieldsOfNliEntityClass(nliEntityClass, deterministic).forEach(
+                        relation->{
+                            if (relation.getType().isEnum()) {
+                                for (Object enumConst : relation.getType().getEnumConstants())
+                                    finalEnumValues.add((Enum<?>) enumConst);
+                            }
+                        }));
+
+        if (deterministic) {
+            // Not by natural order, which is defined only between values of the same enum type.
+            enumValues = enumValues.stream()
+                    .sorted(Comparator.comparing((Enum<?> value) -> value.getDeclaringClass().getName())
+                            .thenComparingInt(Enum::ordinal))
+                    .collect(Collectors.toList());
+        }
+
+        return enumValues.stream()
+                .map(enumValue -> new ImmutablePair<Enum<?>, List<String>>(enumValue, Collections.unmodifiableList(
+                        new ArrayList<>(NliDescriptionsUtils.generateDescriptionsForEnumValue(enumValue)))))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the friendly ids of the NLI methods of the domain (see {@link Domain#getFriendlyIdToMethodId()}).
+     */
+    public List<String> getNliMethodFriendlyIds() {
+        return nliMethodFriendlyIds;
+    }
+
+    /**
+     * @return the enum values that may be the value of a relation field of an entity of the domain, each with its
+     * descriptions (see {@link NliDescriptionsUtils#generateDescriptionsForEnumValue(Enum)}).
+     */
+    public List<Pair<Enum<?>, List<String>>> getEnumValuesAndDescriptions() {
+        return enumValuesAndDescriptions;
+    }
+
+    /**
+     * @param mode a non-anchored mode.
+     * @param values the value each formula is created from, in the order of the returned formulas.
+     * @param createFormula used only in case there's no cached {@link Lexicon.DerivedFormulas} for 'values'. The
+     *                      formula must be determined by the value (and by 'mode').
+     * @return may be shared with other lexicons.
+     */
+    public Lexicon.DerivedFormulas getNonAnchoredFormulas(LexiconSemanticFn.Mode mode, List<Value> values,
+                                                          Function<Value, Formula> createFormula) {
+        return modeToValuesToNonAnchoredDerivedFormulas.getExisting(mode).getOrCompute(values, vals -> {
+            List<Pair<Formula, FeatureVector>> elements = new ArrayList<>(vals.size());
+            vals.forEach(value -> elements.add(new ImmutablePair<>(createFormula.apply(value),
+                    Lexicon.createBasicFeatureVector(mode))));
+            return new Lexicon.DerivedFormulas(elements);
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "DomainLexicon{domain=" + domain + ", nonAnchored=" + modeToValuesToNonAnchoredDerivedFormulas + "}";
+    }
+}
@@ -7,13 +7,9 @@ import ofergivoli.olib.data_structures.set.SafeSet;
 import ofergivoli.olib.exceptions.UncheckedInvalidArgumentException;
 import edu.stanford.nlp.sempre.*;
 import edu.stanford.nlp.sempre.tables.FuzzyMatcher;
-import il.ac.technion.nlp.nli.core.NliDescriptionsUtils;
-import il.ac.technion.nlp.nli.core.dataset.Domain;
-import il.ac.technion.nlp.nli.core.reflection.EntityGraphReflection;
 import il.ac.technion.nlp.nli.core.state.NliEntity;
 import il.ac.technion.nlp.nli.parser.InstructionKnowledgeGraph;
 import il.ac.technion.nlp.nli.parser.features.PhraseAssociation;
-import il.ac.technion.nlp.nli.parser.type_system.InstructionTypeLookup;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 
@@ -28,6 +24,11 @@ import static il.ac.technion.nlp.nli.parser.lexicon.LexiconSemanticFn.Mode.*;
 
 /**
  * Represents Lexicon related data for a specif inference.
+ * Not modified after construction, so it may be reused by several inferences on the same example (see
+ * {@link il.ac.technion.nlp.nli.parser.general.PrecomputedInferenceData}).
+ * Only the anchored formulas are created per example; everything that depends only on the domain (including the
+ * non-anchored formulas, in the usual case) is taken from the {@link DomainLexicon}, which is shared by all the
+ * examples of the domain.
  *
  * NOTICE: some code in this class was copied from ppasupat's {@link FuzzyMatchFn}, and then modified.
  *
@@ -37,16 +38,32 @@ import static il.ac.technion.nlp.nli.parser.lexicon.LexiconSemanticFn.Mode.*;
 public class Lexicon {
 
 
+    /**
+     * Immutable (may be shared by inferences and by lexicons, see {@link DomainLexicon}), except for the
+     * {@link FeatureVector}s which must not be modified (a derivation should be given a copy).
+     */
     public static class DerivedFormulas {
+
+        public static final DerivedFormulas EMPTY = new DerivedFormulas(Collections.emptyList());
+
         /**
          * The order is arbitrary (but might be deterministic).
+         * Unmodifiable.
          */
-        public final List<Pair<Formula, FeatureVector>> elements = new LinkedList<>();
+        public final List<Pair<Formula, FeatureVector>> elements;
+
+        /**
+         * @param elements copied.
+         */
+        public DerivedFormulas(List<Pair<Formula, FeatureVector>> elements) {
+            this.elements = Collections.unmodifiableList(new ArrayList<>(elements));
+        }
     }
 
     private final InstructionKnowledgeGraph graph;
     private final PhraseAssociation phraseAssociation;
     private final boolean deterministic;
+    private final DomainLexicon domainLexicon;
 
     /**
      * Contains data about all potential anchored derivation, regardless of whether or not a relevant phrase actually
@@ -68,6 +85,7 @@ public class Lexicon {
         this.graph = graph;
         this.phraseAssociation = phraseAssociation;
         this.deterministic = deterministic;
+        this.domainLexicon = DomainLexicon.getInstance(graph.getInitialState().getDomain(), deterministic);
         // Anchored:
 
         modeToProcessedPhraseToPotentialAnchoredDerivedFormulas.putNewKey(ANCHORED_STRING_ENTITY,
@@ -102,7 +120,7 @@ public class Lexicon {
      */
     private SafeMap<String, DerivedFormulas> createAnchoredDerivedFormulasDenotingStringEntities() {
 
-        SafeMap<String, DerivedFormulas> result = new SafeHashMap<>();
+        SafeMap<String, List<Pair<Formula, FeatureVector>>> result = new SafeHashMap<>();
 
 
         Collection<String> secondArgStrings = graph.kb.getRelationToSecondArgToFirstArgs().values()
@@ -122,83 +140,70 @@ public class Lexicon {
             addAnchoredDerivedFormula(phrase, value, features, result);
         });
 
-        return result;
+        return toDerivedFormulas(result);
     }
 
 
     /**
-     * Creates formulas for enum values that appear in {@link #graph} as the second argument of some relation.
+     * Creates formulas for the enum values that may be the value of a relation field (see
+     * {@link DomainLexicon#getEnumValuesAndDescriptions()}).
      * @return the key is processed phrase, and the value is the {@link DerivedFormulas} anchored to it.
      */
     private SafeMap<String, DerivedFormulas> createAnchoredDerivedFormulasDenotingEnumValues() {
 
-        SafeMap<String, DerivedFormulas> result = new SafeHashMap<>();
-
-        Collection<Enum<?>> enumValues = new HashSet<>();
-
-        Collection<Enum<?>> finalEnumValues = enumValues;
-        EntityGraphReflection.getPossiblyReachableNliEntityClasses(
-                graph.getInitialState().getRootEntity().getClass(), true, deterministic).forEach(nliEntityClass->
-                EntityGraphReflection.getRelationFieldsOfNliEntityClass(nliEntityClass, deterministic).forEach(
-                        relation->{
-                            if (relation.getType().isEnum()) {
-                                for (Object enumConst : relation.getType().getEnumConstants())
-                                    finalEnumValues.add((Enum<?>) enumConst);
-                            }
-                        }));
+        SafeMap<String, List<Pair<Formula, FeatureVector>>> result = new SafeHashMap<>();
 
-
-        if (deterministic)
-            enumValues = enumValues.stream().sorted().collect(Collectors.toList());
-
-        enumValues.forEach(enumValue ->
-                NliDescriptionsUtils.generateDescriptionsForEnumValue(enumValue).forEach(description -> {
+        domainLexicon.getEnumValuesAndDescriptions().forEach(enumValueAndDescriptions ->
+                enumValueAndDescriptions.getRight().forEach(description -> {
                     FeatureVector features = createBasicFeatureVector(ANCHORED_ENUM_VALUE);
-                    NameValue value = graph.nameValuesManager.createNameValueRepresentingEnumValue(enumValue);
+                    NameValue value = graph.nameValuesManager.createNameValueRepresentingEnumValue(
+                            enumValueAndDescriptions.getLeft());
                     addAnchoredDerivedFormula(description, value, features, result);
                 }));
-        return result;
+        return toDerivedFormulas(result);
     }
 
 
     /**
      * Adds the derivation to 'outResult' and adds the an association to 'phraseAssociation'.
      * @param value the formula of the added derivation is a {@link ValueFormula} with this argument as its value.
-     * @param outResult the key is a processed phrase.
+     * @param outResult the key is a processed phrase, and the value is the elements of the {@link DerivedFormulas}
+     *                  anchored to it.
      */
     private void addAnchoredDerivedFormula(String phrase, Value value, FeatureVector features,
-                                           SafeMap<String, DerivedFormulas> outResult) {
+                                           SafeMap<String, List<Pair<Formula, FeatureVector>>> outResult) {
 
         String processedPhrase = phraseAssociation.processPhrase.apply(phrase);
-        DerivedFormulas derivedFormulas;
+        List<Pair<Formula, FeatureVector>> elements;
         if (outResult.safeContainsKey(processedPhrase)) {
             // multiple different phrases have the same processed form.
-            derivedFormulas = outResult.getExisting(processedPhrase);
+            elements = outResult.getExisting(processedPhrase);
         } else {
-            derivedFormulas = new DerivedFormulas();
-            outResult.putNewKey(processedPhrase, derivedFormulas);
+            elements = new ArrayList<>();
+            outResult.putNewKey(processedPhrase, elements);
         }
-        derivedFormulas.elements.add(new ImmutablePair<>(new ValueFormula<>(value), features));
+        elements.add(new ImmutablePair<>(new ValueFormula<>(value), features));
         phraseAssociation.addAssociation(value, phrase, false);
     }
 
 
+    private static SafeMap<String, DerivedFormulas> toDerivedFormulas(
+            SafeMap<String, List<Pair<Formula, FeatureVector>>> processedPhraseToElements) {
 
-    private DerivedFormulas createDerivedFormulasDenotingFunctionNames() {
+        SafeMap<String, DerivedFormulas> result = new SafeHashMap<>();
+        processedPhraseToElements.forEach((processedPhrase, elements) ->
+                result.putNewKey(processedPhrase, new DerivedFormulas(elements)));
+        return result;
+    }
 
-        DerivedFormulas result = new DerivedFormulas();
 
 
-        Domain domain = graph.getInitialState().getDomain();
+    private DerivedFormulas createDerivedFormulasDenotingFunctionNames() {
 
-        List<Formula> formulas = new LinkedList<>();
-        domain.getFriendlyIdToMethodId().keySet().forEach(friendlyId -> {
-            ValueFormula<NameValue> formula = new ValueFormula<>(graph.nameValuesManager
-                    .createNameValueRepresentingNliMethod(friendlyId));
-            FeatureVector features = createBasicFeatureVector(NLI_METHOD_NAME);
-            result.elements.add(new ImmutablePair<>(formula, features));
-        });
-        return result;
+        List<Value> values = domainLexicon.getNliMethodFriendlyIds().stream()
+                .map(graph.nameValuesManager::createNameValueRepresentingNliMethod)
+                .collect(Collectors.toList());
+        return domainLexicon.getNonAnchoredFormulas(NLI_METHOD_NAME, values, ValueFormula::new);
     }
 
 
@@ -208,9 +213,7 @@ public class Lexicon {
      */
     private DerivedFormulas createDerivedFormulasDenotingRelations(LexiconSemanticFn.Mode mode) {
 
-        DerivedFormulas result = new DerivedFormulas();
-
-        graph.kb.getAllRelations(deterministic).stream()
+        List<Value> relations = graph.kb.getAllRelations(deterministic).stream()
                 .filter(relation->{
                     Value secondArgRepresentative = graph.kb.getRelationToSecondArgToFirstArgs()
                             .getExisting(relation).keySet().iterator().next();
@@ -224,13 +227,9 @@ public class Lexicon {
                                         == NLI_ENTITY;
                     throw new UncheckedInvalidArgumentException();
                 })
-                .forEach(relation->{
-                    Formula formula = new ValueFormula<>(relation);
-                    FeatureVector features = createBasicFeatureVector(mode);
-                    result.elements.add(new ImmutablePair<>(formula, features));
-                });
+                .collect(Collectors.toList());
 
-        return result;
+        return domainLexicon.getNonAnchoredFormulas(mode, relations, ValueFormula::new);
     }
 
 
@@ -239,44 +238,40 @@ public class Lexicon {
      * generate a formula denoting all the entities in the KB of that type.
      */
     private DerivedFormulas createDerivedFormulasDenotingAllNliEntitiesOfTheSameType() {
-        DerivedFormulas result = new DerivedFormulas();
-
-        InstructionTypeLookup typeLookup = new InstructionTypeLookup();
 
         SafeMap<Value, SafeSet<NameValue>> nliEntityTypeToEntities = graph.kb.getRelationToSecondArgToFirstArgs()
                 .safeGet(graph.NLI_ENTITY_TYPE_RELATION_NV);
 
         if (nliEntityTypeToEntities == null)
-            return result;
+            return DerivedFormulas.EMPTY;
 
         Stream<Value> nliEntityTypes = nliEntityTypeToEntities.keySet().stream();
         if (deterministic)
             nliEntityTypes = nliEntityTypes.sorted(Comparator.comparing(entity -> ((NameValue) entity).id));
 
-        nliEntityTypes.forEach(nliEntityType -> {
-            Formula formula = new JoinFormula(
-                    new ReverseFormula(new ValueFormula<>(graph.NLI_ENTITY_TYPE_RELATION_NV)),
-                    new ValueFormula<>(nliEntityType));
-
-            FeatureVector features = createBasicFeatureVector(ALL_NLI_ENTITIES_PER_TYPE);
-            result.elements.add(new ImmutablePair<>(formula, features));
-        });
-
-        return result;
+        // The id of 'NLI_ENTITY_TYPE_RELATION_NV' is the same for all graphs, so the formula is determined by the type.
+        return domainLexicon.getNonAnchoredFormulas(ALL_NLI_ENTITIES_PER_TYPE,
+                nliEntityTypes.collect(Collectors.toList()),
+                nliEntityType -> new JoinFormula(
+                        new ReverseFormula(new ValueFormula<>(graph.NLI_ENTITY_TYPE_RELATION_NV)),
+                        new ValueFormula<>(nliEntityType)));
     }
 
 
     public DerivedFormulas getAnchoredFormulas(LexiconSemanticFn.Mode mode, String phrase){
 
-        if (!FuzzyMatcher.checkPunctuationBoundaries(phrase)) return new DerivedFormulas();
+        if (!FuzzyMatcher.checkPunctuationBoundaries(phrase)) return DerivedFormulas.EMPTY;
 
         String processedPhrase = phraseAssociation.processPhrase.apply(phrase);
         DerivedFormulas result = modeToProcessedPhraseToPotentialAnchoredDerivedFormulas.getExisting(mode)
                 .safeGet(processedPhrase);
-        return result == null ? new DerivedFormulas() : result;
+        return result == null ? DerivedFormulas.EMPTY : result;
     }
 
 
+    /**
+     * @return may be shared with other lexicons (see {@link DomainLexicon}).
+     */
     public DerivedFormulas getNonAnchoredFormulas(LexiconSemanticFn.Mode mode){
         return modeToNonAnchoredDerivedFormulas.getExisting(mode);
     }
@@ -286,7 +281,7 @@ public class Lexicon {
      * Currently, we don't extract features indicating lexicon items were derived with a specific
      * {@link LexiconSemanticFn.Mode}.
      */
-    private static FeatureVector createBasicFeatureVector(LexiconSemanticFn.Mode mode) {
+    static FeatureVector createBasicFeatureVector(LexiconSemanticFn.Mode mode) {
         return new FeatureVector();
     }
 
@@ -89,12 +89,15 @@ public class LexiconSemanticFn extends SemanticFn{
             if (index >= derivedFormulas.elements.size()) return null;
             Pair<Formula, FeatureVector> formulaAndFeatures = derivedFormulas.elements.get(index++);
             SemType type = TypeInference.inferType(formulaAndFeatures.getLeft());
+            // The derivation's features are added to its local feature vector, so it gets a copy of the lexicon's.
+            FeatureVector localFeatureVector = new FeatureVector();
+            localFeatureVector.add(formulaAndFeatures.getRight());
 
             return new Derivation.Builder()
                     .withCallable(sempreCallable)
                     .formula(formulaAndFeatures.getLeft())
                     .type(type)
-                    .localFeatureVector(formulaAndFeatures.getRight())
+                    .localFeatureVector(localFeatureVector)
                     .createDerivation();
         }
 
@@ -0,0 +1,124 @@
+package il.ac.technion.nlp.nli.parser;
+
+import edu.stanford.nlp.sempre.ContextValue;
+import edu.stanford.nlp.sempre.Formula;
+import edu.stanford.nlp.sempre.JoinFormula;
+import edu.stanford.nlp.sempre.MarkFormula;
+import edu.stanford.nlp.sempre.NameValue;
+import edu.stanford.nlp.sempre.ReverseFormula;
+import edu.stanford.nlp.sempre.Value;
+import edu.stanford.nlp.sempre.ValueFormula;
+import edu.stanford.nlp.sempre.VariableFormula;
+import edu.stanford.nlp.sempre.tables.lambdadcs.LambdaDCSCoreLogic;
+import edu.stanford.nlp.sempre.tables.lambdadcs.LambdaDCSException;
+import edu.stanford.nlp.sempre.tables.lambdadcs.LambdaDCSExecutor;
+import edu.stanford.nlp.sempre.tables.lambdadcs.TypeHint;
+import fig.basic.Evaluation;
+import il.ac.technion.nlp.nli.core.dataset.Domain;
+import il.ac.technion.nlp.nli.core.state.State;
+import il.ac.technion.nlp.nli.dataset1.domains.lighting_control.entities.LightMode;
+import il.ac.technion.nlp.nli.dataset1.domains.lighting_control.entities.LightingControlSystem;
+import il.ac.technion.nlp.nli.dataset1.domains.lighting_control.entities.Room;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class InstructionKnowledgeGraphTest {
+
+    private static final Domain domain = new Domain("lighting", LightingControlSystem.class);
+
+    private static InstructionKnowledgeGraph createGraph() {
+        LightingControlSystem root = new LightingControlSystem();
+        root.rooms.add(new Room("kitchen", LightMode.OFF, 1));
+        root.rooms.add(new Room("hall", LightMode.ON, 1));
+        root.rooms.add(new Room("bedroom", LightMode.OFF, 2));
+        root.rooms.add(new Room("attic", LightMode.ON, 2));
+        root.rooms.add(new Room("basement", LightMode.OFF, 1));
+        return new InstructionKnowledgeGraph(new State(domain, root, true), true);
+    }
+
+    private static Formula join(Value relation, Formula child) {
+        return new JoinFormula(new ValueFormula<>(relation), child);
+    }
+
+    private static Formula reverseJoin(Value relation, Formula child) {
+        return new JoinFormula(new ReverseFormula(new ValueFormula<>(relation)), child);
+    }
+
+    /**
+     * @return the values of the denotation of 'formula' (in order, with duplicates), or null in case the execution
+     * failed.
+     */
+    private static List<Value> computeUnary(InstructionKnowledgeGraph graph, Formula formula,
+                                            boolean joinRelationChainsAtOnce) {
+        boolean originalJoinRelationChainsAtOnce = LambdaDCSExecutor.opts.joinRelationChainsAtOnce;
+        boolean originalUseCache = LambdaDCSExecutor.opts.useCache;
+        LambdaDCSExecutor.opts.joinRelationChainsAtOnce = joinRelationChainsAtOnce;
+        LambdaDCSExecutor.opts.useCache = false;
+        try {
+            List<Value> result = new ArrayList<>();
+            new LambdaDCSCoreLogic(new ContextValue(graph), new Evaluation())
+                    .computeUnary(formula, TypeHint.UNRESTRICTED_UNARY).forEach(result::add);
+            return result;
+        } catch (LambdaDCSException e) {
+            return null;
+        } finally {
+            LambdaDCSExecutor.opts.joinRelationChainsAtOnce = originalJoinRelationChainsAtOnce;
+            LambdaDCSExecutor.opts.useCache = originalUseCache;
+        }
+    }
+
+    /**
+     * Executing chains of joins at once gives the same values as joining one relation at a time, in the same order and
+     * with the same multiplicities.
+     */
+    @Test
+    public void testJoinChainsAtOnceEquivalentToPerRelationJoins() throws Exception {
+
+        InstructionKnowledgeGraph graph = createGraph();
+        NameValuesManager nameValuesManager = graph.nameValuesManager;
+        NameValue floor = nameValuesManager.createNameValueRepresentingRelationField(Room.class.getField("floor"));
+        NameValue lightMode = nameValuesManager.createNameValueRepresentingRelationField(
+                Room.class.getField("lightMode"));
+        Formula off = new ValueFormula<>(nameValuesManager.createNameValueRepresentingEnumValue(LightMode.OFF));
+        Formula roomType = new ValueFormula<>(nameValuesManager.createNameValueRepresentingNliEntityType(Room.class));
+        Formula star = new ValueFormula<>(new NameValue("*"));
+
+        // In this KB, (r X) is the set of values y s.t. (x, r, y) is a fact and x is in X.
+        // floors of the rooms whose light is off: 1, 2, 1 (so the rooms on these floors include duplicates, and are
+        // not ordered by index).
+        Formula roomsOnFloorsOfRoomsWithLightOff = reverseJoin(floor, join(floor, reverseJoin(lightMode, off)));
+        List<Formula> formulas = new ArrayList<>();
+        formulas.add(roomsOnFloorsOfRoomsWithLightOff);
+        formulas.add(join(lightMode, roomsOnFloorsOfRoomsWithLightOff));
+        // infinite innermost child.
+        formulas.add(join(lightMode, reverseJoin(floor, star)));
+        formulas.add(join(floor, reverseJoin(lightMode, star)));
+        // unary via the type relation.
+        formulas.add(join(floor, reverseJoin(graph.NLI_ENTITY_TYPE_RELATION_NV, roomType)));
+        // a relation that is not in the KB.
+        formulas.add(join(lightMode, join(new NameValue("notARelation"), roomsOnFloorsOfRoomsWithLightOff)));
+        // the innermost child can't be computed with an unrestricted type hint (the mark formula iterates over it).
+        formulas.add(join(lightMode, reverseJoin(floor, new MarkFormula("x",
+                join(floor, reverseJoin(floor, new VariableFormula("x")))))));
+
+        for (Formula formula : formulas) {
+            List<Value> expected = computeUnary(graph, formula, false);
+            assertEquals(formula.toString(), expected, computeUnary(graph, formula, true));
+        }
+
+        List<Value> modes = computeUnary(graph, join(lightMode, roomsOnFloorsOfRoomsWithLightOff), true);
+        assertTrue(modes != null);
+        assertEquals(3 + 2 + 3, modes.size());
+        assertEquals(3 + 2 + 3, computeUnary(graph, roomsOnFloorsOfRoomsWithLightOff, true).size());
+        // computed by the fallback of the innermost join.
+        assertTrue(computeUnary(graph, formulas.get(formulas.size() - 1), true) != null);
+    }
+}
@@ -0,0 +1,218 @@
+package il.ac.technion.nlp.nli.parser;
+
+import edu.stanford.nlp.sempre.Builder;
+import edu.stanford.nlp.sempre.DerivationPruner;
+import edu.stanford.nlp.sempre.FeatureExtractor;
+import edu.stanford.nlp.sempre.FeatureVector;
+import edu.stanford.nlp.sempre.FloatingParser;
+import edu.stanford.nlp.sempre.Grammar;
+import edu.stanford.nlp.sempre.JoinFn;
+import edu.stanford.nlp.sempre.LanguageAnalyzer;
+import edu.stanford.nlp.sempre.NumberFn;
+import edu.stanford.nlp.sempre.TypeInference;
+import edu.stanford.nlp.sempre.tables.features.PhraseInfo;
+import edu.stanford.nlp.sempre.tables.features.PredicateInfo;
+import il.ac.technion.nlp.nli.core.dataset.Domain;
+import il.ac.technion.nlp.nli.core.dataset.ExampleSplit;
+import il.ac.technion.nlp.nli.core.method_call.MethodCall;
+import il.ac.technion.nlp.nli.core.state.State;
+import il.ac.technion.nlp.nli.dataset1.domains.lighting_control.entities.LightMode;
+import il.ac.technion.nlp.nli.dataset1.domains.lighting_control.entities.LightingControlSystem;
+import il.ac.technion.nlp.nli.dataset1.domains.lighting_control.entities.Room;
+import il.ac.technion.nlp.nli.parser.experiment.ExperimentRunner;
+import il.ac.technion.nlp.nli.parser.experiment.ExperimentSettings;
+import il.ac.technion.nlp.nli.parser.features.InstructionFeatureComputer;
+import il.ac.technion.nlp.nli.parser.type_system.InstructionTypeLookup;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses with the instruction grammar and no trained weights (all derivations score 0), so only the properties of the
+ * returned candidates that don't depend on the model are checked.
+ *
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class InstructionParserTest {
+
+    private static final Path MODULE_RESOURCE_DIR = Paths.get("resources");
+    private static final String UTTERANCE = "turn on the lights in the kitchen";
+
+    private static final Domain domain = new Domain("lighting", LightingControlSystem.class);
+
+    private static State createInitialState() {
+        LightingControlSystem root = new LightingControlSystem();
+        root.rooms.add(new Room("kitchen", LightMode.OFF, 1));
+        root.rooms.add(new Room("hall", LightMode.ON, 1));
+        root.rooms.add(new Room("bedroom", LightMode.OFF, 2));
+        return new State(domain, root, true);
+    }
+
+    /**
+     * Sets Sempre's options as in the module's SempreDefaultArgs.xml (the ones relevant for parsing), except for using
+     * {@link edu.stanford.nlp.sempre.SimpleAnalyzer} rather than CoreNLP.
+     */
+    static synchronized void configSempreOptions() {
+        try {
+            // The grammar in the module resources refers to the classes of this module by their former packages.
+            String grammar = new String(Files.readAllBytes(
+                    MODULE_RESOURCE_DIR.resolve("grammars/instruction/instruction.grammar")), StandardCharsets.UTF_8);
+            Path grammarFile = Files.createTempFile("instruction", ".grammar");
+            grammarFile.toFile().deleteOnExit();
+            Files.write(grammarFile, grammar.replace("nli.parser.instruction.", "nli.parser.")
+                    .getBytes(StandardCharsets.UTF_8));
+            Grammar.opts.inPaths = Collections.singletonList(grammarFile.toString());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        FeatureExtractor.opts.featureComputers = new HashSet<>(Arrays.asList(
+                "tables.features.PhrasePredicateFeatureComputer", InstructionFeatureComputer.class.getName()));
+        FeatureExtractor.opts.featureDomains = new HashSet<>(Arrays.asList("phrase-predicate", "missing-predicate"));
+        Builder.opts.executor = "tables.lambdadcs.LambdaDCSExecutor";
+        Builder.opts.parser = "FloatingParser";
+        NumberFn.opts.unitless = true;
+        NumberFn.opts.alsoTestByConversion = true;
+        TypeInference.opts.typeLookup = InstructionTypeLookup.class.getName();
+        JoinFn.opts.specializedTypeCheck = false;
+        JoinFn.opts.typeInference = true;
+        FloatingParser.opts.useSizeInsteadOfDepth = true;
+        FloatingParser.opts.useAnchorsOnce = true;
+        DerivationPruner.opts.pruningStrategies = Arrays.asList("singleton", "multipleSuperlatives", "sameMerge",
+                "forwardBackward", "doubleNext", "emptyDenotation", "nonLambdaError", "badSuperlativeHead",
+                "mistypedMerge");
+        DerivationPruner.opts.pruningComputers = Arrays.asList("tables.TableDerivationPruningComputer",
+                InstructionDerivationPruningComputer.class.getName());
+        FeatureVector.opts.ignoreZeroWeight = true;
+        LanguageAnalyzer.opts.languageAnalyzer = "SimpleAnalyzer";
+        PredicateInfo.opts.usePredicateLemma = true;
+        PhraseInfo.opts.usePhraseLemmaOnly = true;
+        PhraseInfo.opts.computeFuzzyMatchPredicates = true;
+    }
+
+    private static InstructionParser loadParser() throws IOException {
+        configSempreOptions();
+        ExperimentSettings settings = new ExperimentSettings(new ExampleSplit(), null,
+                ExperimentSettings.SetupType.IN_DOMAIN, null, null, 1);
+        settings.beamSize = 50;
+        Path weightsFile = Files.createTempFile("weights", ".params");
+        weightsFile.toFile().deleteOnExit();
+        return InstructionParser.load(MODULE_RESOURCE_DIR, settings, weightsFile);
+    }
+
+    private static List<MethodCall> getMethodCalls(InstructionParser.ParseResult result) {
+        return result.parsedMethodCalls.stream()
+                .map(parsedMethodCall -> parsedMethodCall.methodCall)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testTopKDistinctMethodCalls() throws Exception {
+
+        try (InstructionParser parser = loadParser()) {
+            State initialState = createInitialState();
+            List<MethodCall> all = getMethodCalls(parser.parse(initialState, UTTERANCE, Integer.MAX_VALUE, false));
+            assertTrue(all.size() > 3);
+            assertEquals(all.size(), new HashSet<>(all).size());
+
+            InstructionParser.ParseResult result = parser.parse(initialState, UTTERANCE, 3, false);
+            assertEquals(3, result.parsedMethodCalls.size());
+            for (int i = 1; i < result.parsedMethodCalls.size(); i++)
+                assertTrue(result.parsedMethodCalls.get(i - 1).score >= result.parsedMethodCalls.get(i).score);
+            assertEquals(3, new HashSet<>(getMethodCalls(result)).size());
+            assertTrue(all.containsAll(getMethodCalls(result)));
+            for (InstructionParser.ParsedMethodCall parsedMethodCall : result.parsedMethodCalls)
+                assertTrue(parsedMethodCall.resultingState == null);
+            assertEquals(2, parser.getParsesNum());
+        }
+    }
+
+    @Test
+    public void testResultingStatesAreOwnedByCaller() throws Exception {
+
+        try (InstructionParser parser = loadParser()) {
+            State initialState = createInitialState();
+            State initialStateCopy = initialState.deepCopy();
+            InstructionParser.ParseResult result = parser.parse(initialState, UTTERANCE, 5, true);
+            assertTrue(!result.parsedMethodCalls.isEmpty());
+            for (InstructionParser.ParsedMethodCall parsedMethodCall : result.parsedMethodCalls) {
+                State resultingState = parsedMethodCall.resultingState;
+                assertTrue(resultingState != null);
+                assertTrue(!resultingState.isEntityGraphUnmodifiable());
+                assertTrue(!resultingState.sharesEntitiesWithOtherStates());
+                assertTrue(resultingState.entityGraphsEqual(
+                        parsedMethodCall.methodCall.invokeOnDeepCopyOfState(initialStateCopy)));
+                // may be modified by the caller.
+                ((LightingControlSystem) resultingState.getRootEntity()).rooms.clear();
+                resultingState.updateStateFollowingEntityGraphModifications();
+            }
+            assertTrue(initialState.entityGraphsEqual(initialStateCopy));
+        }
+    }
+
+    /**
+     * Each thread parses with its own initial state; all get the method calls found by a sequential parse.
+     */
+    @Test
+    public void testConcurrentParses() throws Exception {
+
+        try (InstructionParser parser = loadParser()) {
+            Set<MethodCall> expected = new HashSet<>(getMethodCalls(
+                    parser.parse(createInitialState(), UTTERANCE, Integer.MAX_VALUE, false)));
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<Set<MethodCall>>> futures = new ArrayList<>();
+                for (int i = 0; i < 8; i++)
+                    futures.add(executor.submit(() -> new HashSet<>(getMethodCalls(
+                            parser.parse(createInitialState(), UTTERANCE, Integer.MAX_VALUE, false)))));
+                for (Future<Set<MethodCall>> future : futures)
+                    assertEquals(expected, future.get());
+            } finally {
+                executor.shutdown();
+            }
+            assertEquals(9, parser.getParsesNum());
+        }
+    }
+
+    /**
+     * A loaded parser is a running Sempre run (until closed), so Sempre runs configured differently can't start.
+     */
+    @Test
+    public void testLoadedParserBlocksDifferentlyConfiguredRuns() throws Exception {
+
+        ExperimentSettings otherSettings = new ExperimentSettings(new ExampleSplit(), null,
+                ExperimentSettings.SetupType.IN_DOMAIN, null, null, 1);
+        otherSettings.beamSize = 100;
+        InstructionParser parser = loadParser();
+        boolean exceptionThrown = false;
+        try {
+            ExperimentRunner.startSempreRun(otherSettings, 0, null, 0, 1);
+        } catch (RuntimeException e) {
+            exceptionThrown = true;
+        } finally {
+            parser.close();
+        }
+        assertTrue(exceptionThrown);
+        parser.close(); // no effect.
+
+        ExperimentRunner.startSempreRun(otherSettings, 0, null, 0, 1);
+        ExperimentRunner.endSempreRun();
+    }
+}
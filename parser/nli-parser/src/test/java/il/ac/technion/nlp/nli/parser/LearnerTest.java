@@ -0,0 +1,133 @@
+package il.ac.technion.nlp.nli.parser;
+
+import edu.stanford.nlp.sempre.Builder;
+import edu.stanford.nlp.sempre.Learner;
+import fig.basic.Evaluation;
+import fig.basic.Pair;
+import il.ac.technion.nlp.nli.core.dataset.Domain;
+import il.ac.technion.nlp.nli.core.dataset.Example;
+import il.ac.technion.nlp.nli.core.dataset.ExampleSplit;
+import il.ac.technion.nlp.nli.core.state.State;
+import il.ac.technion.nlp.nli.dataset1.domains.lighting_control.entities.LightMode;
+import il.ac.technion.nlp.nli.dataset1.domains.lighting_control.entities.LightingControlSystem;
+import il.ac.technion.nlp.nli.dataset1.domains.lighting_control.entities.Room;
+import il.ac.technion.nlp.nli.parser.experiment.ExperimentRunner;
+import il.ac.technion.nlp.nli.parser.experiment.ExperimentSettings;
+import il.ac.technion.nlp.nli.parser.general.InferenceContext;
+import il.ac.technion.nlp.nli.parser.general.SempreExperiment;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class LearnerTest {
+
+    private static final Domain domain = new Domain("lighting", LightingControlSystem.class);
+
+    private static Example createExample(String id, String utterance, String roomName, LightMode newLightMode) {
+        LightingControlSystem root = new LightingControlSystem();
+        root.rooms.add(new Room("kitchen", LightMode.OFF, 1));
+        root.rooms.add(new Room("hall", LightMode.ON, 1));
+        root.rooms.add(new Room("bedroom", LightMode.OFF, 2));
+        State initialState = new State(domain, root, true);
+        State destinationState = initialState.deepCopy();
+        ((LightingControlSystem) destinationState.getRootEntity()).rooms.stream()
+                .filter(room -> room.roomName.equals(roomName))
+                .forEach(room -> room.lightMode = newLightMode);
+        destinationState.updateStateFollowingEntityGraphModifications();
+        return new Example(id, utterance, initialState, destinationState, domain);
+    }
+
+    private static List<Example> createTrainingExamples() {
+        List<Example> result = new ArrayList<>();
+        result.add(createExample("1", "turn on the lights in the kitchen", "kitchen", LightMode.ON));
+        result.add(createExample("2", "turn off the lights in the hall", "hall", LightMode.OFF));
+        result.add(createExample("3", "turn on the bedroom lights", "bedroom", LightMode.ON));
+        result.add(createExample("4", "switch the hall lights off", "hall", LightMode.OFF));
+        return result;
+    }
+
+    /**
+     * Trains for two iterations (with a single mini-batch of all the examples).
+     * @return the learned weights.
+     */
+    private static Map<String, Double> train(int trainingThreads, Consumer<List<Evaluation>> evaluationsConsumer)
+            throws IOException {
+
+        InstructionParserTest.configSempreOptions();
+        int originalBatchSize = Learner.opts.batchSize;
+        int originalTrainingThreads = Learner.opts.trainingThreads;
+        Learner.opts.batchSize = 4;
+        Learner.opts.trainingThreads = trainingThreads;
+        ExperimentSettings settings = new ExperimentSettings(new ExampleSplit(), null,
+                ExperimentSettings.SetupType.IN_DOMAIN, null, null, 1);
+        settings.beamSize = 50;
+        ExperimentRunner.startSempreRun(settings, 2, null, 0, 1);
+        InferenceContext previousContext = InferenceContext.ofCurrentThread();
+        try {
+            ExampleSplit split = new ExampleSplit(createTrainingExamples(), Collections.emptyList());
+            File analysisDir = Files.createTempDirectory("analysis").toFile();
+            analysisDir.deleteOnExit();
+            SempreExperiment experiment = new SempreExperiment(Paths.get("resources"), split, analysisDir, settings,
+                    true, null);
+            InferenceContext.ofExperiment(experiment).withSilentLog().makeCurrent();
+            Builder builder = new Builder();
+            builder.valueEvaluator = new InstructionValueEvaluator();
+            builder.buildUnspecified();
+            experiment.setSempreParser(builder.parser);
+            SempreInstructionDataset dataset = new SempreInstructionDataset(split);
+            dataset.readFromPathPairs(Collections.singletonList(new Pair<>("train", "train")));
+            Learner learner = new Learner(builder.parser, builder.params, dataset);
+            Map<String, List<Evaluation>> evaluations = new HashMap<>();
+            learner.learn(2, evaluations);
+            evaluationsConsumer.accept(evaluations.get("train"));
+            return builder.params.getWeights();
+        } finally {
+            previousContext.makeCurrent();
+            ExperimentRunner.endSempreRun();
+            Learner.opts.batchSize = originalBatchSize;
+            Learner.opts.trainingThreads = originalTrainingThreads;
+        }
+    }
+
+    /**
+     * @return the metrics of 'evaluations' that don't depend on timing.
+     */
+    private static List<String> summarize(List<Evaluation> evaluations) {
+        List<String> result = new ArrayList<>();
+        for (Evaluation evaluation : evaluations)
+            for (String metric : Arrays.asList("correct", "oracle", "correctIndexAfterParse", "numCandidates"))
+                result.add(metric + "=" + evaluation.getFig(metric));
+        return result;
+    }
+
+    /**
+     * Parsing the examples of a mini-batch in parallel gives the same weights and evaluations as parsing them
+     * sequentially.
+     */
+    @Test
+    public void testParallelTrainingIsDeterministic() throws Exception {
+
+        List<List<String>> evaluations = new ArrayList<>();
+        Map<String, Double> sequentialWeights = train(1, e -> evaluations.add(summarize(e)));
+        Map<String, Double> parallelWeights = train(4, e -> evaluations.add(summarize(e)));
+        assertTrue(!sequentialWeights.isEmpty());
+        assertEquals(sequentialWeights, parallelWeights);
+        assertEquals(evaluations.get(0), evaluations.get(1));
+    }
+}
@@ -0,0 +1,150 @@
+package il.ac.technion.nlp.nli.parser.experiment;
+
+import il.ac.technion.nlp.nli.core.dataset.ExampleSplit;
+import il.ac.technion.nlp.nli.parser.general.FeatureIndex;
+import il.ac.technion.nlp.nli.parser.general.InferenceContext;
+import il.ac.technion.nlp.nli.parser.general.SempreExperiment;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class ExperimentRunnerTest {
+
+    private static ExperimentSettings createSettings(int beamSize) {
+        ExperimentSettings settings = new ExperimentSettings(new ExampleSplit(), null,
+                ExperimentSettings.SetupType.IN_DOMAIN, null, null, 1);
+        settings.beamSize = beamSize;
+        return settings;
+    }
+
+    /**
+     * Two experiments run concurrently by two threads: each thread works on its own experiment, and freezing the
+     * feature index by one experiment doesn't affect the other one. Features indexed by the other experiment after the
+     * freeze have no index for the frozen experiment.
+     */
+    @Test
+    public void testConcurrentExperiments() throws Exception {
+
+        ExperimentSettings settings = createSettings(50);
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int t = 0; t < 2; t++) {
+                int threadNum = t;
+                futures.add(executor.submit(() -> {
+                    ExperimentRunner.startSempreRun(settings, 1, null, 0, 1);
+                    SempreExperiment experiment = SempreExperiment.createForServing(Paths.get("."), settings);
+                    InferenceContext.ofExperiment(experiment).makeCurrent();
+                    FeatureIndex featureIndex = FeatureIndex.getInstance();
+                    try {
+                        barrier.await(); // both experiments are running.
+                        if (threadNum == 1)
+                            featureIndex.getOrCreateIndex("ExperimentRunnerTest", "feature before freeze");
+                        barrier.await();
+                        if (threadNum == 0)
+                            experiment.freezeFeatureIndex();
+                        barrier.await();
+                        if (threadNum == 1)
+                            featureIndex.getOrCreateIndex("ExperimentRunnerTest", "feature after freeze");
+                        barrier.await();
+                        int beforeFreezeIndex = featureIndex.getOrCreateIndex("ExperimentRunnerTest",
+                                "feature before freeze");
+                        int afterFreezeIndex = featureIndex.getOrCreateIndex("ExperimentRunnerTest",
+                                "feature after freeze");
+                        int ownIndex = featureIndex.getOrCreateIndex("ExperimentRunnerTest",
+                                "feature of thread " + threadNum);
+                        if (ExperimentRunner.getCurrentExperiment() != experiment || beforeFreezeIndex < 0)
+                            return false;
+                        if (threadNum == 0)
+                            return afterFreezeIndex == -1 && ownIndex == -1;
+                        return afterFreezeIndex >= 0 && ownIndex >= 0;
+                    } finally {
+                        InferenceContext.clearCurrent();
+                        ExperimentRunner.endSempreRun();
+                    }
+                }));
+            }
+            for (Future<Boolean> future : futures)
+                assertTrue(future.get());
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(!ExperimentRunner.isExperimentCurrentlyRunning());
+    }
+
+    @Test
+    public void testConcurrentExperimentsMustConfigureSempreTheSameWay() {
+
+        ExperimentRunner.startSempreRun(createSettings(50), 1, null, 0, 1);
+        boolean exceptionThrown = false;
+        try {
+            ExperimentRunner.startSempreRun(createSettings(100), 1, null, 0, 1);
+        } catch (RuntimeException e) {
+            exceptionThrown = true;
+        } finally {
+            ExperimentRunner.endSempreRun();
+        }
+        assertTrue(exceptionThrown);
+
+        // no experiment is running now.
+        ExperimentRunner.startSempreRun(createSettings(100), 1, null, 0, 1);
+        ExperimentRunner.endSempreRun();
+    }
+
+    /**
+     * The settings are verified also for an experiment joining experiments that are already running (for which
+     * Sempre's static options are not configured again).
+     */
+    @Test
+    public void testSettingsAreVerifiedForEveryExperiment() {
+
+        ExperimentRunner.startSempreRun(createSettings(50), 1, null, 0, 1);
+        ExperimentSettings badSettings = createSettings(50);
+        badSettings.copyOnWriteMethodInvocation = true;
+        badSettings.inPlaceMethodInvocationForEvaluation = true;
+        boolean exceptionThrown = false;
+        try {
+            ExperimentRunner.startSempreRun(badSettings, 1, null, 0, 1);
+        } catch (RuntimeException e) {
+            exceptionThrown = true;
+        } finally {
+            ExperimentRunner.endSempreRun();
+        }
+        assertTrue(exceptionThrown);
+    }
+
+    /**
+     * A null bound on the kept execution caches is equivalent to the default, and a non-positive one is rejected.
+     */
+    @Test
+    public void testKeptExecutionCachesMaxNumIsVerified() {
+
+        ExperimentSettings nullBoundSettings = createSettings(50);
+        nullBoundSettings.keptMethodCallExecutionCachesMaxNum = null;
+        ExperimentRunner.startSempreRun(nullBoundSettings, 1, null, 0, 1);
+        ExperimentRunner.endSempreRun();
+
+        ExperimentSettings badSettings = createSettings(50);
+        badSettings.keptMethodCallExecutionCachesMaxNum = 0;
+        boolean exceptionThrown = false;
+        try {
+            ExperimentRunner.startSempreRun(badSettings, 1, null, 0, 1);
+            ExperimentRunner.endSempreRun();
+        } catch (RuntimeException e) {
+            exceptionThrown = true;
+        }
+        assertTrue(exceptionThrown);
+    }
+}
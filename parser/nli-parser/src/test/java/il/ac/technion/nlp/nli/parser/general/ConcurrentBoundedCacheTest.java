@@ -0,0 +1,80 @@
+package il.ac.technion.nlp.nli.parser.general;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class ConcurrentBoundedCacheTest {
+
+    @Test
+    public void testHitsAndMisses() {
+
+        ConcurrentBoundedCache<String, Integer> cache = new ConcurrentBoundedCache<>(10);
+        assertEquals(3, (int) cache.getOrCompute("abc", String::length));
+        assertEquals(3, (int) cache.getOrCompute("abc", s -> -1));
+        assertEquals(2, (int) cache.getOrCompute("ab", String::length));
+        assertEquals(1, cache.getHitsNum());
+        assertEquals(2, cache.getMissesNum());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testEviction() {
+
+        ConcurrentBoundedCache<Integer, Integer> cache = new ConcurrentBoundedCache<>(3);
+        for (int i = 0; i < 5; i++)
+            cache.getOrCompute(i, x -> x * x);
+        assertEquals(3, cache.size());
+        assertEquals(2, cache.getEvictionsNum());
+        // the earliest inserted entries are the evicted ones.
+        assertNull(cache.getIfPresent(0));
+        assertNull(cache.getIfPresent(1));
+        assertEquals(16, (int) cache.getIfPresent(4));
+    }
+
+    @Test
+    public void testPutIfAbsentKeepsExistingValue() {
+
+        ConcurrentBoundedCache<String, String> cache = new ConcurrentBoundedCache<>(10);
+        assertNull(cache.putIfAbsent("k", "v1"));
+        assertEquals("v1", cache.putIfAbsent("k", "v2"));
+        assertEquals("v1", cache.getIfPresent("k"));
+        assertEquals(0, cache.getHitsNum() + cache.getMissesNum());
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+
+        ConcurrentBoundedCache<Integer, Integer> cache = new ConcurrentBoundedCache<>(50);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++)
+                futures.add(executor.submit(() -> {
+                    boolean allCorrect = true;
+                    for (int i = 0; i < 10000; i++) {
+                        int key = i % 200;
+                        allCorrect &= cache.getOrCompute(key, x -> x + 1) == key + 1;
+                    }
+                    return allCorrect;
+                }));
+            for (Future<Boolean> future : futures)
+                assertTrue(future.get());
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(cache.size() <= 50);
+        assertEquals(40000, cache.getHitsNum() + cache.getMissesNum());
+    }
+}
@@ -0,0 +1,90 @@
+package il.ac.technion.nlp.nli.parser.general;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class FeatureIndexTest {
+
+    @Test
+    public void testLookupByDomainAndName() {
+
+        FeatureIndex index = new FeatureIndex();
+        int f1 = index.getOrCreateIndex("d1", "n1");
+        int f2 = index.getOrCreateIndex("d1 :: n2");
+        assertEquals(f1, index.getOrCreateIndex("d1 :: n1"));
+        assertEquals(f2, index.getOrCreateIndex("d1", "n2"));
+        assertEquals(f1, index.getOrCreateIndex("d1", "n1"));
+        assertEquals("d1 :: n1", index.getFeature(f1));
+        assertEquals(-1, index.getIndex("d2 :: n1"));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testFreeze() {
+
+        FeatureIndex index = new FeatureIndex();
+        int f1 = index.getOrCreateIndex("d1", "n1");
+        index.freeze();
+        assertEquals(f1, index.getOrCreateIndex("d1", "n1"));
+        assertEquals(f1, index.getOrCreateIndex("d1 :: n1"));
+        assertEquals(-1, index.getOrCreateIndex("d1", "n2"));
+        assertEquals(1, index.size());
+        index.unfreeze();
+        assertEquals(1, index.getOrCreateIndex("d1", "n2"));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+
+        FeatureIndex index = new FeatureIndex();
+        index.getOrCreateIndex("d1", "n1");
+        index.getOrCreateIndex("d2", "n2");
+        Path file = Files.createTempFile("featureIndex", ".txt");
+        try {
+            index.write(file);
+
+            FeatureIndex read = new FeatureIndex();
+            read.read(file);
+            assertEquals(2, read.size());
+            assertEquals(index.getIndex("d2 :: n2"), read.getIndex("d2 :: n2"));
+
+            // reading a consistent file again changes nothing.
+            read.getOrCreateIndex("d3", "n3");
+            read.read(file);
+            assertEquals(3, read.size());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testReadInconsistentFile() throws IOException {
+
+        FeatureIndex index = new FeatureIndex();
+        index.getOrCreateIndex("d1", "n1");
+        Path file = Files.createTempFile("featureIndex", ".txt");
+        try {
+            index.write(file);
+            FeatureIndex other = new FeatureIndex();
+            other.getOrCreateIndex("d2", "n2");
+            boolean thrown = false;
+            try {
+                other.read(file);
+            } catch (RuntimeException e) {
+                thrown = true;
+            }
+            assertTrue(thrown);
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package il.ac.technion.nlp.nli.parser.general;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class IndexedSparseVectorTest {
+
+    @Test
+    public void testIncrementKeepsInsertionOrder() {
+
+        IndexedSparseVector vector = new IndexedSparseVector();
+        // enough entries to make the vector grow several times.
+        for (int i = 0; i < 1000; i++)
+            vector.increment(1000 - i, i);
+        for (int i = 0; i < 1000; i++)
+            vector.increment(1000 - i, 1);
+
+        assertEquals(1000, vector.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(1000 - i, vector.getIndexAt(i));
+            assertEquals(i + 1, vector.getValueAt(i), 0);
+            assertEquals(i + 1, vector.get(1000 - i), 0);
+        }
+        assertEquals(0, vector.get(0), 0);
+        assertEquals(0, vector.get(5000), 0);
+    }
+
+    @Test
+    public void testAddAndRemove() {
+
+        IndexedSparseVector vector1 = new IndexedSparseVector();
+        vector1.increment(3, 1);
+        vector1.increment(7, 2);
+        IndexedSparseVector vector2 = new IndexedSparseVector();
+        vector2.increment(7, 1);
+        vector2.increment(5, 4);
+
+        vector1.add(2, vector2);
+        assertEquals(3, vector1.size());
+        assertEquals(4, vector1.get(7), 0);
+        assertEquals(8, vector1.get(5), 0);
+        assertEquals(1 + 16 + 64, vector1.getSquaredL2Norm(), 0);
+
+        vector1.removeIf(index -> index == 7);
+        assertEquals(2, vector1.size());
+        assertEquals(3, vector1.getIndexAt(0));
+        assertEquals(5, vector1.getIndexAt(1));
+        assertEquals(0, vector1.get(7), 0);
+        assertEquals(8, vector1.get(5), 0);
+
+        vector1.clear();
+        assertEquals(0, vector1.size());
+        assertEquals(0, vector1.get(3), 0);
+    }
+
+    @Test
+    public void testConversionFromAndToFeatureNames() {
+
+        FeatureIndex featureIndex = new FeatureIndex();
+        featureIndex.getOrCreateIndex("d :: a");
+        featureIndex.freeze();
+
+        Map<String, Double> featureToValue = new HashMap<>();
+        featureToValue.put("d :: a", 1.5);
+        featureToValue.put("d :: b", 2.0); // has no index.
+        IndexedSparseVector vector = new IndexedSparseVector();
+        vector.increment(featureToValue, featureIndex);
+
+        assertEquals(1, vector.size());
+        assertEquals(Arrays.asList("d :: a"), Arrays.asList(vector.toMap(featureIndex).keySet().toArray()));
+        assertEquals(1.5, vector.toMap(featureIndex).get("d :: a"), 0);
+    }
+}
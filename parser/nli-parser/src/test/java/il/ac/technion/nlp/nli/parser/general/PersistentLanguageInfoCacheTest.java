@@ -0,0 +1,96 @@
+package il.ac.technion.nlp.nli.parser.general;
+
+import edu.stanford.nlp.sempre.LanguageAnalyzer;
+import edu.stanford.nlp.sempre.LanguageInfo;
+import edu.stanford.nlp.sempre.SimpleAnalyzer;
+import edu.stanford.nlp.sempre.cache.StringCache;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class PersistentLanguageInfoCacheTest {
+
+    private static class InMemoryStringCache implements StringCache {
+
+        private final Map<String, String> map = new HashMap<>();
+
+        @Override
+        public String get(String key) {
+            return map.get(key);
+        }
+
+        @Override
+        public void put(String key, String value) {
+            map.put(key, value);
+        }
+    }
+
+    private static class CountingAnalyzer extends SimpleAnalyzer {
+
+        private final AtomicInteger analyzedNum = new AtomicInteger();
+        private volatile Thread firstAnalyzingThread;
+
+        @Override
+        public LanguageInfo analyze(String utterance) {
+            if (analyzedNum.getAndIncrement() == 0)
+                firstAnalyzingThread = Thread.currentThread();
+            return super.analyze(utterance);
+        }
+    }
+
+    @Test
+    public void testAnalyzeOnce() {
+
+        InMemoryStringCache stringCache = new InMemoryStringCache();
+        CountingAnalyzer analyzer = new CountingAnalyzer();
+        LanguageInfo expected = new SimpleAnalyzer().analyze("Remove all 3 Files");
+
+        PersistentLanguageInfoCache cache = new PersistentLanguageInfoCache(stringCache, analyzer);
+        cache.analyze("Remove all 3 Files");
+        // a new cache (e.g. in another process) backed by the same storage.
+        LanguageInfo cached = new PersistentLanguageInfoCache(stringCache, analyzer).analyze("Remove all 3 Files");
+        assertEquals(1, analyzer.analyzedNum.get());
+        assertEquals(expected.tokens, cached.tokens);
+        assertEquals(expected.lemmaTokens, cached.lemmaTokens);
+        assertEquals(expected.posTags, cached.posTags);
+        assertEquals(expected.nerTags, cached.nerTags);
+        assertEquals(expected.nerValues, cached.nerValues);
+    }
+
+    @Test
+    public void testPrecompute() {
+
+        CountingAnalyzer analyzer = new CountingAnalyzer();
+        PersistentLanguageInfoCache cache = new PersistentLanguageInfoCache(new InMemoryStringCache(), analyzer);
+        cache.precompute(Arrays.asList("a b", "c d", "a b", "e f"), 2);
+        assertEquals(3, analyzer.analyzedNum.get());
+        // the analyzer is initialized by the calling thread, before the others use it.
+        assertTrue(analyzer.firstAnalyzingThread == Thread.currentThread());
+        cache.analyze("c d");
+        assertEquals(3, analyzer.analyzedNum.get());
+        assertEquals(1, cache.getHitsNum());
+    }
+
+    @Test
+    public void testAnalyzerOptionsAffectDescription() {
+
+        boolean originalValue = LanguageAnalyzer.opts.lowerCaseTokens;
+        try {
+            String description = PersistentLanguageInfoCache.getAnalyzerDescription(new SimpleAnalyzer());
+            LanguageAnalyzer.opts.lowerCaseTokens = !originalValue;
+            assertNotEquals(description, PersistentLanguageInfoCache.getAnalyzerDescription(new SimpleAnalyzer()));
+        } finally {
+            LanguageAnalyzer.opts.lowerCaseTokens = originalValue;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package il.ac.technion.nlp.nli.parser.kb;
+
+import edu.stanford.nlp.sempre.NameValue;
+import il.ac.technion.nlp.nli.parser.NameValuesManager;
+import ofergivoli.olib.data_structures.set.SafeHashSet;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class IndexedGraphKbTest {
+
+    @Test
+    public void testArgWithEmptyImageSetIsNotInDomain() {
+
+        NameValue relation = new NameValue("r");
+        NameValue a = new NameValue("a");
+        NameValue b = new NameValue("b");
+        NameValue c = new NameValue("c");
+        NameValue d = new NameValue("d");
+        NameValue e = new NameValue("e");
+
+        NameValuesManager nameValuesManager = new NameValuesManager();
+        for (NameValue value : new NameValue[]{relation, a, b, c, d, e})
+            nameValuesManager.getOrCreateValueIndex(value);
+
+        GraphKbWithSempreTypes kb = new GraphKbWithSempreTypes();
+        kb.addFact(relation, a, b);
+        kb.addFact(relation, c, d);
+        kb.getRelationToFirstArgToSecondArgs().getExisting(relation).put(e, new SafeHashSet<>());
+        IndexedGraphKb indexedKb = new IndexedGraphKb(kb, nameValuesManager);
+
+        int[] expectedDomain = {indexedKb.getValueIndex(a), indexedKb.getValueIndex(c)};
+        assertArrayEquals(expectedDomain, indexedKb.getDomain(relation, false));
+        assertEquals(1, indexedKb.getImageSize(relation, false, indexedKb.getValueIndex(c)));
+        assertEquals(0, indexedKb.getImageSize(relation, false, indexedKb.getValueIndex(e)));
+        assertEquals(0, indexedKb.getImageSize(relation, false, indexedKb.getValueIndex(relation)));
+    }
+}
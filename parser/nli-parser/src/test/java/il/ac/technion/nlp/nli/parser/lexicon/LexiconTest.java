@@ -0,0 +1,68 @@
+package il.ac.technion.nlp.nli.parser.lexicon;
+
+import il.ac.technion.nlp.nli.core.state.State;
+import il.ac.technion.nlp.nli.parser.InstructionKnowledgeGraph;
+import il.ac.technion.nlp.nli.parser.features.PhraseAssociation;
+import il.ac.technion.nlp.nli.parser.instruction.dummy_domains.SimpleDummyDomainRoot;
+import org.junit.Test;
+
+import static il.ac.technion.nlp.nli.parser.lexicon.LexiconSemanticFn.Mode.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ofer Givoli <ogivoli@cs.technion.ac.il>
+ */
+public class LexiconTest {
+
+    private static Lexicon createLexicon() {
+        State state = new State(SimpleDummyDomainRoot.domain, new SimpleDummyDomainRoot(), true);
+        InstructionKnowledgeGraph graph = new InstructionKnowledgeGraph(state, true);
+        return new Lexicon(graph, new PhraseAssociation(graph, false), true);
+    }
+
+    @Test
+    public void testNonAnchoredFormulasSharedByExamplesOfTheSameDomain() {
+
+        Lexicon lexicon1 = createLexicon();
+        Lexicon lexicon2 = createLexicon();
+
+        for (LexiconSemanticFn.Mode mode :
+                new LexiconSemanticFn.Mode[]{NLI_METHOD_NAME, PRIMITIVE_RELATION, ALL_NLI_ENTITIES_PER_TYPE})
+            assertSame(lexicon1.getNonAnchoredFormulas(mode), lexicon2.getNonAnchoredFormulas(mode));
+
+        assertEquals(1, lexicon1.getNonAnchoredFormulas(NLI_METHOD_NAME).elements.size());
+        assertFalse(lexicon1.getNonAnchoredFormulas(PRIMITIVE_RELATION).elements.isEmpty());
+    }
+
+    @Test
+    public void testAnchoredEnumValues() {
+        Lexicon lexicon = createLexicon();
+        assertEquals(1, lexicon.getAnchoredFormulas(ANCHORED_ENUM_VALUE, "used2").elements.size());
+        assertEquals(0, lexicon.getAnchoredFormulas(ANCHORED_ENUM_VALUE, "foo").elements.size());
+    }
+
+    @Test
+    public void testDerivedFormulasAreUnmodifiable() {
+        Lexicon lexicon = createLexicon();
+        Lexicon.DerivedFormulas anchored = lexicon.getAnchoredFormulas(ANCHORED_ENUM_VALUE, "used2");
+        boolean exceptionThrown = false;
+        try {
+            anchored.elements.clear();
+        } catch (UnsupportedOperationException e) {
+            exceptionThrown = true;
+        }
+        assertTrue(exceptionThrown);
+        assertEquals(1, lexicon.getAnchoredFormulas(ANCHORED_ENUM_VALUE, "used2").elements.size());
+
+        exceptionThrown = false;
+        try {
+            lexicon.getNonAnchoredFormulas(NLI_METHOD_NAME).elements.remove(0);
+        } catch (UnsupportedOperationException e) {
+            exceptionThrown = true;
+        }
+        assertTrue(exceptionThrown);
+    }
+}